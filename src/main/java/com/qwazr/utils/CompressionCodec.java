@@ -0,0 +1,308 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * A compression format. The compressed data starts with a byte which identifies the codec,
+ * so the readers detect the codec: see {@link #decompress(InputStream)}.
+ * The GZIP data is written as is, the first byte of the GZIP magic number (0x1f) identifies it,
+ * therefore the data compressed by the former GZIP methods is still readable.
+ * <ul>
+ * <li>GZIP: deflate with CRC, the historical format (slow)</li>
+ * <li>DEFLATE: deflate with the zlib header and checksum, at a configurable level</li>
+ * <li>RAW_DEFLATE: deflate without any header nor checksum</li>
+ * <li>LZ: a LZ77 compressor without entropy coding (fast, lower ratio)</li>
+ * <li>NONE: no compression</li>
+ * </ul>
+ * The streams returned by the codecs do not close the underlying stream.
+ */
+public abstract class CompressionCodec {
+
+	private final static int GZIP_ID = 0x1f;
+	private final static int NONE_ID = 0x00;
+	private final static int DEFLATE_ID = 0x01;
+	private final static int RAW_DEFLATE_ID = 0x02;
+	private final static int LZ_ID = 0x03;
+
+	public final static CompressionCodec NONE = new None();
+
+	public final static CompressionCodec GZIP = new Gzip(Deflater.DEFAULT_COMPRESSION);
+
+	public final static CompressionCodec DEFLATE =
+			new Deflate(DEFLATE_ID, "DEFLATE", Deflater.DEFAULT_COMPRESSION, false);
+
+	public final static CompressionCodec RAW_DEFLATE =
+			new Deflate(RAW_DEFLATE_ID, "RAW_DEFLATE", Deflater.DEFAULT_COMPRESSION, true);
+
+	public final static CompressionCodec LZ = new Lz();
+
+	private final int id;
+	private final String name;
+
+	private CompressionCodec(final int id, final String name) {
+		this.id = id;
+		this.name = name;
+	}
+
+	/**
+	 * @param level the compression level from 0 (no compression) to 9 (best compression)
+	 * @return a GZIP codec
+	 */
+	public static CompressionCodec gzip(final int level) {
+		return new Gzip(checkLevel(level));
+	}
+
+	/**
+	 * @param level the compression level from 0 (no compression) to 9 (best compression)
+	 * @return a deflate codec (zlib format)
+	 */
+	public static CompressionCodec deflate(final int level) {
+		return new Deflate(DEFLATE_ID, "DEFLATE", checkLevel(level), false);
+	}
+
+	/**
+	 * @param level the compression level from 0 (no compression) to 9 (best compression)
+	 * @return a deflate codec without header nor checksum
+	 */
+	public static CompressionCodec rawDeflate(final int level) {
+		return new Deflate(RAW_DEFLATE_ID, "RAW_DEFLATE", checkLevel(level), true);
+	}
+
+	private static int checkLevel(final int level) {
+		if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("The compression level should be between 0 and 9: " + level);
+		return level;
+	}
+
+	/**
+	 * @return the first byte of the compressed data
+	 */
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * Write the identifier of the codec, and return a stream which compresses the data written into it.
+	 * Closing the returned stream finishes the compressed data, the given stream is not closed.
+	 *
+	 * @param output the target of the compressed data
+	 * @return a compressing stream
+	 * @throws IOException if any I/O error occurs
+	 */
+	public OutputStream compress(final OutputStream output) throws IOException {
+		output.write(id);
+		return compressing(output);
+	}
+
+	abstract OutputStream compressing(OutputStream output) throws IOException;
+
+	abstract InputStream decompressing(InputStream input) throws IOException;
+
+	/**
+	 * @param bytes  the data to compress
+	 * @param offset the position of the first byte
+	 * @param length the number of bytes to compress
+	 * @return the compressed data, starting with the identifier of the codec
+	 * @throws IOException if any I/O error occurs
+	 */
+	public byte[] compress(final byte[] bytes, final int offset, final int length) throws IOException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, length / 2));
+		try (final OutputStream compressed = compress(output)) {
+			compressed.write(bytes, offset, length);
+		}
+		return output.toByteArray();
+	}
+
+	public byte[] compress(final byte[] bytes) throws IOException {
+		return compress(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * @param id the first byte of the compressed data
+	 * @return the codec which uses this identifier
+	 * @throws ZipException if the identifier is unknown
+	 */
+	public static CompressionCodec of(final int id) throws ZipException {
+		switch (id) {
+		case GZIP_ID:
+			return GZIP;
+		case NONE_ID:
+			return NONE;
+		case DEFLATE_ID:
+			return DEFLATE;
+		case RAW_DEFLATE_ID:
+			return RAW_DEFLATE;
+		case LZ_ID:
+			return LZ;
+		default:
+			throw new ZipException("Unknown compression codec: " + id);
+		}
+	}
+
+	/**
+	 * Read the identifier of the codec, and return a stream which decompresses the data.
+	 * Closing the returned stream does not close the given stream.
+	 *
+	 * @param input the compressed data
+	 * @return a decompressing stream
+	 * @throws IOException if the codec is unknown or if any I/O error occurs
+	 */
+	public static InputStream decompress(final InputStream input) throws IOException {
+		final int id = input.read();
+		if (id == -1)
+			throw new ZipException("The compressed data is empty");
+		return of(id).decompressing(input);
+	}
+
+	/**
+	 * @param bytes the compressed data, starting with the identifier of the codec
+	 * @return the uncompressed data
+	 * @throws IOException if the data is corrupted
+	 */
+	public static byte[] decompress(final byte[] bytes) throws IOException {
+		try (final InputStream input = decompress(new ByteArrayInputStream(bytes))) {
+			return IOUtils.toByteArray(input);
+		}
+	}
+
+	private final static class None extends CompressionCodec {
+
+		private None() {
+			super(NONE_ID, "NONE");
+		}
+
+		@Override
+		OutputStream compressing(final OutputStream output) {
+			return new OutputStream() {
+
+				@Override
+				public void write(final int b) throws IOException {
+					output.write(b);
+				}
+
+				@Override
+				public void write(final byte[] b, final int off, final int len) throws IOException {
+					output.write(b, off, len);
+				}
+
+				@Override
+				public void flush() throws IOException {
+					output.flush();
+				}
+
+				@Override
+				public void close() throws IOException {
+					output.flush();
+				}
+			};
+		}
+
+		@Override
+		InputStream decompressing(final InputStream input) {
+			return new CloseShieldInputStream(input);
+		}
+	}
+
+	private final static class Gzip extends CompressionCodec {
+
+		private final int level;
+
+		private Gzip(final int level) {
+			super(GZIP_ID, "GZIP");
+			this.level = level;
+		}
+
+		@Override
+		public String toString() {
+			return level == Deflater.DEFAULT_COMPRESSION ? super.toString() : super.toString() + '(' + level + ')';
+		}
+
+		@Override
+		public OutputStream compress(final OutputStream output) throws IOException {
+			// The GZIP magic number is the identifier
+			return compressing(output);
+		}
+
+		@Override
+		OutputStream compressing(final OutputStream output) throws IOException {
+			return new ZlibPool.GzipOutputStream(output, level);
+		}
+
+		@Override
+		InputStream decompressing(final InputStream input) throws IOException {
+			return new ZlibPool.GzipInputStream(input, true);
+		}
+	}
+
+	private final static class Deflate extends CompressionCodec {
+
+		private final int level;
+		private final boolean nowrap;
+
+		private Deflate(final int id, final String name, final int level, final boolean nowrap) {
+			super(id, name);
+			this.level = level;
+			this.nowrap = nowrap;
+		}
+
+		@Override
+		public String toString() {
+			return level == Deflater.DEFAULT_COMPRESSION ? super.toString() : super.toString() + '(' + level + ')';
+		}
+
+		@Override
+		OutputStream compressing(final OutputStream output) {
+			return new ZlibPool.DeflateOutputStream(output, level, nowrap);
+		}
+
+		@Override
+		InputStream decompressing(final InputStream input) {
+			return new ZlibPool.InflateInputStream(input, nowrap);
+		}
+	}
+
+	private final static class Lz extends CompressionCodec {
+
+		private Lz() {
+			super(LZ_ID, "LZ");
+		}
+
+		@Override
+		OutputStream compressing(final OutputStream output) {
+			return new LzCodec.LzOutputStream(output);
+		}
+
+		@Override
+		InputStream decompressing(final InputStream input) {
+			return new LzCodec.LzInputStream(input);
+		}
+	}
+}
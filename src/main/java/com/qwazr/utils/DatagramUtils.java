@@ -111,4 +111,34 @@ public class DatagramUtils {
 		send(SerializationUtils.toDefaultCompressedBytes(object), addresses);
 	}
 
+	/**
+	 * Send a serializable object to the given addresses using UDP (datagram) transport
+	 *
+	 * @param object    the object to send
+	 * @param codec     the compression codec
+	 * @param addresses the recipients
+	 * @throws IOException if any I/O error occurs
+	 * @see SerializationUtils#fromDefaultCompressedBytes(byte[])
+	 */
+	public static void send(final Serializable object, final CompressionCodec codec,
+			final Collection<SocketAddress> addresses) throws IOException {
+		Objects.requireNonNull(object, "Nothing to send: the object is null.");
+		send(SerializationUtils.toDefaultCompressedBytes(object, codec), addresses);
+	}
+
+	/**
+	 * Send a serializable object to the given addresses using UDP (datagram) transport
+	 *
+	 * @param object    the object to send
+	 * @param codec     the compression codec
+	 * @param addresses the recipients
+	 * @throws IOException if any I/O error occurs
+	 * @see SerializationUtils#fromDefaultCompressedBytes(byte[])
+	 */
+	public static void send(final Serializable object, final CompressionCodec codec,
+			final SocketAddress... addresses) throws IOException {
+		Objects.requireNonNull(object, "Nothing to send: the object is null.");
+		send(SerializationUtils.toDefaultCompressedBytes(object, codec), addresses);
+	}
+
 }
@@ -15,18 +15,38 @@
  */
 package com.qwazr.utils;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * This class keep a persistent version of your instance in the file system
+ * This class keep a persistent version of your instance in the file system.
+ * <p>
+ * The file is replaced atomically (temporary file and rename). In write-behind mode, set only updates the instance
+ * in memory, and the file is written by a background flusher after the given interval: the updates made meanwhile
+ * are coalesced in one write. The cache should then be closed (or flushed) to write the last update.
+ * </p>
  *
  * @param <T> the cached type
  */
-public class FileInstanceCache<T> {
+public class FileInstanceCache<T> implements Closeable {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(FileInstanceCache.class);
+
+	private final static ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, "FileInstanceCache flusher");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	private volatile T cachedInstance;
 	private volatile long lastModifiedFile;
@@ -35,12 +55,20 @@ public class FileInstanceCache<T> {
 	final File file;
 	final Reader<T> reader;
 	final Writer<T> writer;
+	final long writeBehindMillis;
+
+	private final ReentrantLock flushLock;
+	private boolean dirty;
+	private boolean scheduled;
+	private boolean closed;
 
 	private FileInstanceCache(Builder<T> builder) {
 		path = builder.path;
 		file = path.toFile();
 		reader = builder.reader;
 		writer = builder.writer;
+		writeBehindMillis = builder.writeBehindMillis;
+		flushLock = new ReentrantLock();
 	}
 
 	/**
@@ -55,6 +83,9 @@ public class FileInstanceCache<T> {
 		if (reader == null)
 			throw new IOException("This file cache instance is write only");
 		synchronized (file) {
+			// The memory is more recent than the file
+			if (dirty)
+				return cachedInstance;
 			if (!Files.exists(path))
 				return null;
 			final long newLastUserModified = file.lastModified();
@@ -69,6 +100,7 @@ public class FileInstanceCache<T> {
 	/**
 	 * Write the instance in the file.
 	 * If the new instance eguals the cached instance, the file is not writed again.
+	 * In write-behind mode, the file is written later by the flusher.
 	 *
 	 * @param instance the instance to write
 	 * @return the cached instance
@@ -77,14 +109,103 @@ public class FileInstanceCache<T> {
 	public FileInstanceCache<T> set(T instance) throws IOException {
 		if (writer == null)
 			throw new IOException("This file cache instance is read only");
-		synchronized (file) {
-			if (!Objects.equals(instance, cachedInstance) || !Files.exists(path))
-				writer.write(instance, file);
-			cachedInstance = instance;
+		if (writeBehindMillis > 0) {
+			synchronized (file) {
+				if (!closed) {
+					if (dirty || !Objects.equals(instance, cachedInstance) || !Files.exists(path)) {
+						cachedInstance = instance;
+						dirty = true;
+						schedule();
+					}
+					return this;
+				}
+			}
+		}
+		// Serialized with the flushes, so a pending older instance is not written after this one
+		flushLock.lock();
+		try {
+			synchronized (file) {
+				if (dirty || !Objects.equals(instance, cachedInstance) || !Files.exists(path)) {
+					write(instance);
+					dirty = false;
+				}
+				cachedInstance = instance;
+			}
+		} finally {
+			flushLock.unlock();
 		}
 		return this;
 	}
 
+	private void write(final T instance) throws IOException {
+		FileUtils.writeAtomically(path, temp -> writer.write(instance, temp.toFile()), false);
+		lastModifiedFile = file.lastModified();
+	}
+
+	/**
+	 * Must be called in the synchronized block
+	 */
+	private void schedule() {
+		if (scheduled)
+			return;
+		scheduled = true;
+		FLUSHER.schedule(this::backgroundFlush, writeBehindMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void backgroundFlush() {
+		synchronized (file) {
+			scheduled = false;
+		}
+		try {
+			flush();
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.WARNING, e, () -> "Cannot write " + path + ", the write will be retried");
+			synchronized (file) {
+				if (!closed)
+					schedule();
+			}
+		}
+	}
+
+	/**
+	 * Write the pending update, if any (write-behind mode)
+	 *
+	 * @throws IOException if any I/O error occurs
+	 */
+	public void flush() throws IOException {
+		// The flushes are serialized, so an older instance never overwrites a newer one
+		flushLock.lock();
+		try {
+			final T instance;
+			synchronized (file) {
+				if (!dirty)
+					return;
+				instance = cachedInstance;
+			}
+			write(instance);
+			synchronized (file) {
+				// A set may have happened during the write
+				if (instance == cachedInstance)
+					dirty = false;
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Write the pending update. The next calls to set write the file synchronously.
+	 *
+	 * @throws IOException if any I/O error occurs
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (file) {
+			closed = true;
+		}
+		flush();
+	}
+
 	@FunctionalInterface
 	public interface Reader<T> {
 
@@ -106,6 +227,7 @@ public class FileInstanceCache<T> {
 		private Path path;
 		private Reader<T> reader;
 		private Writer<T> writer;
+		private long writeBehindMillis;
 
 		public Builder<T> path(Path path) {
 			this.path = path;
@@ -122,6 +244,21 @@ public class FileInstanceCache<T> {
 			return this;
 		}
 
+		/**
+		 * Enable the write-behind mode: the file is written after the given delay, once for all the updates made
+		 * during the delay.
+		 *
+		 * @param delay the delay between the first pending update and the write
+		 * @param unit  the time unit of the delay
+		 * @return the current builder
+		 */
+		public Builder<T> writeBehind(long delay, TimeUnit unit) {
+			if (delay <= 0)
+				throw new IllegalArgumentException("The delay should be greater than zero");
+			this.writeBehindMillis = Math.max(1, unit.toMillis(delay));
+			return this;
+		}
+
 		public FileInstanceCache<T> build() throws IOException {
 			return new FileInstanceCache<>(this);
 		}
@@ -15,13 +15,19 @@
  */
 package com.qwazr.utils;
 
+import com.qwazr.utils.concurrent.ConsumerEx;
+
 import javax.annotation.Nonnull;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
 import java.util.HashSet;
@@ -153,4 +159,59 @@ public class FileUtils extends org.apache.commons.io.FileUtils {
         }
     }
 
+    /**
+     * Force the content of a file to the storage device
+     *
+     * @param file the file to synchronize
+     * @throws IOException if any I/O error occurs
+     */
+    public static void fsync(@Nonnull final Path file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Force the entries of a directory (the created, renamed or deleted files) to the storage device.
+     * Some operating systems (Windows) do not support it.
+     *
+     * @param directory the directory to synchronize
+     * @return false if the directory cannot be synchronized on this system
+     */
+    public static boolean fsyncDirectory(@Nonnull final Path directory) {
+        try (final FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write a file atomically: the content is written in a temporary file of the same directory, which then replaces
+     * the target with an atomic move. A crash leaves either the previous or the new content, never a truncated file.
+     *
+     * @param target the file to write
+     * @param writer writes the content in the given temporary file
+     * @param fsync  true to force the content to the storage device before the move
+     * @throws IOException if any I/O error occurs
+     */
+    public static void writeAtomically(@Nonnull final Path target, @Nonnull final ConsumerEx<Path, IOException> writer,
+            final boolean fsync) throws IOException {
+        final Path directory = target.toAbsolutePath().getParent();
+        final Path temp = Files.createTempFile(directory, "." + target.getFileName(), ".tmp");
+        try {
+            writer.accept(temp);
+            if (fsync)
+                fsync(temp);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations expressed in nanoseconds.
+ * The values are collected in power-of-two buckets, the percentiles are therefore approximations
+ * (the upper bound of the bucket containing the percentile).
+ */
+public class LatencyHistogram {
+
+	private final static int BUCKETS = 64;
+
+	private final AtomicLongArray buckets;
+	private final LongAdder count;
+	private final LongAdder total;
+	private final LongAccumulator max;
+
+	public LatencyHistogram() {
+		buckets = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		total = new LongAdder();
+		max = new LongAccumulator(Math::max, 0);
+	}
+
+	/**
+	 * Record a new duration
+	 *
+	 * @param nanos the duration in nanoseconds (negative values are recorded as zero)
+	 */
+	public void record(final long nanos) {
+		final long value = nanos < 0 ? 0 : nanos;
+		buckets.incrementAndGet(bucket(value));
+		count.increment();
+		total.add(value);
+		max.accumulate(value);
+	}
+
+	private static int bucket(final long value) {
+		return value <= 1 ? 0 : BUCKETS - 1 - Long.numberOfLeadingZeros(value);
+	}
+
+	/**
+	 * Reset all the counters
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets.set(i, 0);
+		count.reset();
+		total.reset();
+		max.reset();
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public Snapshot getSnapshot() {
+		return new Snapshot(this);
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class Snapshot {
+
+		@JsonProperty("count")
+		final public long count;
+
+		@JsonProperty("total_nanos")
+		final public long totalNanos;
+
+		@JsonProperty("max_nanos")
+		final public long maxNanos;
+
+		@JsonProperty("mean_nanos")
+		final public long meanNanos;
+
+		@JsonProperty("p50_nanos")
+		final public long p50Nanos;
+
+		@JsonProperty("p90_nanos")
+		final public long p90Nanos;
+
+		@JsonProperty("p99_nanos")
+		final public long p99Nanos;
+
+		@JsonProperty("p999_nanos")
+		final public long p999Nanos;
+
+		private Snapshot(final LatencyHistogram histogram) {
+			final long[] values = new long[BUCKETS];
+			long sum = 0;
+			for (int i = 0; i < BUCKETS; i++)
+				sum += values[i] = histogram.buckets.get(i);
+			count = sum;
+			totalNanos = histogram.total.sum();
+			maxNanos = histogram.max.get();
+			meanNanos = count == 0 ? 0 : totalNanos / count;
+			p50Nanos = percentile(values, count, 0.50, maxNanos);
+			p90Nanos = percentile(values, count, 0.90, maxNanos);
+			p99Nanos = percentile(values, count, 0.99, maxNanos);
+			p999Nanos = percentile(values, count, 0.999, maxNanos);
+		}
+
+		private static long percentile(final long[] values, final long count, final double percentile,
+				final long max) {
+			if (count == 0)
+				return 0;
+			final long threshold = (long) Math.ceil(count * percentile);
+			long sum = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				sum += values[i];
+				if (sum >= threshold)
+					return i >= BUCKETS - 2 ? max : Math.min(max, (1L << (i + 1)) - 1);
+			}
+			return max;
+		}
+	}
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 compressor using the LZ4 block layout: each sequence is a token (literal length and match length),
+ * the literals, and a 2 bytes offset of the match in the last 64KB. There is no entropy coding, which trades the
+ * compression ratio for the speed.
+ * <p>
+ * The streams cut the data in blocks of 64KB: the uncompressed length (0 for the end of the stream),
+ * the compressed length (0 if the block is stored uncompressed), then the data. The lengths are variable-length ints.
+ * The streams should be closed, so their buffers are reused by the next streams of the same thread.
+ * </p>
+ */
+final class LzCodec {
+
+	final static int BLOCK_SIZE = 64 * 1024;
+
+	private final static int MIN_MATCH = 4;
+	private final static int LAST_LITERALS = 5;
+	private final static int MF_LIMIT = 12;
+	private final static int MAX_OFFSET = 65535;
+	private final static int HASH_LOG = 13;
+	private final static int SKIP_TRIGGER = 6;
+
+	static int maxCompressedLength(final int length) {
+		return length + length / 255 + 16;
+	}
+
+	private static int readInt(final byte[] b, final int i) {
+		return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+	}
+
+	private static int hash(final int value, final int hashLog) {
+		return (value * -1640531535) >>> (32 - hashLog);
+	}
+
+	static int[] newHashTable() {
+		return new int[1 << HASH_LOG];
+	}
+
+	/**
+	 * The buffers of a stream, reused by the next stream of the same thread once the stream is closed
+	 */
+	private final static class Buffers {
+
+		private final byte[] buffer = new byte[BLOCK_SIZE];
+		private final byte[] compressed = new byte[maxCompressedLength(BLOCK_SIZE)];
+		private int[] hashTable;
+		private boolean inUse;
+
+		private static Buffers acquire(final ThreadLocal<Buffers> threadLocal) {
+			Buffers buffers = threadLocal.get();
+			if (buffers.inUse)
+				buffers = new Buffers();
+			buffers.inUse = true;
+			return buffers;
+		}
+	}
+
+	private final static ThreadLocal<Buffers> WRITE_BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+	private final static ThreadLocal<Buffers> READ_BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+	private static int writeLength(int length, final byte[] dst, int op) {
+		while (length >= 255) {
+			dst[op++] = (byte) 255;
+			length -= 255;
+		}
+		dst[op++] = (byte) length;
+		return op;
+	}
+
+	private static int writeSequence(final byte[] src, final int literalStart, final int literalLength,
+			final int offset, final int matchLength, final byte[] dst, int op) {
+		final int tokenOp = op++;
+		int token = Math.min(literalLength, 15) << 4;
+		if (literalLength >= 15)
+			op = writeLength(literalLength - 15, dst, op);
+		System.arraycopy(src, literalStart, dst, op, literalLength);
+		op += literalLength;
+		if (matchLength > 0) {
+			dst[op++] = (byte) offset;
+			dst[op++] = (byte) (offset >>> 8);
+			final int length = matchLength - MIN_MATCH;
+			token |= Math.min(length, 15);
+			if (length >= 15)
+				op = writeLength(length - 15, dst, op);
+		}
+		dst[tokenOp] = (byte) token;
+		return op;
+	}
+
+	/**
+	 * @param src       the data to compress
+	 * @param srcOff    the position of the first byte
+	 * @param srcLen    the number of bytes to compress
+	 * @param dst       the target, at least maxCompressedLength(srcLen) bytes after dstOff
+	 * @param dstOff    the position of the first written byte
+	 * @param hashTable a table from newHashTable(), reusable between calls
+	 * @return the number of bytes written
+	 */
+	static int compress(final byte[] src, final int srcOff, final int srcLen, final byte[] dst, final int dstOff,
+			final int[] hashTable) {
+		// A smaller part of the table is used for the small inputs, as it has to be cleared
+		final int hashLog = Math.max(8, Math.min(HASH_LOG, 33 - Integer.numberOfLeadingZeros(srcLen)));
+		Arrays.fill(hashTable, 0, 1 << hashLog, -1);
+		final int end = srcOff + srcLen;
+		final int matchLimit = end - LAST_LITERALS;
+		final int mfLimit = end - MF_LIMIT;
+		int ip = srcOff;
+		int anchor = srcOff;
+		int op = dstOff;
+		while (ip < mfLimit) {
+			final int sequence = readInt(src, ip);
+			final int h = hash(sequence, hashLog);
+			final int ref = hashTable[h];
+			hashTable[h] = ip;
+			if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+				// The step grows with the number of literals, so the incompressible data is skipped quickly
+				ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+				continue;
+			}
+			int matchLength = MIN_MATCH;
+			while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength])
+				matchLength++;
+			op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+			ip += matchLength;
+			anchor = ip;
+		}
+		return writeSequence(src, anchor, end - anchor, 0, 0, dst, op) - dstOff;
+	}
+
+	/**
+	 * @param src    the compressed data
+	 * @param srcOff the position of the first compressed byte
+	 * @param srcLen the number of compressed bytes
+	 * @param dst    the target
+	 * @param dstOff the position of the first uncompressed byte
+	 * @param dstLen the expected number of uncompressed bytes
+	 * @throws IOException if the compressed data is corrupted
+	 */
+	static void decompress(final byte[] src, final int srcOff, final int srcLen, final byte[] dst, final int dstOff,
+			final int dstLen) throws IOException {
+		final int srcEnd = srcOff + srcLen;
+		final int dstEnd = dstOff + dstLen;
+		int ip = srcOff;
+		int op = dstOff;
+		try {
+			while (ip < srcEnd) {
+				final int token = src[ip++] & 0xff;
+				int literalLength = token >>> 4;
+				if (literalLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						literalLength += b;
+					} while (b == 255);
+				}
+				if (ip + literalLength > srcEnd || op + literalLength > dstEnd)
+					throw new IOException("Corrupted LZ block: literals out of bounds");
+				System.arraycopy(src, ip, dst, op, literalLength);
+				ip += literalLength;
+				op += literalLength;
+				if (ip >= srcEnd)
+					break;
+				final int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+				ip += 2;
+				int matchLength = token & 15;
+				if (matchLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+				int ref = op - offset;
+				if (offset == 0 || ref < dstOff || op + matchLength > dstEnd)
+					throw new IOException("Corrupted LZ block: match out of bounds");
+				if (offset >= matchLength) {
+					System.arraycopy(dst, ref, dst, op, matchLength);
+					op += matchLength;
+				} else {
+					// Overlapping match: the bytes are repeated
+					for (int i = 0; i < matchLength; i++)
+						dst[op++] = dst[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupted LZ block", e);
+		}
+		if (op != dstEnd)
+			throw new IOException("Corrupted LZ block: wrong length");
+	}
+
+	private static void writeVarInt(final OutputStream output, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			output.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		output.write(value);
+	}
+
+	private static int readVarInt(final InputStream input) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			final int b = input.read();
+			if (b == -1)
+				throw new EOFException();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable-length int");
+	}
+
+	/**
+	 * Closing the stream writes the end of the stream, but does not close the underlying stream.
+	 */
+	static class LzOutputStream extends OutputStream {
+
+		private final OutputStream output;
+		private final Buffers buffers;
+		private final byte[] buffer;
+		private final byte[] compressed;
+		private final int[] hashTable;
+		private int length;
+		private boolean closed;
+
+		LzOutputStream(final OutputStream output) {
+			this.output = output;
+			this.buffers = Buffers.acquire(WRITE_BUFFERS);
+			this.buffer = buffers.buffer;
+			this.compressed = buffers.compressed;
+			if (buffers.hashTable == null)
+				buffers.hashTable = newHashTable();
+			this.hashTable = buffers.hashTable;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			if (length == BLOCK_SIZE)
+				writeBlock();
+			buffer[length++] = (byte) b;
+		}
+
+		@Override
+		public void write(final byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (length == BLOCK_SIZE)
+					writeBlock();
+				final int n = Math.min(len, BLOCK_SIZE - length);
+				System.arraycopy(b, off, buffer, length, n);
+				length += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void writeBlock() throws IOException {
+			if (length == 0)
+				return;
+			writeVarInt(output, length);
+			final int compressedLength = compress(buffer, 0, length, compressed, 0, hashTable);
+			if (compressedLength < length) {
+				writeVarInt(output, compressedLength);
+				output.write(compressed, 0, compressedLength);
+			} else {
+				writeVarInt(output, 0);
+				output.write(buffer, 0, length);
+			}
+			length = 0;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			writeBlock();
+			output.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				writeBlock();
+				writeVarInt(output, 0);
+				output.flush();
+			} finally {
+				buffers.inUse = false;
+			}
+		}
+	}
+
+	/**
+	 * Closing the stream does not close the underlying stream.
+	 */
+	static class LzInputStream extends InputStream {
+
+		private final InputStream input;
+		private final Buffers buffers;
+		private final byte[] buffer;
+		private final byte[] compressed;
+		private int position;
+		private int length;
+		private boolean eof;
+		private boolean closed;
+
+		LzInputStream(final InputStream input) {
+			this.input = input;
+			this.buffers = Buffers.acquire(READ_BUFFERS);
+			this.buffer = buffers.buffer;
+			this.compressed = buffers.compressed;
+		}
+
+		private void readFully(final byte[] b, final int len) throws IOException {
+			int off = 0;
+			while (off < len) {
+				final int n = input.read(b, off, len - off);
+				if (n == -1)
+					throw new EOFException("Truncated LZ block");
+				off += n;
+			}
+		}
+
+		private boolean readBlock() throws IOException {
+			if (eof)
+				return false;
+			final int rawLength = readVarInt(input);
+			if (rawLength == 0) {
+				eof = true;
+				return false;
+			}
+			if (rawLength < 0 || rawLength > BLOCK_SIZE)
+				throw new IOException("Corrupted LZ stream: wrong block size");
+			final int compressedLength = readVarInt(input);
+			if (compressedLength == 0)
+				readFully(buffer, rawLength);
+			else {
+				if (compressedLength < 0 || compressedLength > maxCompressedLength(BLOCK_SIZE))
+					throw new IOException("Corrupted LZ stream: wrong compressed size");
+				readFully(compressed, compressedLength);
+				decompress(compressed, 0, compressedLength, buffer, 0, rawLength);
+			}
+			position = 0;
+			length = rawLength;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (position == length && !readBlock())
+				return -1;
+			return buffer[position++] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (position == length && !readBlock())
+				return -1;
+			final int n = Math.min(len, length - position);
+			System.arraycopy(buffer, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return length - position;
+		}
+
+		@Override
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			eof = true;
+			position = length = 0;
+			buffers.inUse = false;
+		}
+	}
+}
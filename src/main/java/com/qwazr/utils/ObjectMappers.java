@@ -15,22 +15,49 @@
  */
 package com.qwazr.utils;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.Module;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.qwazr.utils.json.JsonMapper;
 import org.apache.commons.lang3.tuple.Pair;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class ObjectMappers {
 
+    private final static Logger LOGGER = LoggerUtils.getLogger(ObjectMappers.class);
+
+    /**
+     * The class name of the Jackson Afterburner module (bytecode generated accessors)
+     */
+    public final static String AFTERBURNER_MODULE = "com.fasterxml.jackson.module.afterburner.AfterburnerModule";
+
+    /**
+     * The class name of the Jackson Blackbird module (LambdaMetafactory accessors, Java 9+)
+     */
+    public final static String BLACKBIRD_MODULE = "com.fasterxml.jackson.module.blackbird.BlackbirdModule";
+
+    private final static ConcurrentHashMap<ObjectMapper, ConcurrentHashMap<JavaType, Codec<?>>> CODECS =
+            new ConcurrentHashMap<>();
+
     public final static JsonMapper JSON;
 
     public final static ObjectMapper YAML;
@@ -57,11 +84,139 @@ public class ObjectMappers {
         for (final Pair<String, ObjectMapper> pair : objectMappers) {
             final Path file = directory.resolve(fileBaseName + '.' + pair.getKey());
             if (Files.exists(file))
-                return pair.getValue().readValue(file.toFile(), classValue);
+                return codec(pair.getValue(), classValue).read(file.toFile());
         }
         return defaultValue;
     }
 
+    /**
+     * Return the codec of a type for the given mapper. The codecs are built once and kept for the life of the mapper,
+     * therefore the mapper should be a long-lived instance (like the static mappers of this class).
+     *
+     * @param mapper the mapper which provides the format and the configuration
+     * @param type   the type of the values
+     * @param <T>    the type of the values
+     * @return the shared codec
+     */
+    public static <T> Codec<T> codec(final ObjectMapper mapper, final Class<T> type) {
+        return codec(mapper, mapper.getTypeFactory().constructType(type));
+    }
+
+    /**
+     * @param mapper the mapper which provides the format and the configuration
+     * @param type   the generic type of the values
+     * @param <T>    the type of the values
+     * @return the shared codec
+     * @see #codec(ObjectMapper, Class)
+     */
+    public static <T> Codec<T> codec(final ObjectMapper mapper, final TypeReference<T> type) {
+        return codec(mapper, mapper.getTypeFactory().constructType(type));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Codec<T> codec(final ObjectMapper mapper, final JavaType javaType) {
+        return (Codec<T>) CODECS.computeIfAbsent(mapper, m -> new ConcurrentHashMap<>())
+                .computeIfAbsent(javaType, t -> new Codec<T>(mapper, t));
+    }
+
+    /**
+     * Register a Jackson module if it is available in the classpath (for instance {@link #AFTERBURNER_MODULE}).
+     * It should be called before the mapper is used, as the serializers already built are not updated.
+     *
+     * @param mapper          the mapper
+     * @param moduleClassName the class name of the module
+     * @return true if the module has been registered
+     */
+    public static boolean registerOptionalModule(final ObjectMapper mapper, final String moduleClassName) {
+        final Module module;
+        try {
+            module = (Module) Class.forName(moduleClassName).newInstance();
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.fine("Jackson module not available: " + moduleClassName + " - " + e);
+            return false;
+        }
+        mapper.registerModule(module);
+        CODECS.remove(mapper);
+        return true;
+    }
+
+    /**
+     * Pre-built ObjectReader and ObjectWriters of one type for one mapper.
+     * Contrary to the ObjectMapper methods, the root (de)serializer is resolved once.
+     *
+     * @param <T> the type of the values
+     */
+    public static class Codec<T> {
+
+        private final ObjectReader reader;
+        private final ObjectWriter writer;
+        private final ObjectWriter compactWriter;
+
+        private Codec(final ObjectMapper mapper, final JavaType type) {
+            this.reader = mapper.readerFor(type);
+            this.writer = mapper.writerFor(type);
+            // The machine to machine profile: no indentation, whatever the mapper configuration
+            this.compactWriter = writer.without(SerializationFeature.INDENT_OUTPUT);
+        }
+
+        public ObjectReader getReader() {
+            return reader;
+        }
+
+        public ObjectWriter getWriter() {
+            return writer;
+        }
+
+        public ObjectWriter getCompactWriter() {
+            return compactWriter;
+        }
+
+        public T read(final File file) throws IOException {
+            return reader.readValue(file);
+        }
+
+        public T read(final InputStream input) throws IOException {
+            return reader.readValue(input);
+        }
+
+        public T read(final byte[] bytes) throws IOException {
+            return reader.readValue(bytes);
+        }
+
+        public T read(final String content) throws IOException {
+            return reader.readValue(content);
+        }
+
+        public void write(final File file, final T value) throws IOException {
+            writer.writeValue(file, value);
+        }
+
+        public void write(final OutputStream output, final T value) throws IOException {
+            writer.writeValue(output, value);
+        }
+
+        public String writeAsString(final T value) throws IOException {
+            return writer.writeValueAsString(value);
+        }
+
+        public byte[] writeAsBytes(final T value) throws IOException {
+            return writer.writeValueAsBytes(value);
+        }
+
+        public void writeCompact(final OutputStream output, final T value) throws IOException {
+            compactWriter.writeValue(output, value);
+        }
+
+        public String writeCompactAsString(final T value) throws IOException {
+            return compactWriter.writeValueAsString(value);
+        }
+
+        public byte[] writeCompactAsBytes(final T value) throws IOException {
+            return compactWriter.writeValueAsBytes(value);
+        }
+    }
+
     public static Builder of() {
         return new Builder();
     }
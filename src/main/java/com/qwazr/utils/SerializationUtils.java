@@ -18,11 +18,59 @@ package com.qwazr.utils;
 import com.qwazr.externalizor.Externalizor;
 
 import java.io.*;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
 
+/**
+ * The serialization methods returning a byte array use a per-thread reusable buffer, the only allocation is the
+ * returned array. The overloads taking an OutputStream or a ByteBuffer write directly into the given target.
+ * The GZIP streams use pooled Deflater and Inflater instances.
+ */
 public class SerializationUtils {
 
+	/**
+	 * The initial size of the per-thread buffers
+	 */
+	public final static int DEFAULT_SIZE_HINT = 4096;
+
+	/**
+	 * A per-thread buffer larger than this size is not kept after use
+	 */
+	private final static int MAX_RETAINED_SIZE = 1024 * 1024;
+
+	private final static ThreadLocal<PooledOutputStream> BUFFERS = ThreadLocal.withInitial(PooledOutputStream::new);
+
+	@FunctionalInterface
+	private interface Writer {
+
+		void write(OutputStream output) throws IOException, ReflectiveOperationException;
+	}
+
+	private static byte[] toBytes(final int sizeHint, final Writer writer)
+			throws IOException, ReflectiveOperationException {
+		PooledOutputStream output = BUFFERS.get();
+		// A nested call (from a writeObject method) gets its own buffer
+		if (output.inUse)
+			output = new PooledOutputStream();
+		output.acquire(sizeHint);
+		try {
+			writer.write(output);
+			return Arrays.copyOf(output.buffer(), output.size());
+		} finally {
+			output.release();
+		}
+	}
+
+	private static byte[] toBytesIO(final int sizeHint, final Writer writer) throws IOException {
+		try {
+			return toBytes(sizeHint, writer);
+		} catch (ReflectiveOperationException e) {
+			throw new IOException(e); // Not thrown by the Java serialization
+		}
+	}
+
 	/**
 	 * Build a compressed byte array from an serializable object using Externalizor
 	 *
@@ -34,12 +82,58 @@ public class SerializationUtils {
 	 */
 	public static byte[] toExternalizorBytes(final Serializable object)
 			throws IOException, ReflectiveOperationException {
-		try (final ByteArrayOutputStream output = new ByteArrayOutputStream()) {
-			Externalizor.serialize(object, output);
-			return output.toByteArray();
+		return toExternalizorBytes(object, DEFAULT_SIZE_HINT);
+	}
+
+	/**
+	 * @param object   the object to serialize
+	 * @param sizeHint the expected size of the serialized object
+	 * @return the serialized object as a byte array
+	 * @throws IOException                  if any I/O error occurs
+	 * @throws ReflectiveOperationException if the class cannot be constructed
+	 * @see #toExternalizorBytes(Serializable)
+	 */
+	public static byte[] toExternalizorBytes(final Serializable object, final int sizeHint)
+			throws IOException, ReflectiveOperationException {
+		return toBytes(sizeHint, output -> toExternalizorBytes(object, output));
+	}
+
+	/**
+	 * Serialize an object using Externalizor into the given stream, which is not closed
+	 *
+	 * @param object the object to serialize
+	 * @param output the target stream
+	 * @throws IOException                  if any I/O error occurs
+	 * @throws ReflectiveOperationException if the class cannot be constructed
+	 * @see #toExternalizorBytes(Serializable)
+	 */
+	public static void toExternalizorBytes(final Serializable object, final OutputStream output)
+			throws IOException, ReflectiveOperationException {
+		// Same format as Externalizor.serialize, with a pooled Deflater
+		try (final ZlibPool.GzipOutputStream compressed = new ZlibPool.GzipOutputStream(output,
+				Deflater.DEFAULT_COMPRESSION)) {
+			Externalizor.serializeRaw(object, compressed);
 		}
 	}
 
+	/**
+	 * Serialize an object using Externalizor into the given buffer
+	 *
+	 * @param object the object to serialize
+	 * @param target the target buffer, its position is moved after the serialized bytes
+	 * @return the number of bytes written
+	 * @throws IOException                  if any I/O error occurs
+	 * @throws ReflectiveOperationException if the class cannot be constructed
+	 * @throws BufferOverflowException      if the remaining space of the buffer is not large enough
+	 * @see #toExternalizorBytes(Serializable)
+	 */
+	public static int toExternalizorBytes(final Serializable object, final ByteBuffer target)
+			throws IOException, ReflectiveOperationException {
+		final int start = target.position();
+		toExternalizorBytes(object, new ByteBufferOutputStream(target));
+		return target.position() - start;
+	}
+
 	/**
 	 * Deserialize an object from a compressed byte array using Externalizor
 	 *
@@ -53,11 +147,39 @@ public class SerializationUtils {
 	 */
 	public static <T extends Serializable> T fromExternalizorBytes(final byte[] bytes,
 			final Class<? extends Serializable> clazz) throws IOException, ReflectiveOperationException {
-		try (final ByteArrayInputStream input = new ByteArrayInputStream(bytes)) {
-			return Externalizor.deserialize(input, (Class<T>) clazz);
+		return fromExternalizorBytes(new ByteArrayInputStream(bytes), clazz);
+	}
+
+	/**
+	 * @param input the serialized bytes, the stream is not closed
+	 * @param clazz the type of the container object
+	 * @param <T>   the generic type of the container object
+	 * @return the filled object
+	 * @throws IOException                  if any I/O error occurs
+	 * @throws ReflectiveOperationException if the object cannot be constructed
+	 * @see #fromExternalizorBytes(byte[], Class)
+	 */
+	public static <T extends Serializable> T fromExternalizorBytes(final InputStream input,
+			final Class<? extends Serializable> clazz) throws IOException, ReflectiveOperationException {
+		try (final ZlibPool.GzipInputStream compressed = new ZlibPool.GzipInputStream(input)) {
+			return Externalizor.deserializeRaw(compressed, (Class<T>) clazz);
 		}
 	}
 
+	/**
+	 * @param buffer the serialized bytes, from the position to the limit of the buffer
+	 * @param clazz  the type of the container object
+	 * @param <T>    the generic type of the container object
+	 * @return the filled object
+	 * @throws IOException                  if any I/O error occurs
+	 * @throws ReflectiveOperationException if the object cannot be constructed
+	 * @see #fromExternalizorBytes(byte[], Class)
+	 */
+	public static <T extends Serializable> T fromExternalizorBytes(final ByteBuffer buffer,
+			final Class<? extends Serializable> clazz) throws IOException, ReflectiveOperationException {
+		return fromExternalizorBytes(toInputStream(buffer), clazz);
+	}
+
 	/**
 	 * Build a byte array using the standard Java serialization
 	 *
@@ -66,12 +188,46 @@ public class SerializationUtils {
 	 * @throws IOException if any I/O error occurs
 	 */
 	public static byte[] toDefaultBytes(final Serializable object) throws IOException {
-		try (final ByteArrayOutputStream output = new ByteArrayOutputStream()) {
-			try (final ObjectOutputStream objected = new ObjectOutputStream(output)) {
-				objected.writeObject(object);
-			}
-			return output.toByteArray();
-		}
+		return toDefaultBytes(object, DEFAULT_SIZE_HINT);
+	}
+
+	/**
+	 * @param object   the object to serialize
+	 * @param sizeHint the expected size of the serialized object
+	 * @return the serialized object as a byte array
+	 * @throws IOException if any I/O error occurs
+	 * @see #toDefaultBytes(Serializable)
+	 */
+	public static byte[] toDefaultBytes(final Serializable object, final int sizeHint) throws IOException {
+		return toBytesIO(sizeHint, output -> toDefaultBytes(object, output));
+	}
+
+	/**
+	 * Serialize an object using the standard Java serialization into the given stream, which is not closed
+	 *
+	 * @param object the object to serialize
+	 * @param output the target stream
+	 * @throws IOException if any I/O error occurs
+	 */
+	public static void toDefaultBytes(final Serializable object, final OutputStream output) throws IOException {
+		final ObjectOutputStream objected = new ObjectOutputStream(output);
+		objected.writeObject(object);
+		objected.flush();
+	}
+
+	/**
+	 * Serialize an object using the standard Java serialization into the given buffer
+	 *
+	 * @param object the object to serialize
+	 * @param target the target buffer, its position is moved after the serialized bytes
+	 * @return the number of bytes written
+	 * @throws IOException             if any I/O error occurs
+	 * @throws BufferOverflowException if the remaining space of the buffer is not large enough
+	 */
+	public static int toDefaultBytes(final Serializable object, final ByteBuffer target) throws IOException {
+		final int start = target.position();
+		toDefaultBytes(object, new ByteBufferOutputStream(target));
+		return target.position() - start;
 	}
 
 	/**
@@ -86,11 +242,33 @@ public class SerializationUtils {
 
 	public static <T extends Serializable> T fromDefaultBytes(final byte[] bytes)
 			throws IOException, ClassNotFoundException {
-		try (final ByteArrayInputStream input = new ByteArrayInputStream(bytes)) {
-			try (final ObjectInputStream objected = new ObjectInputStream(input)) {
-				return (T) objected.readObject();
-			}
-		}
+		return fromDefaultBytes(new ByteArrayInputStream(bytes));
+	}
+
+	/**
+	 * @param input the serialized bytes, the stream is not closed
+	 * @param <T>   the generic type of the container object
+	 * @return the filled object
+	 * @throws IOException            if any I/O error occurs
+	 * @throws ClassNotFoundException if the object cannot be constructed
+	 * @see #fromDefaultBytes(byte[])
+	 */
+	public static <T extends Serializable> T fromDefaultBytes(final InputStream input)
+			throws IOException, ClassNotFoundException {
+		return (T) new ObjectInputStream(input).readObject();
+	}
+
+	/**
+	 * @param buffer the serialized bytes, from the position to the limit of the buffer
+	 * @param <T>    the generic type of the container object
+	 * @return the filled object
+	 * @throws IOException            if any I/O error occurs
+	 * @throws ClassNotFoundException if the object cannot be constructed
+	 * @see #fromDefaultBytes(byte[])
+	 */
+	public static <T extends Serializable> T fromDefaultBytes(final ByteBuffer buffer)
+			throws IOException, ClassNotFoundException {
+		return fromDefaultBytes(toInputStream(buffer));
 	}
 
 	/**
@@ -101,18 +279,88 @@ public class SerializationUtils {
 	 * @throws IOException if any I/O error occurs
 	 */
 	public static byte[] toDefaultCompressedBytes(final Serializable object) throws IOException {
-		try (final ByteArrayOutputStream output = new ByteArrayOutputStream()) {
-			try (final GZIPOutputStream compressed = new GZIPOutputStream(output)) {
-				try (final ObjectOutputStream objected = new ObjectOutputStream(compressed)) {
-					objected.writeObject(object);
-				}
-			}
-			return output.toByteArray();
+		return toDefaultCompressedBytes(object, DEFAULT_SIZE_HINT);
+	}
+
+	/**
+	 * @param object   the object to serialize
+	 * @param sizeHint the expected size of the compressed object
+	 * @return the serialized object as a byte array
+	 * @throws IOException if any I/O error occurs
+	 * @see #toDefaultCompressedBytes(Serializable)
+	 */
+	public static byte[] toDefaultCompressedBytes(final Serializable object, final int sizeHint) throws IOException {
+		return toBytesIO(sizeHint, output -> toDefaultCompressedBytes(object, output));
+	}
+
+	/**
+	 * Serialize an object using the standard Java serialization with GZIP compression into the given stream,
+	 * which is not closed
+	 *
+	 * @param object the object to serialize
+	 * @param output the target stream
+	 * @throws IOException if any I/O error occurs
+	 */
+	public static void toDefaultCompressedBytes(final Serializable object, final OutputStream output)
+			throws IOException {
+		try (final ZlibPool.GzipOutputStream compressed = new ZlibPool.GzipOutputStream(output,
+				Deflater.DEFAULT_COMPRESSION)) {
+			final ObjectOutputStream objected = new ObjectOutputStream(compressed);
+			objected.writeObject(object);
+			objected.flush();
 		}
 	}
 
+	/**
+	 * Build a byte array using the standard Java serialization and the given compression codec
+	 *
+	 * @param object the object to serialize
+	 * @param codec  the compression codec
+	 * @return the serialized object as a byte array, readable by fromDefaultCompressedBytes
+	 * @throws IOException if any I/O error occurs
+	 */
+	public static byte[] toDefaultCompressedBytes(final Serializable object, final CompressionCodec codec)
+			throws IOException {
+		return toBytesIO(DEFAULT_SIZE_HINT, output -> toDefaultCompressedBytes(object, codec, output));
+	}
+
+	/**
+	 * Serialize an object using the standard Java serialization and the given compression codec into the given
+	 * stream, which is not closed
+	 *
+	 * @param object the object to serialize
+	 * @param codec  the compression codec
+	 * @param output the target stream
+	 * @throws IOException if any I/O error occurs
+	 */
+	public static void toDefaultCompressedBytes(final Serializable object, final CompressionCodec codec,
+			final OutputStream output) throws IOException {
+		try (final OutputStream compressed = codec.compress(output)) {
+			final ObjectOutputStream objected = new ObjectOutputStream(compressed);
+			objected.writeObject(object);
+			objected.flush();
+		}
+	}
+
+	/**
+	 * Serialize an object using the standard Java serialization with GZIP compression into the given buffer
+	 *
+	 * @param object the object to serialize
+	 * @param target the target buffer, its position is moved after the serialized bytes
+	 * @return the number of bytes written
+	 * @throws IOException             if any I/O error occurs
+	 * @throws BufferOverflowException if the remaining space of the buffer is not large enough
+	 */
+	public static int toDefaultCompressedBytes(final Serializable object, final ByteBuffer target)
+			throws IOException {
+		final int start = target.position();
+		toDefaultCompressedBytes(object, new ByteBufferOutputStream(target));
+		return target.position() - start;
+	}
+
 	/**
 	 * Deserialize an object using Java default serialization with GZIP compression
+	 * (or any CompressionCodec, which is detected)
 	 *
 	 * @param bytes the serialized bytes
 	 * @param <T>   the generic type of the container object
@@ -122,12 +370,119 @@ public class SerializationUtils {
 	 */
 	public static <T extends Serializable> T fromDefaultCompressedBytes(final byte[] bytes)
 			throws IOException, ClassNotFoundException {
-		try (final ByteArrayInputStream input = new ByteArrayInputStream(bytes)) {
-			try (final GZIPInputStream compressed = new GZIPInputStream(input)) {
-				try (final ObjectInputStream objected = new ObjectInputStream(compressed)) {
-					return (T) objected.readObject();
-				}
-			}
+		return fromDefaultCompressedBytes(new ByteArrayInputStream(bytes));
+	}
+
+	/**
+	 * @param input the serialized bytes, the stream is not closed
+	 * @param <T>   the generic type of the container object
+	 * @return the filled object
+	 * @throws IOException            if any I/O error occurs
+	 * @throws ClassNotFoundException if the object cannot be constructed
+	 * @see #fromDefaultCompressedBytes(byte[])
+	 */
+	public static <T extends Serializable> T fromDefaultCompressedBytes(final InputStream input)
+			throws IOException, ClassNotFoundException {
+		try (final InputStream compressed = CompressionCodec.decompress(input)) {
+			return (T) new ObjectInputStream(compressed).readObject();
+		}
+	}
+
+	/**
+	 * @param buffer the serialized bytes, from the position to the limit of the buffer
+	 * @param <T>    the generic type of the container object
+	 * @return the filled object
+	 * @throws IOException            if any I/O error occurs
+	 * @throws ClassNotFoundException if the object cannot be constructed
+	 * @see #fromDefaultCompressedBytes(byte[])
+	 */
+	public static <T extends Serializable> T fromDefaultCompressedBytes(final ByteBuffer buffer)
+			throws IOException, ClassNotFoundException {
+		return fromDefaultCompressedBytes(toInputStream(buffer));
+	}
+
+	/**
+	 * The heap buffers are read without any copy. The position of the given buffer is not modified.
+	 */
+	private static InputStream toInputStream(final ByteBuffer buffer) {
+		if (buffer.hasArray())
+			return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(),
+					buffer.remaining());
+		return new ByteBufferInputStream(buffer.duplicate());
+	}
+
+	private static class PooledOutputStream extends ByteArrayOutputStream {
+
+		private boolean inUse;
+
+		private PooledOutputStream() {
+			super(DEFAULT_SIZE_HINT);
+		}
+
+		private void acquire(final int sizeHint) {
+			inUse = true;
+			reset();
+			if (buf.length < sizeHint)
+				buf = new byte[sizeHint];
+		}
+
+		private byte[] buffer() {
+			return buf;
+		}
+
+		private void release() {
+			if (buf.length > MAX_RETAINED_SIZE)
+				buf = new byte[DEFAULT_SIZE_HINT];
+			inUse = false;
+		}
+	}
+
+	private static class ByteBufferOutputStream extends OutputStream {
+
+		private final ByteBuffer buffer;
+
+		private ByteBufferOutputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void write(final int b) {
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			buffer.put(b, off, len);
+		}
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			final int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
 		}
 	}
 
@@ -353,6 +353,34 @@ public class StringUtils extends org.apache.commons.lang3.StringUtils {
         }
     }
 
+    /**
+     * Compress a string using the given compression codec
+     *
+     * @param text    the text to compress
+     * @param charset the charset to use
+     * @param codec   the compression codec
+     * @return the compressed byte array
+     * @throws IOException if any I/O error occurs
+     * @see #decompress(byte[], Charset)
+     */
+    public static byte[] compress(final String text, final Charset charset, final CompressionCodec codec)
+            throws IOException {
+        return codec.compress(text.getBytes(charset));
+    }
+
+    /**
+     * Decompress a byte array to a string. The compression codec is detected.
+     *
+     * @param bytes   the compressed bytes
+     * @param charset the charset to use
+     * @return the uncompressed text
+     * @throws IOException if any I/O error occurs
+     * @see CompressionCodec
+     */
+    public static String decompress(final byte[] bytes, final Charset charset) throws IOException {
+        return new String(CompressionCodec.decompress(bytes), charset);
+    }
+
     /**
      * Decompress a byte array to a string using GZIP compression
      *
@@ -17,7 +17,13 @@ package com.qwazr.utils;
 
 import com.qwazr.utils.concurrent.CallableEx;
 
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class WaitFor {
 
@@ -25,12 +31,21 @@ public class WaitFor {
 	private final long timeOutDuration;
 	private final TimeUnit pauseTimeUnit;
 	private final long pauseTimeDuration;
+	private final long maxPauseTimeNanos;
+	private final double backoffFactor;
+
+	private final Set<AsyncWait<?>> asyncWaits;
 
 	private WaitFor(final Builder builder) {
 		this.timeOutUnit = builder.timeOutUnit == null ? TimeUnit.MILLISECONDS : builder.timeOutUnit;
 		this.timeOutDuration = builder.timeOutDuration;
 		this.pauseTimeUnit = builder.pauseTimeUnit == null ? TimeUnit.MILLISECONDS : builder.pauseTimeUnit;
 		this.pauseTimeDuration = builder.pauseTimeDuration;
+		this.maxPauseTimeNanos = builder.maxPauseTimeUnit == null ?
+				TimeUnit.MILLISECONDS.toNanos(builder.maxPauseTimeDuration) :
+				builder.maxPauseTimeUnit.toNanos(builder.maxPauseTimeDuration);
+		this.backoffFactor = builder.backoffFactor;
+		this.asyncWaits = ConcurrentHashMap.newKeySet();
 	}
 
 	public interface UntilCondition extends CallableEx<Boolean, InterruptedException> {
@@ -47,6 +62,114 @@ public class WaitFor {
 		throw new InterruptedException("Time-out reached");
 	}
 
+	/**
+	 * Evaluate the condition without blocking the calling thread.
+	 * The condition is evaluated by a shared timer thread, the pause time between two evaluations grows
+	 * using the backoff factor, up to the max pause time.
+	 * The condition should be fast and non-blocking, as it is evaluated by the timer thread.
+	 *
+	 * @param condition the condition to evaluate
+	 * @param <T>       the type of the condition
+	 * @return a future completed with the condition once it returns true,
+	 * or completed exceptionally with a TimeoutException if the time-out is reached
+	 * @see #signal()
+	 */
+	public <T extends UntilCondition> CompletableFuture<T> untilAsync(final T condition) {
+		final AsyncWait<T> asyncWait = new AsyncWait<>(condition);
+		asyncWaits.add(asyncWait);
+		Timer.INSTANCE.execute(asyncWait::evaluate);
+		return asyncWait.future;
+	}
+
+	/**
+	 * Wake up every pending asynchronous wait of this instance.
+	 * The conditions are evaluated immediately instead of waiting for the end of the pause.
+	 */
+	public void signal() {
+		for (final AsyncWait<?> asyncWait : asyncWaits)
+			Timer.INSTANCE.execute(asyncWait::evaluate);
+	}
+
+	/**
+	 * @return the number of pending asynchronous waits
+	 */
+	public int getPendingCount() {
+		return asyncWaits.size();
+	}
+
+	/**
+	 * The timer shared by all the asynchronous waits (lazily created)
+	 */
+	private static class Timer {
+
+		private final static ScheduledThreadPoolExecutor INSTANCE;
+
+		static {
+			INSTANCE = new ScheduledThreadPoolExecutor(1, runnable -> {
+				final Thread thread = new Thread(runnable, "WaitFor-timer");
+				thread.setDaemon(true);
+				return thread;
+			});
+			INSTANCE.setRemoveOnCancelPolicy(true);
+		}
+	}
+
+	/**
+	 * The minimum pause between two evaluations of an asynchronous wait, so a zero pause does not busy loop
+	 */
+	private final static long MIN_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final class AsyncWait<T extends UntilCondition> {
+
+		private final T condition;
+		private final CompletableFuture<T> future;
+		private final long deadline;
+		private long pauseNanos;
+		private ScheduledFuture<?> scheduled;
+
+		private AsyncWait(final T condition) {
+			this.condition = condition;
+			this.future = new CompletableFuture<>();
+			this.deadline = System.nanoTime() + timeOutUnit.toNanos(timeOutDuration);
+			this.pauseNanos = Math.max(MIN_PAUSE_NANOS, pauseTimeUnit.toNanos(pauseTimeDuration));
+			// Whoever completes the future (the timer or the caller), the wait is released
+			this.future.whenComplete((result, error) -> done());
+		}
+
+		private synchronized void evaluate() {
+			if (future.isDone())
+				return;
+			if (scheduled != null) {
+				scheduled.cancel(false);
+				scheduled = null;
+			}
+			try {
+				if (condition.call()) {
+					future.complete(condition);
+					return;
+				}
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+				return;
+			}
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				future.completeExceptionally(new TimeoutException("Time-out reached"));
+				return;
+			}
+			scheduled = Timer.INSTANCE.schedule(this::evaluate, Math.min(pauseNanos, remaining), TimeUnit.NANOSECONDS);
+			pauseNanos = Math.max(MIN_PAUSE_NANOS, Math.min(maxPauseTimeNanos, (long) (pauseNanos * backoffFactor)));
+		}
+
+		private synchronized void done() {
+			asyncWaits.remove(this);
+			if (scheduled != null) {
+				scheduled.cancel(false);
+				scheduled = null;
+			}
+		}
+	}
+
 	public static Builder of() {
 		return new Builder();
 	}
@@ -57,6 +180,9 @@ public class WaitFor {
 		private long timeOutDuration = 1000;
 		private TimeUnit pauseTimeUnit = TimeUnit.MILLISECONDS;
 		private long pauseTimeDuration = 200;
+		private TimeUnit maxPauseTimeUnit = TimeUnit.MILLISECONDS;
+		private long maxPauseTimeDuration = 2000;
+		private double backoffFactor = 2;
 
 		public Builder timeOut(TimeUnit unit, long duration) {
 			timeOutUnit = unit;
@@ -70,6 +196,34 @@ public class WaitFor {
 			return this;
 		}
 
+		/**
+		 * Set the maximum pause time between two evaluations of an asynchronous wait
+		 *
+		 * @param unit     the time unit of the duration
+		 * @param duration the maximum pause time
+		 * @return the current builder
+		 * @see WaitFor#untilAsync(UntilCondition)
+		 */
+		public Builder maxPauseTime(TimeUnit unit, long duration) {
+			maxPauseTimeUnit = unit;
+			maxPauseTimeDuration = duration;
+			return this;
+		}
+
+		/**
+		 * Set the factor applied to the pause time after each evaluation of an asynchronous wait
+		 *
+		 * @param factor the backoff factor (1 means a constant pause time)
+		 * @return the current builder
+		 * @see WaitFor#untilAsync(UntilCondition)
+		 */
+		public Builder backoffFactor(double factor) {
+			if (factor < 1)
+				throw new IllegalArgumentException("The backoff factor should be greater or equal to 1");
+			backoffFactor = factor;
+			return this;
+		}
+
 		public WaitFor build() {
 			return new WaitFor(this);
 		}
@@ -77,5 +231,9 @@ public class WaitFor {
 		public <T extends UntilCondition> T until(T condition) throws InterruptedException {
 			return build().until(condition);
 		}
+
+		public <T extends UntilCondition> CompletableFuture<T> untilAsync(T condition) {
+			return build().untilAsync(condition);
+		}
 	}
 }
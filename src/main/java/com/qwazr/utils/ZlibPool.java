@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A pool of Deflater and Inflater instances. Each instance holds a native zlib stream,
+ * which is expensive to allocate and only freed by end() or by the finalizer.
+ */
+final class ZlibPool {
+
+	private final static int CAPACITY = Runtime.getRuntime().availableProcessors() * 2;
+
+	// One queue per compression level (Deflater.DEFAULT_COMPRESSION is the last one) and per wrap mode
+	private final static ArrayBlockingQueue<Deflater>[] DEFLATERS = queues(22);
+
+	private final static ArrayBlockingQueue<Inflater>[] INFLATERS = queues(2);
+
+	@SuppressWarnings("unchecked")
+	private static <T> ArrayBlockingQueue<T>[] queues(final int size) {
+		final ArrayBlockingQueue<T>[] queues = (ArrayBlockingQueue<T>[]) new ArrayBlockingQueue<?>[size];
+		for (int i = 0; i < size; i++)
+			queues[i] = new ArrayBlockingQueue<>(CAPACITY);
+		return queues;
+	}
+
+	private static int deflaterIndex(final int level, final boolean nowrap) {
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < 0 || level > 9))
+			throw new IllegalArgumentException("Wrong compression level: " + level);
+		return (level == Deflater.DEFAULT_COMPRESSION ? 10 : level) * 2 + (nowrap ? 1 : 0);
+	}
+
+	/**
+	 * @param level  the compression level (0-9 or Deflater.DEFAULT_COMPRESSION)
+	 * @param nowrap true for the raw deflate format (no zlib header)
+	 * @return a pooled or new Deflater, which should be given back with {@link #release(Deflater, int, boolean)}
+	 */
+	static Deflater deflater(final int level, final boolean nowrap) {
+		final Deflater deflater = DEFLATERS[deflaterIndex(level, nowrap)].poll();
+		return deflater != null ? deflater : new Deflater(level, nowrap);
+	}
+
+	static void release(final Deflater deflater, final int level, final boolean nowrap) {
+		deflater.reset();
+		if (!DEFLATERS[deflaterIndex(level, nowrap)].offer(deflater))
+			deflater.end();
+	}
+
+	/**
+	 * @param nowrap true for the raw deflate format (no zlib header)
+	 * @return a pooled or new Inflater, which should be given back with {@link #release(Inflater, boolean)}
+	 */
+	static Inflater inflater(final boolean nowrap) {
+		final Inflater inflater = INFLATERS[nowrap ? 1 : 0].poll();
+		return inflater != null ? inflater : new Inflater(nowrap);
+	}
+
+	static void release(final Inflater inflater, final boolean nowrap) {
+		inflater.reset();
+		if (!INFLATERS[nowrap ? 1 : 0].offer(inflater))
+			inflater.end();
+	}
+
+	private final static int GZIP_MAGIC = 0x8b1f;
+
+	private final static byte[] GZIP_HEADER = gzipHeader();
+
+	/**
+	 * The header written by the JDK GZIPOutputStream, so the same bytes are produced: the OS byte depends on the
+	 * JDK version (0 until JDK 15, 255 since JDK 16).
+	 */
+	private static byte[] gzipHeader() {
+		final byte[] header = { (byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try {
+			new GZIPOutputStream(output).close();
+			header[9] = output.toByteArray()[9];
+		} catch (IOException e) {
+			// Cannot happen with a ByteArrayOutputStream, the OS byte stays 0
+		}
+		return header;
+	}
+
+	private final static int FHCRC = 2;
+	private final static int FEXTRA = 4;
+	private final static int FNAME = 8;
+	private final static int FCOMMENT = 16;
+
+	/**
+	 * A deflate compressing stream (zlib or raw format) using a pooled Deflater.
+	 * Closing the stream finishes the compressed data, but does not close the underlying stream.
+	 */
+	static class DeflateOutputStream extends DeflaterOutputStream {
+
+		private final int level;
+		private final boolean nowrap;
+		private boolean closed;
+
+		DeflateOutputStream(final OutputStream output, final int level, final boolean nowrap) {
+			super(output, deflater(level, nowrap), 4096);
+			this.level = level;
+			this.nowrap = nowrap;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				finish();
+				out.flush();
+			} finally {
+				release(def, level, nowrap);
+			}
+		}
+	}
+
+	/**
+	 * A GZIP compressing stream using a pooled Deflater.
+	 * Closing the stream writes the GZIP trailer, but does not close the underlying stream.
+	 */
+	static class GzipOutputStream extends DeflateOutputStream {
+
+		private final CRC32 crc;
+
+		GzipOutputStream(final OutputStream output, final int level) throws IOException {
+			super(output, level, true);
+			this.crc = new CRC32();
+			try {
+				output.write(GZIP_HEADER);
+			} catch (IOException | RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			super.write(b, off, len);
+			crc.update(b, off, len);
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (def.finished())
+				return;
+			super.finish();
+			writeInt((int) crc.getValue());
+			writeInt((int) def.getBytesRead());
+		}
+
+		private void writeInt(final int value) throws IOException {
+			out.write(value & 0xff);
+			out.write((value >> 8) & 0xff);
+			out.write((value >> 16) & 0xff);
+			out.write((value >> 24) & 0xff);
+		}
+	}
+
+	/**
+	 * A deflate decompressing stream (zlib or raw format) using a pooled Inflater.
+	 * Closing the stream does not close the underlying stream.
+	 */
+	static class InflateInputStream extends InflaterInputStream {
+
+		private final boolean nowrap;
+		private boolean closed;
+
+		InflateInputStream(final InputStream input, final boolean nowrap) {
+			super(input, inflater(nowrap), 4096);
+			this.nowrap = nowrap;
+		}
+
+		@Override
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			release(inf, nowrap);
+		}
+	}
+
+	/**
+	 * A GZIP decompressing stream using a pooled Inflater. The CRC is checked when the end of the data is read.
+	 * Closing the stream does not close the underlying stream.
+	 */
+	static class GzipInputStream extends InflateInputStream {
+
+		private final CRC32 crc;
+		private boolean trailerChecked;
+
+		GzipInputStream(final InputStream input) throws IOException {
+			this(input, false);
+		}
+
+		/**
+		 * @param input         the compressed stream
+		 * @param magicConsumed true if the first byte of the GZIP magic number has already been read
+		 * @throws IOException if the GZIP header is not valid
+		 */
+		GzipInputStream(final InputStream input, final boolean magicConsumed) throws IOException {
+			super(input, true);
+			this.crc = new CRC32();
+			try {
+				readHeader(magicConsumed);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		private int readByte() throws IOException {
+			final int b = in.read();
+			if (b == -1)
+				throw new EOFException();
+			return b;
+		}
+
+		private int readShort() throws IOException {
+			return readByte() | (readByte() << 8);
+		}
+
+		private void readHeader(final boolean magicConsumed) throws IOException {
+			final int magic = magicConsumed ? (GZIP_MAGIC & 0xff) | (readByte() << 8) : readShort();
+			if (magic != GZIP_MAGIC)
+				throw new ZipException("Not in GZIP format");
+			if (readByte() != Deflater.DEFLATED)
+				throw new ZipException("Unsupported compression method");
+			final int flags = readByte();
+			for (int i = 0; i < 6; i++) // MTIME, XFL, OS
+				readByte();
+			if ((flags & FEXTRA) != 0)
+				for (int i = readShort(); i > 0; i--)
+					readByte();
+			if ((flags & FNAME) != 0)
+				while (readByte() != 0)
+					;
+			if ((flags & FCOMMENT) != 0)
+				while (readByte() != 0)
+					;
+			if ((flags & FHCRC) != 0)
+				readShort();
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			final int n = super.read(b, off, len);
+			if (n > 0)
+				crc.update(b, off, n);
+			else if (n == -1 && !trailerChecked)
+				checkTrailer();
+			return n;
+		}
+
+		private int readTrailerByte(final int[] remaining) throws IOException {
+			if (remaining[0] > 0)
+				return buf[len - remaining[0]--] & 0xff;
+			return readByte();
+		}
+
+		private int readTrailerInt(final int[] remaining) throws IOException {
+			int value = 0;
+			for (int i = 0; i < 4; i++)
+				value |= readTrailerByte(remaining) << (i * 8);
+			return value;
+		}
+
+		private void checkTrailer() throws IOException {
+			trailerChecked = true;
+			// The first bytes of the trailer may already be in the buffer of the inflater
+			final int[] remaining = { inf.getRemaining() };
+			if (readTrailerInt(remaining) != (int) crc.getValue() ||
+					readTrailerInt(remaining) != (int) inf.getBytesWritten())
+				throw new ZipException("Corrupt GZIP trailer");
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * A non-blocking read/write lock.
+ * Instead of blocking the calling thread, the waiters are queued as continuations.
+ * The lock is held until the CompletionStage returned by the action is completed.
+ * The waiters are served in FIFO order: a reader arriving after a waiting writer waits for that writer.
+ * <p>
+ * When the lock is free, the action is executed by the calling thread.
+ * Otherwise it is executed by the given executor once the lock is granted.
+ */
+public class AsyncReadWriteLock {
+
+	private final Executor executor;
+
+	private final ArrayDeque<Waiter<?>> waiters;
+
+	private int readers;
+
+	private boolean writer;
+
+	/**
+	 * @param executor the executor used to resume the queued waiters
+	 */
+	public AsyncReadWriteLock(final Executor executor) {
+		this.executor = Objects.requireNonNull(executor, "The executor is missing");
+		this.waiters = new ArrayDeque<>();
+		this.readers = 0;
+		this.writer = false;
+	}
+
+	/**
+	 * Create a lock which resumes the queued waiters using the common ForkJoinPool
+	 */
+	public AsyncReadWriteLock() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Execute the action when the read lock is acquired.
+	 * The read lock is released when the returned stage completes.
+	 *
+	 * @param action the action to execute while holding the read lock
+	 * @param <T>    the type of the result
+	 * @return a future completed with the result of the action
+	 */
+	public <T> CompletableFuture<T> readAsync(final Supplier<? extends CompletionStage<T>> action) {
+		return acquire(false, action);
+	}
+
+	/**
+	 * Execute the action when the write lock is acquired.
+	 * The write lock is released when the returned stage completes.
+	 *
+	 * @param action the action to execute while holding the write lock
+	 * @param <T>    the type of the result
+	 * @return a future completed with the result of the action
+	 */
+	public <T> CompletableFuture<T> writeAsync(final Supplier<? extends CompletionStage<T>> action) {
+		return acquire(true, action);
+	}
+
+	/**
+	 * @return the number of waiters currently queued
+	 */
+	public int getQueueLength() {
+		synchronized (waiters) {
+			return waiters.size();
+		}
+	}
+
+	/**
+	 * @return the number of readers currently holding the lock
+	 */
+	public int getReadLockCount() {
+		synchronized (waiters) {
+			return readers;
+		}
+	}
+
+	/**
+	 * @return true if the write lock is currently held
+	 */
+	public boolean isWriteLocked() {
+		synchronized (waiters) {
+			return writer;
+		}
+	}
+
+	private <T> CompletableFuture<T> acquire(final boolean exclusive,
+			final Supplier<? extends CompletionStage<T>> action) {
+		Objects.requireNonNull(action, "The action is missing");
+		final Waiter<T> waiter = new Waiter<>(exclusive, action);
+		final boolean granted;
+		synchronized (waiters) {
+			granted = waiters.isEmpty() && !writer && (!exclusive || readers == 0);
+			if (granted)
+				lock(exclusive);
+			else
+				waiters.add(waiter);
+		}
+		if (granted)
+			waiter.run();
+		return waiter.future;
+	}
+
+	private void lock(final boolean exclusive) {
+		if (exclusive)
+			writer = true;
+		else
+			readers++;
+	}
+
+	private void release(final boolean exclusive) {
+		final List<Waiter<?>> granted = new ArrayList<>();
+		synchronized (waiters) {
+			if (exclusive)
+				writer = false;
+			else
+				readers--;
+			Waiter<?> next;
+			while ((next = waiters.peek()) != null) {
+				if (writer || (next.exclusive && readers > 0))
+					break;
+				lock(next.exclusive);
+				granted.add(waiters.poll());
+				if (next.exclusive)
+					break;
+			}
+		}
+		for (final Waiter<?> waiter : granted)
+			executor.execute(waiter::run);
+	}
+
+	private final class Waiter<T> {
+
+		private final boolean exclusive;
+		private final Supplier<? extends CompletionStage<T>> action;
+		private final CompletableFuture<T> future;
+
+		private Waiter(final boolean exclusive, final Supplier<? extends CompletionStage<T>> action) {
+			this.exclusive = exclusive;
+			this.action = action;
+			this.future = new CompletableFuture<>();
+		}
+
+		private void run() {
+			final CompletionStage<T> stage;
+			try {
+				stage = Objects.requireNonNull(action.get(), "The action returned a null CompletionStage");
+			} catch (Throwable t) {
+				release(exclusive);
+				future.completeExceptionally(t);
+				return;
+			}
+			stage.whenComplete((result, error) -> {
+				release(exclusive);
+				if (error != null)
+					future.completeExceptionally(error);
+				else
+					future.complete(result);
+			});
+		}
+	}
+}
@@ -15,6 +15,7 @@
  */
 package com.qwazr.utils.concurrent;
 
+import com.qwazr.utils.concurrent.readwritelock.LockProfiler;
 import com.qwazr.utils.concurrent.readwritelock.ReadWriteLockImpl;
 import com.qwazr.utils.concurrent.readwritelock.StamptedReadWriteLockImpl;
 
@@ -73,4 +74,16 @@ public interface ReadWriteLock {
 	static ReadWriteLock stamped() {
 		return new StamptedReadWriteLockImpl();
 	}
+
+	/**
+	 * Decorate a lock to collect its contention statistics using the global LockProfiler
+	 *
+	 * @param name the name of the lock
+	 * @param rwl  the lock to profile
+	 * @return a profiled ReadWriteLock
+	 * @see LockProfiler#GLOBAL
+	 */
+	static ReadWriteLock profiled(String name, ReadWriteLock rwl) {
+		return LockProfiler.GLOBAL.wrap(name, rwl);
+	}
 }
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent.readwritelock;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.qwazr.utils.LatencyHistogram;
+import com.qwazr.utils.concurrent.ReadWriteLock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collect contention statistics for named ReadWriteLock instances.
+ * Only one acquisition out of "sampleRate" is measured, the overhead of the others is a random number generation.
+ * The critical section of a sampled acquisition only reads the clock: the statistics are recorded once the lock
+ * has been released.
+ * <pre>
+ * final ReadWriteLock rwl = LockProfiler.GLOBAL.wrap("myCache", ReadWriteLock.stamped());
+ * ...
+ * final LockProfiler.Snapshot snapshot = LockProfiler.GLOBAL.getSnapshot("myCache");
+ * </pre>
+ */
+public class LockProfiler {
+
+	/**
+	 * The process-wide profiler used by {@link ReadWriteLock#profiled(String, ReadWriteLock)}
+	 */
+	public final static LockProfiler GLOBAL = LockProfiler.of().build();
+
+	private final int sampleRate;
+	private final long contentionThresholdNanos;
+	private final int longestWaiters;
+	private final ConcurrentHashMap<String, Profile> profiles;
+
+	private LockProfiler(final Builder builder) {
+		this.sampleRate = builder.sampleRate;
+		this.contentionThresholdNanos = builder.contentionThresholdNanos;
+		this.longestWaiters = builder.longestWaiters;
+		this.profiles = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Decorate the given lock. Every lock wrapped with the same name shares the same statistics.
+	 *
+	 * @param name the name of the lock
+	 * @param rwl  the lock to profile
+	 * @return a profiled ReadWriteLock
+	 */
+	public ReadWriteLock wrap(final String name, final ReadWriteLock rwl) {
+		Objects.requireNonNull(name, "The name is missing");
+		Objects.requireNonNull(rwl, "The lock is missing");
+		return new ProfiledReadWriteLockImpl(rwl, profiles.computeIfAbsent(name, Profile::new));
+	}
+
+	/**
+	 * @param name the name of the lock
+	 * @return the current statistics of the named lock, or null if there is no lock with this name
+	 */
+	public Snapshot getSnapshot(final String name) {
+		final Profile profile = profiles.get(name);
+		return profile == null ? null : new Snapshot(profile);
+	}
+
+	/**
+	 * @return the current statistics of every lock, sorted by name
+	 */
+	public Map<String, Snapshot> getSnapshots() {
+		final Map<String, Snapshot> snapshots = new TreeMap<>();
+		profiles.forEach((name, profile) -> snapshots.put(name, new Snapshot(profile)));
+		return snapshots;
+	}
+
+	/**
+	 * Reset the statistics of every lock
+	 */
+	public void reset() {
+		profiles.values().forEach(Profile::reset);
+	}
+
+	public static Builder of() {
+		return new Builder();
+	}
+
+	public static class Builder {
+
+		private int sampleRate = 16;
+		private long contentionThresholdNanos = TimeUnit.MICROSECONDS.toNanos(1);
+		private int longestWaiters = 0;
+
+		/**
+		 * @param sampleRate one acquisition out of sampleRate is measured (1 measures every acquisition)
+		 * @return the current builder
+		 */
+		public Builder sampleRate(final int sampleRate) {
+			if (sampleRate < 1)
+				throw new IllegalArgumentException("The sample rate should be greater than zero");
+			this.sampleRate = sampleRate;
+			return this;
+		}
+
+		/**
+		 * @param duration the minimal wait time for an acquisition to be considered as contended
+		 * @param unit     the time unit of the duration
+		 * @return the current builder
+		 */
+		public Builder contentionThreshold(final long duration, final TimeUnit unit) {
+			this.contentionThresholdNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * The stack trace of every sampled acquisition is captured before the lock is requested.
+		 *
+		 * @param longestWaiters the number of stack traces of the longest waiters to keep (0 disables the capture)
+		 * @return the current builder
+		 */
+		public Builder longestWaiters(final int longestWaiters) {
+			this.longestWaiters = longestWaiters;
+			return this;
+		}
+
+		public LockProfiler build() {
+			return new LockProfiler(this);
+		}
+	}
+
+	final class Profile {
+
+		private final String name;
+		final ModeProfile read;
+		final ModeProfile write;
+		private final List<Waiter> longest;
+		private volatile long longestMinNanos;
+
+		private Profile(final String name) {
+			this.name = name;
+			this.read = new ModeProfile(this, "read");
+			this.write = new ModeProfile(this, "write");
+			this.longest = new ArrayList<>();
+			this.longestMinNanos = 0;
+		}
+
+		private void waited(final String mode, final long waitNanos, final Thread thread,
+				final StackTraceElement[] stackTrace) {
+			if (stackTrace == null || waitNanos <= longestMinNanos)
+				return;
+			final Waiter waiter = new Waiter(mode, waitNanos, thread, stackTrace);
+			synchronized (longest) {
+				longest.add(waiter);
+				longest.sort((w1, w2) -> Long.compare(w2.waitNanos, w1.waitNanos));
+				while (longest.size() > longestWaiters)
+					longest.remove(longest.size() - 1);
+				if (longest.size() == longestWaiters)
+					longestMinNanos = longest.get(longest.size() - 1).waitNanos;
+			}
+		}
+
+		private List<Waiter> getLongestWaiters() {
+			synchronized (longest) {
+				return longest.isEmpty() ? null : new ArrayList<>(longest);
+			}
+		}
+
+		private void reset() {
+			read.reset();
+			write.reset();
+			synchronized (longest) {
+				longest.clear();
+				longestMinNanos = 0;
+			}
+		}
+	}
+
+	final class ModeProfile {
+
+		private final Profile profile;
+		private final String mode;
+		private final LongAdder acquisitions;
+		private final LongAdder contended;
+		private final LatencyHistogram waitTime;
+		private final LatencyHistogram holdTime;
+
+		private ModeProfile(final Profile profile, final String mode) {
+			this.profile = profile;
+			this.mode = mode;
+			this.acquisitions = new LongAdder();
+			this.contended = new LongAdder();
+			this.waitTime = new LatencyHistogram();
+			this.holdTime = new LatencyHistogram();
+		}
+
+		/**
+		 * @return a new sample, or null if this acquisition is not sampled
+		 */
+		Sample start() {
+			acquisitions.increment();
+			if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0)
+				return null;
+			return new Sample(this, longestWaiters > 0);
+		}
+
+		private void record(final long waitNanos, final long holdNanos, final Thread thread,
+				final StackTraceElement[] stackTrace) {
+			waitTime.record(waitNanos);
+			holdTime.record(holdNanos);
+			if (waitNanos < contentionThresholdNanos)
+				return;
+			contended.increment();
+			profile.waited(mode, waitNanos, thread, stackTrace);
+		}
+
+		private void reset() {
+			acquisitions.reset();
+			contended.reset();
+			waitTime.reset();
+			holdTime.reset();
+		}
+	}
+
+	/**
+	 * One sampled acquisition. Only acquired() and released() are called while the lock is held.
+	 */
+	static final class Sample {
+
+		private final ModeProfile modeProfile;
+		private final Thread thread;
+		private final StackTraceElement[] stackTrace;
+		private final long startNanos;
+		private long acquiredNanos;
+		private long releasedNanos;
+		private boolean held;
+
+		private Sample(final ModeProfile modeProfile, final boolean captureStackTrace) {
+			this.modeProfile = modeProfile;
+			this.thread = Thread.currentThread();
+			this.stackTrace = captureStackTrace ? thread.getStackTrace() : null;
+			this.startNanos = System.nanoTime();
+		}
+
+		void acquired() {
+			acquiredNanos = System.nanoTime();
+			held = true;
+		}
+
+		void released() {
+			releasedNanos = System.nanoTime();
+		}
+
+		/**
+		 * Record the statistics, called after the lock has been released
+		 */
+		void record() {
+			if (held)
+				modeProfile.record(acquiredNanos - startNanos, releasedNanos - acquiredNanos, thread, stackTrace);
+		}
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class Snapshot {
+
+		@JsonProperty("name")
+		final public String name;
+
+		@JsonProperty("read")
+		final public ModeSnapshot read;
+
+		@JsonProperty("write")
+		final public ModeSnapshot write;
+
+		@JsonProperty("longest_waiters")
+		final public List<Waiter> longestWaiters;
+
+		private Snapshot(final Profile profile) {
+			this.name = profile.name;
+			this.read = new ModeSnapshot(profile.read);
+			this.write = new ModeSnapshot(profile.write);
+			this.longestWaiters = profile.getLongestWaiters();
+		}
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class ModeSnapshot {
+
+		/**
+		 * The total number of acquisitions (sampled or not)
+		 */
+		@JsonProperty("acquisitions")
+		final public long acquisitions;
+
+		/**
+		 * The number of sampled acquisitions
+		 */
+		@JsonProperty("sampled")
+		final public long sampled;
+
+		/**
+		 * The number of sampled acquisitions which waited more than the contention threshold
+		 */
+		@JsonProperty("contended")
+		final public long contended;
+
+		@JsonProperty("wait_time")
+		final public LatencyHistogram.Snapshot waitTime;
+
+		@JsonProperty("hold_time")
+		final public LatencyHistogram.Snapshot holdTime;
+
+		private ModeSnapshot(final ModeProfile modeProfile) {
+			this.acquisitions = modeProfile.acquisitions.sum();
+			this.contended = modeProfile.contended.sum();
+			this.waitTime = modeProfile.waitTime.getSnapshot();
+			this.holdTime = modeProfile.holdTime.getSnapshot();
+			this.sampled = waitTime.count;
+		}
+
+		/**
+		 * @return the ratio of contended acquisitions in the samples
+		 */
+		public float getContentionRatio() {
+			return sampled == 0 ? 0 : (float) contended / sampled;
+		}
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class Waiter {
+
+		@JsonProperty("mode")
+		final public String mode;
+
+		@JsonProperty("wait_nanos")
+		final public long waitNanos;
+
+		@JsonProperty("thread")
+		final public String thread;
+
+		@JsonProperty("time")
+		final public Date time;
+
+		@JsonProperty("stack_trace")
+		final public List<String> stackTrace;
+
+		private Waiter(final String mode, final long waitNanos, final Thread thread,
+				final StackTraceElement[] stackTrace) {
+			this.mode = mode;
+			this.waitNanos = waitNanos;
+			this.thread = thread.getName();
+			this.time = new Date();
+			final List<String> lines = new ArrayList<>(stackTrace.length);
+			for (final StackTraceElement element : stackTrace) {
+				// Skip the frames of the profiler itself
+				if (lines.isEmpty() && (element.getClassName().equals(Thread.class.getName()) ||
+						isProfilerClass(element.getClassName(), LockProfiler.class) ||
+						isProfilerClass(element.getClassName(), ProfiledReadWriteLockImpl.class)))
+					continue;
+				lines.add(element.toString());
+			}
+			this.stackTrace = Collections.unmodifiableList(lines);
+		}
+
+		private static boolean isProfilerClass(final String className, final Class<?> profilerClass) {
+			final String name = profilerClass.getName();
+			return className.startsWith(name) &&
+					(className.length() == name.length() || className.charAt(name.length()) == '$');
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent.readwritelock;
+
+import com.qwazr.utils.concurrent.ReadWriteLock;
+
+import java.util.concurrent.Callable;
+
+/**
+ * A ReadWriteLock decorator which measures the wait time and the hold time of the sampled acquisitions.
+ * The statistics of a sample are recorded once the lock has been released.
+ *
+ * @see LockProfiler
+ */
+final class ProfiledReadWriteLockImpl extends AbstractReadWriteLockImpl {
+
+	private final ReadWriteLock rwl;
+	private final LockProfiler.ModeProfile read;
+	private final LockProfiler.ModeProfile write;
+
+	ProfiledReadWriteLockImpl(final ReadWriteLock rwl, final LockProfiler.Profile profile) {
+		this.rwl = rwl;
+		this.read = profile.read;
+		this.write = profile.write;
+	}
+
+	private static <T> Callable<T> sampled(final LockProfiler.Sample sample, final Callable<T> call) {
+		return () -> {
+			sample.acquired();
+			try {
+				return call.call();
+			} finally {
+				sample.released();
+			}
+		};
+	}
+
+	private static Runnable sampled(final LockProfiler.Sample sample, final Runnable run) {
+		return () -> {
+			sample.acquired();
+			try {
+				run.run();
+			} finally {
+				sample.released();
+			}
+		};
+	}
+
+	private static <V, E extends Throwable> ExceptionCallable<V, E> sampled(final LockProfiler.Sample sample,
+			final ExceptionCallable<V, E> call) {
+		return () -> {
+			sample.acquired();
+			try {
+				return call.call();
+			} finally {
+				sample.released();
+			}
+		};
+	}
+
+	private static <E extends Throwable> ExceptionRunnable<E> sampled(final LockProfiler.Sample sample,
+			final ExceptionRunnable<E> run) {
+		return () -> {
+			sample.acquired();
+			try {
+				run.run();
+			} finally {
+				sample.released();
+			}
+		};
+	}
+
+	@Override
+	public <T> T read(final Callable<T> call) {
+		final LockProfiler.Sample sample = read.start();
+		if (sample == null)
+			return rwl.read(call);
+		try {
+			return rwl.read(sampled(sample, call));
+		} finally {
+			sample.record();
+		}
+	}
+
+	@Override
+	public <V, E extends Throwable> V readEx(final ExceptionCallable<V, E> call) throws E {
+		final LockProfiler.Sample sample = read.start();
+		if (sample == null)
+			return rwl.readEx(call);
+		try {
+			return rwl.readEx(sampled(sample, call));
+		} finally {
+			sample.record();
+		}
+	}
+
+	@Override
+	public void read(final Runnable run) {
+		final LockProfiler.Sample sample = read.start();
+		if (sample == null) {
+			rwl.read(run);
+			return;
+		}
+		try {
+			rwl.read(sampled(sample, run));
+		} finally {
+			sample.record();
+		}
+	}
+
+	@Override
+	public <E extends Throwable> void readEx(final ExceptionRunnable<E> run) throws E {
+		final LockProfiler.Sample sample = read.start();
+		if (sample == null) {
+			rwl.readEx(run);
+			return;
+		}
+		try {
+			rwl.readEx(sampled(sample, run));
+		} finally {
+			sample.record();
+		}
+	}
+
+	@Override
+	public <T> T write(final Callable<T> call) {
+		final LockProfiler.Sample sample = write.start();
+		if (sample == null)
+			return rwl.write(call);
+		try {
+			return rwl.write(sampled(sample, call));
+		} finally {
+			sample.record();
+		}
+	}
+
+	@Override
+	public <V, E extends Throwable> V writeEx(final ExceptionCallable<V, E> call) throws E {
+		final LockProfiler.Sample sample = write.start();
+		if (sample == null)
+			return rwl.writeEx(call);
+		try {
+			return rwl.writeEx(sampled(sample, call));
+		} finally {
+			sample.record();
+		}
+	}
+
+	@Override
+	public <E extends Throwable> void writeEx(final ExceptionRunnable<E> run) throws E {
+		final LockProfiler.Sample sample = write.start();
+		if (sample == null) {
+			rwl.writeEx(run);
+			return;
+		}
+		try {
+			rwl.writeEx(sampled(sample, run));
+		} finally {
+			sample.record();
+		}
+	}
+
+	@Override
+	public void write(final Runnable run) {
+		final LockProfiler.Sample sample = write.start();
+		if (sample == null) {
+			rwl.write(run);
+			return;
+		}
+		try {
+			rwl.write(sampled(sample, run));
+		} finally {
+			sample.record();
+		}
+	}
+
+	@Override
+	public <V> V readOrWrite(final Callable<V> read, final Callable<V> write) {
+		final V result = read(read);
+		if (result != null)
+			return result;
+		return write(() -> {
+			final V result2 = read.call();
+			return result2 != null ? result2 : write.call();
+		});
+	}
+
+	@Override
+	public <V, E extends Exception> V readOrWriteEx(final ExceptionCallable<V, E> read,
+			final ExceptionCallable<V, E> write) throws Exception {
+		final V result = readEx(read);
+		if (result != null)
+			return result;
+		return writeEx(() -> {
+			final V result2 = read.call();
+			return result2 != null ? result2 : write.call();
+		});
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.inputstream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An InputStream which reads a range of a file through memory mapped regions.
+ * The regions are mapped one after the other, so files larger than 2GB are supported,
+ * and the pages are loaded by the operating system without any copy in a heap buffer.
+ */
+public class MappedFileInputStream extends InputStream {
+
+	public final static int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final boolean closeChannel;
+	private final long end;
+	private final int regionSize;
+	private long position;
+	private MappedByteBuffer buffer;
+
+	private MappedFileInputStream(final FileChannel channel, final boolean closeChannel, final long start,
+			final long end, final int regionSize) throws IOException {
+		if (regionSize < 1)
+			throw new IllegalArgumentException("The region size should be greater than zero");
+		this.channel = channel;
+		this.closeChannel = closeChannel;
+		this.end = end < 0 ? channel.size() : end;
+		this.regionSize = regionSize;
+		this.position = start;
+	}
+
+	/**
+	 * Read the whole file. The file is closed with the stream.
+	 *
+	 * @param path the file to read
+	 * @throws IOException if the file cannot be opened
+	 */
+	public MappedFileInputStream(final Path path) throws IOException {
+		this(FileChannel.open(path, StandardOpenOption.READ), true, 0, -1, DEFAULT_REGION_SIZE);
+	}
+
+	/**
+	 * Read a range of an opened file. The channel is not closed with the stream,
+	 * therefore several streams can share the same channel.
+	 *
+	 * @param channel    the file channel
+	 * @param start      the position of the first byte
+	 * @param end        the position after the last byte, or -1 for the end of the file
+	 * @param regionSize the maximum size of a mapped region
+	 * @throws IOException if the size of the file cannot be read
+	 */
+	public MappedFileInputStream(final FileChannel channel, final long start, final long end, final int regionSize)
+			throws IOException {
+		this(channel, false, start, end, regionSize);
+	}
+
+	public MappedFileInputStream(final FileChannel channel, final long start, final long end) throws IOException {
+		this(channel, false, start, end, DEFAULT_REGION_SIZE);
+	}
+
+	private boolean nextRegion() throws IOException {
+		if (buffer != null && buffer.hasRemaining())
+			return true;
+		if (position >= end)
+			return false;
+		final long size = Math.min(regionSize, end - position);
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		position += size;
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextRegion())
+			return -1;
+		return buffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!nextRegion())
+			return -1;
+		final int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(final long n) throws IOException {
+		if (n <= 0)
+			return 0;
+		final long remaining = buffer == null ? 0 : buffer.remaining();
+		if (n <= remaining) {
+			buffer.position(buffer.position() + (int) n);
+			return n;
+		}
+		// The current region is dropped, the next one will be mapped at the new position
+		final long skipped = remaining + Math.min(n - remaining, end - position);
+		position += skipped - remaining;
+		buffer = null;
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		final long remaining = (buffer == null ? 0 : buffer.remaining()) + end - position;
+		return (int) Math.min(Integer.MAX_VALUE, remaining);
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer = null;
+		position = end;
+		if (closeChannel)
+			channel.close();
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.concurrent.FunctionEx;
+import com.qwazr.utils.jdbc.connection.ConnectionManager;
+import com.qwazr.utils.jdbc.connection.ConnectionPool;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Run the blocking JDBC operations of a ConnectionManager on a dedicated executor, and return CompletableFutures.
+ * <pre>
+ * final AsyncTransactions async = AsyncTransactions.of(connectionPool).build();
+ * async.query("SELECT * FROM items WHERE status = ?", "open")
+ * 		.thenAccept(rows -&gt; ...);
+ * async.inTransaction(transaction -&gt; {
+ * 		transaction.update("UPDATE accounts SET balance = balance - 10 WHERE id = 1");
+ * 		transaction.update("UPDATE accounts SET balance = balance + 10 WHERE id = 2");
+ * 		return null;
+ * });
+ * </pre>
+ * The number of operations running at the same time is bounded by a semaphore. By default, the bound is the maximum
+ * size of the ConnectionPool, so that the tasks wait for a permit instead of waiting for a connection.
+ * <p>
+ * When the JVM provides virtual threads (Java 21+), the default executor starts one virtual thread per task.
+ * Otherwise, a fixed pool of daemon threads is used.
+ * </p>
+ */
+public class AsyncTransactions implements Closeable {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(AsyncTransactions.class);
+
+	private final ConnectionManager connectionManager;
+	private final Integer transactionIsolation;
+	private final int maxConcurrency;
+	private final Semaphore semaphore;
+	private final ExecutorService executor;
+	private final boolean ownExecutor;
+
+	private AsyncTransactions(final Builder builder) {
+		this.connectionManager = builder.connectionManager;
+		this.transactionIsolation = builder.transactionIsolation;
+		this.maxConcurrency = builder.maxConcurrency != null ?
+				builder.maxConcurrency :
+				connectionManager instanceof ConnectionPool ?
+						((ConnectionPool) connectionManager).getMaxSize() :
+						Runtime.getRuntime().availableProcessors() * 2;
+		if (maxConcurrency < 1)
+			throw new IllegalArgumentException("The maximum concurrency should be greater than zero");
+		this.semaphore = new Semaphore(maxConcurrency, true);
+		if (builder.executor != null) {
+			this.executor = builder.executor;
+			this.ownExecutor = false;
+		} else {
+			final ExecutorService virtual = builder.virtualThreads ? newVirtualThreadExecutor() : null;
+			this.executor = virtual != null ? virtual : Executors.newFixedThreadPool(maxConcurrency, runnable -> {
+				final Thread thread = new Thread(runnable, "AsyncTransactions");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.ownExecutor = true;
+		}
+	}
+
+	/**
+	 * @return a virtual thread per task executor, or null if the JVM does not support virtual threads
+	 */
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			if (LOGGER.isLoggable(Level.FINEST))
+				LOGGER.finest("Virtual threads not available: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the maximum number of operations running at the same time
+	 */
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * @return the number of operations currently running
+	 */
+	public int getActiveCount() {
+		return maxConcurrency - semaphore.availablePermits();
+	}
+
+	private <T> CompletableFuture<T> submit(final boolean autoCommit,
+			final FunctionEx<Transaction, T, Exception> function) {
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			executor.execute(() -> {
+				try {
+					semaphore.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					future.completeExceptionally(e);
+					return;
+				}
+				T result = null;
+				Throwable error = null;
+				try (final Transaction transaction = connectionManager.getNewTransaction(autoCommit,
+						transactionIsolation)) {
+					try {
+						result = function.apply(transaction);
+						if (!autoCommit)
+							transaction.commit();
+					} catch (Exception e) {
+						if (!autoCommit)
+							rollback(transaction);
+						throw e;
+					}
+				} catch (Throwable e) {
+					error = e;
+				} finally {
+					semaphore.release();
+				}
+				// The permit is released first, so the dependent stages can start a new operation
+				if (error != null)
+					future.completeExceptionally(error);
+				else
+					future.complete(result);
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	private static void rollback(final Transaction transaction) {
+		try {
+			transaction.rollback();
+		} catch (SQLException e) {
+			LOGGER.log(Level.WARNING, e.getMessage(), e);
+		}
+	}
+
+	private static Query prepare(final Transaction transaction, final String sql, final Object... parameters)
+			throws SQLException {
+		final Query query = transaction.prepare(sql);
+		final PreparedStatement statement = query.getStatement();
+		for (int i = 0; i < parameters.length; i++)
+			statement.setObject(i + 1, parameters[i]);
+		return query;
+	}
+
+	/**
+	 * Run a function in a new transaction. The transaction is committed if the function succeeds, and rolled back if
+	 * the function throws an exception.
+	 *
+	 * @param function the function to run
+	 * @param <T>      the type of the result
+	 * @return a future completed with the result of the function
+	 */
+	public <T> CompletableFuture<T> inTransaction(final FunctionEx<Transaction, T, Exception> function) {
+		return submit(false, function);
+	}
+
+	/**
+	 * Execute a query with autocommit enabled
+	 *
+	 * @param sql        the SQL query
+	 * @param parameters the parameters of the query
+	 * @return a future completed with the rows
+	 */
+	public CompletableFuture<List<Row>> query(final String sql, final Object... parameters) {
+		return submit(true, transaction -> {
+			try (final Query query = prepare(transaction, sql, parameters)) {
+				return query.getResultList();
+			}
+		});
+	}
+
+	/**
+	 * Execute a query with autocommit enabled, and map the rows to beans
+	 *
+	 * @param beanClass  the class of the beans
+	 * @param sql        the SQL query
+	 * @param parameters the parameters of the query
+	 * @param <T>        the type of the beans
+	 * @return a future completed with the beans
+	 */
+	public <T> CompletableFuture<List<T>> query(final Class<T> beanClass, final String sql,
+			final Object... parameters) {
+		return submit(true, transaction -> {
+			try (final Query query = prepare(transaction, sql, parameters)) {
+				return query.getResultList(beanClass);
+			}
+		});
+	}
+
+	/**
+	 * Execute an INSERT/UPDATE/DELETE statement with autocommit enabled
+	 *
+	 * @param sql        the SQL statement
+	 * @param parameters the parameters of the statement
+	 * @return a future completed with the row count
+	 */
+	public CompletableFuture<Integer> update(final String sql, final Object... parameters) {
+		return submit(true, transaction -> {
+			try (final Query query = prepare(transaction, sql, parameters)) {
+				return query.update();
+			}
+		});
+	}
+
+	/**
+	 * Shutdown the executor if it has been created by this instance. The running operations are completed.
+	 */
+	@Override
+	public void close() {
+		if (ownExecutor)
+			executor.shutdown();
+	}
+
+	public static Builder of(final ConnectionManager connectionManager) {
+		return new Builder(connectionManager);
+	}
+
+	public static class Builder {
+
+		private final ConnectionManager connectionManager;
+		private Integer transactionIsolation;
+		private Integer maxConcurrency;
+		private ExecutorService executor;
+		private boolean virtualThreads = true;
+
+		private Builder(final ConnectionManager connectionManager) {
+			this.connectionManager = Objects.requireNonNull(connectionManager, "The connection manager is missing");
+		}
+
+		/**
+		 * @param transactionIsolation java.sql.Connection.TRANSACTION..., or null
+		 * @return the current builder
+		 */
+		public Builder transactionIsolation(final Integer transactionIsolation) {
+			this.transactionIsolation = transactionIsolation;
+			return this;
+		}
+
+		/**
+		 * @param maxConcurrency the maximum number of operations running at the same time.
+		 *                       The default is the maximum size of the ConnectionPool.
+		 * @return the current builder
+		 */
+		public Builder maxConcurrency(final int maxConcurrency) {
+			this.maxConcurrency = maxConcurrency;
+			return this;
+		}
+
+		/**
+		 * @param executor the executor which runs the operations. It is not shutdown by close().
+		 * @return the current builder
+		 */
+		public Builder executor(final ExecutorService executor) {
+			this.executor = executor;
+			return this;
+		}
+
+		/**
+		 * @param virtualThreads false to use a fixed thread pool even if virtual threads are available
+		 * @return the current builder
+		 */
+		public Builder virtualThreads(final boolean virtualThreads) {
+			this.virtualThreads = virtualThreads;
+			return this;
+		}
+
+		public AsyncTransactions build() {
+			return new AsyncTransactions(this);
+		}
+	}
+}
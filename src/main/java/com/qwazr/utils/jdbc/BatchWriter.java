@@ -0,0 +1,412 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Execute an INSERT/UPDATE/DELETE statement for many rows using JDBC batches.
+ * The pending rows are sent to the database every "batchSize" rows or "batchBytes" bytes.
+ * <pre>
+ * try (final BatchWriter writer = transaction.batch("INSERT INTO items (id, name) VALUES (?, ?)")
+ * 		.batchSize(1000)
+ * 		.commitEvery(10)
+ * 		.build()) {
+ * 		for (Item item : items)
+ * 			writer.add(item.id, item.name);
+ * }
+ * </pre>
+ * <p>
+ * In rewrite mode, the rows of a batch are sent as one multi-row statement:
+ * "INSERT INTO items (id, name) VALUES (?, ?), (?, ?), ...". Most databases execute it faster than a JDBC batch.
+ * The statement should end with a single VALUES clause, and the driver must accept batchSize times the number
+ * of parameters of a row.
+ * </p>
+ */
+public class BatchWriter implements AutoCloseable {
+
+	private final Transaction transaction;
+	private final int batchSize;
+	private final long batchBytes;
+	private final int commitEvery;
+	private final boolean generatedKeys;
+	private final Consumer<Result> listener;
+	private final Rewrite rewrite;
+
+	private Query query;
+	private final List<Object[]> pendingRows;
+	private Object[] parameters;
+	private int pendingCount;
+	private long pendingBytes;
+
+	private long rowCount;
+	private long updateCount;
+	private int batchCount;
+	private boolean closed;
+
+	private BatchWriter(final Builder builder) throws SQLException {
+		this.transaction = builder.transaction;
+		this.batchSize = builder.batchSize;
+		this.batchBytes = builder.batchBytes;
+		this.commitEvery = builder.commitEvery;
+		this.generatedKeys = builder.generatedKeys;
+		this.listener = builder.listener;
+		if (builder.rewrite) {
+			this.rewrite = new Rewrite(builder.sql);
+			this.pendingRows = new ArrayList<>(batchSize);
+			this.parameters = new Object[rewrite.parameterCount];
+		} else {
+			this.rewrite = null;
+			this.pendingRows = null;
+			this.query = prepare(builder.sql);
+		}
+	}
+
+	private Query prepare(final String sql) throws SQLException {
+		return generatedKeys ? transaction.prepareWithKeys(sql) : transaction.prepare(sql);
+	}
+
+	/**
+	 * Bind a parameter of the current row
+	 *
+	 * @param parameterIndex the first parameter is 1, the second is 2, ...
+	 * @param value          the value of the parameter
+	 * @return the current writer
+	 * @throws SQLException if the index is out of range or if any JDBC error occurs
+	 */
+	public BatchWriter setParameter(final int parameterIndex, final Object value) throws SQLException {
+		if (rewrite != null) {
+			if (parameterIndex < 1 || parameterIndex > parameters.length)
+				throw new SQLException(
+						"The parameter index " + parameterIndex + " is out of range (1 to " + parameters.length + ")");
+			parameters[parameterIndex - 1] = value;
+		} else
+			query.getStatement().setObject(parameterIndex, value);
+		pendingBytes += estimateSize(value);
+		return this;
+	}
+
+	/**
+	 * Add the current row to the batch. The batch is executed if one of the thresholds is reached.
+	 *
+	 * @return the current writer
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	public BatchWriter addBatch() throws SQLException {
+		if (closed)
+			throw new SQLException("The batch writer is closed");
+		if (rewrite != null) {
+			pendingRows.add(parameters);
+			parameters = new Object[rewrite.parameterCount];
+		} else
+			query.getStatement().addBatch();
+		pendingCount++;
+		rowCount++;
+		if (pendingCount >= batchSize || (batchBytes > 0 && pendingBytes >= batchBytes))
+			flush();
+		return this;
+	}
+
+	/**
+	 * Bind the parameters and add the row to the batch
+	 *
+	 * @param values the values of the parameters, in order
+	 * @return the current writer
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	public BatchWriter add(final Object... values) throws SQLException {
+		for (int i = 0; i < values.length; i++)
+			setParameter(i + 1, values[i]);
+		return addBatch();
+	}
+
+	/**
+	 * Execute the pending rows
+	 *
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	public void flush() throws SQLException {
+		if (pendingCount == 0)
+			return;
+		final int rows = pendingCount;
+		final int[] updateCounts;
+		final List<Row> keys;
+		if (rewrite != null) {
+			final boolean full = rows == batchSize;
+			final Query rewritten = full && query != null ? query : prepare(rewrite.getSql(rows));
+			try {
+				final PreparedStatement statement = rewritten.getStatement();
+				int index = 0;
+				for (final Object[] row : pendingRows)
+					for (final Object value : row)
+						statement.setObject(++index, value);
+				updateCounts = new int[] { rewritten.update() };
+				keys = generatedKeys ? rewritten.getGeneratedKeys() : null;
+			} finally {
+				if (full)
+					query = rewritten;
+				else
+					rewritten.close();
+			}
+			pendingRows.clear();
+		} else {
+			updateCounts = query.executeBatch();
+			keys = generatedKeys ? query.getGeneratedKeys() : null;
+		}
+		pendingCount = 0;
+		pendingBytes = 0;
+		batchCount++;
+		for (final int count : updateCounts)
+			if (count > 0)
+				updateCount += count;
+		if (commitEvery > 0 && batchCount % commitEvery == 0)
+			transaction.commit();
+		if (listener != null)
+			listener.accept(new Result(batchCount, rows, updateCounts, keys));
+	}
+
+	/**
+	 * @return the number of rows added to the writer
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * @return the sum of the update counts returned by the driver
+	 */
+	public long getUpdateCount() {
+		return updateCount;
+	}
+
+	/**
+	 * @return the number of executed batches
+	 */
+	public int getBatchCount() {
+		return batchCount;
+	}
+
+	/**
+	 * Execute the pending rows, and commit if commitEvery is set.
+	 *
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	@Override
+	public void close() throws SQLException {
+		if (closed)
+			return;
+		try {
+			flush();
+			if (commitEvery > 0 && batchCount % commitEvery != 0)
+				transaction.commit();
+		} finally {
+			closed = true;
+			if (query != null)
+				query.close();
+		}
+	}
+
+	private static long estimateSize(final Object value) {
+		if (value == null)
+			return 1;
+		if (value instanceof CharSequence)
+			return ((CharSequence) value).length() * 2;
+		if (value instanceof byte[])
+			return ((byte[]) value).length;
+		return 8;
+	}
+
+	/**
+	 * The outcome of one executed batch
+	 */
+	public static class Result {
+
+		/**
+		 * The number of the batch, starting at 1
+		 */
+		final public int batch;
+
+		/**
+		 * The number of rows of the batch
+		 */
+		final public int rows;
+
+		/**
+		 * The update counts returned by the driver. In rewrite mode, there is only one count for the whole batch.
+		 */
+		final public int[] updateCounts;
+
+		/**
+		 * The generated keys, or null if the generated keys were not requested
+		 */
+		final public List<Row> generatedKeys;
+
+		private Result(final int batch, final int rows, final int[] updateCounts, final List<Row> generatedKeys) {
+			this.batch = batch;
+			this.rows = rows;
+			this.updateCounts = updateCounts;
+			this.generatedKeys = generatedKeys;
+		}
+
+		@Override
+		public String toString() {
+			return "Batch " + batch + " - rows: " + rows + " - update counts: " + Arrays.toString(updateCounts);
+		}
+	}
+
+	/**
+	 * Build the multi-row version of an INSERT ... VALUES (...) statement
+	 */
+	static final class Rewrite {
+
+		private final String prefix;
+		private final String values;
+		final int parameterCount;
+
+		Rewrite(final String sql) {
+			final String trimmed = sql.trim();
+			final int valuesPos = trimmed.toUpperCase(Locale.ROOT).lastIndexOf("VALUES");
+			if (valuesPos == -1)
+				throw new IllegalArgumentException("No VALUES clause found: " + sql);
+			final int start = trimmed.indexOf('(', valuesPos);
+			if (start == -1)
+				throw new IllegalArgumentException("No VALUES group found: " + sql);
+			int depth = 0;
+			int count = 0;
+			int end = -1;
+			boolean quoted = false;
+			for (int i = start; i < trimmed.length() && end == -1; i++) {
+				final char c = trimmed.charAt(i);
+				if (c == '\'')
+					quoted = !quoted;
+				else if (quoted)
+					continue;
+				else if (c == '(')
+					depth++;
+				else if (c == ')' && --depth == 0)
+					end = i;
+				else if (c == '?')
+					count++;
+			}
+			if (end == -1 || !trimmed.substring(end + 1).replace(";", "").trim().isEmpty())
+				throw new IllegalArgumentException("The statement should end with one VALUES group: " + sql);
+			if (count == 0)
+				throw new IllegalArgumentException("The VALUES group has no parameter: " + sql);
+			this.prefix = trimmed.substring(0, start);
+			this.values = trimmed.substring(start, end + 1);
+			this.parameterCount = count;
+		}
+
+		String getSql(final int rows) {
+			final StringBuilder sb = new StringBuilder(prefix.length() + (values.length() + 2) * rows);
+			sb.append(prefix);
+			for (int i = 0; i < rows; i++) {
+				if (i > 0)
+					sb.append(", ");
+				sb.append(values);
+			}
+			return sb.toString();
+		}
+	}
+
+	public static Builder of(final Transaction transaction, final String sql) {
+		return new Builder(transaction, sql);
+	}
+
+	public static class Builder {
+
+		private final Transaction transaction;
+		private final String sql;
+		private int batchSize = 1000;
+		private long batchBytes = 0;
+		private int commitEvery = 0;
+		private boolean generatedKeys = false;
+		private boolean rewrite = false;
+		private Consumer<Result> listener;
+
+		private Builder(final Transaction transaction, final String sql) {
+			this.transaction = Objects.requireNonNull(transaction, "The transaction is missing");
+			this.sql = Objects.requireNonNull(sql, "The SQL statement is missing");
+		}
+
+		/**
+		 * @param batchSize the maximum number of rows of a batch
+		 * @return the current builder
+		 */
+		public Builder batchSize(final int batchSize) {
+			if (batchSize < 1)
+				throw new IllegalArgumentException("The batch size should be greater than zero");
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		/**
+		 * @param batchBytes the estimated size of the parameters which triggers the execution (0 means no limit)
+		 * @return the current builder
+		 */
+		public Builder batchBytes(final long batchBytes) {
+			this.batchBytes = batchBytes;
+			return this;
+		}
+
+		/**
+		 * @param commitEvery commit the transaction every "commitEvery" batches (0 disables the commits)
+		 * @return the current builder
+		 */
+		public Builder commitEvery(final int commitEvery) {
+			this.commitEvery = commitEvery;
+			return this;
+		}
+
+		/**
+		 * @param generatedKeys true to collect the generated keys of each batch
+		 * @return the current builder
+		 */
+		public Builder generatedKeys(final boolean generatedKeys) {
+			this.generatedKeys = generatedKeys;
+			return this;
+		}
+
+		/**
+		 * @param rewrite true to send each batch as one multi-row INSERT ... VALUES statement
+		 * @return the current builder
+		 */
+		public Builder rewrite(final boolean rewrite) {
+			this.rewrite = rewrite;
+			return this;
+		}
+
+		/**
+		 * @param listener called after the execution of each batch
+		 * @return the current builder
+		 */
+		public Builder listener(final Consumer<Result> listener) {
+			this.listener = listener;
+			return this;
+		}
+
+		public BatchWriter build() throws SQLException {
+			return new BatchWriter(this);
+		}
+	}
+}
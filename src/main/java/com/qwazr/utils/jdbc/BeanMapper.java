@@ -0,0 +1,430 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fill a POJO from the current row of a ResultSet.
+ * A mapper is built once per bean class and per column layout, and then cached.
+ * The setters and the constructor are invoked through MethodHandles,
+ * and the values are read using the typed getter of the ResultSet matching the type of the setter.
+ *
+ * @param <T> the type of the bean
+ */
+final class BeanMapper<T> {
+
+	final static private Logger logger = Logger.getLogger(BeanMapper.class.getCanonicalName());
+
+	/**
+	 * Per bean class: the write methods by lowercase property name, and the mappers by column layout
+	 */
+	private final static ClassValue<BeanClass> BEAN_CLASSES = new ClassValue<BeanClass>() {
+		@Override
+		protected BeanClass computeValue(final Class<?> type) {
+			return new BeanClass(type);
+		}
+	};
+
+	private final MethodHandle constructor;
+	private final ColumnSetter[] setters;
+
+	private BeanMapper(final MethodHandle constructor, final ColumnSetter[] setters) {
+		this.constructor = constructor;
+		this.setters = setters;
+	}
+
+	/**
+	 * Returns the cached mapper for the given bean class and the column layout of the ResultSet
+	 *
+	 * @param beanClass the class of the bean
+	 * @param metaData  the description of the columns
+	 * @param <T>       the type of the bean
+	 * @return a mapper
+	 * @throws SQLException                 if any JDBC error occurs
+	 * @throws ReflectiveOperationException if the bean cannot be introspected
+	 */
+	static <T> BeanMapper<T> of(final Class<T> beanClass, final ResultSetMetaData metaData)
+			throws SQLException, ReflectiveOperationException {
+		final int columnCount = metaData.getColumnCount();
+		final String[] labels = new String[columnCount];
+		for (int i = 0; i < columnCount; i++)
+			labels[i] = metaData.getColumnLabel(i + 1);
+		return BEAN_CLASSES.get(beanClass).getMapper(Arrays.asList(labels));
+	}
+
+	/**
+	 * Create a new bean and fill it with the current row of the ResultSet
+	 *
+	 * @param resultSet the ResultSet positioned on the row to read
+	 * @return a new bean
+	 * @throws Exception if any JDBC or reflection error occurs
+	 */
+	T map(final ResultSet resultSet) throws Exception {
+		final Object bean;
+		try {
+			bean = constructor.invokeExact();
+		} catch (Exception | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new Exception(t);
+		}
+		for (final ColumnSetter setter : setters)
+			setter.set(bean, resultSet);
+		@SuppressWarnings("unchecked") final T result = (T) bean;
+		return result;
+	}
+
+	private final static class BeanClass {
+
+		private final Class<?> beanClass;
+		private final Map<String, Method> writeMethods;
+		private final MethodHandle constructor;
+		private final ReflectiveOperationException error;
+		private final ConcurrentHashMap<List<String>, BeanMapper<?>> mappers;
+
+		private BeanClass(final Class<?> beanClass) {
+			this.beanClass = beanClass;
+			this.mappers = new ConcurrentHashMap<>();
+			final Map<String, Method> methods = new HashMap<>();
+			MethodHandle ctor = null;
+			ReflectiveOperationException err = null;
+			try {
+				for (PropertyDescriptor propDesc : Introspector.getBeanInfo(beanClass).getPropertyDescriptors())
+					if (propDesc.getWriteMethod() != null)
+						methods.putIfAbsent(propDesc.getName().toLowerCase(Locale.ROOT), propDesc.getWriteMethod());
+				ctor = MethodHandles.publicLookup()
+						.findConstructor(beanClass, MethodType.methodType(void.class))
+						.asType(MethodType.methodType(Object.class));
+			} catch (IntrospectionException e) {
+				err = new ReflectiveOperationException(e);
+			} catch (ReflectiveOperationException e) {
+				err = e;
+			}
+			this.writeMethods = Collections.unmodifiableMap(methods);
+			this.constructor = ctor;
+			this.error = err;
+		}
+
+		private <T> BeanMapper<T> getMapper(final List<String> labels) throws ReflectiveOperationException {
+			if (error != null)
+				throw error;
+			BeanMapper<?> mapper = mappers.get(labels);
+			if (mapper == null) {
+				mapper = newMapper(labels);
+				final BeanMapper<?> previous = mappers.putIfAbsent(labels, mapper);
+				if (previous != null)
+					mapper = previous;
+			}
+			@SuppressWarnings("unchecked") final BeanMapper<T> result = (BeanMapper<T>) mapper;
+			return result;
+		}
+
+		private BeanMapper<?> newMapper(final List<String> labels) throws IllegalAccessException {
+			if (logger.isLoggable(Level.FINEST))
+				logger.finest("Search properties for bean " + beanClass.getSimpleName());
+			final List<ColumnSetter> setters = new ArrayList<>();
+			int columnIndex = 0;
+			for (final String label : labels) {
+				columnIndex++;
+				final Method method = label == null ? null : writeMethods.get(label.toLowerCase(Locale.ROOT));
+				if (method == null)
+					continue;
+				if (logger.isLoggable(Level.FINEST))
+					logger.finest("Found property \"" + method.getName() + "\" for column name \"" + label + "\"");
+				setters.add(ColumnSetter.of(columnIndex, method));
+			}
+			return new BeanMapper<>(constructor, setters.toArray(new ColumnSetter[0]));
+		}
+	}
+
+	private static abstract class ColumnSetter {
+
+		protected final int columnIndex;
+		private final Method method;
+		protected final MethodHandle handle;
+
+		private ColumnSetter(final int columnIndex, final Method method, final Class<?> valueType)
+				throws IllegalAccessException {
+			this.columnIndex = columnIndex;
+			this.method = method;
+			this.handle = MethodHandles.publicLookup()
+					.unreflect(method)
+					.asType(MethodType.methodType(void.class, Object.class, valueType));
+		}
+
+		protected abstract void apply(Object bean, ResultSet resultSet) throws Throwable;
+
+		final void set(final Object bean, final ResultSet resultSet) throws Exception {
+			try {
+				apply(bean, resultSet);
+			} catch (SQLException e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new Exception("Error on column " + columnIndex + " method " + method.getName(), t);
+			}
+		}
+
+		static ColumnSetter of(final int columnIndex, final Method method) throws IllegalAccessException {
+			final Class<?> type = method.getParameterTypes()[0];
+			if (type == int.class || type == Integer.class)
+				return new IntSetter(columnIndex, method);
+			if (type == long.class || type == Long.class)
+				return new LongSetter(columnIndex, method);
+			if (type == double.class || type == Double.class)
+				return new DoubleSetter(columnIndex, method);
+			if (type == float.class || type == Float.class)
+				return new FloatSetter(columnIndex, method);
+			if (type == short.class || type == Short.class)
+				return new ShortSetter(columnIndex, method);
+			if (type == byte.class || type == Byte.class)
+				return new ByteSetter(columnIndex, method);
+			if (type == boolean.class || type == Boolean.class)
+				return new BooleanSetter(columnIndex, method);
+			if (type == String.class)
+				return new StringSetter(columnIndex, method);
+			if (type == BigDecimal.class)
+				return new BigDecimalSetter(columnIndex, method);
+			if (type == Timestamp.class || type == java.util.Date.class)
+				return new TimestampSetter(columnIndex, method);
+			if (type == java.sql.Date.class)
+				return new DateSetter(columnIndex, method);
+			if (type == Time.class)
+				return new TimeSetter(columnIndex, method);
+			if (type == byte[].class)
+				return new BytesSetter(columnIndex, method);
+			return new ObjectSetter(columnIndex, method);
+		}
+	}
+
+	private final static class IntSetter extends ColumnSetter {
+
+		private IntSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, int.class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final int value = resultSet.getInt(columnIndex);
+			if (!resultSet.wasNull())
+				handle.invokeExact(bean, value);
+		}
+	}
+
+	private final static class LongSetter extends ColumnSetter {
+
+		private LongSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, long.class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final long value = resultSet.getLong(columnIndex);
+			if (!resultSet.wasNull())
+				handle.invokeExact(bean, value);
+		}
+	}
+
+	private final static class DoubleSetter extends ColumnSetter {
+
+		private DoubleSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, double.class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final double value = resultSet.getDouble(columnIndex);
+			if (!resultSet.wasNull())
+				handle.invokeExact(bean, value);
+		}
+	}
+
+	private final static class FloatSetter extends ColumnSetter {
+
+		private FloatSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, float.class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final float value = resultSet.getFloat(columnIndex);
+			if (!resultSet.wasNull())
+				handle.invokeExact(bean, value);
+		}
+	}
+
+	private final static class ShortSetter extends ColumnSetter {
+
+		private ShortSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, short.class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final short value = resultSet.getShort(columnIndex);
+			if (!resultSet.wasNull())
+				handle.invokeExact(bean, value);
+		}
+	}
+
+	private final static class ByteSetter extends ColumnSetter {
+
+		private ByteSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, byte.class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final byte value = resultSet.getByte(columnIndex);
+			if (!resultSet.wasNull())
+				handle.invokeExact(bean, value);
+		}
+	}
+
+	private final static class BooleanSetter extends ColumnSetter {
+
+		private BooleanSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, boolean.class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final boolean value = resultSet.getBoolean(columnIndex);
+			if (!resultSet.wasNull())
+				handle.invokeExact(bean, value);
+		}
+	}
+
+	private final static class StringSetter extends ColumnSetter {
+
+		private StringSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, String.class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final String value = resultSet.getString(columnIndex);
+			if (value != null)
+				handle.invokeExact(bean, value);
+		}
+	}
+
+	private final static class BigDecimalSetter extends ColumnSetter {
+
+		private BigDecimalSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, BigDecimal.class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final BigDecimal value = resultSet.getBigDecimal(columnIndex);
+			if (value != null)
+				handle.invokeExact(bean, value);
+		}
+	}
+
+	private final static class TimestampSetter extends ColumnSetter {
+
+		private TimestampSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, Timestamp.class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final Timestamp value = resultSet.getTimestamp(columnIndex);
+			if (value != null)
+				handle.invokeExact(bean, value);
+		}
+	}
+
+	private final static class DateSetter extends ColumnSetter {
+
+		private DateSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, java.sql.Date.class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final java.sql.Date value = resultSet.getDate(columnIndex);
+			if (value != null)
+				handle.invokeExact(bean, value);
+		}
+	}
+
+	private final static class TimeSetter extends ColumnSetter {
+
+		private TimeSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, Time.class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final Time value = resultSet.getTime(columnIndex);
+			if (value != null)
+				handle.invokeExact(bean, value);
+		}
+	}
+
+	private final static class BytesSetter extends ColumnSetter {
+
+		private BytesSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, byte[].class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final byte[] value = resultSet.getBytes(columnIndex);
+			if (value != null)
+				handle.invokeExact(bean, value);
+		}
+	}
+
+	private final static class ObjectSetter extends ColumnSetter {
+
+		private ObjectSetter(final int columnIndex, final Method method) throws IllegalAccessException {
+			super(columnIndex, method, Object.class);
+		}
+
+		@Override
+		protected void apply(final Object bean, final ResultSet resultSet) throws Throwable {
+			final Object value = resultSet.getObject(columnIndex);
+			if (value != null)
+				handle.invokeExact(bean, value);
+		}
+	}
+}
@@ -0,0 +1,627 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only result stored column by column.
+ * The numeric columns are stored in primitive arrays, the character columns are dictionary-encoded, and the nulls
+ * are tracked by bitmaps. The arrays are allocated by chunks of {@link #CHUNK_SIZE} rows, there is no copy when the
+ * result grows.
+ * <pre>
+ * final ColumnarResult result = query.getColumnarResult();
+ * final ColumnarResult.LongColumn amounts = result.getColumn("amount", ColumnarResult.LongColumn.class);
+ * final long total = amounts.sum();
+ * </pre>
+ */
+public class ColumnarResult {
+
+	public final static int CHUNK_SHIFT = 12;
+	public final static int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private final static int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final List<Column> columns;
+	private final Map<String, Integer> columnMap;
+	private int rowCount;
+
+	private ColumnarResult(final ResultSetMetaData metaData) throws SQLException {
+		final int count = metaData.getColumnCount();
+		final List<Column> cols = new ArrayList<>(count);
+		columnMap = new LinkedHashMap<>();
+		for (int i = 1; i <= count; i++) {
+			final String label = metaData.getColumnLabel(i);
+			cols.add(newColumn(label, metaData.getColumnType(i)));
+			columnMap.put(label, i - 1);
+		}
+		columns = Collections.unmodifiableList(cols);
+		rowCount = 0;
+	}
+
+	private static Column newColumn(final String name, final int sqlType) {
+		switch (sqlType) {
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+			return new IntColumn(name, sqlType);
+		case Types.BIGINT:
+			return new LongColumn(name, sqlType);
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return new DoubleColumn(name, sqlType);
+		case Types.CHAR:
+		case Types.VARCHAR:
+		case Types.LONGVARCHAR:
+		case Types.NCHAR:
+		case Types.NVARCHAR:
+		case Types.LONGNVARCHAR:
+			return new StringColumn(name, sqlType);
+		default:
+			return new ObjectColumn(name, sqlType);
+		}
+	}
+
+	/**
+	 * Read the rows from the current position of the ResultSet
+	 *
+	 * @param resultSet the ResultSet to read
+	 * @param limit     the maximum number of rows to read, or -1 for no limit
+	 * @return a new ColumnarResult
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	static ColumnarResult read(final ResultSet resultSet, int limit) throws SQLException {
+		final ColumnarResult result = new ColumnarResult(resultSet.getMetaData());
+		final Column[] cols = result.columns.toArray(new Column[0]);
+		while (limit-- != 0 && resultSet.next()) {
+			for (int i = 0; i < cols.length; i++)
+				cols[i].read(resultSet, i + 1);
+			result.rowCount++;
+		}
+		return result;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public List<Column> getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @param label the label of the column
+	 * @return the position of the column (starting at 0), or -1 if there is no such column
+	 */
+	public int getColumnIndex(final String label) {
+		final Integer index = columnMap.get(label);
+		return index == null ? -1 : index;
+	}
+
+	public Column getColumn(final int columnIndex) {
+		return columns.get(columnIndex);
+	}
+
+	/**
+	 * @param label       the label of the column
+	 * @param columnClass the expected implementation of the column
+	 * @param <T>         the type of the column
+	 * @return the column, or null if there is no such column
+	 * @throws ClassCastException if the column is not stored using the expected implementation
+	 */
+	public <T extends Column> T getColumn(final String label, final Class<T> columnClass) {
+		final int index = getColumnIndex(label);
+		return index == -1 ? null : columnClass.cast(columns.get(index));
+	}
+
+	/**
+	 * @return a new cursor positioned before the first row
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * A view of the result row by row. Nothing is allocated while moving the cursor.
+	 */
+	public class Cursor {
+
+		private int row = -1;
+
+		public boolean next() {
+			if (row + 1 >= rowCount)
+				return false;
+			row++;
+			return true;
+		}
+
+		/**
+		 * @return the current row (starting at 0)
+		 */
+		public int getRow() {
+			return row;
+		}
+
+		/**
+		 * @param row the row to move to (starting at 0)
+		 */
+		public void setRow(final int row) {
+			if (row < 0 || row >= rowCount)
+				throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+			this.row = row;
+		}
+
+		public boolean isNull(final int columnIndex) {
+			return columns.get(columnIndex).isNull(row);
+		}
+
+		/**
+		 * @param columnIndex the index of an IntColumn
+		 * @return the value, or 0 if the value is null
+		 * @throws IllegalArgumentException if the column is not an IntColumn
+		 */
+		public int getInt(final int columnIndex) {
+			final Column column = columns.get(columnIndex);
+			if (column instanceof IntColumn)
+				return ((IntColumn) column).getInt(row);
+			throw wrongType(column, "IntColumn");
+		}
+
+		/**
+		 * @param columnIndex the index of an IntColumn or a LongColumn
+		 * @return the value, or 0 if the value is null
+		 * @throws IllegalArgumentException if the column is not an IntColumn or a LongColumn
+		 */
+		public long getLong(final int columnIndex) {
+			final Column column = columns.get(columnIndex);
+			if (column instanceof IntColumn)
+				return ((IntColumn) column).getInt(row);
+			if (column instanceof LongColumn)
+				return ((LongColumn) column).getLong(row);
+			throw wrongType(column, "IntColumn or LongColumn");
+		}
+
+		/**
+		 * @param columnIndex the index of a DoubleColumn, an IntColumn or a LongColumn
+		 * @return the value, or 0 if the value is null
+		 * @throws IllegalArgumentException if the column is not a numeric column
+		 */
+		public double getDouble(final int columnIndex) {
+			final Column column = columns.get(columnIndex);
+			if (column instanceof DoubleColumn)
+				return ((DoubleColumn) column).getDouble(row);
+			if (column instanceof IntColumn || column instanceof LongColumn)
+				return getLong(columnIndex);
+			throw wrongType(column, "DoubleColumn, IntColumn or LongColumn");
+		}
+
+		public String getString(final int columnIndex) {
+			final Column column = columns.get(columnIndex);
+			if (column instanceof StringColumn)
+				return ((StringColumn) column).getString(row);
+			final Object value = column.getObject(row);
+			return value == null ? null : value.toString();
+		}
+
+		public Object getObject(final int columnIndex) {
+			return columns.get(columnIndex).getObject(row);
+		}
+
+		private IllegalArgumentException wrongType(final Column column, final String expected) {
+			return new IllegalArgumentException(
+					"The column " + column.getName() + " is a " + column.getClass().getSimpleName() + ", expected: " +
+							expected);
+		}
+	}
+
+	/**
+	 * The common part of the columns: the name, the type and the null bitmaps
+	 */
+	public static abstract class Column {
+
+		private final String name;
+		private final int sqlType;
+		private final List<long[]> nulls;
+		private int nullCount;
+		protected int size;
+
+		protected Column(final String name, final int sqlType) {
+			this.name = name;
+			this.sqlType = sqlType;
+			this.nulls = new ArrayList<>();
+			this.nullCount = 0;
+			this.size = 0;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the SQL type as defined in java.sql.Types
+		 */
+		public int getSqlType() {
+			return sqlType;
+		}
+
+		public int getNullCount() {
+			return nullCount;
+		}
+
+		public boolean isNull(final int row) {
+			final long[] bitmap = nulls.get(row >>> CHUNK_SHIFT);
+			if (bitmap == null)
+				return false;
+			final int offset = row & CHUNK_MASK;
+			return (bitmap[offset >>> 6] & (1L << offset)) != 0;
+		}
+
+		/**
+		 * @return the number of allocated chunks
+		 */
+		public int getChunkCount() {
+			return nulls.size();
+		}
+
+		/**
+		 * @param chunk the number of the chunk
+		 * @return the number of rows stored in the chunk
+		 */
+		public int getChunkLength(final int chunk) {
+			return Math.min(CHUNK_SIZE, size - (chunk << CHUNK_SHIFT));
+		}
+
+		/**
+		 * @param row the row (starting at 0)
+		 * @return the value (boxed), or null
+		 */
+		public abstract Object getObject(final int row);
+
+		/**
+		 * Called when a new chunk is required
+		 */
+		protected abstract void addChunk();
+
+		protected abstract void read(final ResultSet resultSet, final int columnIndex) throws SQLException;
+
+		/**
+		 * @return the position of the next value in the current chunk
+		 */
+		protected int nextOffset() {
+			final int offset = size & CHUNK_MASK;
+			if (offset == 0) {
+				addChunk();
+				// The bitmap is only allocated when the chunk contains a null
+				nulls.add(null);
+			}
+			return offset;
+		}
+
+		protected void setNull(final int offset) {
+			final int chunk = nulls.size() - 1;
+			long[] bitmap = nulls.get(chunk);
+			if (bitmap == null) {
+				bitmap = new long[CHUNK_SIZE >>> 6];
+				nulls.set(chunk, bitmap);
+			}
+			bitmap[offset >>> 6] |= 1L << offset;
+			nullCount++;
+		}
+	}
+
+	public static class IntColumn extends Column {
+
+		private final List<int[]> chunks = new ArrayList<>();
+		private int[] current;
+
+		private IntColumn(final String name, final int sqlType) {
+			super(name, sqlType);
+		}
+
+		@Override
+		protected void addChunk() {
+			current = new int[CHUNK_SIZE];
+			chunks.add(current);
+		}
+
+		@Override
+		protected void read(final ResultSet resultSet, final int columnIndex) throws SQLException {
+			final int offset = nextOffset();
+			final int value = resultSet.getInt(columnIndex);
+			if (resultSet.wasNull())
+				setNull(offset);
+			else
+				current[offset] = value;
+			size++;
+		}
+
+		/**
+		 * @param row the row (starting at 0)
+		 * @return the value, or 0 if the value is null
+		 */
+		public int getInt(final int row) {
+			return chunks.get(row >>> CHUNK_SHIFT)[row & CHUNK_MASK];
+		}
+
+		@Override
+		public Object getObject(final int row) {
+			return isNull(row) ? null : getInt(row);
+		}
+
+		/**
+		 * @param chunk the number of the chunk
+		 * @return the backing array of the chunk, the null values are stored as 0
+		 * @see #getChunkLength(int)
+		 */
+		public int[] getChunk(final int chunk) {
+			return chunks.get(chunk);
+		}
+
+		/**
+		 * @return the sum of the values (the nulls count as 0)
+		 */
+		public long sum() {
+			long sum = 0;
+			for (int c = 0; c < chunks.size(); c++) {
+				final int[] chunk = chunks.get(c);
+				final int length = getChunkLength(c);
+				for (int i = 0; i < length; i++)
+					sum += chunk[i];
+			}
+			return sum;
+		}
+	}
+
+	public static class LongColumn extends Column {
+
+		private final List<long[]> chunks = new ArrayList<>();
+		private long[] current;
+
+		private LongColumn(final String name, final int sqlType) {
+			super(name, sqlType);
+		}
+
+		@Override
+		protected void addChunk() {
+			current = new long[CHUNK_SIZE];
+			chunks.add(current);
+		}
+
+		@Override
+		protected void read(final ResultSet resultSet, final int columnIndex) throws SQLException {
+			final int offset = nextOffset();
+			final long value = resultSet.getLong(columnIndex);
+			if (resultSet.wasNull())
+				setNull(offset);
+			else
+				current[offset] = value;
+			size++;
+		}
+
+		/**
+		 * @param row the row (starting at 0)
+		 * @return the value, or 0 if the value is null
+		 */
+		public long getLong(final int row) {
+			return chunks.get(row >>> CHUNK_SHIFT)[row & CHUNK_MASK];
+		}
+
+		@Override
+		public Object getObject(final int row) {
+			return isNull(row) ? null : getLong(row);
+		}
+
+		/**
+		 * @param chunk the number of the chunk
+		 * @return the backing array of the chunk, the null values are stored as 0
+		 * @see #getChunkLength(int)
+		 */
+		public long[] getChunk(final int chunk) {
+			return chunks.get(chunk);
+		}
+
+		/**
+		 * @return the sum of the values (the nulls count as 0)
+		 */
+		public long sum() {
+			long sum = 0;
+			for (int c = 0; c < chunks.size(); c++) {
+				final long[] chunk = chunks.get(c);
+				final int length = getChunkLength(c);
+				for (int i = 0; i < length; i++)
+					sum += chunk[i];
+			}
+			return sum;
+		}
+	}
+
+	public static class DoubleColumn extends Column {
+
+		private final List<double[]> chunks = new ArrayList<>();
+		private double[] current;
+
+		private DoubleColumn(final String name, final int sqlType) {
+			super(name, sqlType);
+		}
+
+		@Override
+		protected void addChunk() {
+			current = new double[CHUNK_SIZE];
+			chunks.add(current);
+		}
+
+		@Override
+		protected void read(final ResultSet resultSet, final int columnIndex) throws SQLException {
+			final int offset = nextOffset();
+			final double value = resultSet.getDouble(columnIndex);
+			if (resultSet.wasNull())
+				setNull(offset);
+			else
+				current[offset] = value;
+			size++;
+		}
+
+		/**
+		 * @param row the row (starting at 0)
+		 * @return the value, or 0 if the value is null
+		 */
+		public double getDouble(final int row) {
+			return chunks.get(row >>> CHUNK_SHIFT)[row & CHUNK_MASK];
+		}
+
+		@Override
+		public Object getObject(final int row) {
+			return isNull(row) ? null : getDouble(row);
+		}
+
+		/**
+		 * @param chunk the number of the chunk
+		 * @return the backing array of the chunk, the null values are stored as 0
+		 * @see #getChunkLength(int)
+		 */
+		public double[] getChunk(final int chunk) {
+			return chunks.get(chunk);
+		}
+
+		/**
+		 * @return the sum of the values (the nulls count as 0)
+		 */
+		public double sum() {
+			double sum = 0;
+			for (int c = 0; c < chunks.size(); c++) {
+				final double[] chunk = chunks.get(c);
+				final int length = getChunkLength(c);
+				for (int i = 0; i < length; i++)
+					sum += chunk[i];
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * A dictionary-encoded column: each distinct value is stored once, the rows store the code of the value.
+	 */
+	public static class StringColumn extends Column {
+
+		private final List<int[]> chunks = new ArrayList<>();
+		private final List<String> dictionary = new ArrayList<>();
+		private final Map<String, Integer> codes = new HashMap<>();
+		private int[] current;
+
+		private StringColumn(final String name, final int sqlType) {
+			super(name, sqlType);
+		}
+
+		@Override
+		protected void addChunk() {
+			current = new int[CHUNK_SIZE];
+			chunks.add(current);
+		}
+
+		@Override
+		protected void read(final ResultSet resultSet, final int columnIndex) throws SQLException {
+			final int offset = nextOffset();
+			final String value = resultSet.getString(columnIndex);
+			if (value == null) {
+				setNull(offset);
+				current[offset] = -1;
+			} else
+				current[offset] = codes.computeIfAbsent(value, v -> {
+					dictionary.add(v);
+					return dictionary.size() - 1;
+				});
+			size++;
+		}
+
+		/**
+		 * @param row the row (starting at 0)
+		 * @return the position of the value in the dictionary, or -1 if the value is null
+		 */
+		public int getCode(final int row) {
+			return chunks.get(row >>> CHUNK_SHIFT)[row & CHUNK_MASK];
+		}
+
+		public String getString(final int row) {
+			final int code = getCode(row);
+			return code == -1 ? null : dictionary.get(code);
+		}
+
+		@Override
+		public Object getObject(final int row) {
+			return getString(row);
+		}
+
+		/**
+		 * @return the distinct values, in order of appearance
+		 */
+		public List<String> getDictionary() {
+			return Collections.unmodifiableList(dictionary);
+		}
+
+		/**
+		 * @param chunk the number of the chunk
+		 * @return the codes of the chunk
+		 * @see #getChunkLength(int)
+		 */
+		public int[] getChunk(final int chunk) {
+			return chunks.get(chunk);
+		}
+	}
+
+	/**
+	 * The column used for the other types (decimal, date, binary, ...)
+	 */
+	public static class ObjectColumn extends Column {
+
+		private final List<Object[]> chunks = new ArrayList<>();
+		private Object[] current;
+
+		private ObjectColumn(final String name, final int sqlType) {
+			super(name, sqlType);
+		}
+
+		@Override
+		protected void addChunk() {
+			current = new Object[CHUNK_SIZE];
+			chunks.add(current);
+		}
+
+		@Override
+		protected void read(final ResultSet resultSet, final int columnIndex) throws SQLException {
+			final int offset = nextOffset();
+			final Object value = resultSet.getObject(columnIndex);
+			if (value == null)
+				setNull(offset);
+			else
+				current[offset] = value;
+			size++;
+		}
+
+		@Override
+		public Object getObject(final int row) {
+			return chunks.get(row >>> CHUNK_SHIFT)[row & CHUNK_MASK];
+		}
+	}
+}
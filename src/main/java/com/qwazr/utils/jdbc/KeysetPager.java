@@ -0,0 +1,322 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Keyset (seek) pagination. Instead of skipping the rows of the previous pages, the next page starts after the key
+ * of the last row already read:
+ * <pre>
+ * SELECT * FROM (base query) keyset_base
+ * WHERE (created &gt; ?) OR (created = ? AND id &gt; ?)
+ * ORDER BY created, id
+ * </pre>
+ * The ordering columns should form a unique key, and should be labels of the columns returned by the base query.
+ * <pre>
+ * final KeysetPager pager = KeysetPager.of("SELECT id, created, name FROM items WHERE status = ?")
+ * 		.asc("created")
+ * 		.asc("id")
+ * 		.pageSize(100)
+ * 		.build();
+ * KeysetPager.Page page = pager.getPage(transaction, null, "open");
+ * while (page.hasMore())
+ * 		page = pager.getPage(transaction, page.lastKey, "open");
+ * </pre>
+ */
+public class KeysetPager {
+
+	private final String baseSql;
+	private final List<String> columns;
+	private final boolean[] descending;
+	private final int pageSize;
+	private final String firstPageSql;
+	private final String nextPageSql;
+
+	private KeysetPager(final Builder builder) {
+		this.baseSql = builder.sql;
+		this.columns = Collections.unmodifiableList(new ArrayList<>(builder.columns));
+		this.descending = new boolean[columns.size()];
+		for (int i = 0; i < descending.length; i++)
+			descending[i] = builder.descending.get(i);
+		this.pageSize = builder.pageSize;
+
+		final StringBuilder orderBy = new StringBuilder(" ORDER BY ");
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0)
+				orderBy.append(", ");
+			orderBy.append(columns.get(i));
+			if (descending[i])
+				orderBy.append(" DESC");
+		}
+		final String select = "SELECT * FROM (" + baseSql + ") keyset_base";
+		this.firstPageSql = select + orderBy;
+
+		// (c1 > ?) OR (c1 = ? AND c2 > ?) OR ...
+		final StringBuilder where = new StringBuilder(" WHERE ");
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0)
+				where.append(" OR ");
+			where.append('(');
+			for (int j = 0; j < i; j++)
+				where.append(columns.get(j)).append(" = ? AND ");
+			where.append(columns.get(i)).append(descending[i] ? " < ?" : " > ?");
+			where.append(')');
+		}
+		this.nextPageSql = select + where + orderBy;
+	}
+
+	/**
+	 * @param lastKey the key of the last row of the previous page, or null for the first page
+	 * @return the SQL statement of the page
+	 */
+	public String getSql(final Object[] lastKey) {
+		return lastKey == null ? firstPageSql : nextPageSql;
+	}
+
+	/**
+	 * Prepare the query of a page and bind its parameters
+	 *
+	 * @param transaction the current transaction
+	 * @param lastKey     the key of the last row of the previous page, or null for the first page
+	 * @param parameters  the parameters of the base query
+	 * @return a new Query
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	public Query prepare(final Transaction transaction, final Object[] lastKey, final Object... parameters)
+			throws SQLException {
+		if (lastKey != null && lastKey.length != columns.size())
+			throw new IllegalArgumentException(
+					"The key should have " + columns.size() + " values, not " + lastKey.length);
+		final Query query = transaction.prepare(getSql(lastKey));
+		final PreparedStatement statement = query.getStatement();
+		int index = 0;
+		for (final Object parameter : parameters)
+			statement.setObject(++index, parameter);
+		if (lastKey != null)
+			for (int i = 0; i < columns.size(); i++)
+				for (int j = 0; j <= i; j++)
+					statement.setObject(++index, lastKey[j]);
+		query.setMaxResults(pageSize);
+		statement.setMaxRows(pageSize);
+		return query;
+	}
+
+	/**
+	 * Read one page
+	 *
+	 * @param transaction the current transaction
+	 * @param lastKey     the key of the last row of the previous page, or null for the first page
+	 * @param parameters  the parameters of the base query
+	 * @return the rows of the page and the key of its last row
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	public Page getPage(final Transaction transaction, final Object[] lastKey, final Object... parameters)
+			throws SQLException {
+		try (final Query query = prepare(transaction, lastKey, parameters)) {
+			final List<Row> rows = query.getResultList();
+			try {
+				query.getStatement().setMaxRows(0);
+			} catch (SQLException e) {
+				Query.logger.warning(e.getMessage());
+			}
+			return new Page(rows, rows.isEmpty() ? lastKey : getKey(rows.get(rows.size() - 1)),
+					rows.size() == pageSize);
+		}
+	}
+
+	/**
+	 * Iterate over all the pages. The pages are read when the stream is consumed.
+	 *
+	 * @param transaction the current transaction
+	 * @param parameters  the parameters of the base query
+	 * @return a sequential stream of rows
+	 */
+	public Stream<Row> stream(final Transaction transaction, final Object... parameters) {
+		return StreamSupport.stream(new Spliterators.AbstractSpliterator<Row>(Long.MAX_VALUE,
+				Spliterator.ORDERED | Spliterator.NONNULL) {
+
+			private Page page;
+			private Iterator<Row> iterator = Collections.emptyIterator();
+
+			@Override
+			public boolean tryAdvance(final Consumer<? super Row> action) {
+				if (!iterator.hasNext()) {
+					if (page != null && !page.hasMore())
+						return false;
+					try {
+						page = getPage(transaction, page == null ? null : page.lastKey, parameters);
+					} catch (SQLException e) {
+						throw new RuntimeException(e);
+					}
+					iterator = page.rows.iterator();
+					if (!iterator.hasNext())
+						return false;
+				}
+				action.accept(iterator.next());
+				return true;
+			}
+		}, false);
+	}
+
+	/**
+	 * Extract the values of the ordering columns
+	 *
+	 * @param row a row returned by the pager
+	 * @return the key of the row
+	 */
+	public Object[] getKey(final Row row) {
+		final Object[] key = new Object[columns.size()];
+		for (int i = 0; i < key.length; i++)
+			key[i] = row.columns[findColumn(row, columns.get(i))];
+		return key;
+	}
+
+	private static int findColumn(final Row row, final String label) {
+		final Integer index = row.columnMap.get(label);
+		if (index != null)
+			return index;
+		// Most databases change the case of the unquoted identifiers
+		for (final Map.Entry<String, Integer> entry : row.columnMap.entrySet())
+			if (entry.getKey().equalsIgnoreCase(label))
+				return entry.getValue();
+		throw new IllegalArgumentException("The column " + label + " is not returned by the query");
+	}
+
+	/**
+	 * Count the rows of a query without reading them: SELECT COUNT(*) FROM (sql).
+	 * Contrary to Query.getResultCount, it does not require a scrollable ResultSet.
+	 *
+	 * @param transaction the current transaction
+	 * @param sql         the query to count
+	 * @param parameters  the parameters of the query
+	 * @return the number of rows
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	public static long count(final Transaction transaction, final String sql, final Object... parameters)
+			throws SQLException {
+		try (final Query query = transaction.prepare("SELECT COUNT(*) FROM (" + sql + ") count_base")) {
+			final PreparedStatement statement = query.getStatement();
+			for (int i = 0; i < parameters.length; i++)
+				statement.setObject(i + 1, parameters[i]);
+			final Row row = query.getFirstResult();
+			return row == null ? 0 : ((Number) row.get(0)).longValue();
+		}
+	}
+
+	/**
+	 * Count the rows of the base query
+	 *
+	 * @param transaction the current transaction
+	 * @param parameters  the parameters of the base query
+	 * @return the number of rows
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	public long getTotalCount(final Transaction transaction, final Object... parameters) throws SQLException {
+		return count(transaction, baseSql, parameters);
+	}
+
+	public static class Page {
+
+		final public List<Row> rows;
+
+		/**
+		 * The key of the last row, to pass to the next call of getPage
+		 */
+		final public Object[] lastKey;
+
+		private final boolean hasMore;
+
+		private Page(final List<Row> rows, final Object[] lastKey, final boolean hasMore) {
+			this.rows = rows;
+			this.lastKey = lastKey;
+			this.hasMore = hasMore;
+		}
+
+		/**
+		 * @return false if the page is not full, which means the end has been reached
+		 */
+		public boolean hasMore() {
+			return hasMore;
+		}
+	}
+
+	public static Builder of(final String sql) {
+		return new Builder(sql);
+	}
+
+	public static class Builder {
+
+		private final String sql;
+		private final List<String> columns;
+		private final List<Boolean> descending;
+		private int pageSize = 100;
+
+		private Builder(final String sql) {
+			this.sql = Objects.requireNonNull(sql, "The SQL query is missing");
+			this.columns = new ArrayList<>();
+			this.descending = new ArrayList<>();
+		}
+
+		/**
+		 * @param column     an ordering column
+		 * @param descending true for a descending order
+		 * @return the current builder
+		 */
+		public Builder orderBy(final String column, final boolean descending) {
+			this.columns.add(Objects.requireNonNull(column, "The column is missing"));
+			this.descending.add(descending);
+			return this;
+		}
+
+		public Builder asc(final String column) {
+			return orderBy(column, false);
+		}
+
+		public Builder desc(final String column) {
+			return orderBy(column, true);
+		}
+
+		/**
+		 * @param pageSize the maximum number of rows of a page
+		 * @return the current builder
+		 */
+		public Builder pageSize(final int pageSize) {
+			if (pageSize < 1)
+				throw new IllegalArgumentException("The page size should be greater than zero");
+			this.pageSize = pageSize;
+			return this;
+		}
+
+		public KeysetPager build() {
+			if (columns.isEmpty())
+				throw new IllegalArgumentException("At least one ordering column is required");
+			return new KeysetPager(this);
+		}
+	}
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.qwazr.utils.jdbc.connection.ConnectionManager;
+
+import java.math.BigInteger;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Read a large query using several connections in parallel.
+ * The query is split into partitions, either by ranges of a numeric column, or by the modulo of a numeric column.
+ * Each partition is read by its own transaction, and the rows are merged into one stream.
+ * <pre>
+ * try (final Stream&lt;Row&gt; rows = ParallelScanner.of(connectionManager, "SELECT * FROM items")
+ * 		.ranges("id", 8)
+ * 		.parallelism(4)
+ * 		.build()
+ * 		.stream()) {
+ * 		rows.forEach(exporter::write);
+ * }
+ * </pre>
+ * In ordered mode, the partitions are returned one after the other, in partition order. With range partitioning,
+ * the output is therefore sorted by the partition column (the rows with a NULL column are read by the last
+ * partition, where the database sorts them). In unordered mode, the rows are returned as soon as they
+ * are read.
+ */
+public class ParallelScanner {
+
+	private final static Object END = new Object();
+
+	private final ConnectionManager connectionManager;
+	private final String sql;
+	private final Object[] parameters;
+	private final String column;
+	private final int partitions;
+	private final boolean hash;
+	private final Long minValue;
+	private final Long maxValue;
+	private final int parallelism;
+	private final boolean ordered;
+	private final int bufferSize;
+	private final Integer fetchSize;
+
+	private ParallelScanner(final Builder builder) {
+		this.connectionManager = builder.connectionManager;
+		this.sql = builder.sql;
+		this.parameters = builder.parameters;
+		this.column = builder.column;
+		this.partitions = builder.partitions;
+		this.hash = builder.hash;
+		this.minValue = builder.minValue;
+		this.maxValue = builder.maxValue;
+		this.parallelism = builder.parallelism;
+		this.ordered = builder.ordered;
+		this.bufferSize = builder.bufferSize;
+		this.fetchSize = builder.fetchSize;
+	}
+
+	/**
+	 * Compute the partitions. Without explicit bounds, the range partitioning reads the minimum and the maximum
+	 * values of the column. The rows with a NULL partition column are read by the first partition (hash) or by the
+	 * last partition (ranges).
+	 *
+	 * @return the list of the partitions
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	List<Partition> getPartitions() throws SQLException {
+		final String base = "SELECT * FROM (" + sql + ") scan_base WHERE ";
+		final List<Partition> list = new ArrayList<>(partitions);
+		if (hash) {
+			// SQL MOD keeps the sign of the dividend: the negative values are moved to the [0, partitions) range
+			final String modulo = "MOD(MOD(" + column + ", " + partitions + ") + " + partitions + ", " + partitions + ")";
+			for (int i = 0; i < partitions; i++)
+				list.add(new Partition(i, i == 0 ?
+						base + "(" + modulo + " = ? OR " + column + " IS NULL)" :
+						base + modulo + " = ?", i));
+			return list;
+		}
+		final String isNull = " OR " + column + " IS NULL";
+		long min;
+		long max;
+		if (minValue != null && maxValue != null) {
+			min = minValue;
+			max = maxValue;
+		} else {
+			try (final Transaction transaction = connectionManager.getNewTransaction()) {
+				final Query query = transaction.prepare(
+						"SELECT MIN(" + column + "), MAX(" + column + ") FROM (" + sql + ") scan_base");
+				bind(query.getStatement(), parameters);
+				final Row row = query.getFirstResult();
+				if (row == null)
+					return Collections.emptyList();
+				if (row.get(0) == null) {
+					// Every value of the column is NULL
+					list.add(new Partition(0, base + column + " IS NULL"));
+					return list;
+				}
+				min = minValue != null ? minValue : ((Number) row.get(0)).longValue();
+				max = maxValue != null ? maxValue : ((Number) row.get(1)).longValue();
+			}
+		}
+		final String orderBy = ordered ? " ORDER BY " + column : "";
+		// The range of the keys may be wider than Long.MAX_VALUE: the bounds are computed without overflow
+		final BigInteger lowest = BigInteger.valueOf(min);
+		final BigInteger highest = BigInteger.valueOf(max);
+		final BigInteger step =
+				highest.subtract(lowest).divide(BigInteger.valueOf(partitions)).add(BigInteger.ONE).max(BigInteger.ONE);
+		for (int i = 0; i < partitions; i++) {
+			final BigInteger low = lowest.add(step.multiply(BigInteger.valueOf(i)));
+			if (low.compareTo(highest) > 0)
+				break;
+			final BigInteger high = low.add(step);
+			if (i == partitions - 1 || high.compareTo(highest) > 0) {
+				// Without an explicit maximum, the last partition is open to collect the rows inserted meanwhile
+				if (maxValue == null)
+					list.add(new Partition(i, base + "(" + column + " >= ?" + isNull + ")" + orderBy, low.longValue()));
+				else
+					list.add(new Partition(i,
+							base + "(" + column + " >= ? AND " + column + " <= ?" + isNull + ")" + orderBy,
+							low.longValue(), max));
+				break;
+			}
+			list.add(new Partition(i, base + column + " >= ? AND " + column + " < ?" + orderBy, low.longValue(),
+					high.longValue()));
+		}
+		return list;
+	}
+
+	private static void bind(final PreparedStatement statement, final Object[] values) throws SQLException {
+		int index = 0;
+		for (final Object value : values)
+			statement.setObject(++index, value);
+	}
+
+	/**
+	 * Start the scan. The stream should be closed to release the connections and the threads if it is not fully
+	 * consumed.
+	 *
+	 * @return a sequential stream of rows
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	public Stream<Row> stream() throws SQLException {
+		final Scan scan = new Scan(getPartitions());
+		return StreamSupport.stream(scan, false).onClose(scan::close);
+	}
+
+	/**
+	 * Scan the query and call the consumer for each row, from the calling thread
+	 *
+	 * @param consumer the consumer of the rows
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	public void forEach(final Consumer<Row> consumer) throws SQLException {
+		try (final Stream<Row> stream = stream()) {
+			stream.forEach(consumer);
+		}
+	}
+
+	static final class Partition {
+
+		final int number;
+		final String sql;
+		final Object[] bounds;
+
+		private Partition(final int number, final String sql, final Object... bounds) {
+			this.number = number;
+			this.sql = sql;
+			this.bounds = bounds;
+		}
+	}
+
+	private final class Scan extends Spliterators.AbstractSpliterator<Row> implements AutoCloseable {
+
+		private final ExecutorService executor;
+		private final List<BlockingQueue<Object>> queues;
+		private int remaining;
+		private int current;
+		private volatile boolean closed;
+
+		private Scan(final List<Partition> partitionList) {
+			super(Long.MAX_VALUE, Spliterator.NONNULL | (ordered ? Spliterator.ORDERED : 0));
+			this.remaining = partitionList.size();
+			this.current = 0;
+			this.queues = new ArrayList<>(partitionList.size());
+			if (ordered)
+				partitionList.forEach(p -> queues.add(new ArrayBlockingQueue<>(bufferSize)));
+			else
+				queues.add(new ArrayBlockingQueue<>(bufferSize));
+			this.executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, partitionList.size())),
+					runnable -> {
+						final Thread thread = new Thread(runnable, "ParallelScanner");
+						thread.setDaemon(true);
+						return thread;
+					});
+			for (final Partition partition : partitionList)
+				executor.execute(() -> read(partition, queues.get(ordered ? partition.number : 0)));
+			executor.shutdown();
+		}
+
+		private void put(final BlockingQueue<Object> queue, final Object item) throws InterruptedException {
+			while (!closed)
+				if (queue.offer(item, 100, TimeUnit.MILLISECONDS))
+					return;
+		}
+
+		private void read(final Partition partition, final BlockingQueue<Object> queue) {
+			Object end = END;
+			try (final Transaction transaction = connectionManager.getNewTransaction()) {
+				final Query query = transaction.prepare(partition.sql);
+				query.setFetchSize(fetchSize);
+				final PreparedStatement statement = query.getStatement();
+				bind(statement, parameters);
+				int index = parameters.length;
+				for (final Object bound : partition.bounds)
+					statement.setObject(++index, bound);
+				try (final Stream<Row> rows = query.stream()) {
+					for (final Row row : (Iterable<Row>) rows::iterator) {
+						if (closed)
+							break;
+						put(queue, row);
+					}
+				}
+			} catch (Exception e) {
+				end = e;
+			}
+			try {
+				put(queue, end);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public boolean tryAdvance(final Consumer<? super Row> action) {
+			while (remaining > 0) {
+				final Object item;
+				try {
+					item = queues.get(current).take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					close();
+					throw new RuntimeException(e);
+				}
+				if (item instanceof Row) {
+					action.accept((Row) item);
+					return true;
+				}
+				remaining--;
+				if (ordered)
+					current++;
+				if (item != END) {
+					close();
+					final Exception e = (Exception) item;
+					throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			executor.shutdownNow();
+		}
+	}
+
+	public static Builder of(final ConnectionManager connectionManager, final String sql, final Object... parameters) {
+		return new Builder(connectionManager, sql, parameters);
+	}
+
+	public static class Builder {
+
+		private final ConnectionManager connectionManager;
+		private final String sql;
+		private final Object[] parameters;
+		private String column;
+		private int partitions;
+		private boolean hash;
+		private Long minValue;
+		private Long maxValue;
+		private int parallelism = Runtime.getRuntime().availableProcessors();
+		private boolean ordered = false;
+		private int bufferSize = 1000;
+		private Integer fetchSize = 1000;
+
+		private Builder(final ConnectionManager connectionManager, final String sql, final Object... parameters) {
+			this.connectionManager = Objects.requireNonNull(connectionManager, "The connection manager is missing");
+			this.sql = Objects.requireNonNull(sql, "The SQL query is missing");
+			this.parameters = parameters == null ? new Object[0] : parameters;
+		}
+
+		/**
+		 * Split the query by ranges of a numeric column (typically the primary key)
+		 *
+		 * @param column     the numeric column
+		 * @param partitions the number of partitions
+		 * @return the current builder
+		 */
+		public Builder ranges(final String column, final int partitions) {
+			return partition(column, partitions, false);
+		}
+
+		/**
+		 * Split the query by ranges of a numeric column, using known bounds.
+		 * The rows outside the bounds are not returned, except the rows with a NULL column.
+		 *
+		 * @param column     the numeric column
+		 * @param partitions the number of partitions
+		 * @param minValue   the minimum value of the column
+		 * @param maxValue   the maximum value of the column
+		 * @return the current builder
+		 */
+		public Builder ranges(final String column, final int partitions, final long minValue, final long maxValue) {
+			this.minValue = minValue;
+			this.maxValue = maxValue;
+			return partition(column, partitions, false);
+		}
+
+		/**
+		 * Split the query using the non-negative modulo of a numeric column: MOD(MOD(column, partitions) + partitions,
+		 * partitions)
+		 *
+		 * @param column     the numeric column
+		 * @param partitions the number of partitions
+		 * @return the current builder
+		 */
+		public Builder hash(final String column, final int partitions) {
+			return partition(column, partitions, true);
+		}
+
+		private Builder partition(final String column, final int partitions, final boolean hash) {
+			if (partitions < 1)
+				throw new IllegalArgumentException("The number of partitions should be greater than zero");
+			this.column = Objects.requireNonNull(column, "The column is missing");
+			this.partitions = partitions;
+			this.hash = hash;
+			return this;
+		}
+
+		/**
+		 * @param parallelism the maximum number of partitions read at the same time
+		 * @return the current builder
+		 */
+		public Builder parallelism(final int parallelism) {
+			this.parallelism = parallelism;
+			return this;
+		}
+
+		/**
+		 * @param ordered true to return the partitions in order
+		 * @return the current builder
+		 */
+		public Builder ordered(final boolean ordered) {
+			this.ordered = ordered;
+			return this;
+		}
+
+		/**
+		 * @param bufferSize the number of rows buffered per partition (ordered) or for all partitions (unordered)
+		 * @return the current builder
+		 */
+		public Builder bufferSize(final int bufferSize) {
+			this.bufferSize = bufferSize;
+			return this;
+		}
+
+		/**
+		 * @param fetchSize the fetch size of each partition query
+		 * @return the current builder
+		 */
+		public Builder fetchSize(final Integer fetchSize) {
+			this.fetchSize = fetchSize;
+			return this;
+		}
+
+		public ParallelScanner build() {
+			if (column == null)
+				throw new IllegalArgumentException("The partitioning is missing: call ranges or hash");
+			return new ParallelScanner(this);
+		}
+	}
+}
@@ -15,20 +15,20 @@
  */
 package com.qwazr.utils.jdbc;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.qwazr.utils.jdbc.connection.ConnectionManager;
 
-import java.beans.BeanInfo;
-import java.beans.Beans;
-import java.beans.Introspector;
-import java.beans.PropertyDescriptor;
-import java.lang.reflect.Method;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.*;
-import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Represents an SQL query. In JDBC view, a query contains at least a
@@ -61,18 +61,33 @@ import java.util.logging.Logger;
  * }
  * </pre>
  */
-public class Query {
+public class Query implements AutoCloseable {
 
     private ResultSet resultSet;
     private HashMap<Class<?>, List<?>> resultListMap;
     private PreparedStatement statement;
+    private final StatementCache statementCache;
+    private final StatementCache.Key statementKey;
+    private boolean closed;
+    private final QueryProfiler.Probe probe;
+    Transaction transaction;
+    String[] updatedTables;
     private int firstResult;
     private int maxResults;
+    private Integer fetchSize;
 
     final static protected Logger logger = Logger.getLogger(Query.class.getCanonicalName());
 
     protected Query(PreparedStatement statement) {
+        this(statement, null, null, null);
+    }
+
+    Query(PreparedStatement statement, StatementCache statementCache, StatementCache.Key statementKey,
+          QueryProfiler.Probe probe) {
         this.statement = statement;
+        this.statementCache = statementCache;
+        this.statementKey = statementKey;
+        this.probe = probe;
         firstResult = 0;
         maxResults = -1;
         resultListMap = new HashMap<Class<?>, List<?>>();
@@ -93,72 +108,74 @@ public class Query {
     }
 
     /**
-     * Close all component of that query (ResultSet and Statement)
+     * Set the number of rows fetched from the database in one round-trip.
+     * If not set, the maxResults parameter is used as fetch size.
+     *
+     * @param fetchSize the number of rows to fetch per round-trip (a hint for the JDBC driver)
      */
-    protected void closeAll() {
-        ConnectionManager.close(resultSet, statement, null);
+    public void setFetchSize(Integer fetchSize) {
+        this.fetchSize = fetchSize;
     }
 
-    private static class MethodColumnIndex {
-        private int columnIndex;
-        private Method method;
-
-        private MethodColumnIndex(int columnIndex, Method method) {
-            this.columnIndex = columnIndex;
-            this.method = method;
+    /**
+     * Close all component of that query (ResultSet and Statement).
+     * A statement which comes from a StatementCache is given back to the cache.
+     */
+    protected void closeAll() {
+        if (closed)
+            return;
+        closed = true;
+        if (probe != null)
+            probe.endFetch(statement);
+        if (statementCache == null) {
+            ConnectionManager.close(resultSet, statement, null);
+            return;
         }
+        ConnectionManager.close(resultSet, null, null);
+        resultSet = null;
+        resultListMap.clear();
+        statementCache.release(statementKey, statement);
+    }
 
-        private void invoke(Object bean, ResultSet resultSet) throws Exception {
-            if (method == null)
-                throw new Exception("No method found for column " + columnIndex);
-            final Object colObject = resultSet.getObject(columnIndex);
-            try {
-                if (colObject != null)
-                    method.invoke(bean, colObject);
-            } catch (Exception e) {
-                throw new Exception("Error on column " + columnIndex + " method " + method.getName() +
-                        " object class is " + colObject.getClass().getName(), e);
-            }
-        }
+    /**
+     * Close the query before the end of the transaction.
+     * When the transaction has a StatementCache, the statement can then be reused by the next Query with the same SQL.
+     */
+    @Override
+    public void close() {
+        if (transaction != null)
+            transaction.closeQuery(this);
+        else
+            closeAll();
     }
 
     private <T> List<T> createBeanList(Class<T> beanClass) throws Exception {
-        // Find related methods and columns
-        ResultSetMetaData rs = resultSet.getMetaData();
-        int columnCount = rs.getColumnCount();
-        BeanInfo beanInfo;
-        beanInfo = Introspector.getBeanInfo(beanClass);
-        PropertyDescriptor[] props = beanInfo.getPropertyDescriptors();
-        ArrayList<MethodColumnIndex> methods = new ArrayList<MethodColumnIndex>();
-
-        if (logger.isLoggable(Level.FINEST))
-            logger.finest("Search properties for bean " + beanClass.getSimpleName());
-        for (int i = 1; i <= columnCount; i++) {
-            String columnName = rs.getColumnLabel(i);
-            for (PropertyDescriptor propDesc : props) {
-                if (propDesc.getWriteMethod() != null && propDesc.getName().equalsIgnoreCase(columnName)) {
-                    methods.add(new MethodColumnIndex(i, propDesc.getWriteMethod()));
-                    if (logger.isLoggable(Level.FINEST))
-                        logger.finest(
-                                "Found property \"" + propDesc.getName() + "\" for column name \"" + columnName + "\"");
-                    break;
-                }
-            }
-        }
+        final long start = System.nanoTime();
+        final BeanMapper<T> mapper = BeanMapper.of(beanClass, resultSet.getMetaData());
         // Create bean list
         List<T> list = new ArrayList<T>();
         moveToFirstResult();
         int limit = maxResults;
-        while (resultSet.next() && limit-- != 0) {
-            @SuppressWarnings("unchecked") T bean =
-                    (T) Beans.instantiate(beanClass.getClassLoader(), beanClass.getCanonicalName());
-            for (MethodColumnIndex methodColumnIndex : methods)
-                methodColumnIndex.invoke(bean, resultSet);
-            list.add(bean);
-        }
+        while (resultSet.next() && limit-- != 0)
+            list.add(mapper.map(resultSet));
+        fetched(start, list.size());
         return list;
     }
 
+    /**
+     * Report the rows read by a method which consumes the ResultSet at once
+     */
+    private void fetched(long start, long rows) {
+        if (probe == null)
+            return;
+        probe.fetched(System.nanoTime() - start, rows);
+        probe.endFetch(statement);
+    }
+
+    /**
+     * Skip the rows before firstResult. On a forward-only ResultSet the skipped rows are transferred, prefer
+     * {@link KeysetPager} for deep pages.
+     */
     private void moveToFirstResult() throws SQLException {
         if (firstResult == 0)
             return;
@@ -196,8 +213,10 @@ public class Query {
     }
 
     private List<Row> createRowList(int limit) throws SQLException {
+        final long start = System.nanoTime();
         moveToFirstResult();
         List<Row> rows = createRowList(resultSet, limit);
+        fetched(start, rows.size());
         return rows;
     }
 
@@ -223,6 +242,8 @@ public class Query {
      * Release the last ResultSet (if any) and the last ResultList.
      */
     public void reUse() {
+        if (probe != null)
+            probe.endFetch(statement);
         if (resultSet != null) {
             ConnectionManager.close(resultSet, null, null);
             resultSet = null;
@@ -233,9 +254,22 @@ public class Query {
     private void checkResultSet() throws SQLException {
         if (resultSet != null)
             return;
-        if (maxResults != -1)
+        if (fetchSize != null)
+            statement.setFetchSize(fetchSize);
+        else if (maxResults != -1)
             statement.setFetchSize(maxResults);
-        resultSet = statement.executeQuery();
+        if (probe == null) {
+            resultSet = statement.executeQuery();
+            return;
+        }
+        final long start = probe.start();
+        try {
+            resultSet = statement.executeQuery();
+        } catch (SQLException | RuntimeException e) {
+            probe.failed();
+            throw e;
+        }
+        probe.executed(start, statement, -1);
     }
 
     public <T> T getFirstResult(Class<T> beanClass) throws Exception {
@@ -273,6 +307,123 @@ public class Query {
         return createRowList(maxResults);
     }
 
+    /**
+     * Returns a lazily fetched stream of Row. The rows are not kept in memory.
+     * The stream should be closed to release the ResultSet.
+     * <pre>
+     * try (final Stream&lt;Row&gt; rows = query.stream(false)) {
+     *   rows.forEach(row -&gt; ...);
+     * }
+     * </pre>
+     *
+     * @param reuseRow if true, the same Row instance is filled for every row.
+     *                 The Row is then only valid until the next element is consumed
+     *                 (it must not be collected or kept).
+     * @return a sequential stream of Row
+     * @throws SQLException if any JDBC error occurs
+     */
+    public Stream<Row> stream(boolean reuseRow) throws SQLException {
+        checkResultSet();
+        moveToFirstResult();
+        final LinkedHashMap<String, Integer> columnMap = buildColumnMap(resultSet);
+        final ResultSetSpliterator.Mapper<Row> mapper;
+        if (reuseRow) {
+            final Row row = new Row(columnMap);
+            mapper = row::read;
+        } else
+            mapper = rs -> new Row(columnMap, rs);
+        return StreamSupport.stream(new ResultSetSpliterator<>(resultSet, maxResults, mapper, probe), false)
+                .onClose(this::reUse);
+    }
+
+    /**
+     * Returns a lazily fetched stream of new Row instances.
+     *
+     * @return a sequential stream of Row
+     * @throws SQLException if any JDBC error occurs
+     * @see #stream(boolean)
+     */
+    public Stream<Row> stream() throws SQLException {
+        return stream(false);
+    }
+
+    /**
+     * Returns a lazily fetched stream of POJO. Contrary to getResultList, the objects are not cached.
+     * The stream should be closed to release the ResultSet.
+     *
+     * @param beanClass The class name of POJO returned in the stream
+     * @param <T>       the type of the returned object
+     * @return a sequential stream of POJO
+     * @throws Exception if any JDBC or reflection error occurs
+     */
+    public <T> Stream<T> stream(Class<T> beanClass) throws Exception {
+        checkResultSet();
+        final BeanMapper<T> mapper = BeanMapper.of(beanClass, resultSet.getMetaData());
+        moveToFirstResult();
+        return StreamSupport.stream(new ResultSetSpliterator<>(resultSet, maxResults, mapper::map, probe), false)
+                .onClose(this::reUse);
+    }
+
+    /**
+     * Read the result column by column into primitive arrays. Contrary to getResultList, no object is created per
+     * row, and the result is not cached. FirstResult and MaxResults parameters are applied.
+     *
+     * @return a new ColumnarResult
+     * @throws SQLException if any JDBC error occurs
+     */
+    public ColumnarResult getColumnarResult() throws SQLException {
+        checkResultSet();
+        try {
+            final long start = System.nanoTime();
+            moveToFirstResult();
+            final ColumnarResult result = ColumnarResult.read(resultSet, maxResults);
+            fetched(start, result.getRowCount());
+            return result;
+        } finally {
+            reUse();
+        }
+    }
+
+    /**
+     * Write the rows as a JSON (or SMILE, ...) array of objects, without creating any Row.
+     * FirstResult and MaxResults parameters are applied.
+     *
+     * @param generator the generator, which is neither flushed nor closed
+     * @return the number of written rows
+     * @throws SQLException if any JDBC error occurs
+     * @throws IOException  if any I/O error occurs
+     * @see ResultSetJsonWriter
+     */
+    public long writeJson(JsonGenerator generator) throws SQLException, IOException {
+        checkResultSet();
+        try {
+            final long start = System.nanoTime();
+            moveToFirstResult();
+            final long count = new ResultSetJsonWriter(resultSet.getMetaData())
+                    .writeRows(resultSet, maxResults, generator);
+            fetched(start, count);
+            return count;
+        } finally {
+            reUse();
+        }
+    }
+
+    /**
+     * Stream the rows to an OutputStream, using the format of the mapper (ObjectMappers.JSON, ObjectMappers.SMILE,
+     * ...). The stream is flushed but not closed.
+     *
+     * @param mapper the mapper which provides the format
+     * @param output the output stream
+     * @return the number of written rows
+     * @throws SQLException if any JDBC error occurs
+     * @throws IOException  if any I/O error occurs
+     */
+    public long writeJson(ObjectMapper mapper, OutputStream output) throws SQLException, IOException {
+        try (final JsonGenerator generator = ResultSetJsonWriter.createGenerator(mapper, output)) {
+            return writeJson(generator);
+        }
+    }
+
     /**
      * @return the first result, or null if there were no result
      * @throws SQLException if any JDBC error occurs
@@ -293,7 +444,61 @@ public class Query {
      * @throws SQLException if any JDBC error occurs
      */
     public int update() throws SQLException {
-        return statement.executeUpdate();
+        final int count = executeUpdate();
+        updated();
+        return count;
+    }
+
+    private int executeUpdate() throws SQLException {
+        if (probe == null)
+            return statement.executeUpdate();
+        final long start = probe.start();
+        final int count;
+        try {
+            count = statement.executeUpdate();
+        } catch (SQLException | RuntimeException e) {
+            probe.failed();
+            throw e;
+        }
+        probe.executed(start, statement, count);
+        return count;
+    }
+
+    /**
+     * Do a PreparedStatement.executeBatch()
+     *
+     * @return the update counts
+     * @throws SQLException if any JDBC error occurs
+     */
+    int[] executeBatch() throws SQLException {
+        if (probe == null) {
+            final int[] counts = statement.executeBatch();
+            updated();
+            return counts;
+        }
+        final long start = probe.start();
+        final int[] counts;
+        try {
+            counts = statement.executeBatch();
+        } catch (SQLException | RuntimeException e) {
+            probe.failed();
+            throw e;
+        }
+        long sum = 0;
+        for (int count : counts)
+            if (count > 0)
+                sum += count;
+        probe.executed(start, statement, sum);
+        updated();
+        return counts;
+    }
+
+    /**
+     * Notify the transaction that the statement modified tables watched by the result cache
+     */
+    private void updated() {
+        if (updatedTables != null && transaction != null)
+            transaction.tablesUpdated(updatedTables);
     }
 
     /**
@@ -303,19 +508,32 @@ public class Query {
      * @throws SQLException if any JDBC error occurs
      */
     public List<Row> getGeneratedKeys() throws SQLException {
-        return createRowList(statement.getGeneratedKeys(), -1);
+        try (final ResultSet keys = statement.getGeneratedKeys()) {
+            return createRowList(keys, -1);
+        }
     }
 
     /**
      * FirstResult and MaxResults parameters are ignored.
+     * On a forward-only ResultSet the rows are counted by reading them, and the ResultSet is released.
+     * To count without reading the rows, see {@link KeysetPager#count(Transaction, String, Object...)}.
      *
      * @return the number of row found for a select
      * @throws SQLException if any JDBC error occurs
      */
     public int getResultCount() throws SQLException {
         checkResultSet();
-        resultSet.last();
-        return resultSet.getRow();
+        if (resultSet.getType() != ResultSet.TYPE_FORWARD_ONLY) {
+            resultSet.last();
+            return resultSet.getRow();
+        }
+        final long start = System.nanoTime();
+        int count = 0;
+        while (resultSet.next())
+            count++;
+        fetched(start, count);
+        reUse();
+        return count;
     }
 
     /**
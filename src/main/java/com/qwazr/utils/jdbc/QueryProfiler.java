@@ -0,0 +1,481 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.qwazr.utils.LatencyHistogram;
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.TimeTracker;
+
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collect the latency statistics of the SQL statements, grouped by normalized SQL text
+ * (the literals are replaced by '?' and the whitespaces are collapsed).
+ * The statements slower than the threshold are logged, and the latest ones are kept for the snapshot.
+ * <pre>
+ * final QueryProfiler profiler = QueryProfiler.of().slowQueryThreshold(500, TimeUnit.MILLISECONDS).build();
+ * connectionManager.setProfiler(profiler);
+ * ...
+ * final Map&lt;String, QueryProfiler.Snapshot&gt; snapshots = profiler.getSnapshots();
+ * </pre>
+ */
+public class QueryProfiler {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(QueryProfiler.class);
+
+	/**
+	 * The key used when the maximum number of distinct statements is reached
+	 */
+	public final static String OTHER = "(other)";
+
+	private final long slowQueryThresholdNanos;
+	private final int parameterSampleRate;
+	private final int slowQueryLogSize;
+	private final int maxStatements;
+
+	private final ConcurrentHashMap<String, Profile> rawProfiles;
+	private final ConcurrentHashMap<String, Profile> profiles;
+	private final ArrayDeque<SlowQuery> slowQueries;
+	private final ReentrantLock slowQueriesLock;
+	private final LongAdder slowQueryCount;
+
+	private QueryProfiler(final Builder builder) {
+		this.slowQueryThresholdNanos = builder.slowQueryThresholdNanos;
+		this.parameterSampleRate = builder.parameterSampleRate;
+		this.slowQueryLogSize = builder.slowQueryLogSize;
+		this.maxStatements = builder.maxStatements;
+		this.rawProfiles = new ConcurrentHashMap<>();
+		this.profiles = new ConcurrentHashMap<>();
+		this.slowQueries = new ArrayDeque<>();
+		this.slowQueriesLock = new ReentrantLock();
+		this.slowQueryCount = new LongAdder();
+	}
+
+	/**
+	 * Replace the literals (strings and numbers) by '?' and collapse the whitespaces
+	 *
+	 * @param sql the SQL text
+	 * @return the normalized SQL text
+	 */
+	public static String normalize(final String sql) {
+		final StringBuilder sb = new StringBuilder(sql.length());
+		final int length = sql.length();
+		int i = 0;
+		while (i < length) {
+			final char c = sql.charAt(i);
+			if (c == '\'') {
+				// Skip the string literal, including the escaped quotes
+				i++;
+				while (i < length) {
+					if (sql.charAt(i) == '\'') {
+						if (i + 1 < length && sql.charAt(i + 1) == '\'')
+							i++;
+						else
+							break;
+					}
+					i++;
+				}
+				sb.append('?');
+				i++;
+			} else if (Character.isWhitespace(c)) {
+				while (i < length && Character.isWhitespace(sql.charAt(i)))
+					i++;
+				if (sb.length() > 0 && i < length)
+					sb.append(' ');
+			} else if (Character.isDigit(c) &&
+					(sb.length() == 0 || !Character.isLetterOrDigit(sb.charAt(sb.length() - 1)) &&
+							sb.charAt(sb.length() - 1) != '_')) {
+				while (i < length && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.'))
+					i++;
+				sb.append('?');
+			} else {
+				sb.append(c);
+				i++;
+			}
+		}
+		return sb.toString();
+	}
+
+	private Profile getProfile(final String sql) {
+		final Profile profile = rawProfiles.get(sql);
+		if (profile != null)
+			return profile;
+		final String normalized = normalize(sql);
+		final Profile newProfile = profiles.size() >= maxStatements && !profiles.containsKey(normalized) ?
+				profiles.computeIfAbsent(OTHER, Profile::new) :
+				profiles.computeIfAbsent(normalized, Profile::new);
+		if (rawProfiles.size() < maxStatements * 4)
+			rawProfiles.putIfAbsent(sql, newProfile);
+		return newProfile;
+	}
+
+	/**
+	 * @param profiler    the profiler, or null
+	 * @param sql         the SQL text
+	 * @param timeTracker the time tracker of the transaction, or null
+	 * @return a new probe, or null if there is nothing to collect
+	 */
+	static Probe probe(final QueryProfiler profiler, final String sql, final TimeTracker timeTracker) {
+		if (profiler == null && timeTracker == null)
+			return null;
+		return new Probe(profiler, profiler == null ? null : profiler.getProfile(sql), sql, timeTracker);
+	}
+
+	/**
+	 * @param sql the normalized SQL text
+	 * @return the current statistics of the statement, or null if the statement was never profiled
+	 */
+	public Snapshot getSnapshot(final String sql) {
+		final Profile profile = profiles.get(sql);
+		return profile == null ? null : new Snapshot(profile);
+	}
+
+	/**
+	 * @return the current statistics of every statement, sorted by normalized SQL text
+	 */
+	public Map<String, Snapshot> getSnapshots() {
+		final Map<String, Snapshot> snapshots = new TreeMap<>();
+		profiles.forEach((sql, profile) -> snapshots.put(sql, new Snapshot(profile)));
+		return snapshots;
+	}
+
+	/**
+	 * @return the latest slow queries, the most recent first
+	 */
+	public List<SlowQuery> getSlowQueries() {
+		slowQueriesLock.lock();
+		try {
+			return new ArrayList<>(slowQueries);
+		} finally {
+			slowQueriesLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of slow queries since the creation (or the last reset)
+	 */
+	public long getSlowQueryCount() {
+		return slowQueryCount.sum();
+	}
+
+	public void reset() {
+		rawProfiles.clear();
+		profiles.clear();
+		slowQueriesLock.lock();
+		try {
+			slowQueries.clear();
+		} finally {
+			slowQueriesLock.unlock();
+		}
+		slowQueryCount.reset();
+	}
+
+	private void checkSlowQuery(final Profile profile, final long nanos, final long rows, final Statement statement) {
+		if (slowQueryThresholdNanos <= 0 || nanos < slowQueryThresholdNanos)
+			return;
+		slowQueryCount.increment();
+		// Most drivers print the bind parameters in the toString of the statement
+		final String parameters =
+				parameterSampleRate > 0 && slowQueryCount.sum() % parameterSampleRate == 0 && statement != null ?
+						statement.toString() :
+						null;
+		final SlowQuery slowQuery = new SlowQuery(profile.sql, nanos, rows, parameters);
+		if (slowQueryLogSize > 0) {
+			slowQueriesLock.lock();
+			try {
+				slowQueries.addFirst(slowQuery);
+				while (slowQueries.size() > slowQueryLogSize)
+					slowQueries.removeLast();
+			} finally {
+				slowQueriesLock.unlock();
+			}
+		}
+		if (LOGGER.isLoggable(Level.WARNING))
+			LOGGER.warning(slowQuery.toString());
+	}
+
+	public static Builder of() {
+		return new Builder();
+	}
+
+	public static class Builder {
+
+		private long slowQueryThresholdNanos = TimeUnit.SECONDS.toNanos(1);
+		private int parameterSampleRate = 1;
+		private int slowQueryLogSize = 100;
+		private int maxStatements = 1000;
+
+		/**
+		 * @param duration the minimal duration (execution and fetch) of a slow query (0 disables the slow query log)
+		 * @param unit     the time unit of the duration
+		 * @return the current builder
+		 */
+		public Builder slowQueryThreshold(final long duration, final TimeUnit unit) {
+			this.slowQueryThresholdNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * @param parameterSampleRate the bind parameters are captured for one slow query out of parameterSampleRate
+		 *                            (0 never captures the parameters)
+		 * @return the current builder
+		 */
+		public Builder parameterSampleRate(final int parameterSampleRate) {
+			this.parameterSampleRate = parameterSampleRate;
+			return this;
+		}
+
+		/**
+		 * @param slowQueryLogSize the number of slow queries kept in memory
+		 * @return the current builder
+		 */
+		public Builder slowQueryLogSize(final int slowQueryLogSize) {
+			this.slowQueryLogSize = slowQueryLogSize;
+			return this;
+		}
+
+		/**
+		 * @param maxStatements the maximum number of distinct normalized statements, the others are grouped
+		 * @return the current builder
+		 */
+		public Builder maxStatements(final int maxStatements) {
+			this.maxStatements = maxStatements;
+			return this;
+		}
+
+		public QueryProfiler build() {
+			return new QueryProfiler(this);
+		}
+	}
+
+	private static final class Profile {
+
+		private final String sql;
+		private final LongAdder executions;
+		private final LongAdder errors;
+		private final LongAdder rowsFetched;
+		private final LongAdder rowsUpdated;
+		private final LatencyHistogram prepareTime;
+		private final LatencyHistogram executeTime;
+		private final LatencyHistogram fetchTime;
+
+		private Profile(final String sql) {
+			this.sql = sql;
+			this.executions = new LongAdder();
+			this.errors = new LongAdder();
+			this.rowsFetched = new LongAdder();
+			this.rowsUpdated = new LongAdder();
+			this.prepareTime = new LatencyHistogram();
+			this.executeTime = new LatencyHistogram();
+			this.fetchTime = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Collect the measures of one Query
+	 */
+	static final class Probe {
+
+		private final QueryProfiler profiler;
+		private final Profile profile;
+		private final String name;
+		private final TimeTracker timeTracker;
+		private long executeNanos;
+		private long fetchNanos;
+		private long fetchRows;
+		private boolean fetching;
+		private boolean querying;
+
+		private Probe(final QueryProfiler profiler, final Profile profile, final String sql,
+				final TimeTracker timeTracker) {
+			this.profiler = profiler;
+			this.profile = profile;
+			this.name = profile == null ? normalize(sql) : profile.sql;
+			this.timeTracker = timeTracker;
+		}
+
+		long start() {
+			if (timeTracker != null)
+				timeTracker.next(null);
+			return System.nanoTime();
+		}
+
+		private void track() {
+			if (timeTracker != null)
+				timeTracker.next(name);
+		}
+
+		void prepared(final long start) {
+			if (profile != null)
+				profile.prepareTime.record(System.nanoTime() - start);
+			track();
+		}
+
+		/**
+		 * @param start     the value returned by start()
+		 * @param statement the executed statement
+		 * @param updated   the number of updated rows, or -1 for a query
+		 */
+		void executed(final long start, final Statement statement, final long updated) {
+			executeNanos = System.nanoTime() - start;
+			if (profile != null) {
+				profile.executions.increment();
+				profile.executeTime.record(executeNanos);
+				if (updated >= 0) {
+					profile.rowsUpdated.add(updated);
+					profiler.checkSlowQuery(profile, executeNanos, updated, statement);
+				}
+			}
+			// The slow query check of a query waits for the fetch, if any, until the ResultSet is released
+			querying = updated < 0;
+			track();
+		}
+
+		void failed() {
+			if (profile != null)
+				profile.errors.increment();
+			track();
+		}
+
+		/**
+		 * Accumulate the time spent reading rows
+		 *
+		 * @param nanos the fetch time
+		 * @param rows  the number of fetched rows
+		 */
+		void fetched(final long nanos, final long rows) {
+			fetchNanos += nanos;
+			fetchRows += rows;
+			fetching = true;
+		}
+
+		/**
+		 * Record the accumulated fetch measures and check the slow query. Called when the ResultSet is released,
+		 * even if it has been read directly (without any fetch measure).
+		 *
+		 * @param statement the statement which returned the ResultSet
+		 */
+		void endFetch(final Statement statement) {
+			if (!fetching && !querying)
+				return;
+			if (profile != null) {
+				if (fetching) {
+					profile.fetchTime.record(fetchNanos);
+					profile.rowsFetched.add(fetchRows);
+				}
+				profiler.checkSlowQuery(profile, executeNanos + fetchNanos, fetchRows, statement);
+			}
+			if (fetching)
+				track();
+			fetchNanos = 0;
+			fetchRows = 0;
+			fetching = false;
+			querying = false;
+		}
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class Snapshot {
+
+		@JsonProperty("sql")
+		final public String sql;
+
+		@JsonProperty("executions")
+		final public long executions;
+
+		@JsonProperty("errors")
+		final public long errors;
+
+		@JsonProperty("rows_fetched")
+		final public long rowsFetched;
+
+		@JsonProperty("rows_updated")
+		final public long rowsUpdated;
+
+		@JsonProperty("prepare_time")
+		final public LatencyHistogram.Snapshot prepareTime;
+
+		@JsonProperty("execute_time")
+		final public LatencyHistogram.Snapshot executeTime;
+
+		@JsonProperty("fetch_time")
+		final public LatencyHistogram.Snapshot fetchTime;
+
+		private Snapshot(final Profile profile) {
+			this.sql = profile.sql;
+			this.executions = profile.executions.sum();
+			this.errors = profile.errors.sum();
+			this.rowsFetched = profile.rowsFetched.sum();
+			this.rowsUpdated = profile.rowsUpdated.sum();
+			this.prepareTime = profile.prepareTime.getSnapshot();
+			this.executeTime = profile.executeTime.getSnapshot();
+			this.fetchTime = profile.fetchTime.getSnapshot();
+		}
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class SlowQuery {
+
+		@JsonProperty("sql")
+		final public String sql;
+
+		@JsonProperty("duration_nanos")
+		final public long durationNanos;
+
+		/**
+		 * The number of fetched or updated rows
+		 */
+		@JsonProperty("rows")
+		final public long rows;
+
+		/**
+		 * The statement as printed by the driver (usually with the bind parameters), if it has been sampled
+		 */
+		@JsonProperty("parameters")
+		final public String parameters;
+
+		@JsonProperty("time")
+		final public Date time;
+
+		private SlowQuery(final String sql, final long durationNanos, final long rows, final String parameters) {
+			this.sql = sql;
+			this.durationNanos = durationNanos;
+			this.rows = rows;
+			this.parameters = parameters;
+			this.time = new Date();
+		}
+
+		@Override
+		public String toString() {
+			return "Slow query (" + TimeUnit.NANOSECONDS.toMillis(durationNanos) + " ms, " + rows + " rows): " + sql +
+					(parameters == null ? "" : " - " + parameters);
+		}
+	}
+}
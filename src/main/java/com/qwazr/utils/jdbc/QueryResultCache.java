@@ -0,0 +1,401 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.qwazr.utils.jdbc.connection.ConnectionManager;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A LRU cache of query results, keyed by the SQL text and the bound parameters.
+ * <pre>
+ * final QueryResultCache cache = QueryResultCache.of()
+ * 		.tables("countries", "currencies")
+ * 		.ttl(10, TimeUnit.MINUTES)
+ * 		.build();
+ * connectionManager.setResultCache(cache);
+ * ...
+ * final List&lt;Row&gt; rows = cache.getResultList(connectionManager, "SELECT * FROM countries WHERE code = ?", "FR");
+ * </pre>
+ * A cached result depends on the registered tables found in its SQL text. Each table has a version, incremented when
+ * a statement which contains the table name is executed by Query.update (or a BatchWriter) in a transaction of a
+ * ConnectionManager using this cache, and again when the transaction is committed. A result read with older versions
+ * is discarded. The TTL covers the modifications made by other applications.
+ * <p>
+ * The tables are detected by comparing the identifiers of the SQL text with the registered names (case insensitive,
+ * schema prefix ignored). The cached rows are shared by the callers, and should not be modified.
+ * </p>
+ */
+public class QueryResultCache {
+
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final Map<String, AtomicLong> tableVersions;
+	private final ConcurrentHashMap<String, String[]> tablesBySql;
+	private final LinkedHashMap<Key, Entry> entries;
+	private final ReentrantLock lock;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder invalidations;
+	private final LongAdder evictions;
+
+	private QueryResultCache(final Builder builder) {
+		this.maxEntries = builder.maxEntries;
+		this.ttlNanos = builder.ttlNanos;
+		final Map<String, AtomicLong> versions = new LinkedHashMap<>();
+		builder.tables.forEach(table -> versions.put(table, new AtomicLong()));
+		this.tableVersions = Collections.unmodifiableMap(versions);
+		this.tablesBySql = new ConcurrentHashMap<>();
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.lock = new ReentrantLock();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.invalidations = new LongAdder();
+		this.evictions = new LongAdder();
+	}
+
+	private static String normalizeTable(final String table) {
+		return table.toUpperCase(Locale.ROOT);
+	}
+
+	/**
+	 * @param sql the SQL text
+	 * @return the registered tables found in the SQL text, or null if there is none
+	 */
+	String[] getTables(final String sql) {
+		if (tableVersions.isEmpty())
+			return null;
+		String[] tables = tablesBySql.get(sql);
+		if (tables == null) {
+			tables = findTables(sql);
+			// The SQL texts built with literals should not fill the memory
+			if (tablesBySql.size() < maxEntries * 4)
+				tablesBySql.put(sql, tables);
+		}
+		return tables.length == 0 ? null : tables;
+	}
+
+	private String[] findTables(final String sql) {
+		final List<String> tables = new ArrayList<>();
+		final int length = sql.length();
+		int i = 0;
+		while (i < length) {
+			if (!Character.isJavaIdentifierPart(sql.charAt(i))) {
+				i++;
+				continue;
+			}
+			final int start = i;
+			while (i < length && Character.isJavaIdentifierPart(sql.charAt(i)))
+				i++;
+			final String identifier = normalizeTable(sql.substring(start, i));
+			if (tableVersions.containsKey(identifier) && !tables.contains(identifier))
+				tables.add(identifier);
+		}
+		return tables.toArray(new String[0]);
+	}
+
+	private long[] getVersions(final String[] tables) {
+		if (tables == null)
+			return null;
+		final long[] versions = new long[tables.length];
+		for (int i = 0; i < tables.length; i++)
+			versions[i] = tableVersions.get(tables[i]).get();
+		return versions;
+	}
+
+	/**
+	 * Discard the cached results which depend on the given tables
+	 *
+	 * @param tables the modified tables
+	 */
+	public void invalidate(final String... tables) {
+		for (final String table : tables) {
+			final AtomicLong version = tableVersions.get(normalizeTable(table));
+			if (version != null) {
+				version.incrementAndGet();
+				invalidations.increment();
+			}
+		}
+	}
+
+	/**
+	 * Discard all the cached results
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			entries.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of cached results (including the ones which are not valid anymore)
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private List<Row> getCached(final Key key) {
+		final Entry entry;
+		lock.lock();
+		try {
+			entry = entries.get(key);
+		} finally {
+			lock.unlock();
+		}
+		if (entry == null)
+			return null;
+		if (entry.isValid(System.nanoTime()))
+			return entry.rows;
+		lock.lock();
+		try {
+			entries.remove(key, entry);
+		} finally {
+			lock.unlock();
+		}
+		return null;
+	}
+
+	private void put(final Key key, final Entry entry) {
+		lock.lock();
+		try {
+			entries.put(key, entry);
+			while (entries.size() > maxEntries) {
+				entries.remove(entries.keySet().iterator().next());
+				evictions.increment();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private List<Row> load(final Transaction transaction, final Key key) throws SQLException {
+		// The versions are read before the query, an update made meanwhile makes the result stale
+		final String[] tables = getTables(key.sql);
+		final long[] versions = getVersions(tables);
+		final List<Row> rows;
+		try (final Query query = transaction.prepare(key.sql)) {
+			final PreparedStatement statement = query.getStatement();
+			for (int i = 0; i < key.parameters.length; i++)
+				statement.setObject(i + 1, key.parameters[i]);
+			rows = Collections.unmodifiableList(query.getResultList());
+		}
+		put(key, new Entry(rows, tables, versions, System.nanoTime() + ttlNanos));
+		return rows;
+	}
+
+	/**
+	 * Return the cached result, or execute the query using the given transaction
+	 *
+	 * @param transaction the transaction used if the result is not cached
+	 * @param sql         the SQL query
+	 * @param parameters  the parameters of the query, which should implement equals and hashCode
+	 * @return the rows, which should not be modified
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	public List<Row> getResultList(final Transaction transaction, final String sql, final Object... parameters)
+			throws SQLException {
+		final Key key = new Key(sql, parameters);
+		final List<Row> rows = getCached(key);
+		if (rows != null) {
+			hits.increment();
+			return rows;
+		}
+		misses.increment();
+		return load(transaction, key);
+	}
+
+	/**
+	 * Return the cached result. If the result is not cached, a new transaction is opened to execute the query.
+	 *
+	 * @param connectionManager the connection manager used if the result is not cached
+	 * @param sql               the SQL query
+	 * @param parameters        the parameters of the query, which should implement equals and hashCode
+	 * @return the rows, which should not be modified
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	public List<Row> getResultList(final ConnectionManager connectionManager, final String sql,
+			final Object... parameters) throws SQLException {
+		final Key key = new Key(sql, parameters);
+		final List<Row> rows = getCached(key);
+		if (rows != null) {
+			hits.increment();
+			return rows;
+		}
+		misses.increment();
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			return load(transaction, key);
+		}
+	}
+
+	public Statistics getStatistics() {
+		return new Statistics(this);
+	}
+
+	private final class Entry {
+
+		private final List<Row> rows;
+		private final String[] tables;
+		private final long[] versions;
+		private final long expiration;
+
+		private Entry(final List<Row> rows, final String[] tables, final long[] versions, final long expiration) {
+			this.rows = rows;
+			this.tables = tables;
+			this.versions = versions;
+			this.expiration = expiration;
+		}
+
+		private boolean isValid(final long now) {
+			if (now - expiration >= 0)
+				return false;
+			if (tables != null)
+				for (int i = 0; i < tables.length; i++)
+					if (tableVersions.get(tables[i]).get() != versions[i])
+						return false;
+			return true;
+		}
+	}
+
+	private static final class Key {
+
+		private final String sql;
+		private final Object[] parameters;
+		private final int hashCode;
+
+		private Key(final String sql, final Object[] parameters) {
+			this.sql = Objects.requireNonNull(sql, "The SQL query is missing");
+			this.parameters = parameters == null ? new Object[0] : parameters.clone();
+			this.hashCode = sql.hashCode() * 31 + Arrays.hashCode(this.parameters);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (o == this)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			final Key k = (Key) o;
+			return hashCode == k.hashCode && sql.equals(k.sql) && Arrays.equals(parameters, k.parameters);
+		}
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class Statistics {
+
+		@JsonProperty("size")
+		final public int size;
+
+		@JsonProperty("hits")
+		final public long hits;
+
+		@JsonProperty("misses")
+		final public long misses;
+
+		@JsonProperty("invalidations")
+		final public long invalidations;
+
+		@JsonProperty("evictions")
+		final public long evictions;
+
+		@JsonProperty("hit_ratio")
+		final public double hitRatio;
+
+		private Statistics(final QueryResultCache cache) {
+			this.size = cache.size();
+			this.hits = cache.hits.sum();
+			this.misses = cache.misses.sum();
+			this.invalidations = cache.invalidations.sum();
+			this.evictions = cache.evictions.sum();
+			final long total = hits + misses;
+			this.hitRatio = total == 0 ? 0 : (double) hits / total;
+		}
+	}
+
+	public static Builder of() {
+		return new Builder();
+	}
+
+	public static class Builder {
+
+		private final List<String> tables = new ArrayList<>();
+		private int maxEntries = 1000;
+		private long ttlNanos = TimeUnit.MINUTES.toNanos(5);
+
+		/**
+		 * @param tables the tables which invalidate the cached results when they are modified
+		 * @return the current builder
+		 */
+		public Builder tables(final String... tables) {
+			for (final String table : tables)
+				this.tables.add(normalizeTable(Objects.requireNonNull(table, "The table is missing")));
+			return this;
+		}
+
+		/**
+		 * @param maxEntries the maximum number of cached results
+		 * @return the current builder
+		 */
+		public Builder maxEntries(final int maxEntries) {
+			if (maxEntries < 1)
+				throw new IllegalArgumentException("The maximum number of entries should be greater than zero");
+			this.maxEntries = maxEntries;
+			return this;
+		}
+
+		/**
+		 * @param duration the maximum lifetime of a cached result
+		 * @param unit     the time unit of the duration
+		 * @return the current builder
+		 */
+		public Builder ttl(final long duration, final TimeUnit unit) {
+			this.ttlNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		public QueryResultCache build() {
+			return new QueryResultCache(this);
+		}
+	}
+}
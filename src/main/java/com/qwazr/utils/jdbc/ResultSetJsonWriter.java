@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Write the rows of a ResultSet directly to a Jackson JsonGenerator (JSON, SMILE, ...), without creating any Row.
+ * The output is an array of objects, one field per column label, with the values returned by Query.getResultList().
+ * <pre>
+ * try (final Query query = transaction.prepare("SELECT * FROM items")) {
+ * 		query.setFetchSize(1000);
+ * 		query.writeJson(ObjectMappers.SMILE, response.getOutputStream());
+ * }
+ * </pre>
+ * The generator flushes its buffer to the OutputStream when it is full, the memory use does not depend on the number
+ * of rows. Note that some drivers read the whole result unless a fetch size is set.
+ */
+public class ResultSetJsonWriter {
+
+	private final SerializableString[] labels;
+	private final ColumnWriter[] writers;
+
+	/**
+	 * @param metaData the metadata of the ResultSet
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	public ResultSetJsonWriter(final ResultSetMetaData metaData) throws SQLException {
+		final int columnCount = metaData.getColumnCount();
+		labels = new SerializableString[columnCount];
+		writers = new ColumnWriter[columnCount];
+		for (int i = 0; i < columnCount; i++) {
+			labels[i] = new SerializedString(metaData.getColumnLabel(i + 1));
+			writers[i] = getWriter(metaData.getColumnType(i + 1));
+		}
+	}
+
+	private static ColumnWriter getWriter(final int sqlType) {
+		switch (sqlType) {
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+			return (rs, index, generator) -> {
+				final int value = rs.getInt(index);
+				if (rs.wasNull())
+					generator.writeNull();
+				else
+					generator.writeNumber(value);
+			};
+		case Types.BIGINT:
+			return (rs, index, generator) -> {
+				final long value = rs.getLong(index);
+				if (rs.wasNull())
+					generator.writeNull();
+				else
+					generator.writeNumber(value);
+			};
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return (rs, index, generator) -> {
+				final double value = rs.getDouble(index);
+				if (rs.wasNull())
+					generator.writeNull();
+				else
+					generator.writeNumber(value);
+			};
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+			return (rs, index, generator) -> {
+				final BigDecimal value = rs.getBigDecimal(index);
+				if (value == null)
+					generator.writeNull();
+				else
+					generator.writeNumber(value);
+			};
+		case Types.BIT:
+		case Types.BOOLEAN:
+			return (rs, index, generator) -> {
+				final boolean value = rs.getBoolean(index);
+				if (rs.wasNull())
+					generator.writeNull();
+				else
+					generator.writeBoolean(value);
+			};
+		case Types.CHAR:
+		case Types.VARCHAR:
+		case Types.LONGVARCHAR:
+		case Types.NCHAR:
+		case Types.NVARCHAR:
+		case Types.LONGNVARCHAR:
+		case Types.CLOB:
+		case Types.NCLOB:
+			return (rs, index, generator) -> {
+				final String value = rs.getString(index);
+				if (value == null)
+					generator.writeNull();
+				else
+					generator.writeString(value);
+			};
+		case Types.DATE:
+			// The temporal values are rare and depend on the configuration of the mapper (timestamps or ISO 8601)
+			return (rs, index, generator) -> generator.writeObject(rs.getDate(index));
+		case Types.TIME:
+			return (rs, index, generator) -> generator.writeObject(rs.getTime(index));
+		case Types.TIMESTAMP:
+			return (rs, index, generator) -> generator.writeObject(rs.getTimestamp(index));
+		case Types.BINARY:
+		case Types.VARBINARY:
+		case Types.LONGVARBINARY:
+		case Types.BLOB:
+			return (rs, index, generator) -> {
+				final byte[] value = rs.getBytes(index);
+				if (value == null)
+					generator.writeNull();
+				else
+					generator.writeBinary(value);
+			};
+		default:
+			return (rs, index, generator) -> generator.writeObject(rs.getObject(index));
+		}
+	}
+
+	/**
+	 * Write the current row as an object
+	 *
+	 * @param resultSet the ResultSet positioned on a row
+	 * @param generator the generator, created by an ObjectMapper (required by the temporal and the unknown types)
+	 * @throws SQLException if any JDBC error occurs
+	 * @throws IOException  if any I/O error occurs
+	 */
+	public void writeRow(final ResultSet resultSet, final JsonGenerator generator) throws SQLException, IOException {
+		generator.writeStartObject();
+		for (int i = 0; i < writers.length; i++) {
+			generator.writeFieldName(labels[i]);
+			writers[i].write(resultSet, i + 1, generator);
+		}
+		generator.writeEndObject();
+	}
+
+	/**
+	 * Write the next rows of a ResultSet as an array of objects
+	 *
+	 * @param resultSet the ResultSet
+	 * @param limit     the maximum number of rows, or -1
+	 * @param generator the generator
+	 * @return the number of written rows
+	 * @throws SQLException if any JDBC error occurs
+	 * @throws IOException  if any I/O error occurs
+	 */
+	public long writeRows(final ResultSet resultSet, final int limit, final JsonGenerator generator)
+			throws SQLException, IOException {
+		long count = 0;
+		generator.writeStartArray();
+		while ((limit < 0 || count < limit) && resultSet.next()) {
+			writeRow(resultSet, generator);
+			count++;
+		}
+		generator.writeEndArray();
+		return count;
+	}
+
+	/**
+	 * Write the next rows of a ResultSet as an array of objects
+	 *
+	 * @param resultSet the ResultSet
+	 * @param generator the generator
+	 * @return the number of written rows
+	 * @throws SQLException if any JDBC error occurs
+	 * @throws IOException  if any I/O error occurs
+	 */
+	public static long write(final ResultSet resultSet, final JsonGenerator generator)
+			throws SQLException, IOException {
+		return new ResultSetJsonWriter(resultSet.getMetaData()).writeRows(resultSet, -1, generator);
+	}
+
+	/**
+	 * Write the next rows of a ResultSet to an OutputStream. The stream is flushed but not closed.
+	 *
+	 * @param resultSet the ResultSet
+	 * @param mapper    the mapper which provides the format (ObjectMappers.JSON, ObjectMappers.SMILE, ...)
+	 * @param output    the output stream
+	 * @return the number of written rows
+	 * @throws SQLException if any JDBC error occurs
+	 * @throws IOException  if any I/O error occurs
+	 */
+	public static long write(final ResultSet resultSet, final ObjectMapper mapper, final OutputStream output)
+			throws SQLException, IOException {
+		try (final JsonGenerator generator = createGenerator(mapper, output)) {
+			return write(resultSet, generator);
+		}
+	}
+
+	static JsonGenerator createGenerator(final ObjectMapper mapper, final OutputStream output) throws IOException {
+		final JsonGenerator generator = mapper.getFactory().createGenerator(output);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		return generator;
+	}
+
+	@FunctionalInterface
+	private interface ColumnWriter {
+
+		void write(ResultSet resultSet, int columnIndex, JsonGenerator generator) throws SQLException, IOException;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import java.sql.ResultSet;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * A sequential Spliterator which fetches the rows of a ResultSet lazily.
+ *
+ * @param <T> the type of the mapped rows
+ */
+class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+
+	@FunctionalInterface
+	interface Mapper<T> {
+
+		T map(ResultSet resultSet) throws Exception;
+	}
+
+	private final ResultSet resultSet;
+
+	private final Mapper<T> mapper;
+
+	private final QueryProfiler.Probe probe;
+
+	private int limit;
+
+	/**
+	 * @param resultSet the ResultSet to read
+	 * @param limit     the maximum number of rows to read, or -1 for no limit
+	 * @param mapper    the function which builds an element from the current row
+	 * @param probe     the probe which collects the fetch time, or null
+	 */
+	ResultSetSpliterator(final ResultSet resultSet, final int limit, final Mapper<T> mapper,
+			final QueryProfiler.Probe probe) {
+		super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+		this.resultSet = resultSet;
+		this.limit = limit;
+		this.mapper = mapper;
+		this.probe = probe;
+	}
+
+	ResultSetSpliterator(final ResultSet resultSet, final int limit, final Mapper<T> mapper) {
+		this(resultSet, limit, mapper, null);
+	}
+
+	@Override
+	public boolean tryAdvance(final Consumer<? super T> action) {
+		if (resultSet == null || limit == 0)
+			return false;
+		try {
+			final long start = probe == null ? 0 : System.nanoTime();
+			if (!resultSet.next()) {
+				if (probe != null)
+					probe.fetched(System.nanoTime() - start, 0);
+				return false;
+			}
+			if (limit > 0)
+				limit--;
+			final T element = mapper.map(resultSet);
+			if (probe != null)
+				probe.fetched(System.nanoTime() - start, 1);
+			action.accept(element);
+			return true;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -39,11 +39,22 @@ public class Row extends AbstractMap<String, Object> {
 
 	Row(Map<String, Integer> columnMap, ResultSet rs) throws SQLException {
 		this(columnMap);
+		read(rs);
+	}
+
+	/**
+	 * Fill the columns with the values of the current row of the ResultSet
+	 *
+	 * @param rs the ResultSet
+	 * @return this instance
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	Row read(ResultSet rs) throws SQLException {
 		for (Map.Entry<String, Integer> entry : columnMap.entrySet()) {
 			int columnIndex = entry.getValue();
-			Object object = rs.getObject(columnIndex + 1);
-			columns[columnIndex] = object;
+			columns[columnIndex] = rs.getObject(columnIndex + 1);
 		}
+		return this;
 	}
 
 	/**
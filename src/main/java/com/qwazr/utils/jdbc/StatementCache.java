@@ -0,0 +1,292 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.qwazr.utils.jdbc.connection.ConnectionManager;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A LRU cache of the PreparedStatements of one connection.
+ * A statement is removed from the cache while a Query is using it, and given back when the Query is closed.
+ * Therefore two queries never share the same statement. A statement given back is reset (parameters, batch, max
+ * rows, fetch size and query timeout) to its state when it was prepared, or closed if the reset fails.
+ * The statements evicted from the cache are closed.
+ */
+public class StatementCache implements Closeable {
+
+	private final int maxSize;
+	private final Counters counters;
+	private final LinkedHashMap<Key, Entry> statements;
+	private final IdentityHashMap<PreparedStatement, Entry> inUse;
+	private final ReentrantLock lock;
+	private volatile boolean closed;
+
+	/**
+	 * @param maxSize  the maximum number of cached statements
+	 * @param counters the counters to update, which may be shared by several caches
+	 */
+	public StatementCache(final int maxSize, final Counters counters) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("The size of the cache should be greater than zero");
+		this.maxSize = maxSize;
+		this.counters = Objects.requireNonNull(counters, "The counters are missing");
+		this.statements = new LinkedHashMap<>(16, 0.75f, true);
+		this.inUse = new IdentityHashMap<>();
+		this.lock = new ReentrantLock();
+		this.closed = false;
+	}
+
+	public StatementCache(final int maxSize) {
+		this(maxSize, new Counters());
+	}
+
+	PreparedStatement prepare(final Connection cnx, final Key key) throws SQLException {
+		Entry entry;
+		lock.lock();
+		try {
+			entry = statements.remove(key);
+			if (entry != null && !entry.statement.isClosed()) {
+				inUse.put(entry.statement, entry);
+				counters.hits.increment();
+				return entry.statement;
+			}
+		} finally {
+			lock.unlock();
+		}
+		counters.misses.increment();
+		final PreparedStatement statement = key.prepare(cnx);
+		try {
+			entry = new Entry(statement);
+		} catch (SQLException e) {
+			ConnectionManager.close(null, statement, null);
+			throw e;
+		}
+		lock.lock();
+		try {
+			inUse.put(statement, entry);
+		} finally {
+			lock.unlock();
+		}
+		return statement;
+	}
+
+	void release(final Key key, final PreparedStatement statement) {
+		final Entry entry;
+		lock.lock();
+		try {
+			entry = inUse.remove(statement);
+		} finally {
+			lock.unlock();
+		}
+		if (entry == null || !entry.reset()) {
+			ConnectionManager.close(null, statement, null);
+			return;
+		}
+		final List<Entry> evicted = new ArrayList<>(1);
+		lock.lock();
+		try {
+			if (!closed) {
+				final Entry previous = statements.put(key, entry);
+				if (previous != null)
+					evicted.add(previous);
+				final Iterator<Entry> iterator = statements.values().iterator();
+				while (statements.size() > maxSize) {
+					evicted.add(iterator.next());
+					iterator.remove();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (closed) {
+			ConnectionManager.close(null, statement, null);
+			return;
+		}
+		for (final Entry evictedEntry : evicted) {
+			counters.evictions.increment();
+			ConnectionManager.close(null, evictedEntry.statement, null);
+		}
+	}
+
+	/**
+	 * @return the number of statements currently in the cache
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return statements.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Counters getCounters() {
+		return counters;
+	}
+
+	/**
+	 * Close all the cached statements. The statements released later are closed immediately.
+	 */
+	@Override
+	public void close() {
+		final List<Entry> cached;
+		lock.lock();
+		try {
+			closed = true;
+			cached = new ArrayList<>(statements.values());
+			statements.clear();
+			inUse.clear();
+		} finally {
+			lock.unlock();
+		}
+		cached.forEach(entry -> ConnectionManager.close(null, entry.statement, null));
+	}
+
+	/**
+	 * A statement and the settings it had when it was prepared
+	 */
+	private static final class Entry {
+
+		private final PreparedStatement statement;
+		private final int maxRows;
+		private final int fetchSize;
+		private final int queryTimeout;
+
+		private Entry(final PreparedStatement statement) throws SQLException {
+			this.statement = statement;
+			this.maxRows = statement.getMaxRows();
+			this.fetchSize = statement.getFetchSize();
+			this.queryTimeout = statement.getQueryTimeout();
+		}
+
+		/**
+		 * Remove what the previous user left in the statement
+		 *
+		 * @return false if the statement cannot be reset, and should not be reused
+		 */
+		private boolean reset() {
+			try {
+				statement.clearParameters();
+				statement.clearBatch();
+				statement.setMaxRows(maxRows);
+				statement.setFetchSize(fetchSize);
+				statement.setQueryTimeout(queryTimeout);
+				return true;
+			} catch (SQLException e) {
+				return false;
+			}
+		}
+	}
+
+	static final class Key {
+
+		final String sql;
+		private final int resultSetType;
+		private final int resultSetConcurrency;
+		private final boolean generatedKeys;
+		private final int hashCode;
+
+		Key(final String sql, final int resultSetType, final int resultSetConcurrency, final boolean generatedKeys) {
+			this.sql = sql;
+			this.resultSetType = resultSetType;
+			this.resultSetConcurrency = resultSetConcurrency;
+			this.generatedKeys = generatedKeys;
+			this.hashCode = Objects.hash(sql, resultSetType, resultSetConcurrency, generatedKeys);
+		}
+
+		Key(final String sql, final boolean generatedKeys) {
+			this(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, generatedKeys);
+		}
+
+		PreparedStatement prepare(final Connection cnx) throws SQLException {
+			if (generatedKeys)
+				return cnx.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+			if (resultSetType == ResultSet.TYPE_FORWARD_ONLY && resultSetConcurrency == ResultSet.CONCUR_READ_ONLY)
+				return cnx.prepareStatement(sql);
+			return cnx.prepareStatement(sql, resultSetType, resultSetConcurrency);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (o == this)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			final Key k = (Key) o;
+			return hashCode == k.hashCode && resultSetType == k.resultSetType &&
+					resultSetConcurrency == k.resultSetConcurrency && generatedKeys == k.generatedKeys &&
+					sql.equals(k.sql);
+		}
+	}
+
+	/**
+	 * The hit/miss counters of one or several caches
+	 */
+	public static class Counters {
+
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+		private final LongAdder evictions = new LongAdder();
+
+		public Statistics getStatistics() {
+			return new Statistics(hits.sum(), misses.sum(), evictions.sum());
+		}
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class Statistics {
+
+		@JsonProperty("hits")
+		final public long hits;
+
+		@JsonProperty("misses")
+		final public long misses;
+
+		@JsonProperty("evictions")
+		final public long evictions;
+
+		@JsonProperty("hit_ratio")
+		final public float hitRatio;
+
+		private Statistics(final long hits, final long misses, final long evictions) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.hitRatio = hits + misses == 0 ? 0 : (float) hits / (hits + misses);
+		}
+	}
+}
@@ -15,14 +15,19 @@
  */
 package com.qwazr.utils.jdbc;
 
-import com.qwazr.utils.ExceptionUtils;
+import com.qwazr.utils.TimeTracker;
 import com.qwazr.utils.jdbc.connection.ConnectionManager;
 
 import java.io.Closeable;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * <p>
@@ -54,59 +59,136 @@ import java.util.HashSet;
 public class Transaction implements Closeable {
 
     final private Connection cnx;
+    final private StatementCache statementCache;
+    final private ReentrantLock lock;
     private HashSet<Query> queries;
+    private List<Runnable> closeListeners;
+    private volatile QueryProfiler profiler;
+    private volatile TimeTracker timeTracker;
+    private volatile QueryResultCache resultCache;
+    private Set<String> updatedTables;
+    private volatile boolean closed;
 
     public Transaction(Connection cnx, boolean autoCommit,
                        Integer transactionIsolation) throws SQLException {
+        this(cnx, autoCommit, transactionIsolation, null);
+    }
+
+    /**
+     * @param cnx                  the database connection
+     * @param autoCommit           Enable or disable autocommit
+     * @param transactionIsolation java.sql.Connection.TRANSACTION..., or null
+     * @param statementCache       the cache of the prepared statements of this connection, or null
+     * @throws SQLException if any JDBC error occurs
+     */
+    public Transaction(Connection cnx, boolean autoCommit,
+                       Integer transactionIsolation, StatementCache statementCache) throws SQLException {
         this.cnx = cnx;
+        this.statementCache = statementCache;
+        this.lock = new ReentrantLock();
         if (transactionIsolation != null)
             cnx.setTransactionIsolation(transactionIsolation);
         cnx.setAutoCommit(autoCommit);
     }
 
     void closeQuery(Query query) {
-        synchronized (this) {
+        lock.lock();
+        try {
             query.closeAll();
             queries.remove(query);
+        } finally {
+            lock.unlock();
         }
     }
 
     private void closeQueries() {
-        synchronized (this) {
-            if (queries == null)
-                return;
-            for (Query query : queries)
-                query.closeAll();
-            queries.clear();
-        }
+        if (queries == null)
+            return;
+        for (Query query : queries)
+            query.closeAll();
+        queries.clear();
+    }
+
+    /**
+     * The connection may be given back to a pool when the transaction is closed: it must not be used anymore
+     */
+    private void checkOpen() throws SQLException {
+        if (closed)
+            throw new SQLException("The transaction is closed");
+    }
+
+    /**
+     * @return true if the transaction has been closed
+     */
+    public boolean isClosed() {
+        return closed;
     }
 
     /**
      * Close all queries and the transaction. No commit or rollback are
-     * performed.
+     * performed. The transaction cannot be used anymore.
      */
     @Override
     public void close() {
-        synchronized (this) {
-            if (cnx == null)
+        lock.lock();
+        try {
+            if (closed)
                 return;
-            if (ExceptionUtils.bypass(cnx::isClosed))
+            closed = true;
+            if (cnx == null)
                 return;
-            synchronized (cnx) {
-                closeQueries();
-                ConnectionManager.close(null, null, cnx);
-            }
+            // A broken connection is released too: a pool must get its slot back
+            closeQueries();
+            release(cnx);
+        } finally {
+            invalidateUpdatedTables();
+            final List<Runnable> listeners = closeListeners;
+            closeListeners = null;
+            lock.unlock();
+            if (listeners != null)
+                listeners.forEach(Runnable::run);
         }
     }
 
+    /**
+     * Register a callback which is called once, when the transaction is closed
+     *
+     * @param listener the callback
+     */
+    public void addCloseListener(Runnable listener) {
+        lock.lock();
+        try {
+            if (closeListeners == null)
+                closeListeners = new ArrayList<>(1);
+            closeListeners.add(listener);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by {@link #close()} once every query has been closed.
+     * By default the connection is closed. A pooling ConnectionManager overrides it to recycle the connection.
+     *
+     * @param cnx the connection of this transaction
+     */
+    protected void release(Connection cnx) {
+        ConnectionManager.close(null, null, cnx);
+    }
+
     /**
      * Usual JDBC/SQL transaction rollback
      *
      * @throws SQLException if any JDBC error occurs
      */
     public void rollback() throws SQLException {
-        synchronized (cnx) {
+        lock.lock();
+        try {
+            checkOpen();
             cnx.rollback();
+        } finally {
+            invalidateUpdatedTables();
+            lock.unlock();
         }
     }
 
@@ -116,17 +198,114 @@ public class Transaction implements Closeable {
      * @throws SQLException if any JDBC error occurs
      */
     public void commit() throws SQLException {
-        synchronized (cnx) {
+        lock.lock();
+        try {
+            checkOpen();
             cnx.commit();
+        } finally {
+            invalidateUpdatedTables();
+            lock.unlock();
         }
     }
 
-    private void addQuery(Query query) {
-        synchronized (this) {
+    private Query addQuery(Query query) {
+        lock.lock();
+        try {
             if (queries == null)
                 queries = new HashSet<>();
             queries.add(query);
+            query.transaction = this;
+        } finally {
+            lock.unlock();
+        }
+        return query;
+    }
+
+    private Query newQuery(StatementCache.Key key) throws SQLException {
+        checkOpen();
+        final QueryProfiler.Probe probe = QueryProfiler.probe(profiler, key.sql, timeTracker);
+        final long start = probe == null ? 0 : probe.start();
+        final PreparedStatement statement;
+        try {
+            statement = statementCache == null ? key.prepare(cnx) : statementCache.prepare(cnx, key);
+        } catch (SQLException | RuntimeException e) {
+            if (probe != null)
+                probe.failed();
+            throw e;
         }
+        if (probe != null)
+            probe.prepared(start);
+        final Query query = new Query(statement, statementCache, statementCache == null ? null : key, probe);
+        final QueryResultCache cache = resultCache;
+        if (cache != null)
+            query.updatedTables = cache.getTables(key.sql);
+        return addQuery(query);
+    }
+
+    /**
+     * Invalidate the cached results of the tables modified by this transaction.
+     * The invalidation is done immediately, and again when the transaction is committed or rolled back,
+     * so that a result read before the commit is not kept.
+     *
+     * @param tables the modified tables
+     */
+    void tablesUpdated(String[] tables) {
+        final QueryResultCache cache = resultCache;
+        if (cache == null)
+            return;
+        cache.invalidate(tables);
+        lock.lock();
+        try {
+            if (updatedTables == null)
+                updatedTables = new HashSet<>();
+            Collections.addAll(updatedTables, tables);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void invalidateUpdatedTables() {
+        if (updatedTables == null || updatedTables.isEmpty())
+            return;
+        final QueryResultCache cache = resultCache;
+        if (cache != null)
+            cache.invalidate(updatedTables.toArray(new String[0]));
+        updatedTables.clear();
+    }
+
+    /**
+     * Invalidate the results cached by the given cache when this transaction modifies one of its tables
+     *
+     * @param resultCache the result cache, or null
+     */
+    public void setResultCache(QueryResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Collect the statistics of the queries prepared after this call
+     *
+     * @param profiler the profiler, or null to stop the profiling
+     */
+    public void setProfiler(QueryProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Record the time spent by each query (prepare, execution, fetch) in a TimeTracker.
+     * The entries are named with the normalized SQL statement.
+     *
+     * @param timeTracker the time tracker, or null
+     */
+    public void setTimeTracker(TimeTracker timeTracker) {
+        this.timeTracker = timeTracker;
+    }
+
+    /**
+     * @return the cache of the prepared statements, or null if the statements are not cached
+     */
+    public StatementCache getStatementCache() {
+        return statementCache;
     }
 
     /**
@@ -137,9 +316,7 @@ public class Transaction implements Closeable {
      * @throws SQLException if any JDBC error occurs
      */
     public Query prepare(String sql) throws SQLException {
-        Query query = new Query(cnx.prepareStatement(sql));
-        addQuery(query);
-        return query;
+        return newQuery(new StatementCache.Key(sql, false));
     }
 
     /**
@@ -150,10 +327,7 @@ public class Transaction implements Closeable {
      * @throws SQLException if any JDBC error occurs
      */
     public Query prepareWithKeys(String sql) throws SQLException {
-        Query query = new Query(cnx.prepareStatement(sql,
-                Statement.RETURN_GENERATED_KEYS));
-        addQuery(query);
-        return query;
+        return newQuery(new StatementCache.Key(sql, true));
     }
 
     /**
@@ -172,10 +346,18 @@ public class Transaction implements Closeable {
      */
     public Query prepare(String sql, int resultSetType, int resultSetConcurency)
             throws SQLException {
-        Query query = new Query(cnx.prepareStatement(sql, resultSetType,
-                resultSetConcurency));
-        addQuery(query);
-        return query;
+        return newQuery(new StatementCache.Key(sql, resultSetType, resultSetConcurency, false));
+    }
+
+    /**
+     * Start a batch writer which executes the statement for many rows using JDBC batches
+     *
+     * @param sql The native SQL statement
+     * @return a builder of BatchWriter
+     * @see BatchWriter
+     */
+    public BatchWriter.Builder batch(String sql) {
+        return BatchWriter.of(this, sql);
     }
 
     /**
@@ -16,6 +16,8 @@
  */
 package com.qwazr.utils.jdbc.connection;
 
+import com.qwazr.utils.jdbc.QueryProfiler;
+import com.qwazr.utils.jdbc.QueryResultCache;
 import com.qwazr.utils.jdbc.Transaction;
 
 import java.sql.Connection;
@@ -37,6 +39,62 @@ public abstract class ConnectionManager {
 	final static protected Logger logger = Logger.getLogger(ConnectionManager.class
 			.getCanonicalName());
 
+	private volatile QueryProfiler profiler;
+
+	private volatile QueryResultCache resultCache;
+
+	/**
+	 * Set the profiler used by the transactions created after this call
+	 * 
+	 * @param profiler
+	 *            the profiler, or null to stop the profiling
+	 */
+	public void setProfiler(QueryProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * @return the current profiler, or null
+	 */
+	public QueryProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Set the result cache invalidated by the updates of the transactions
+	 * created after this call
+	 * 
+	 * @param resultCache
+	 *            the result cache, or null
+	 */
+	public void setResultCache(QueryResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * @return the current result cache, or null
+	 */
+	public QueryResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Attach the current profiler and result cache to a new transaction
+	 * 
+	 * @param transaction
+	 *            the new transaction
+	 * @return the transaction
+	 */
+	protected Transaction configure(Transaction transaction) {
+		final QueryProfiler currentProfiler = profiler;
+		if (currentProfiler != null)
+			transaction.setProfiler(currentProfiler);
+		final QueryResultCache currentResultCache = resultCache;
+		if (currentResultCache != null)
+			transaction.setResultCache(currentResultCache);
+		return transaction;
+	}
+
 	/**
 	 * Start a new transaction (or/and a new connection).
 	 * 
@@ -0,0 +1,667 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc.connection;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.qwazr.utils.LatencyHistogram;
+import com.qwazr.utils.jdbc.StatementCache;
+import com.qwazr.utils.jdbc.Transaction;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+/**
+ * A connection manager which recycles the database connections.
+ * Closing a Transaction returns its connection to the pool (after a rollback if auto-commit was disabled).
+ * <pre>
+ * final ConnectionPool pool = ConnectionPool.of("jdbc:h2:mem:test", null, null)
+ * 		.minSize(2)
+ * 		.maxSize(20)
+ * 		.borrowTimeout(5, TimeUnit.SECONDS)
+ * 		.build();
+ * try (final Transaction transaction = pool.getNewTransaction()) {
+ * 		...
+ * }
+ * </pre>
+ */
+public class ConnectionPool extends ConnectionManager implements Closeable {
+
+	@FunctionalInterface
+	public interface ConnectionSupplier {
+
+		Connection get() throws SQLException;
+	}
+
+	private final ConnectionSupplier supplier;
+	private final int minSize;
+	private final int maxSize;
+	private final long idleTimeoutNanos;
+	private final long maxLifetimeNanos;
+	private final boolean validateOnBorrow;
+	private final int validationTimeoutSeconds;
+	private final long borrowTimeoutNanos;
+	private final long leakDetectionNanos;
+	private final int statementCacheSize;
+	private final StatementCache.Counters statementCacheCounters;
+
+	private final ReentrantLock lock;
+	private final Condition available;
+	private final ArrayDeque<Entry> idle;
+	private final Set<Lease> leases;
+	private int total;
+	private int waiting;
+	private boolean closed;
+
+	private final LongAdder created;
+	private final LongAdder destroyed;
+	private final LongAdder borrowed;
+	private final LongAdder timeouts;
+	private final LongAdder validationFailures;
+	private final LongAdder leaks;
+	private final LatencyHistogram waitTime;
+
+	private final ScheduledFuture<?> housekeeping;
+
+	private ConnectionPool(final Builder builder) {
+		this.supplier = builder.supplier;
+		this.minSize = builder.minSize;
+		this.maxSize = builder.maxSize;
+		this.idleTimeoutNanos = builder.idleTimeoutNanos;
+		this.maxLifetimeNanos = builder.maxLifetimeNanos;
+		this.validateOnBorrow = builder.validateOnBorrow;
+		this.validationTimeoutSeconds = builder.validationTimeoutSeconds;
+		this.borrowTimeoutNanos = builder.borrowTimeoutNanos;
+		this.leakDetectionNanos = builder.leakDetectionNanos;
+		this.statementCacheSize = builder.statementCacheSize;
+		this.statementCacheCounters = statementCacheSize > 0 ? new StatementCache.Counters() : null;
+		this.lock = new ReentrantLock();
+		this.available = lock.newCondition();
+		this.idle = new ArrayDeque<>();
+		this.leases = new HashSet<>();
+		this.created = new LongAdder();
+		this.destroyed = new LongAdder();
+		this.borrowed = new LongAdder();
+		this.timeouts = new LongAdder();
+		this.validationFailures = new LongAdder();
+		this.leaks = new LongAdder();
+		this.waitTime = new LatencyHistogram();
+		this.housekeeping = Housekeeper.INSTANCE.scheduleWithFixedDelay(this::housekeep, 0,
+				builder.housekeepingPeriodNanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public Transaction getNewTransaction(final boolean autoCommit, final Integer transactionIsolation)
+			throws SQLException {
+		final Lease lease = new Lease(borrow());
+		try {
+			return configure(new PooledTransaction(lease, autoCommit, transactionIsolation));
+		} catch (SQLException | RuntimeException e) {
+			release(lease);
+			throw e;
+		}
+	}
+
+	private Entry borrow() throws SQLException {
+		final long start = System.nanoTime();
+		final long deadline = start + borrowTimeoutNanos;
+		for (; ; ) {
+			Entry entry = null;
+			lock.lock();
+			try {
+				while (entry == null) {
+					if (closed)
+						throw new SQLException("The connection pool is closed");
+					entry = idle.pollLast();
+					if (entry != null)
+						break;
+					if (total < maxSize) {
+						total++;
+						break;
+					}
+					final long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						timeouts.increment();
+						throw new SQLTimeoutException(
+								"No connection available after " + TimeUnit.NANOSECONDS.toMillis(borrowTimeoutNanos) +
+										" ms (active: " + leases.size() + ", max: " + maxSize + ')');
+					}
+					waiting++;
+					try {
+						available.awaitNanos(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a connection", e);
+					} finally {
+						waiting--;
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (entry == null)
+				entry = create();
+			else if (!isUsable(entry)) {
+				destroy(entry);
+				continue;
+			}
+			waitTime.record(System.nanoTime() - start);
+			borrowed.increment();
+			return entry;
+		}
+	}
+
+	/**
+	 * Open a new connection for a slot which has already been counted in the total
+	 */
+	private Entry create() throws SQLException {
+		final Entry entry;
+		Connection connection = null;
+		try {
+			connection = supplier.get();
+			entry = new Entry(connection,
+					statementCacheSize > 0 ? new StatementCache(statementCacheSize, statementCacheCounters) : null);
+		} catch (SQLException | RuntimeException e) {
+			if (connection != null)
+				ConnectionManager.close(null, null, connection);
+			freeSlot();
+			throw e;
+		}
+		created.increment();
+		return entry;
+	}
+
+	private boolean isExpired(final Entry entry, final long now) {
+		return maxLifetimeNanos > 0 && now - entry.createdNanos > maxLifetimeNanos;
+	}
+
+	private boolean isUsable(final Entry entry) {
+		if (isExpired(entry, System.nanoTime()))
+			return false;
+		if (!validateOnBorrow)
+			return true;
+		try {
+			if (entry.connection.isValid(validationTimeoutSeconds))
+				return true;
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, e, e::getMessage);
+		}
+		validationFailures.increment();
+		return false;
+	}
+
+	private void freeSlot() {
+		lock.lock();
+		try {
+			total--;
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void destroy(final Entry entry) {
+		if (entry.statementCache != null)
+			entry.statementCache.close();
+		ConnectionManager.close(null, null, entry.connection);
+		destroyed.increment();
+		freeSlot();
+	}
+
+	private void release(final Lease lease) {
+		final Entry entry = lease.entry;
+		boolean reusable = !isExpired(entry, System.nanoTime());
+		if (reusable) {
+			try {
+				final Connection cnx = entry.connection;
+				if (!cnx.getAutoCommit())
+					cnx.rollback();
+				if (cnx.getTransactionIsolation() != entry.transactionIsolation)
+					cnx.setTransactionIsolation(entry.transactionIsolation);
+				cnx.clearWarnings();
+			} catch (SQLException e) {
+				logger.log(Level.WARNING, e, e::getMessage);
+				reusable = false;
+			}
+		}
+		lock.lock();
+		try {
+			leases.remove(lease);
+			if (reusable && !closed) {
+				entry.lastUsedNanos = System.nanoTime();
+				idle.addLast(entry);
+				available.signal();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		destroy(entry);
+	}
+
+	/**
+	 * Evict the expired and the idle connections, report the leaks, and fill the pool up to the minimum size.
+	 */
+	private void housekeep() {
+		try {
+			final long now = System.nanoTime();
+			final List<Entry> evicted = new ArrayList<>();
+			final List<Lease> leaked = new ArrayList<>();
+			lock.lock();
+			try {
+				// The least recently used connections are at the head of the deque
+				final Iterator<Entry> iterator = idle.iterator();
+				while (iterator.hasNext()) {
+					final Entry entry = iterator.next();
+					if (isExpired(entry, now) || (idleTimeoutNanos > 0 && now - entry.lastUsedNanos > idleTimeoutNanos &&
+							total - evicted.size() > minSize)) {
+						iterator.remove();
+						evicted.add(entry);
+					}
+				}
+				if (leakDetectionNanos > 0)
+					for (final Lease lease : leases)
+						if (!lease.reported && now - lease.borrowedNanos > leakDetectionNanos) {
+							lease.reported = true;
+							leaked.add(lease);
+						}
+			} finally {
+				lock.unlock();
+			}
+			evicted.forEach(this::destroy);
+			for (final Lease lease : leaked) {
+				leaks.increment();
+				logger.log(Level.WARNING, lease.origin,
+						() -> "Connection leak detection: a transaction has not been closed since " +
+								TimeUnit.NANOSECONDS.toMillis(now - lease.borrowedNanos) + " ms");
+			}
+			fill();
+		} catch (RuntimeException e) {
+			logger.log(Level.SEVERE, e, e::getMessage);
+		}
+	}
+
+	private void fill() {
+		for (; ; ) {
+			lock.lock();
+			try {
+				if (closed || total >= minSize)
+					return;
+				total++;
+			} finally {
+				lock.unlock();
+			}
+			final Entry entry;
+			try {
+				entry = create();
+			} catch (SQLException e) {
+				logger.log(Level.WARNING, e, e::getMessage);
+				return;
+			}
+			lock.lock();
+			try {
+				if (!closed) {
+					idle.addFirst(entry);
+					available.signal();
+					continue;
+				}
+			} finally {
+				lock.unlock();
+			}
+			destroy(entry);
+			return;
+		}
+	}
+
+	/**
+	 * Close the idle connections. The active connections are closed when their transaction is closed.
+	 */
+	@Override
+	public void close() {
+		final List<Entry> evicted;
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			evicted = new ArrayList<>(idle);
+			idle.clear();
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		housekeeping.cancel(false);
+		evicted.forEach(this::destroy);
+	}
+
+	/**
+	 * @return the maximum number of open connections
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public Metrics getMetrics() {
+		lock.lock();
+		try {
+			return new Metrics(this);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public static Builder of(final ConnectionSupplier supplier) {
+		return new Builder(supplier);
+	}
+
+	public static Builder of(final DataSource dataSource) {
+		Objects.requireNonNull(dataSource, "The datasource is missing");
+		return of(dataSource::getConnection);
+	}
+
+	public static Builder of(final String url, final String username, final String password) {
+		Objects.requireNonNull(url, "The url is missing");
+		return of(username != null || password != null ?
+				() -> DriverManager.getConnection(url, username, password) :
+				() -> DriverManager.getConnection(url));
+	}
+
+	public static class Builder {
+
+		private final ConnectionSupplier supplier;
+		private int minSize = 0;
+		private int maxSize = 10;
+		private long idleTimeoutNanos = TimeUnit.MINUTES.toNanos(10);
+		private long maxLifetimeNanos = TimeUnit.MINUTES.toNanos(30);
+		private boolean validateOnBorrow = true;
+		private int validationTimeoutSeconds = 5;
+		private long borrowTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+		private long leakDetectionNanos = 0;
+		private long housekeepingPeriodNanos = TimeUnit.SECONDS.toNanos(30);
+		private int statementCacheSize = 0;
+
+		private Builder(final ConnectionSupplier supplier) {
+			this.supplier = Objects.requireNonNull(supplier, "The connection supplier is missing");
+		}
+
+		/**
+		 * @param minSize the number of connections kept open even when they are idle
+		 * @return the current builder
+		 */
+		public Builder minSize(final int minSize) {
+			this.minSize = minSize;
+			return this;
+		}
+
+		/**
+		 * @param maxSize the maximum number of open connections
+		 * @return the current builder
+		 */
+		public Builder maxSize(final int maxSize) {
+			this.maxSize = maxSize;
+			return this;
+		}
+
+		/**
+		 * @param duration the time after which an idle connection is closed (0 disables the eviction)
+		 * @param unit     the time unit of the duration
+		 * @return the current builder
+		 */
+		public Builder idleTimeout(final long duration, final TimeUnit unit) {
+			this.idleTimeoutNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * @param duration the maximum age of a connection (0 means no limit)
+		 * @param unit     the time unit of the duration
+		 * @return the current builder
+		 */
+		public Builder maxLifetime(final long duration, final TimeUnit unit) {
+			this.maxLifetimeNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * @param validateOnBorrow true to check an idle connection with Connection.isValid before lending it
+		 * @return the current builder
+		 */
+		public Builder validateOnBorrow(final boolean validateOnBorrow) {
+			this.validateOnBorrow = validateOnBorrow;
+			return this;
+		}
+
+		/**
+		 * @param seconds the timeout passed to Connection.isValid
+		 * @return the current builder
+		 */
+		public Builder validationTimeout(final int seconds) {
+			this.validationTimeoutSeconds = seconds;
+			return this;
+		}
+
+		/**
+		 * @param duration the maximum time to wait for a connection when the pool is exhausted
+		 * @param unit     the time unit of the duration
+		 * @return the current builder
+		 */
+		public Builder borrowTimeout(final long duration, final TimeUnit unit) {
+			this.borrowTimeoutNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * @param duration the time after which an unclosed transaction is reported as a leak (0 disables the detection)
+		 * @param unit     the time unit of the duration
+		 * @return the current builder
+		 */
+		public Builder leakDetectionThreshold(final long duration, final TimeUnit unit) {
+			this.leakDetectionNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * @param duration the period of the eviction and leak detection task
+		 * @param unit     the time unit of the duration
+		 * @return the current builder
+		 */
+		public Builder housekeepingPeriod(final long duration, final TimeUnit unit) {
+			this.housekeepingPeriodNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * @param statementCacheSize the number of prepared statements cached per connection (0 disables the cache)
+		 * @return the current builder
+		 */
+		public Builder statementCacheSize(final int statementCacheSize) {
+			this.statementCacheSize = statementCacheSize;
+			return this;
+		}
+
+		public ConnectionPool build() {
+			if (maxSize < 1)
+				throw new IllegalArgumentException("The maximum size should be greater than zero");
+			if (minSize < 0 || minSize > maxSize)
+				throw new IllegalArgumentException("The minimum size should be between 0 and the maximum size");
+			if (housekeepingPeriodNanos <= 0)
+				throw new IllegalArgumentException("The housekeeping period should be greater than zero");
+			return new ConnectionPool(this);
+		}
+	}
+
+	private static class Housekeeper {
+
+		private final static ScheduledThreadPoolExecutor INSTANCE;
+
+		static {
+			INSTANCE = new ScheduledThreadPoolExecutor(1, runnable -> {
+				final Thread thread = new Thread(runnable, "ConnectionPool-housekeeper");
+				thread.setDaemon(true);
+				return thread;
+			});
+			INSTANCE.setRemoveOnCancelPolicy(true);
+		}
+	}
+
+	private static final class Entry {
+
+		private final Connection connection;
+		private final StatementCache statementCache;
+		private final int transactionIsolation;
+		private final long createdNanos;
+		private long lastUsedNanos;
+
+		private Entry(final Connection connection, final StatementCache statementCache) throws SQLException {
+			this.connection = connection;
+			this.statementCache = statementCache;
+			this.transactionIsolation = connection.getTransactionIsolation();
+			this.createdNanos = System.nanoTime();
+			this.lastUsedNanos = createdNanos;
+		}
+	}
+
+	private final class Lease {
+
+		private final Entry entry;
+		private final long borrowedNanos;
+		private final Exception origin;
+		private final AtomicBoolean released;
+		private boolean reported;
+
+		private Lease(final Entry entry) {
+			this.entry = entry;
+			this.borrowedNanos = System.nanoTime();
+			this.origin = leakDetectionNanos > 0 ?
+					new Exception("Connection borrowed by " + Thread.currentThread().getName()) :
+					null;
+			this.released = new AtomicBoolean();
+			lock.lock();
+			try {
+				leases.add(this);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private final class PooledTransaction extends Transaction {
+
+		private final Lease lease;
+
+		private PooledTransaction(final Lease lease, final boolean autoCommit, final Integer transactionIsolation)
+				throws SQLException {
+			super(lease.entry.connection, autoCommit, transactionIsolation, lease.entry.statementCache);
+			this.lease = lease;
+		}
+
+		@Override
+		protected void release(final Connection cnx) {
+			if (lease.released.compareAndSet(false, true))
+				ConnectionPool.this.release(lease);
+		}
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class Metrics {
+
+		/**
+		 * The number of open connections (active and idle)
+		 */
+		@JsonProperty("total")
+		final public int total;
+
+		/**
+		 * The number of connections currently used by a transaction
+		 */
+		@JsonProperty("active")
+		final public int active;
+
+		@JsonProperty("idle")
+		final public int idle;
+
+		/**
+		 * The number of threads waiting for a connection
+		 */
+		@JsonProperty("waiting")
+		final public int waiting;
+
+		@JsonProperty("created")
+		final public long created;
+
+		@JsonProperty("destroyed")
+		final public long destroyed;
+
+		@JsonProperty("borrowed")
+		final public long borrowed;
+
+		@JsonProperty("timeouts")
+		final public long timeouts;
+
+		@JsonProperty("validation_failures")
+		final public long validationFailures;
+
+		@JsonProperty("leaks")
+		final public long leaks;
+
+		/**
+		 * The time spent by getNewTransaction to get a connection
+		 */
+		@JsonProperty("wait_time")
+		final public LatencyHistogram.Snapshot waitTime;
+
+		/**
+		 * The statistics of the prepared statement caches, or null if the cache is disabled
+		 */
+		@JsonProperty("statement_cache")
+		final public StatementCache.Statistics statementCache;
+
+		private Metrics(final ConnectionPool pool) {
+			this.active = pool.leases.size();
+			this.idle = pool.idle.size();
+			this.total = active + idle;
+			this.waiting = pool.waiting;
+			this.created = pool.created.sum();
+			this.destroyed = pool.destroyed.sum();
+			this.borrowed = pool.borrowed.sum();
+			this.timeouts = pool.timeouts.sum();
+			this.validationFailures = pool.validationFailures.sum();
+			this.leaks = pool.leaks.sum();
+			this.waitTime = pool.waitTime.getSnapshot();
+			this.statementCache =
+					pool.statementCacheCounters == null ? null : pool.statementCacheCounters.getStatistics();
+		}
+	}
+}
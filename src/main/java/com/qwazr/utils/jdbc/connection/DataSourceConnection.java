@@ -52,8 +52,8 @@ public class DataSourceConnection extends ConnectionManager {
 	@Override
 	public Transaction getNewTransaction(boolean autoCommit,
 			Integer transactionIsolation) throws SQLException {
-		return new Transaction(dataSource.getConnection(), autoCommit,
-				transactionIsolation);
+		return configure(new Transaction(dataSource.getConnection(), autoCommit,
+				transactionIsolation));
 	}
 
 }
@@ -16,6 +16,7 @@
 package com.qwazr.utils.jdbc.connection;
 
 import com.qwazr.utils.ClassLoaderUtils;
+import com.qwazr.utils.jdbc.StatementCache;
 import com.qwazr.utils.jdbc.Transaction;
 
 import java.sql.Connection;
@@ -46,6 +47,10 @@ public class JDBCConnection extends ConnectionManager {
 
 	private String password;
 
+	private int statementCacheSize;
+
+	private final StatementCache.Counters statementCacheCounters = new StatementCache.Counters();
+
 	/**
 	 * The empty constructor. Used for bean compatibility. Parameters can be
 	 * passed using setters.
@@ -98,6 +103,20 @@ public class JDBCConnection extends ConnectionManager {
 		this.password = password;
 	}
 
+	/**
+	 * @param statementCacheSize the number of prepared statements cached by each transaction (0 disables the cache)
+	 */
+	public void setStatementCacheSize(int statementCacheSize) {
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	/**
+	 * @return the cumulated statistics of the statement caches of the transactions
+	 */
+	public StatementCache.Statistics getStatementCacheStatistics() {
+		return statementCacheCounters.getStatistics();
+	}
+
 	@Override
 	public Transaction getNewTransaction(boolean autoCommit, Integer transactionIsolation) throws SQLException {
 		return getNewTransaction(autoCommit, transactionIsolation, null);
@@ -129,7 +148,8 @@ public class JDBCConnection extends ConnectionManager {
 		if (transactionIsolation != null)
 			cnx.setTransactionIsolation(transactionIsolation);
 		cnx.setAutoCommit(autoCommit);
-		return new Transaction(cnx, autoCommit, transactionIsolation);
+		return configure(new Transaction(cnx, autoCommit, transactionIsolation,
+				statementCacheSize > 0 ? new StatementCache(statementCacheSize, statementCacheCounters) : null));
 	}
 
 }
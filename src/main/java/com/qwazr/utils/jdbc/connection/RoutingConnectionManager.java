@@ -0,0 +1,360 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc.connection;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.qwazr.utils.jdbc.Transaction;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Send the read-only transactions to a set of replicas, and everything else to the primary.
+ * <pre>
+ * final RoutingConnectionManager router = RoutingConnectionManager.of(primaryPool)
+ * 		.replica("replica1", replicaPool1)
+ * 		.replica("replica2", replicaPool2)
+ * 		.strategy(RoutingConnectionManager.Strategy.LEAST_IN_FLIGHT)
+ * 		.build();
+ * try (final Transaction transaction = router.getReadOnlyTransaction()) {
+ * 		...
+ * }
+ * </pre>
+ * The usual getNewTransaction methods always use the primary, as the transaction may write.
+ * <p>
+ * A replica which fails to provide a transaction "failureThreshold" times in a row is ejected for "ejectionTime".
+ * After that delay, the replica is tried again, and one more failure ejects it again.
+ * If no replica is available, the read-only transactions go to the primary (unless fallbackToPrimary is disabled).
+ * </p>
+ */
+public class RoutingConnectionManager extends ConnectionManager {
+
+	public enum Strategy {
+
+		/**
+		 * The replica with the smallest number of open transactions
+		 */
+		LEAST_IN_FLIGHT,
+
+		/**
+		 * A random replica, weighted by the inverse of its mean transaction duration and of its open transactions
+		 */
+		LATENCY_WEIGHTED
+	}
+
+	private final ConnectionManager primary;
+	private final List<Replica> replicas;
+	private final Strategy strategy;
+	private final int failureThreshold;
+	private final long ejectionTimeNanos;
+	private final boolean fallbackToPrimary;
+	private final LongAdder primaryFallbacks;
+
+	private RoutingConnectionManager(final Builder builder) {
+		this.primary = builder.primary;
+		final List<Replica> replicaList = new ArrayList<>(builder.names.size());
+		for (int i = 0; i < builder.names.size(); i++)
+			replicaList.add(new Replica(builder.names.get(i), builder.managers.get(i)));
+		this.replicas = Collections.unmodifiableList(replicaList);
+		this.strategy = builder.strategy;
+		this.failureThreshold = builder.failureThreshold;
+		this.ejectionTimeNanos = builder.ejectionTimeNanos;
+		this.fallbackToPrimary = builder.fallbackToPrimary;
+		this.primaryFallbacks = new LongAdder();
+	}
+
+	/**
+	 * Start a new transaction on the primary
+	 *
+	 * @param autoCommit           Enable or disable autocommit
+	 * @param transactionIsolation java.sql.Connection.TRANSACTION..., or null
+	 * @return a new Transaction object
+	 * @throws SQLException if any JDBC error occurs
+	 */
+	@Override
+	public Transaction getNewTransaction(final boolean autoCommit, final Integer transactionIsolation)
+			throws SQLException {
+		return configure(primary.getNewTransaction(autoCommit, transactionIsolation));
+	}
+
+	/**
+	 * Start a new read-only transaction (autocommit enabled) on a replica
+	 *
+	 * @return a new Transaction object
+	 * @throws SQLException if no replica nor the primary can provide a transaction
+	 */
+	public Transaction getReadOnlyTransaction() throws SQLException {
+		return getReadOnlyTransaction(null);
+	}
+
+	/**
+	 * Start a new read-only transaction (autocommit enabled) on a replica
+	 *
+	 * @param transactionIsolation java.sql.Connection.TRANSACTION..., or null
+	 * @return a new Transaction object
+	 * @throws SQLException if no replica nor the primary can provide a transaction
+	 */
+	public Transaction getReadOnlyTransaction(final Integer transactionIsolation) throws SQLException {
+		final List<Replica> candidates = new ArrayList<>(replicas.size());
+		final long now = System.nanoTime();
+		for (final Replica replica : replicas)
+			if (replica.isAvailable(now))
+				candidates.add(replica);
+		SQLException lastError = null;
+		while (!candidates.isEmpty()) {
+			final Replica replica = choose(candidates);
+			try {
+				return configure(replica.getTransaction(transactionIsolation));
+			} catch (SQLException e) {
+				replica.failed();
+				if (logger.isLoggable(Level.WARNING))
+					logger.warning("Replica " + replica.name + " failed: " + e.getMessage());
+				candidates.remove(replica);
+				lastError = e;
+			}
+		}
+		if (!fallbackToPrimary)
+			throw lastError != null ? lastError : new SQLException("No replica available");
+		primaryFallbacks.increment();
+		return getNewTransaction(true, transactionIsolation);
+	}
+
+	private Replica choose(final List<Replica> candidates) {
+		if (candidates.size() == 1)
+			return candidates.get(0);
+		switch (strategy) {
+		case LATENCY_WEIGHTED:
+			final double[] weights = new double[candidates.size()];
+			double total = 0;
+			for (int i = 0; i < weights.length; i++) {
+				final Replica replica = candidates.get(i);
+				// One microsecond is added, so the replicas never used are not infinitely favored
+				weights[i] = 1.0d / ((replica.meanNanos + 1000.0d) * (replica.inFlight.get() + 1));
+				total += weights[i];
+			}
+			double random = ThreadLocalRandom.current().nextDouble(total);
+			for (int i = 0; i < weights.length; i++) {
+				random -= weights[i];
+				if (random < 0)
+					return candidates.get(i);
+			}
+			return candidates.get(weights.length - 1);
+		case LEAST_IN_FLIGHT:
+		default:
+			// The scan starts at a random position to spread the load between equal replicas
+			final int start = ThreadLocalRandom.current().nextInt(candidates.size());
+			Replica best = null;
+			for (int i = 0; i < candidates.size(); i++) {
+				final Replica replica = candidates.get((start + i) % candidates.size());
+				if (best == null || replica.inFlight.get() < best.inFlight.get())
+					best = replica;
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * @return the current state of the replicas
+	 */
+	public List<ReplicaStatus> getReplicaStatus() {
+		final long now = System.nanoTime();
+		final List<ReplicaStatus> list = new ArrayList<>(replicas.size());
+		replicas.forEach(replica -> list.add(new ReplicaStatus(replica, now)));
+		return list;
+	}
+
+	/**
+	 * @return the number of read-only transactions sent to the primary because no replica was available
+	 */
+	public long getPrimaryFallbackCount() {
+		return primaryFallbacks.sum();
+	}
+
+	private final class Replica {
+
+		private final String name;
+		private final ConnectionManager connectionManager;
+		private final AtomicInteger inFlight;
+		private final AtomicInteger consecutiveFailures;
+		private final LongAdder transactions;
+		private final LongAdder failures;
+		private final LongAdder ejections;
+		private volatile long ejectedUntil;
+		private volatile boolean ejected;
+		private volatile double meanNanos;
+
+		private Replica(final String name, final ConnectionManager connectionManager) {
+			this.name = name;
+			this.connectionManager = connectionManager;
+			this.inFlight = new AtomicInteger();
+			this.consecutiveFailures = new AtomicInteger();
+			this.transactions = new LongAdder();
+			this.failures = new LongAdder();
+			this.ejections = new LongAdder();
+		}
+
+		private boolean isAvailable(final long now) {
+			return !ejected || now - ejectedUntil >= 0;
+		}
+
+		private Transaction getTransaction(final Integer transactionIsolation) throws SQLException {
+			final Transaction transaction = connectionManager.getNewTransaction(true, transactionIsolation);
+			consecutiveFailures.set(0);
+			ejected = false;
+			transactions.increment();
+			inFlight.incrementAndGet();
+			final long start = System.nanoTime();
+			transaction.addCloseListener(() -> {
+				inFlight.decrementAndGet();
+				// Exponentially weighted moving average of the transaction duration
+				final double duration = System.nanoTime() - start;
+				final double mean = meanNanos;
+				meanNanos = mean == 0 ? duration : mean * 0.8d + duration * 0.2d;
+			});
+			return transaction;
+		}
+
+		private void failed() {
+			failures.increment();
+			if (consecutiveFailures.incrementAndGet() < failureThreshold)
+				return;
+			ejectedUntil = System.nanoTime() + ejectionTimeNanos;
+			ejected = true;
+			ejections.increment();
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("Replica " + name + " ejected for " + TimeUnit.NANOSECONDS.toMillis(ejectionTimeNanos) +
+						" ms");
+		}
+	}
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public static class ReplicaStatus {
+
+		@JsonProperty("name")
+		final public String name;
+
+		@JsonProperty("ejected")
+		final public boolean ejected;
+
+		@JsonProperty("in_flight")
+		final public int inFlight;
+
+		@JsonProperty("transactions")
+		final public long transactions;
+
+		@JsonProperty("failures")
+		final public long failures;
+
+		@JsonProperty("ejections")
+		final public long ejections;
+
+		/**
+		 * The moving average of the duration of the transactions
+		 */
+		@JsonProperty("mean_nanos")
+		final public long meanNanos;
+
+		private ReplicaStatus(final Replica replica, final long now) {
+			this.name = replica.name;
+			this.ejected = !replica.isAvailable(now);
+			this.inFlight = replica.inFlight.get();
+			this.transactions = replica.transactions.sum();
+			this.failures = replica.failures.sum();
+			this.ejections = replica.ejections.sum();
+			this.meanNanos = (long) replica.meanNanos;
+		}
+	}
+
+	public static Builder of(final ConnectionManager primary) {
+		return new Builder(primary);
+	}
+
+	public static class Builder {
+
+		private final ConnectionManager primary;
+		private final List<String> names;
+		private final List<ConnectionManager> managers;
+		private Strategy strategy = Strategy.LEAST_IN_FLIGHT;
+		private int failureThreshold = 3;
+		private long ejectionTimeNanos = TimeUnit.SECONDS.toNanos(30);
+		private boolean fallbackToPrimary = true;
+
+		private Builder(final ConnectionManager primary) {
+			this.primary = Objects.requireNonNull(primary, "The primary is missing");
+			this.names = new ArrayList<>();
+			this.managers = new ArrayList<>();
+		}
+
+		/**
+		 * @param name              the name of the replica, used in the logs and the status
+		 * @param connectionManager the connection manager of the replica
+		 * @return the current builder
+		 */
+		public Builder replica(final String name, final ConnectionManager connectionManager) {
+			names.add(Objects.requireNonNull(name, "The name is missing"));
+			managers.add(Objects.requireNonNull(connectionManager, "The connection manager is missing"));
+			return this;
+		}
+
+		public Builder strategy(final Strategy strategy) {
+			this.strategy = Objects.requireNonNull(strategy, "The strategy is missing");
+			return this;
+		}
+
+		/**
+		 * @param failureThreshold the number of consecutive failures which ejects a replica
+		 * @return the current builder
+		 */
+		public Builder failureThreshold(final int failureThreshold) {
+			if (failureThreshold < 1)
+				throw new IllegalArgumentException("The failure threshold should be greater than zero");
+			this.failureThreshold = failureThreshold;
+			return this;
+		}
+
+		/**
+		 * @param duration the time during which an ejected replica is not used
+		 * @param unit     the time unit of the duration
+		 * @return the current builder
+		 */
+		public Builder ejectionTime(final long duration, final TimeUnit unit) {
+			this.ejectionTimeNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * @param fallbackToPrimary false to throw an SQLException when no replica is available
+		 * @return the current builder
+		 */
+		public Builder fallbackToPrimary(final boolean fallbackToPrimary) {
+			this.fallbackToPrimary = fallbackToPrimary;
+			return this;
+		}
+
+		public RoutingConnectionManager build() {
+			return new RoutingConnectionManager(this);
+		}
+	}
+}
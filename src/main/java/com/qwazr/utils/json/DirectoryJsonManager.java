@@ -21,16 +21,43 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InterruptedIOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Keep a set of instances stored as JSON files in a directory.
+ * <p>
+ * The files are written atomically (temporary file and rename). The disk I/O happens after the write lock is released:
+ * the concurrent calls to set and delete are grouped in batches, with one synchronization of the directory per batch.
+ * With the SYNC durability, set and delete return once the file is on the disk. With ASYNC, they return once the
+ * instance is updated in memory, and {@link #flush()} waits for the pending writes.
+ * </p>
+ *
+ * @param <T> the type of the instances
+ */
 public class DirectoryJsonManager<T> {
 
+    public enum Durability {
+
+        /**
+         * The call returns when the file is written and synchronized
+         */
+        SYNC,
+
+        /**
+         * The call returns when the instance is updated in memory, the file is written in background
+         */
+        ASYNC
+    }
+
     private final ReadWriteLock rwl = new ReentrantReadWriteLock();
 
     protected final File directory;
@@ -41,13 +68,26 @@ public class DirectoryJsonManager<T> {
 
     private final Class<T> instanceClass;
 
-    protected DirectoryJsonManager(File directory, Class<T> instanceClass) throws IOException {
+    private final Durability durability;
+
+    private final GroupCommit groupCommit;
+
+    private final Map<String, CompletableFuture<Long>> pendingWrites;
+
+    protected DirectoryJsonManager(File directory, Class<T> instanceClass, Durability durability) throws IOException {
         this.instanceClass = instanceClass;
         this.directory = directory;
+        this.durability = durability;
         this.instancesMap = new LinkedHashMap<>();
+        this.groupCommit = new GroupCommit(directory.toPath());
+        this.pendingWrites = new ConcurrentHashMap<>();
         load();
     }
 
+    protected DirectoryJsonManager(File directory, Class<T> instanceClass) throws IOException {
+        this(directory, instanceClass, Durability.SYNC);
+    }
+
     private File getFile(String name) {
         return new File(directory, name + ".json");
     }
@@ -76,19 +116,79 @@ public class DirectoryJsonManager<T> {
         instancesCache = new LinkedHashMap<>(instancesMap);
     }
 
+    /**
+     * Queue the operation. Must be called with the write lock, so the operations are queued in the memory order.
+     */
+    private CompletableFuture<Long> enqueue(final String name, final byte[] content) {
+        final CompletableFuture<Long> done = groupCommit.enqueue(getFile(name).toPath(), content);
+        pendingWrites.put(name, done);
+        done.whenComplete((lastModified, error) -> committed(name, done, lastModified));
+        return done;
+    }
+
+    /**
+     * Once the file is written, its last modified time is used to detect the external changes
+     */
+    private void committed(final String name, final CompletableFuture<Long> done, final Long lastModified) {
+        rwl.writeLock().lock();
+        try {
+            if (!pendingWrites.remove(name, done))
+                return;
+            final Pair<Long, T> item = instancesMap.get(name);
+            if (item != null && lastModified != null) {
+                put(name, lastModified, item.getRight());
+                buildCache();
+            }
+        } finally {
+            rwl.writeLock().unlock();
+        }
+    }
+
+    private void commit(final CompletableFuture<Long> done, final Durability durability) throws IOException {
+        groupCommit.drain(durability == Durability.ASYNC);
+        if (durability == Durability.SYNC)
+            await(done);
+    }
+
+    private static void await(final CompletableFuture<Long> done) throws IOException {
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Wait until the files of the previous calls to set and delete are written
+     *
+     * @throws IOException if the last write failed
+     */
+    protected void flush() throws IOException {
+        await(groupCommit.getLast());
+    }
+
     protected T delete(String name) throws IOException {
         if (StringUtils.isEmpty(name))
             return null;
         name = name.intern();
+        final Pair<Long, T> instance;
+        final CompletableFuture<Long> done;
         rwl.writeLock().lock();
         try {
-            Files.deleteIfExists(getFile(name).toPath());
-            Pair<Long, T> instance = instancesMap.remove(name);
+            instance = instancesMap.remove(name);
             buildCache();
-            return instance.getRight();
+            done = enqueue(name, null);
         } finally {
             rwl.writeLock().unlock();
         }
+        commit(done, durability);
+        return instance == null ? null : instance.getRight();
     }
 
     private Pair<Long, T> put(String name, long lastModified, T instance) {
@@ -99,23 +199,40 @@ public class DirectoryJsonManager<T> {
     }
 
     protected void set(String name, T instance) throws IOException {
+        set(name, instance, durability);
+    }
+
+    /**
+     * @param name       the name of the instance
+     * @param instance   the instance to store
+     * @param durability SYNC to return once the file is on the disk
+     * @throws IOException if the instance cannot be serialized or (with SYNC) if the file cannot be written
+     */
+    protected void set(String name, T instance, Durability durability) throws IOException {
         if (instance == null)
             return;
         if (StringUtils.isEmpty(name))
             return;
+        name = name.intern();
+        final byte[] content = ObjectMappers.JSON.writeValueAsBytes(instance);
+        final CompletableFuture<Long> done;
         rwl.writeLock().lock();
         try {
-            File destFile = getFile(name);
-            ObjectMappers.JSON.writeValue(destFile, instance);
-            put(name, destFile.lastModified(), instance);
+            // The time is known when the file is written
+            put(name, -1L, instance);
             buildCache();
+            done = enqueue(name, content);
         } finally {
             rwl.writeLock().unlock();
         }
+        commit(done, durability);
     }
 
     private T getNoLock(File file, String name, AtomicBoolean mustBeEvaluated) throws IOException {
         Pair<Long, T> item = instancesCache.get(name);
+        // The file is not written yet, the memory is up to date
+        if (pendingWrites.containsKey(name))
+            return item == null ? null : item.getRight();
         long lastModified = file.lastModified();
         if (file.exists()) {
             if (item != null && item.getLeft() == lastModified)
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.json;
+
+import com.qwazr.utils.FileUtils;
+import com.qwazr.utils.LoggerUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write the files of one directory by batches. The first writer becomes the leader: it writes the pending files
+ * (each one atomically), then synchronizes the directory once for the whole batch. The operations queued meanwhile
+ * go to the next batch. A synchronous leader only commits its own batch, the next batches are handed over
+ * to a background thread, so the latency of a caller stays bounded.
+ */
+class GroupCommit {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(GroupCommit.class);
+
+    private final static ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "GroupCommit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path directory;
+    private final ReentrantLock lock;
+    private List<Operation> pending;
+    private boolean leading;
+    private CompletableFuture<Long> last;
+
+    GroupCommit(final Path directory) {
+        this.directory = directory;
+        this.lock = new ReentrantLock();
+        this.pending = new ArrayList<>();
+        this.last = CompletableFuture.completedFuture(0L);
+    }
+
+    private final static class Operation {
+
+        private final Path file;
+        private final byte[] content;
+        private final CompletableFuture<Long> done;
+
+        private Operation(final Path file, final byte[] content) {
+            this.file = file;
+            this.content = content;
+            this.done = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * Queue a write or a delete. The operations are applied in the order of the calls. The operation is committed by
+     * the next call to {@link #drain(boolean)}.
+     *
+     * @param file    the file to write
+     * @param content the content of the file, or null to delete the file
+     * @return a future completed with the last modified time of the file once it is durable
+     */
+    CompletableFuture<Long> enqueue(final Path file, final byte[] content) {
+        final Operation operation = new Operation(file, content);
+        lock.lock();
+        try {
+            pending.add(operation);
+            last = operation.done;
+        } finally {
+            lock.unlock();
+        }
+        return operation.done;
+    }
+
+    /**
+     * Commit the queued operations, unless a leader is already doing it.
+     *
+     * @param async false if the current thread may lead the commit
+     */
+    void drain(final boolean async) {
+        lock.lock();
+        try {
+            if (leading)
+                return;
+            leading = true;
+        } finally {
+            lock.unlock();
+        }
+        if (async)
+            EXECUTOR.execute(this::lead);
+        else {
+            // The batch contains the operations of the caller. If there was nothing to commit, the leadership has
+            // already been released and may belong to another thread.
+            if (commitNext())
+                release();
+        }
+    }
+
+    /**
+     * @return a future completed when all the operations submitted so far are durable
+     */
+    CompletableFuture<Long> getLast() {
+        lock.lock();
+        try {
+            return last;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give up the leadership, unless some operations arrived meanwhile
+     */
+    private void release() {
+        lock.lock();
+        try {
+            if (pending.isEmpty()) {
+                leading = false;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        EXECUTOR.execute(this::lead);
+    }
+
+    private void lead() {
+        while (commitNext())
+            ;
+    }
+
+    /**
+     * @return false if there was nothing to commit (the leadership is then released)
+     */
+    private boolean commitNext() {
+        final List<Operation> batch;
+        lock.lock();
+        try {
+            if (pending.isEmpty()) {
+                leading = false;
+                return false;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        commit(batch);
+        return true;
+    }
+
+    private void commit(final List<Operation> batch) {
+        // Only the last operation on a file is applied
+        final Map<Path, Operation> operations = new LinkedHashMap<>();
+        for (final Operation operation : batch)
+            operations.put(operation.file, operation);
+        final Map<Path, Object> results = new LinkedHashMap<>();
+        for (final Operation operation : operations.values()) {
+            try {
+                if (operation.content == null) {
+                    Files.deleteIfExists(operation.file);
+                    results.put(operation.file, 0L);
+                } else {
+                    FileUtils.writeAtomically(operation.file, temp -> Files.write(temp, operation.content), true);
+                    results.put(operation.file, Files.getLastModifiedTime(operation.file).toMillis());
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.SEVERE, e, () -> "Cannot write " + operation.file);
+                results.put(operation.file, e);
+            }
+        }
+        // One synchronization of the directory for the whole batch
+        FileUtils.fsyncDirectory(directory);
+        for (final Operation operation : batch) {
+            final Object result = results.get(operation.file);
+            if (result instanceof Throwable)
+                operation.done.completeExceptionally((Throwable) result);
+            else
+                operation.done.complete((Long) result);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.json;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Extract a few values from a document without parsing the whole document. The expressions are compiled once, the
+ * document is scanned with the streaming parser, the subtrees which do not contain any expression are skipped, and
+ * the scan stops as soon as every expression has been found.
+ * <pre>
+ * final JsonExtractor extractor = JsonExtractor.of()
+ * 		.pointer("/user/name")
+ * 		.path("$.items[0].price")
+ * 		.build();
+ * extractor.extract(ObjectMappers.JSON, input, (expression, value) -&gt; ...);
+ * </pre>
+ * The pointers follow the RFC 6901 (a numeric segment matches a property or an array index). The paths support the
+ * dot notation, the bracket notation with a quoted name, and the array indexes: <code>$.a.b[2]['c.d']</code>.
+ * When a path and a pointer overlap on a numeric segment, they share the location: the path then also matches the
+ * property, or the array index, matched by the pointer.
+ * Only the first root value of the document is read. The extractor is thread-safe, and works with any mapper of
+ * ObjectMappers (JSON, SMILE, ...).
+ */
+public class JsonExtractor {
+
+	private final Node root;
+	private final int targetCount;
+	private final List<String> expressions;
+
+	private JsonExtractor(final Builder builder) {
+		this.root = builder.root;
+		this.targetCount = root.countTargets(Collections.newSetFromMap(new IdentityHashMap<>()));
+		this.expressions = new ArrayList<>(builder.expressions);
+	}
+
+	/**
+	 * @return the number of distinct locations matched by the expressions
+	 */
+	public int getTargetCount() {
+		return targetCount;
+	}
+
+	/**
+	 * Scan the document and send each value found to the consumer
+	 *
+	 * @param mapper   the mapper (JSON, SMILE, ...)
+	 * @param input    the document, which is not closed
+	 * @param consumer receive the expression (as given to the builder) and the value
+	 * @return the number of expressions found
+	 * @throws IOException if the document cannot be read
+	 */
+	public int extract(final ObjectMapper mapper, final InputStream input,
+			final BiConsumer<String, JsonNode> consumer) throws IOException {
+		try (final JsonParser parser = mapper.getFactory().createParser(input)) {
+			parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+			return extract(mapper, parser, consumer);
+		}
+	}
+
+	/**
+	 * @param mapper   the mapper (JSON, SMILE, ...)
+	 * @param bytes    the document
+	 * @param consumer receive the expression (as given to the builder) and the value
+	 * @return the number of expressions found
+	 * @throws IOException if the document cannot be read
+	 * @see #extract(ObjectMapper, InputStream, BiConsumer)
+	 */
+	public int extract(final ObjectMapper mapper, final byte[] bytes, final BiConsumer<String, JsonNode> consumer)
+			throws IOException {
+		try (final JsonParser parser = mapper.getFactory().createParser(bytes)) {
+			return extract(mapper, parser, consumer);
+		}
+	}
+
+	/**
+	 * @param mapper the mapper (JSON, SMILE, ...)
+	 * @param input  the document, which is not closed
+	 * @return the values found, by expression, in the order of the builder
+	 * @throws IOException if the document cannot be read
+	 */
+	public Map<String, JsonNode> extract(final ObjectMapper mapper, final InputStream input) throws IOException {
+		final Map<String, JsonNode> values = new HashMap<>();
+		extract(mapper, input, values::put);
+		return ordered(values);
+	}
+
+	/**
+	 * @param mapper the mapper (JSON, SMILE, ...)
+	 * @param bytes  the document
+	 * @return the values found, by expression, in the order of the builder
+	 * @throws IOException if the document cannot be read
+	 */
+	public Map<String, JsonNode> extract(final ObjectMapper mapper, final byte[] bytes) throws IOException {
+		final Map<String, JsonNode> values = new HashMap<>();
+		extract(mapper, bytes, values::put);
+		return ordered(values);
+	}
+
+	private Map<String, JsonNode> ordered(final Map<String, JsonNode> values) {
+		final Map<String, JsonNode> map = new LinkedHashMap<>();
+		for (final String expression : expressions) {
+			final JsonNode value = values.get(expression);
+			if (value != null)
+				map.put(expression, value);
+		}
+		return map;
+	}
+
+	private int extract(final ObjectMapper mapper, final JsonParser parser,
+			final BiConsumer<String, JsonNode> consumer) throws IOException {
+		if (parser.nextToken() == null)
+			return 0;
+		final Scan scan = new Scan(mapper, parser, consumer);
+		scan.visit(root);
+		return scan.found;
+	}
+
+	/**
+	 * The state of one extraction
+	 */
+	private final class Scan {
+
+		private final ObjectMapper mapper;
+		private final JsonParser parser;
+		private final BiConsumer<String, JsonNode> consumer;
+		private int remaining;
+		private int found;
+
+		private Scan(final ObjectMapper mapper, final JsonParser parser, final BiConsumer<String, JsonNode> consumer) {
+			this.mapper = mapper;
+			this.parser = parser;
+			this.consumer = consumer;
+			this.remaining = targetCount;
+		}
+
+		/**
+		 * Visit the value at the current token
+		 *
+		 * @return true when every target has been found
+		 */
+		private boolean visit(final Node node) throws IOException {
+			if (!node.expressions.isEmpty()) {
+				// The value is needed: the tree of the value also gives the descendant targets
+				deliver(node, mapper.readTree(parser));
+				return remaining == 0;
+			}
+			final JsonToken token = parser.currentToken();
+			if (token == JsonToken.START_OBJECT && node.names != null) {
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					final Node child = node.names.get(parser.getCurrentName());
+					parser.nextToken();
+					if (child == null)
+						parser.skipChildren();
+					else if (visit(child))
+						return true;
+				}
+			} else if (token == JsonToken.START_ARRAY && node.indexes != null) {
+				int index = 0;
+				while (parser.nextToken() != JsonToken.END_ARRAY) {
+					final Node child = node.indexes.get(index++);
+					if (child == null)
+						parser.skipChildren();
+					else if (visit(child))
+						return true;
+				}
+			} else
+				parser.skipChildren();
+			return false;
+		}
+
+		private void deliver(final Node node, final JsonNode value) {
+			if (value == null || value.isMissingNode())
+				return;
+			if (!node.expressions.isEmpty()) {
+				remaining--;
+				for (final String expression : node.expressions) {
+					consumer.accept(expression, value);
+					found++;
+				}
+			}
+			if (node.names != null && value.isObject())
+				node.names.forEach((name, child) -> deliver(child, value.get(name)));
+			if (node.indexes != null && value.isArray())
+				node.indexes.forEach((index, child) -> deliver(child, value.get(index)));
+		}
+	}
+
+	/**
+	 * A node of the tree of the compiled expressions
+	 */
+	private static final class Node {
+
+		private final List<String> expressions = new ArrayList<>(1);
+		private Map<String, Node> names;
+		private Map<Integer, Node> indexes;
+
+		private Node name(final String name) {
+			if (names == null)
+				names = new HashMap<>();
+			return names.computeIfAbsent(name, n -> new Node());
+		}
+
+		private Node index(final int index) {
+			if (indexes == null)
+				indexes = new HashMap<>();
+			return indexes.computeIfAbsent(index, i -> new Node());
+		}
+
+		/**
+		 * A numeric segment of a pointer matches both a property name and an array index: the two edges share the
+		 * same node, the nodes already registered on each edge are merged.
+		 */
+		private Node nameOrIndex(final String name, final int index) {
+			return share(name, index, null);
+		}
+
+		/**
+		 * Point the name edge and the index edge to the same node, after merging the nodes of both edges and the
+		 * given node
+		 */
+		private Node share(final String name, final int index, final Node other) {
+			if (names == null)
+				names = new HashMap<>();
+			if (indexes == null)
+				indexes = new HashMap<>();
+			final Node byName = names.get(name);
+			final Node byIndex = indexes.get(index);
+			final Node node = byName != null ? byName.merge(byIndex) : byIndex != null ? byIndex : other;
+			final Node child = node == null ? new Node() : node.merge(other);
+			names.put(name, child);
+			indexes.put(index, child);
+			return child;
+		}
+
+		/**
+		 * Move the expressions and the children of the other node into this node. A child shared by a name edge
+		 * and an index edge of the other node is merged once, and stays shared.
+		 */
+		private Node merge(final Node other) {
+			if (other == null || other == this)
+				return this;
+			for (final String expression : other.expressions)
+				if (!expressions.contains(expression))
+					expressions.add(expression);
+			final Set<Node> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+			if (other.indexes != null)
+				other.indexes.forEach((index, child) -> {
+					final String name = index.toString();
+					if (other.names != null && other.names.get(name) == child) {
+						shared.add(child);
+						share(name, index, child);
+					} else {
+						if (indexes == null)
+							indexes = new HashMap<>();
+						indexes.merge(index, child, Node::merge);
+					}
+				});
+			if (other.names != null)
+				other.names.forEach((name, child) -> {
+					if (shared.contains(child))
+						return;
+					if (names == null)
+						names = new HashMap<>();
+					names.merge(name, child, Node::merge);
+				});
+			return this;
+		}
+
+		/**
+		 * Count the distinct nodes having expressions (a node can be reached by two edges)
+		 */
+		private int countTargets(final Set<Node> visited) {
+			if (!visited.add(this))
+				return 0;
+			int count = expressions.isEmpty() ? 0 : 1;
+			if (names != null)
+				for (final Node child : names.values())
+					count += child.countTargets(visited);
+			if (indexes != null)
+				for (final Node child : indexes.values())
+					count += child.countTargets(visited);
+			return count;
+		}
+	}
+
+	/**
+	 * Split a path expression into its segments: a String for a name, an Integer for an array index
+	 */
+	static List<Object> parsePath(final String path) {
+		final List<Object> segments = new ArrayList<>();
+		final int length = path.length();
+		int i = path.startsWith("$") ? 1 : 0;
+		boolean first = true;
+		while (i < length) {
+			final char c = path.charAt(i);
+			if (c == '[') {
+				final int end = path.indexOf(']', i);
+				if (end < 0)
+					throw new IllegalArgumentException("Missing ']' in the path: " + path);
+				final String content = path.substring(i + 1, end).trim();
+				if (content.length() >= 2 && (content.charAt(0) == '\'' || content.charAt(0) == '"') &&
+						content.charAt(content.length() - 1) == content.charAt(0))
+					segments.add(content.substring(1, content.length() - 1));
+				else {
+					try {
+						final int index = Integer.parseInt(content);
+						if (index < 0)
+							throw new IllegalArgumentException("Negative index in the path: " + path);
+						segments.add(index);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Wrong index in the path: " + path, e);
+					}
+				}
+				i = end + 1;
+			} else {
+				if (c == '.')
+					i++;
+				else if (!first)
+					throw new IllegalArgumentException("Unexpected character '" + c + "' in the path: " + path);
+				int end = i;
+				while (end < length && path.charAt(end) != '.' && path.charAt(end) != '[')
+					end++;
+				if (end == i)
+					throw new IllegalArgumentException("Empty name in the path: " + path);
+				segments.add(path.substring(i, end));
+				i = end;
+			}
+			first = false;
+		}
+		return segments;
+	}
+
+	public static Builder of() {
+		return new Builder();
+	}
+
+	public static class Builder {
+
+		private final Node root = new Node();
+		private final List<String> expressions = new ArrayList<>();
+
+		private void add(final Node node, final String expression) {
+			if (node.expressions.contains(expression))
+				return;
+			node.expressions.add(expression);
+			expressions.add(expression);
+		}
+
+		/**
+		 * @param pointer a JSON pointer (RFC 6901), like "/items/0/price"
+		 * @return the current builder
+		 * @throws IllegalArgumentException if the pointer is not valid
+		 */
+		public Builder pointer(final String pointer) {
+			Objects.requireNonNull(pointer, "The pointer is missing");
+			Node node = root;
+			for (JsonPointer segment = JsonPointer.compile(pointer); !segment.matches(); segment = segment.tail()) {
+				final int index = segment.getMatchingIndex();
+				node = index >= 0 ?
+						node.nameOrIndex(segment.getMatchingProperty(), index) :
+						node.name(segment.getMatchingProperty());
+			}
+			add(node, pointer);
+			return this;
+		}
+
+		/**
+		 * @param path a path, like "$.items[0].price" or "items[0]['unit.price']"
+		 * @return the current builder
+		 * @throws IllegalArgumentException if the path is not valid
+		 */
+		public Builder path(final String path) {
+			Objects.requireNonNull(path, "The path is missing");
+			Node node = root;
+			for (final Object segment : parsePath(path))
+				node = segment instanceof Integer ? node.index((Integer) segment) : node.name((String) segment);
+			add(node, path);
+			return this;
+		}
+
+		public JsonExtractor build() {
+			return new JsonExtractor(this);
+		}
+	}
+}
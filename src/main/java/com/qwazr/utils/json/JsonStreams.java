@@ -0,0 +1,284 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.json;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.qwazr.utils.ObjectMappers;
+import com.qwazr.utils.inputstream.MappedFileInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazy readers for the files which do not fit in memory: a large array, or a sequence of root values (NDJSON).
+ * The elements are parsed one at a time, the returned streams should be closed to release the input.
+ * <pre>
+ * try (final Stream&lt;Item&gt; items = JsonStreams.readArray(ObjectMappers.JSON, Item.class, path)) {
+ * 		items.forEach(...);
+ * }
+ * </pre>
+ * The methods taking a Path read the file through memory mapped regions.
+ * The I/O errors met while the stream is consumed are thrown as UncheckedIOException.
+ */
+public class JsonStreams {
+
+	/**
+	 * The minimum size of a range of the file read by one task of readLinesParallel
+	 */
+	public final static long DEFAULT_MIN_SPLIT_SIZE = 1024 * 1024;
+
+	/**
+	 * Read the elements of a root array
+	 *
+	 * @param mapper the mapper (JSON, SMILE, ...)
+	 * @param type   the type of the elements
+	 * @param input  the input, closed when the stream is closed
+	 * @param <T>    the type of the elements
+	 * @return a sequential stream of the elements
+	 * @throws IOException if the input does not start with an array
+	 */
+	public static <T> Stream<T> readArray(final ObjectMapper mapper, final Class<T> type, final InputStream input)
+			throws IOException {
+		final ObjectReader reader = ObjectMappers.codec(mapper, type).getReader();
+		final JsonParser parser = mapper.getFactory().createParser(input);
+		try {
+			if (parser.nextToken() != JsonToken.START_ARRAY)
+				throw new JsonParseException(parser, "An array is expected");
+		} catch (IOException e) {
+			parser.close();
+			throw e;
+		}
+		return StreamSupport.stream(new ArraySpliterator<T>(parser, reader), false).onClose(() -> close(parser));
+	}
+
+	/**
+	 * @param mapper the mapper (JSON, SMILE, ...)
+	 * @param type   the type of the elements
+	 * @param file   the file to read
+	 * @param <T>    the type of the elements
+	 * @return a sequential stream of the elements
+	 * @throws IOException if the file cannot be opened or does not start with an array
+	 * @see #readArray(ObjectMapper, Class, InputStream)
+	 */
+	public static <T> Stream<T> readArray(final ObjectMapper mapper, final Class<T> type, final Path file)
+			throws IOException {
+		return readArray(mapper, type, new MappedFileInputStream(file));
+	}
+
+	/**
+	 * Read a sequence of root values, like NDJSON (one JSON object per line)
+	 *
+	 * @param mapper the mapper (JSON, SMILE, ...)
+	 * @param type   the type of the values
+	 * @param input  the input, closed when the stream is closed
+	 * @param <T>    the type of the values
+	 * @return a sequential stream of the values
+	 * @throws IOException if the input cannot be read
+	 */
+	public static <T> Stream<T> readLines(final ObjectMapper mapper, final Class<T> type, final InputStream input)
+			throws IOException {
+		final MappingIterator<T> iterator = ObjectMappers.codec(mapper, type).getReader().readValues(input);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+				Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(() -> close(iterator));
+	}
+
+	/**
+	 * @param mapper the mapper (JSON, SMILE, ...)
+	 * @param type   the type of the values
+	 * @param file   the file to read
+	 * @param <T>    the type of the values
+	 * @return a sequential stream of the values
+	 * @throws IOException if the file cannot be opened
+	 * @see #readLines(ObjectMapper, Class, InputStream)
+	 */
+	public static <T> Stream<T> readLines(final ObjectMapper mapper, final Class<T> type, final Path file)
+			throws IOException {
+		return readLines(mapper, type, new MappedFileInputStream(file));
+	}
+
+	/**
+	 * Read a NDJSON file using the common ForkJoinPool. The file is split at newline boundaries,
+	 * each range is parsed by its own task. The values must not contain any raw newline (as required by NDJSON),
+	 * therefore only the textual formats are supported.
+	 *
+	 * @param mapper the mapper (JSON)
+	 * @param type   the type of the values
+	 * @param file   the file to read
+	 * @param <T>    the type of the values
+	 * @return a parallel stream of the values
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static <T> Stream<T> readLinesParallel(final ObjectMapper mapper, final Class<T> type, final Path file)
+			throws IOException {
+		return readLinesParallel(mapper, type, file, DEFAULT_MIN_SPLIT_SIZE);
+	}
+
+	static <T> Stream<T> readLinesParallel(final ObjectMapper mapper, final Class<T> type, final Path file,
+			final long minSplitSize) throws IOException {
+		final ObjectReader reader = ObjectMappers.codec(mapper, type).getReader();
+		final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			return StreamSupport.stream(new LinesSpliterator<T>(channel, reader, 0, channel.size(), minSplitSize), true)
+					.onClose(() -> close(channel));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static void close(final AutoCloseable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static class ArraySpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+
+		private final JsonParser parser;
+		private final ObjectReader reader;
+		private boolean done;
+
+		private ArraySpliterator(final JsonParser parser, final ObjectReader reader) {
+			super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+			this.parser = parser;
+			this.reader = reader;
+		}
+
+		@Override
+		public boolean tryAdvance(final Consumer<? super T> action) {
+			if (done)
+				return false;
+			try {
+				final JsonToken token = parser.nextToken();
+				if (token == null)
+					throw new JsonParseException(parser, "Unexpected end of the array");
+				if (token == JsonToken.END_ARRAY) {
+					done = true;
+					return false;
+				}
+				action.accept(reader.readValue(parser));
+				return true;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private static class LinesSpliterator<T> implements Spliterator<T> {
+
+		private final FileChannel channel;
+		private final ObjectReader reader;
+		private final long minSplitSize;
+		private long start;
+		private final long end;
+		private MappingIterator<T> iterator;
+
+		private LinesSpliterator(final FileChannel channel, final ObjectReader reader, final long start,
+				final long end, final long minSplitSize) {
+			this.channel = channel;
+			this.reader = reader;
+			this.start = start;
+			this.end = end;
+			this.minSplitSize = minSplitSize;
+		}
+
+		/**
+		 * @param from the position where the search starts
+		 * @return the position of the first newline found in [from, end), or -1
+		 */
+		private long findNewLine(long from) throws IOException {
+			final ByteBuffer buffer = ByteBuffer.allocate(8192);
+			while (from < end) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), end - from));
+				final int read = channel.read(buffer, from);
+				if (read <= 0)
+					return -1;
+				for (int i = 0; i < read; i++)
+					if (buffer.get(i) == '\n')
+						return from + i;
+				from += read;
+			}
+			return -1;
+		}
+
+		@Override
+		public Spliterator<T> trySplit() {
+			if (iterator != null || end - start < minSplitSize * 2)
+				return null;
+			try {
+				final long newLine = findNewLine(start + (end - start) / 2);
+				if (newLine < 0 || newLine + 1 >= end)
+					return null;
+				final LinesSpliterator<T> prefix =
+						new LinesSpliterator<>(channel, reader, start, newLine + 1, minSplitSize);
+				start = newLine + 1;
+				return prefix;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public boolean tryAdvance(final Consumer<? super T> action) {
+			try {
+				if (iterator == null) {
+					if (start >= end)
+						return false;
+					iterator = reader.readValues(new MappedFileInputStream(channel, start, end));
+				}
+				if (!iterator.hasNextValue()) {
+					iterator.close();
+					return false;
+				}
+				action.accept(iterator.nextValue());
+				return true;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public long estimateSize() {
+			// A number of bytes, an upper bound of the number of lines
+			return end - start;
+		}
+
+		@Override
+		public int characteristics() {
+			return Spliterator.ORDERED | Spliterator.NONNULL;
+		}
+	}
+}
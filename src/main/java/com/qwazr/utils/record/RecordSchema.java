@@ -0,0 +1,457 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.record;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The flat binary layout of a class, built from its fields. The fields of a record can be read directly from a
+ * ByteBuffer (heap, direct or memory-mapped) using a RecordView, without building the object.
+ * <pre>
+ * final RecordSchema&lt;Product&gt; schema = RecordSchema.of(Product.class);
+ * final RecordSchema.Field price = schema.field("price");
+ * schema.write(product, buffer);
+ * ...
+ * final RecordView&lt;Product&gt; view = schema.view(buffer);
+ * final double value = view.getDouble(price);
+ * </pre>
+ * The layout of a record is:
+ * <ul>
+ * <li>the header: the fingerprint of the schema (int) and the length of the record (int),</li>
+ * <li>the null bitmap of the nullable fields (boxed primitives, strings, byte arrays and enums),</li>
+ * <li>the fixed-size area: one slot per field, at a fixed offset. The slot of a variable-length field (strings and
+ * byte arrays) contains the offset and the length of its content,</li>
+ * <li>the variable-length area.</li>
+ * </ul>
+ * The fields are the non static and non transient fields of the class and its super classes, sorted by name.
+ * The strings are encoded in UTF-8, the enums by their ordinal, and the numbers in big-endian order.
+ *
+ * @param <T> the type of the records
+ */
+public class RecordSchema<T> {
+
+	public enum Type {
+
+		BOOLEAN(1), BYTE(1), SHORT(2), CHAR(2), INT(4), LONG(8), FLOAT(4), DOUBLE(8), ENUM(4), STRING(-1), BYTES(-1);
+
+		/**
+		 * The size of the value in the fixed area, or -1 for the variable-length types
+		 */
+		final int size;
+
+		Type(final int size) {
+			this.size = size;
+		}
+
+		int slotSize() {
+			return size < 0 ? 8 : size;
+		}
+	}
+
+	final static int HEADER_SIZE = 8;
+
+	/**
+	 * The schemas are attached to their class, the cache does not prevent the class from being unloaded
+	 */
+	private final static ClassValue<RecordSchema<?>> SCHEMAS = new ClassValue<RecordSchema<?>>() {
+		@Override
+		protected RecordSchema<?> computeValue(final Class<?> type) {
+			return new RecordSchema<>(type);
+		}
+	};
+
+	final Class<T> recordClass;
+	final Field[] fields;
+	final Field[] variableFields;
+	final int fingerprint;
+	final int fixedSize;
+	private final Map<String, Field> fieldMap;
+	private final Constructor<T> constructor;
+
+	private RecordSchema(final Class<T> recordClass) {
+		this.recordClass = recordClass;
+		final List<java.lang.reflect.Field> javaFields = new ArrayList<>();
+		for (Class<?> cl = recordClass; cl != null && cl != Object.class; cl = cl.getSuperclass())
+			for (final java.lang.reflect.Field javaField : cl.getDeclaredFields())
+				if ((javaField.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) == 0 &&
+						!javaField.isSynthetic())
+					javaFields.add(javaField);
+		javaFields.sort(Comparator.comparing(java.lang.reflect.Field::getName));
+
+		fields = new Field[javaFields.size()];
+		fieldMap = new LinkedHashMap<>();
+		int nullableCount = 0;
+		for (final java.lang.reflect.Field javaField : javaFields)
+			if (!javaField.getType().isPrimitive())
+				nullableCount++;
+		int offset = HEADER_SIZE + (nullableCount + 7) / 8;
+		int nullBit = 0;
+		int hash = 1;
+		final List<Field> variables = new ArrayList<>();
+		for (int i = 0; i < fields.length; i++) {
+			final java.lang.reflect.Field javaField = javaFields.get(i);
+			final Type type = typeOf(javaField);
+			final boolean nullable = !javaField.getType().isPrimitive();
+			if (fieldMap.containsKey(javaField.getName()))
+				throw new IllegalArgumentException(
+						"The field " + javaField.getName() + " is declared twice in the hierarchy of " +
+								recordClass.getName());
+			javaField.setAccessible(true);
+			final Field field = new Field(javaField, type, i, offset, nullable ? nullBit++ : -1);
+			fields[i] = field;
+			fieldMap.put(field.name, field);
+			if (type.size < 0)
+				variables.add(field);
+			offset += type.slotSize();
+			hash = hash * 31 + field.name.hashCode();
+			hash = hash * 31 + type.ordinal() * 2 + (nullable ? 1 : 0);
+		}
+		variableFields = variables.toArray(new Field[0]);
+		fixedSize = offset;
+		fingerprint = hash;
+		constructor = findConstructor(recordClass);
+	}
+
+	private static <T> Constructor<T> findConstructor(final Class<T> recordClass) {
+		try {
+			final Constructor<T> constructor = recordClass.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return constructor;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static Type typeOf(final java.lang.reflect.Field javaField) {
+		final Class<?> cl = javaField.getType();
+		if (cl == boolean.class || cl == Boolean.class)
+			return Type.BOOLEAN;
+		if (cl == byte.class || cl == Byte.class)
+			return Type.BYTE;
+		if (cl == short.class || cl == Short.class)
+			return Type.SHORT;
+		if (cl == char.class || cl == Character.class)
+			return Type.CHAR;
+		if (cl == int.class || cl == Integer.class)
+			return Type.INT;
+		if (cl == long.class || cl == Long.class)
+			return Type.LONG;
+		if (cl == float.class || cl == Float.class)
+			return Type.FLOAT;
+		if (cl == double.class || cl == Double.class)
+			return Type.DOUBLE;
+		if (cl == String.class)
+			return Type.STRING;
+		if (cl == byte[].class)
+			return Type.BYTES;
+		if (cl.isEnum())
+			return Type.ENUM;
+		throw new IllegalArgumentException(
+				"The type of the field " + javaField.getDeclaringClass().getName() + '.' + javaField.getName() +
+						" is not supported: " + cl.getName());
+	}
+
+	/**
+	 * Return the schema of the given class. The schemas are built once.
+	 *
+	 * @param recordClass the class of the records
+	 * @param <T>         the type of the records
+	 * @return the schema of the class
+	 * @throws IllegalArgumentException if the type of a field is not supported
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> RecordSchema<T> of(final Class<T> recordClass) {
+		return (RecordSchema<T>) SCHEMAS.get(recordClass);
+	}
+
+	public Class<T> getRecordClass() {
+		return recordClass;
+	}
+
+	/**
+	 * @return the fields, sorted by name
+	 */
+	public List<Field> getFields() {
+		final List<Field> list = new ArrayList<>(fields.length);
+		Collections.addAll(list, fields);
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * @param name the name of the field
+	 * @return the field with the given name
+	 * @throws IllegalArgumentException if there is no such field
+	 */
+	public Field field(final String name) {
+		final Field field = fieldMap.get(name);
+		if (field == null)
+			throw new IllegalArgumentException("Unknown field: " + name + " in " + recordClass.getName());
+		return field;
+	}
+
+	/**
+	 * @return the hash of the names and the types of the fields, written in the header of each record
+	 */
+	public int getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @return the size of the header, the null bitmap and the fixed-size area
+	 */
+	public int getFixedSize() {
+		return fixedSize;
+	}
+
+	private static byte[] variableContent(final Field field, final Object value) {
+		if (value == null)
+			return null;
+		return field.type == Type.STRING ? ((String) value).getBytes(StandardCharsets.UTF_8) : (byte[]) value;
+	}
+
+	private byte[][] variableContents(final T record) {
+		if (variableFields.length == 0)
+			return null;
+		final byte[][] contents = new byte[variableFields.length][];
+		for (int i = 0; i < variableFields.length; i++)
+			contents[i] = variableContent(variableFields[i], variableFields[i].getValue(record));
+		return contents;
+	}
+
+	/**
+	 * @param record the record to measure
+	 * @return the number of bytes written by the write method
+	 */
+	public int sizeOf(final T record) {
+		int size = fixedSize;
+		final byte[][] contents = variableContents(record);
+		if (contents != null)
+			for (final byte[] content : contents)
+				if (content != null)
+					size += content.length;
+		return size;
+	}
+
+	/**
+	 * Write the record at the position of the buffer. The position is moved after the record.
+	 *
+	 * @param record the record to write
+	 * @param buffer the target buffer
+	 * @return the number of bytes written
+	 * @throws BufferOverflowException if the remaining space of the buffer is not large enough
+	 */
+	public int write(final T record, final ByteBuffer buffer) {
+		final byte[][] contents = variableContents(record);
+		int length = fixedSize;
+		if (contents != null)
+			for (final byte[] content : contents)
+				if (content != null)
+					length += content.length;
+		if (buffer.remaining() < length)
+			throw new BufferOverflowException();
+		final ByteBuffer target = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		final int base = buffer.position();
+		target.putInt(base, fingerprint);
+		target.putInt(base + 4, length);
+		for (int i = HEADER_SIZE; i < fixedSize; i++)
+			target.put(base + i, (byte) 0);
+		for (final Field field : fields)
+			if (field.type.size > 0)
+				field.writeFixed(record, target, base);
+		int position = fixedSize;
+		for (int i = 0; i < variableFields.length; i++) {
+			final Field field = variableFields[i];
+			final byte[] content = contents[i];
+			if (content == null) {
+				field.setNull(target, base);
+				continue;
+			}
+			target.putInt(base + field.offset, position);
+			target.putInt(base + field.offset + 4, content.length);
+			target.position(base + position);
+			target.put(content);
+			position += content.length;
+		}
+		buffer.position(base + length);
+		return length;
+	}
+
+	/**
+	 * @param record the record to write
+	 * @return a new array containing the record
+	 */
+	public byte[] toBytes(final T record) {
+		final byte[] bytes = new byte[sizeOf(record)];
+		write(record, ByteBuffer.wrap(bytes));
+		return bytes;
+	}
+
+	/**
+	 * @return a new view, which must be positioned with RecordView.wrap
+	 */
+	public RecordView<T> view() {
+		return new RecordView<>(this);
+	}
+
+	/**
+	 * @param buffer the buffer containing a record at its position
+	 * @return a new view over the record
+	 * @throws IllegalArgumentException if the record does not match the schema
+	 */
+	public RecordView<T> view(final ByteBuffer buffer) {
+		return view().wrap(buffer, buffer.position());
+	}
+
+	/**
+	 * @param bytes the array containing the record
+	 * @return a new view over the record
+	 * @throws IllegalArgumentException if the record does not match the schema
+	 */
+	public RecordView<T> view(final byte[] bytes) {
+		return view(ByteBuffer.wrap(bytes));
+	}
+
+	T newInstance() {
+		if (constructor == null)
+			throw new IllegalStateException("The class " + recordClass.getName() + " has no default constructor");
+		try {
+			return constructor.newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot create an instance of " + recordClass.getName(), e);
+		}
+	}
+
+	/**
+	 * A field of the schema. The instances can be kept to access the records.
+	 */
+	public static final class Field {
+
+		private final java.lang.reflect.Field javaField;
+		final String name;
+		final Type type;
+		final int index;
+		final int offset;
+		final int nullBit;
+		final Object[] enumConstants;
+
+		private Field(final java.lang.reflect.Field javaField, final Type type, final int index, final int offset,
+				final int nullBit) {
+			this.javaField = javaField;
+			this.name = javaField.getName();
+			this.type = type;
+			this.index = index;
+			this.offset = offset;
+			this.nullBit = nullBit;
+			this.enumConstants = type == Type.ENUM ? javaField.getType().getEnumConstants() : null;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public boolean isNullable() {
+			return nullBit >= 0;
+		}
+
+		/**
+		 * @return the offset of the slot of the field, from the start of the record
+		 */
+		public int getOffset() {
+			return offset;
+		}
+
+		Object getValue(final Object record) {
+			try {
+				return javaField.get(record);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void setValue(final Object record, final Object value) {
+			try {
+				javaField.set(record, value);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private void setNull(final ByteBuffer buffer, final int base) {
+			final int index = base + HEADER_SIZE + (nullBit >> 3);
+			buffer.put(index, (byte) (buffer.get(index) | (1 << (nullBit & 7))));
+		}
+
+		private void writeFixed(final Object record, final ByteBuffer buffer, final int base) {
+			final Object value = getValue(record);
+			if (value == null) {
+				setNull(buffer, base);
+				return;
+			}
+			final int index = base + offset;
+			switch (type) {
+			case BOOLEAN:
+				buffer.put(index, (Boolean) value ? (byte) 1 : (byte) 0);
+				break;
+			case BYTE:
+				buffer.put(index, (Byte) value);
+				break;
+			case SHORT:
+				buffer.putShort(index, (Short) value);
+				break;
+			case CHAR:
+				buffer.putChar(index, (Character) value);
+				break;
+			case INT:
+				buffer.putInt(index, (Integer) value);
+				break;
+			case LONG:
+				buffer.putLong(index, (Long) value);
+				break;
+			case FLOAT:
+				buffer.putFloat(index, (Float) value);
+				break;
+			case DOUBLE:
+				buffer.putDouble(index, (Double) value);
+				break;
+			case ENUM:
+				buffer.putInt(index, ((Enum<?>) value).ordinal());
+				break;
+			default:
+				throw new IllegalStateException("Not a fixed-size type: " + type);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name + ':' + type + (isNullable() ? "?" : "") + '@' + offset;
+		}
+	}
+}
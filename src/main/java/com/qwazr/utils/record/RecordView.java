@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.record;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A read-only view over a record written by a RecordSchema. The values are read from the buffer when they are
+ * requested, nothing is copied but the strings and the byte arrays. A view can be moved over other records with
+ * the wrap method, so one instance can scan a whole buffer:
+ * <pre>
+ * final RecordView&lt;Product&gt; view = schema.view();
+ * int position = 0;
+ * while (position &lt; buffer.limit()) {
+ * 		view.wrap(buffer, position);
+ * 		total += view.getDouble(price);
+ * 		position += view.getLength();
+ * }
+ * </pre>
+ * A view is not thread-safe.
+ *
+ * @param <T> the type of the records
+ */
+public class RecordView<T> {
+
+	private final RecordSchema<T> schema;
+	private ByteBuffer source;
+	private ByteBuffer buffer;
+	private int base;
+	private int length;
+
+	RecordView(final RecordSchema<T> schema) {
+		this.schema = schema;
+	}
+
+	public RecordSchema<T> getSchema() {
+		return schema;
+	}
+
+	/**
+	 * Move the view over the record written at the given offset of the buffer.
+	 * The position and the limit of the buffer are not used nor modified.
+	 *
+	 * @param buffer the buffer containing the record
+	 * @param offset the offset of the record in the buffer
+	 * @return the current view
+	 * @throws IllegalArgumentException if the record does not match the schema
+	 */
+	public RecordView<T> wrap(final ByteBuffer buffer, final int offset) {
+		if (source != buffer) {
+			// The records are big-endian whatever the order of the given buffer
+			this.buffer =
+					buffer.order() == ByteOrder.BIG_ENDIAN ? buffer : buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+			this.source = buffer;
+		}
+		if (offset < 0 || offset + RecordSchema.HEADER_SIZE > buffer.capacity())
+			throw new IllegalArgumentException("No record at the offset " + offset);
+		final int fingerprint = this.buffer.getInt(offset);
+		if (fingerprint != schema.fingerprint)
+			throw new IllegalArgumentException(
+					"The record does not match the schema of " + schema.recordClass.getName() + ": " + fingerprint +
+							" instead of " + schema.fingerprint);
+		final int recordLength = this.buffer.getInt(offset + 4);
+		if (recordLength < schema.fixedSize || offset + recordLength > buffer.capacity())
+			throw new IllegalArgumentException("Truncated record: " + recordLength + " bytes at the offset " + offset);
+		this.base = offset;
+		this.length = recordLength;
+		return this;
+	}
+
+	/**
+	 * @return the offset of the current record in the buffer
+	 */
+	public int getOffset() {
+		return base;
+	}
+
+	/**
+	 * @return the length of the current record, in bytes
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	private int checkedOffset(final RecordSchema.Field field, final RecordSchema.Type type) {
+		if (field.type != type)
+			throw new IllegalArgumentException("The field " + field.name + " is a " + field.type + ", not a " + type);
+		return base + field.offset;
+	}
+
+	/**
+	 * @param field the field to check
+	 * @return true if the value of the field is null
+	 */
+	public boolean isNull(final RecordSchema.Field field) {
+		if (field.nullBit < 0)
+			return false;
+		return (buffer.get(base + RecordSchema.HEADER_SIZE + (field.nullBit >> 3)) & (1 << (field.nullBit & 7))) != 0;
+	}
+
+	public boolean getBoolean(final RecordSchema.Field field) {
+		return buffer.get(checkedOffset(field, RecordSchema.Type.BOOLEAN)) != 0;
+	}
+
+	public byte getByte(final RecordSchema.Field field) {
+		return buffer.get(checkedOffset(field, RecordSchema.Type.BYTE));
+	}
+
+	public short getShort(final RecordSchema.Field field) {
+		return buffer.getShort(checkedOffset(field, RecordSchema.Type.SHORT));
+	}
+
+	public char getChar(final RecordSchema.Field field) {
+		return buffer.getChar(checkedOffset(field, RecordSchema.Type.CHAR));
+	}
+
+	public int getInt(final RecordSchema.Field field) {
+		return buffer.getInt(checkedOffset(field, RecordSchema.Type.INT));
+	}
+
+	public long getLong(final RecordSchema.Field field) {
+		return buffer.getLong(checkedOffset(field, RecordSchema.Type.LONG));
+	}
+
+	public float getFloat(final RecordSchema.Field field) {
+		return buffer.getFloat(checkedOffset(field, RecordSchema.Type.FLOAT));
+	}
+
+	public double getDouble(final RecordSchema.Field field) {
+		return buffer.getDouble(checkedOffset(field, RecordSchema.Type.DOUBLE));
+	}
+
+	/**
+	 * @param field the field to read
+	 * @param <E>   the type of the enum
+	 * @return the value of the field, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public <E extends Enum<E>> E getEnum(final RecordSchema.Field field) {
+		final int offset = checkedOffset(field, RecordSchema.Type.ENUM);
+		return isNull(field) ? null : (E) field.enumConstants[buffer.getInt(offset)];
+	}
+
+	/**
+	 * @param field a string or byte array field
+	 * @return the length of the content in bytes (UTF-8 for the strings), or -1 if the value is null
+	 */
+	public int getContentLength(final RecordSchema.Field field) {
+		if (field.type.size >= 0)
+			throw new IllegalArgumentException("The field " + field.name + " is not a variable-length field");
+		return isNull(field) ? -1 : buffer.getInt(base + field.offset + 4);
+	}
+
+	private byte[] readContent(final int slot) {
+		final int start = base + buffer.getInt(slot);
+		final byte[] bytes = new byte[buffer.getInt(slot + 4)];
+		final ByteBuffer content = buffer.duplicate();
+		content.limit(content.capacity());
+		content.position(start);
+		content.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @param field the field to read
+	 * @return the value of the field, or null
+	 */
+	public String getString(final RecordSchema.Field field) {
+		final int slot = checkedOffset(field, RecordSchema.Type.STRING);
+		if (isNull(field))
+			return null;
+		if (buffer.hasArray()) {
+			final int start = buffer.arrayOffset() + base + buffer.getInt(slot);
+			return new String(buffer.array(), start, buffer.getInt(slot + 4), StandardCharsets.UTF_8);
+		}
+		return new String(readContent(slot), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param field the field to read
+	 * @return a copy of the value of the field, or null
+	 */
+	public byte[] getBytes(final RecordSchema.Field field) {
+		final int slot = checkedOffset(field, RecordSchema.Type.BYTES);
+		return isNull(field) ? null : readContent(slot);
+	}
+
+	/**
+	 * @param field a string or byte array field
+	 * @return a read-only buffer over the content of the field (no copy), or null
+	 */
+	public ByteBuffer getContent(final RecordSchema.Field field) {
+		if (field.type.size >= 0)
+			throw new IllegalArgumentException("The field " + field.name + " is not a variable-length field");
+		if (isNull(field))
+			return null;
+		final int slot = base + field.offset;
+		final ByteBuffer content = buffer.asReadOnlyBuffer();
+		final int start = base + buffer.getInt(slot);
+		content.limit(start + buffer.getInt(slot + 4));
+		content.position(start);
+		return content.slice();
+	}
+
+	/**
+	 * @param field the field to read
+	 * @return the value of the field (boxed), or null
+	 */
+	public Object get(final RecordSchema.Field field) {
+		if (isNull(field))
+			return null;
+		switch (field.type) {
+		case BOOLEAN:
+			return getBoolean(field);
+		case BYTE:
+			return getByte(field);
+		case SHORT:
+			return getShort(field);
+		case CHAR:
+			return getChar(field);
+		case INT:
+			return getInt(field);
+		case LONG:
+			return getLong(field);
+		case FLOAT:
+			return getFloat(field);
+		case DOUBLE:
+			return getDouble(field);
+		case ENUM:
+			return field.enumConstants[buffer.getInt(base + field.offset)];
+		case STRING:
+			return getString(field);
+		case BYTES:
+			return getBytes(field);
+		default:
+			throw new IllegalStateException("Unknown type: " + field.type);
+		}
+	}
+
+	/**
+	 * Build the object from the current record. The class must have a default constructor.
+	 *
+	 * @return a new instance
+	 */
+	public T toObject() {
+		final T object = schema.newInstance();
+		for (final RecordSchema.Field field : schema.fields)
+			field.setValue(object, get(field));
+		return object;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+public class CompressionCodecTest {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(CompressionCodecTest.class);
+
+	private final static CompressionCodec[] CODECS = { CompressionCodec.NONE,
+			CompressionCodec.GZIP,
+			CompressionCodec.DEFLATE,
+			CompressionCodec.deflate(1),
+			CompressionCodec.deflate(9),
+			CompressionCodec.RAW_DEFLATE,
+			CompressionCodec.rawDeflate(1),
+			CompressionCodec.LZ };
+
+	private static byte[] jsonPayload(final int count) throws IOException {
+		final Random random = new Random(0);
+		final List<Map<String, Object>> items = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			final Map<String, Object> item = new LinkedHashMap<>();
+			item.put("id", i);
+			item.put("name", "item-" + random.nextInt(1000));
+			item.put("price", random.nextInt(100000) / 100.0);
+			item.put("tags", new String[] { "tag" + random.nextInt(20), "tag" + random.nextInt(20) });
+			items.add(item);
+		}
+		return ObjectMappers.JSON.writeValueAsBytes(items);
+	}
+
+	private static byte[] logPayload(final int count) {
+		final Random random = new Random(1);
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			sb.append("2018-05-").append(10 + i % 20).append(" INFO [worker-").append(random.nextInt(16))
+					.append("] com.qwazr.utils.Service - Request ").append(random.nextLong()).append(" done in ")
+					.append(random.nextInt(500)).append(" ms\n");
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] serializedPayload(final int count) throws IOException {
+		final ArrayList<Object> list = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+			list.add(new Object[] { i, "value" + i % 100, (long) i * 31, i % 2 == 0 });
+		return SerializationUtils.toDefaultBytes(list);
+	}
+
+	private static byte[] randomPayload(final int size) {
+		final byte[] bytes = new byte[size];
+		new Random(2).nextBytes(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		final byte[][] payloads = { new byte[0],
+				new byte[] { 1 },
+				"aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa".getBytes(),
+				jsonPayload(5000), logPayload(3000), randomPayload(200000) };
+		for (final CompressionCodec codec : CODECS)
+			for (final byte[] payload : payloads) {
+				final byte[] compressed = codec.compress(payload);
+				Assert.assertEquals(codec.getId(), compressed[0] & 0xff);
+				Assert.assertArrayEquals(codec.toString(), payload, CompressionCodec.decompress(compressed));
+			}
+	}
+
+	@Test
+	public void legacyGzip() throws IOException, ClassNotFoundException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (final OutputStream compressed = new GZIPOutputStream(output)) {
+			compressed.write(logPayload(100));
+		}
+		Assert.assertArrayEquals(logPayload(100), CompressionCodec.decompress(output.toByteArray()));
+
+		final String text = new String(logPayload(100), StandardCharsets.UTF_8);
+		Assert.assertEquals(text,
+				StringUtils.decompress(StringUtils.compressGzip(text, StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+		Assert.assertEquals(text, StringUtils.decompress(
+				StringUtils.compress(text, StandardCharsets.UTF_8, CompressionCodec.LZ), StandardCharsets.UTF_8));
+
+		final ArrayList<String> list = new ArrayList<>();
+		list.add(text);
+		Assert.assertEquals(list, SerializationUtils.fromDefaultCompressedBytes(
+				SerializationUtils.toDefaultCompressedBytes(list, CompressionCodec.LZ)));
+		Assert.assertEquals(list, SerializationUtils.fromDefaultCompressedBytes(
+				SerializationUtils.toDefaultCompressedBytes(list)));
+	}
+
+	@Test
+	public void corrupted() throws IOException {
+		final byte[] compressed = CompressionCodec.LZ.compress(logPayload(1000));
+		for (int i = 10; i < compressed.length; i += 97)
+			compressed[i] ^= 0x55;
+		try {
+			CompressionCodec.decompress(compressed);
+			Assert.fail("The corruption should be detected");
+		} catch (IOException e) {
+			// Expected
+		}
+		try {
+			CompressionCodec.decompress(new byte[] { 0x7f, 1, 2 });
+			Assert.fail("The codec should be unknown");
+		} catch (ZipException e) {
+			Assert.assertTrue(e.getMessage().startsWith("Unknown compression codec"));
+		}
+	}
+
+	/**
+	 * Runs only when the system property "benchmark.millis" is set, like SerializationBenchmarkTest
+	 */
+	@Test
+	public void benchmark() throws IOException {
+		Assume.assumeTrue("The benchmark runs with -Dbenchmark.millis", System.getProperty("benchmark.millis") != null);
+		final Map<String, byte[]> payloads = new LinkedHashMap<>();
+		payloads.put("json", jsonPayload(20000));
+		payloads.put("logs", logPayload(20000));
+		payloads.put("serialized", serializedPayload(20000));
+		payloads.put("random", randomPayload(1024 * 1024));
+		for (final Map.Entry<String, byte[]> payload : payloads.entrySet()) {
+			final byte[] bytes = payload.getValue();
+			for (final CompressionCodec codec : CODECS) {
+				// Warm up
+				for (int i = 0; i < 3; i++)
+					CompressionCodec.decompress(codec.compress(bytes));
+				final int iterations = 5;
+				byte[] compressed = null;
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++)
+					compressed = codec.compress(bytes);
+				final long compressNanos = (System.nanoTime() - start) / iterations;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++)
+					CompressionCodec.decompress(compressed);
+				final long decompressNanos = (System.nanoTime() - start) / iterations;
+				final double ratio = (double) bytes.length / compressed.length;
+				LOGGER.info(String.format(
+						"%-10s %-15s size: %8d ratio: %5.2f compress: %7.1f MB/s decompress: %7.1f MB/s",
+						payload.getKey(), codec, bytes.length, ratio, bytes.length * 1000.0 / compressNanos,
+						bytes.length * 1000.0 / decompressNanos));
+			}
+		}
+	}
+}
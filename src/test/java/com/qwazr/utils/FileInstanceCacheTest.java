@@ -24,6 +24,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by ekeller on 08/07/2017.
@@ -122,4 +125,92 @@ public class FileInstanceCacheTest {
 	public void writeOnlyErrorTest() throws IOException {
 		writeOnly().get();
 	}
+
+	@Test
+	public void writeBehindTest() throws IOException, InterruptedException {
+		final AtomicInteger writes = new AtomicInteger();
+		final FileInstanceCache<String> cache =
+				FileInstanceCache.<String>of(cacheFilePath).reader(IOUtils::readFileAsString).writer((instance, file) -> {
+					writes.incrementAndGet();
+					IOUtils.writeStringToFile(instance, file);
+				}).writeBehind(200, TimeUnit.MILLISECONDS).build();
+
+		// The updates are visible immediately, and coalesced in one write
+		for (int i = 0; i < 10; i++)
+			Assert.assertEquals(cache, cache.set("value" + i));
+		Assert.assertEquals("value9", cache.get());
+		Assert.assertFalse(Files.exists(cacheFilePath));
+		Assert.assertEquals(0, writes.get());
+
+		final long timeout = System.currentTimeMillis() + 10000;
+		while (writes.get() == 0 && System.currentTimeMillis() < timeout)
+			Thread.sleep(50);
+		cache.flush();
+		Assert.assertEquals(1, writes.get());
+		Assert.assertEquals("value9", IOUtils.readFileAsString(cacheFilePath.toFile()));
+
+		// The same value is not written again
+		cache.set("value9");
+		cache.flush();
+		Assert.assertEquals(1, writes.get());
+
+		// The pending update is written by close
+		cache.set("last");
+		Assert.assertEquals("value9", IOUtils.readFileAsString(cacheFilePath.toFile()));
+		cache.close();
+		Assert.assertEquals(2, writes.get());
+		Assert.assertEquals("last", IOUtils.readFileAsString(cacheFilePath.toFile()));
+
+		// After close, the writes are synchronous
+		cache.set("closed");
+		Assert.assertEquals("closed", IOUtils.readFileAsString(cacheFilePath.toFile()));
+		Assert.assertEquals("closed", cache.get());
+	}
+
+	@Test
+	public void setDuringCloseTest() throws IOException, InterruptedException {
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		final FileInstanceCache<String> cache =
+				FileInstanceCache.<String>of(cacheFilePath).reader(IOUtils::readFileAsString).writer((instance, file) -> {
+					if ("A".equals(instance)) {
+						writing.countDown();
+						try {
+							proceed.await();
+						} catch (InterruptedException e) {
+							throw new IOException(e);
+						}
+					}
+					IOUtils.writeStringToFile(instance, file);
+				}).writeBehind(1, TimeUnit.MINUTES).build();
+		cache.set("A");
+
+		// The close writes A while B is set synchronously
+		final Thread closer = new Thread(() -> {
+			try {
+				cache.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		closer.start();
+		Assert.assertTrue(writing.await(10, TimeUnit.SECONDS));
+		final Thread setter = new Thread(() -> {
+			try {
+				cache.set("B");
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		setter.start();
+		Thread.sleep(100);
+		proceed.countDown();
+		closer.join();
+		setter.join();
+
+		Assert.assertEquals("B", cache.get());
+		Assert.assertEquals("B", IOUtils.readFileAsString(cacheFilePath.toFile()));
+		cache.flush();
+		Assert.assertEquals("B", IOUtils.readFileAsString(cacheFilePath.toFile()));
+	}
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void emptyHistogram() {
+		final LatencyHistogram.Snapshot snapshot = new LatencyHistogram().getSnapshot();
+		Assert.assertEquals(0, snapshot.count);
+		Assert.assertEquals(0, snapshot.meanNanos);
+		Assert.assertEquals(0, snapshot.p99Nanos);
+	}
+
+	@Test
+	public void percentiles() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++)
+			histogram.record(i);
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		final LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+		Assert.assertEquals(1002, snapshot.count);
+		Assert.assertEquals(Long.MAX_VALUE, snapshot.maxNanos);
+		// Percentiles are the upper bound of the power-of-two bucket
+		Assert.assertEquals(511, snapshot.p50Nanos);
+		Assert.assertEquals(1023, snapshot.p90Nanos);
+		Assert.assertEquals(1023, snapshot.p999Nanos);
+
+		histogram.reset();
+		Assert.assertEquals(0, histogram.getCount());
+		Assert.assertEquals(0, histogram.getSnapshot().maxNanos);
+	}
+}
@@ -15,15 +15,23 @@
  */
 package com.qwazr.utils;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Logger;
 
 public class ObjectMappersTest {
 
+	private final static Logger LOGGER = LoggerUtils.getLogger(ObjectMappersTest.class);
+
 	final static Path DIRECTORY = Paths.get("src/test/resources/com/qwazr/utils/json");
 	final static MapperTest DEFAULT_TEST = new MapperTest();
 
@@ -69,6 +77,86 @@ public class ObjectMappersTest {
 		Assert.assertEquals(DEFAULT_TEST, mappers.readFileValue(DIRECTORY, "no-file", DEFAULT_TEST, MapperTest.class));
 	}
 
+	@Test
+	public void codecRoundTrip() throws IOException {
+		final Item item = new Item("codec", 1, 2, 3);
+		for (final ObjectMapper mapper : Arrays.asList(ObjectMappers.JSON,
+				ObjectMappers.SMILE, ObjectMappers.YAML)) {
+			final ObjectMappers.Codec<Item> codec = ObjectMappers.codec(mapper, Item.class);
+			Assert.assertSame(codec, ObjectMappers.codec(mapper, Item.class));
+			Assert.assertEquals(item, codec.read(codec.writeAsBytes(item)));
+			Assert.assertEquals(item, codec.read(codec.writeCompactAsBytes(item)));
+		}
+		final ObjectMappers.Codec<List<Item>> listCodec =
+				ObjectMappers.codec(ObjectMappers.JSON, new TypeReference<List<Item>>() {
+				});
+		final List<Item> items = Arrays.asList(item, new Item("other"));
+		Assert.assertEquals(items, listCodec.read(listCodec.writeAsString(items)));
+	}
+
+	@Test
+	public void compactWriter() throws IOException {
+		final ObjectMappers.Codec<Item> codec = ObjectMappers.codec(ObjectMappers.JSON, Item.class);
+		final Item item = new Item("compact", 4, 5);
+		Assert.assertTrue(codec.writeAsString(item).contains("\n"));
+		Assert.assertEquals("{\"name\":\"compact\",\"values\":[4,5]}", codec.writeCompactAsString(item));
+	}
+
+	@Test
+	public void missingOptionalModule() {
+		Assert.assertFalse(ObjectMappers.registerOptionalModule(new ObjectMapper(),
+				"com.qwazr.utils.NoSuchModule"));
+	}
+
+	@Test
+	public void codecBenchmark() throws IOException {
+		final Item item = new Item("benchmark", 1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+		final ObjectMappers.Codec<Item> codec = ObjectMappers.codec(ObjectMappers.JSON, Item.class);
+		final int iterations = 50_000;
+		// Warm up both paths
+		for (int i = 0; i < iterations; i++) {
+			ObjectMappers.JSON.readValue(ObjectMappers.JSON.writeValueAsBytes(item), Item.class);
+			codec.read(codec.writeCompactAsBytes(item));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			ObjectMappers.JSON.readValue(ObjectMappers.JSON.writeValueAsBytes(item), Item.class);
+		final long mapperNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			codec.read(codec.writeCompactAsBytes(item));
+		final long codecNanos = System.nanoTime() - start;
+		LOGGER.info(() -> "ObjectMapper: " + mapperNanos / iterations + " ns/op - Codec: " + codecNanos / iterations +
+				" ns/op");
+	}
+
+	public static class Item {
+
+		public String name;
+		public int[] values;
+
+		public Item() {
+		}
+
+		Item(final String name, final int... values) {
+			this.name = name;
+			this.values = values;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Item))
+				return false;
+			final Item item = (Item) o;
+			return Objects.equals(name, item.name) && Arrays.equals(values, item.values);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(name);
+		}
+	}
+
 	public static class MapperTest {
 
 		public final String test = null;
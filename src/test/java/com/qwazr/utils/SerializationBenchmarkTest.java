@@ -0,0 +1,389 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qwazr.externalizor.Externalizor;
+import com.qwazr.externalizor.ExternalizorException;
+import com.qwazr.utils.record.RecordSchema;
+import com.qwazr.utils.record.RecordView;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Logger;
+
+/**
+ * Compare the serialization formats on representative object graphs: throughput, allocation per operation
+ * (from the ThreadMXBean) and encoded size. The default run only checks the round trips, the measures run when the
+ * duration of each measure is given with the system property "benchmark.millis":
+ * <pre>
+ * mvn test -Dtest=SerializationBenchmarkTest -Dbenchmark.millis=100
+ * </pre>
+ */
+public class SerializationBenchmarkTest {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(SerializationBenchmarkTest.class);
+
+	private final static long MEASURE_NANOS = Long.getLong("benchmark.millis", 0) * 1_000_000L;
+
+	public static class SmallDto implements Serializable {
+
+		public int id;
+		public String name;
+		public double price;
+		public boolean active;
+		public long timestamp;
+
+		public SmallDto() {
+		}
+
+		SmallDto(final int id) {
+			this.id = id;
+			this.name = "product-" + id;
+			this.price = id * 1.25;
+			this.active = id % 2 == 0;
+			this.timestamp = 1525000000000L + id;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof SmallDto))
+				return false;
+			final SmallDto dto = (SmallDto) o;
+			return id == dto.id && Objects.equals(name, dto.name) && price == dto.price && active == dto.active &&
+					timestamp == dto.timestamp;
+		}
+
+		@Override
+		public int hashCode() {
+			return id;
+		}
+	}
+
+	public static class Catalog implements Serializable {
+
+		public String label;
+		public ArrayList<SmallDto> items;
+
+		public Catalog() {
+		}
+
+		Catalog(final int size) {
+			this.label = "catalog";
+			this.items = new ArrayList<>(size);
+			for (int i = 0; i < size; i++)
+				items.add(new SmallDto(i));
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Catalog))
+				return false;
+			final Catalog catalog = (Catalog) o;
+			return Objects.equals(label, catalog.label) && Objects.equals(items, catalog.items);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(label);
+		}
+	}
+
+	/**
+	 * A deep tree of maps (Externalizor supports neither the recursive classes nor the Object values)
+	 */
+	public static class Nested implements Serializable {
+
+		public String label;
+		public LinkedHashMap<String, Object> root;
+
+		public Nested() {
+		}
+
+		Nested(final int depth) {
+			this.label = "nested";
+			this.root = node(depth);
+		}
+
+		private static LinkedHashMap<String, Object> node(final int depth) {
+			final LinkedHashMap<String, Object> node = new LinkedHashMap<>();
+			node.put("label", "node-" + depth);
+			node.put("depth", depth);
+			if (depth > 0)
+				node.put("child", node(depth - 1));
+			return node;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Nested))
+				return false;
+			final Nested nested = (Nested) o;
+			return Objects.equals(label, nested.label) && Objects.equals(root, nested.root);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(label);
+		}
+	}
+
+	@FunctionalInterface
+	interface Encoder {
+
+		void encode(Serializable object, OutputStream output) throws Exception;
+	}
+
+	@FunctionalInterface
+	interface Decoder {
+
+		Object decode(InputStream input, Class<? extends Serializable> type) throws Exception;
+	}
+
+	private static class Format {
+
+		private final String name;
+		private final Encoder encoder;
+		private final Decoder decoder;
+
+		private Format(final String name, final Encoder encoder, final Decoder decoder) {
+			this.name = name;
+			this.encoder = encoder;
+			this.decoder = decoder;
+		}
+
+		private static Format of(final String name, final ObjectMapper mapper) {
+			return new Format(name, (object, output) -> mapper.writeValue(output, object),
+					(input, type) -> mapper.readValue(input, type));
+		}
+
+		/**
+		 * @return the same format, compressed with the given codec
+		 */
+		private Format compressed(final CompressionCodec codec) {
+			return new Format(name + '+' + codec, (object, output) -> {
+				try (final OutputStream compressed = codec.compress(output)) {
+					encoder.encode(object, compressed);
+				}
+			}, (input, type) -> {
+				try (final InputStream decompressed = CompressionCodec.decompress(input)) {
+					return decoder.decode(decompressed, type);
+				}
+			});
+		}
+
+		private byte[] encode(final Serializable object) throws Exception {
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			encoder.encode(object, output);
+			return output.toByteArray();
+		}
+
+		private Object decode(final byte[] bytes, final Class<? extends Serializable> type) throws Exception {
+			return decoder.decode(new ByteArrayInputStream(bytes), type);
+		}
+	}
+
+	private static List<Format> formats() {
+		final List<Format> formats = new ArrayList<>();
+		// Externalizor compresses with GZIP, the raw variant is not compressed
+		formats.add(new Format("externalizor+GZIP", SerializationUtils::toExternalizorBytes,
+				SerializationUtils::fromExternalizorBytes));
+		final Format externalizor =
+				new Format("externalizor", Externalizor::serializeRaw, Externalizor::deserializeRaw);
+		final Format java = new Format("java", SerializationUtils::toDefaultBytes,
+				(input, type) -> SerializationUtils.fromDefaultBytes(input));
+		for (final Format format : new Format[] { externalizor,
+				java,
+				Format.of("json", ObjectMappers.JSON),
+				Format.of("smile", ObjectMappers.SMILE),
+				Format.of("yaml", ObjectMappers.YAML),
+				Format.of("xml", ObjectMappers.XML) }) {
+			formats.add(format);
+			if (format != externalizor)
+				formats.add(format.compressed(CompressionCodec.GZIP));
+			formats.add(format.compressed(CompressionCodec.LZ));
+		}
+		return formats;
+	}
+
+	private final static ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+	private static long allocatedBytes() {
+		if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN).getThreadAllocatedBytes(
+					Thread.currentThread().getId());
+		return -1;
+	}
+
+	@FunctionalInterface
+	interface Operation {
+
+		void run() throws Exception;
+	}
+
+	/**
+	 * Run the operation during the measure time
+	 *
+	 * @return the number of operations per second, and the allocated bytes per operation
+	 */
+	private static long[] measure(final Operation operation) throws Exception {
+		// Warm up
+		long end = System.nanoTime() + MEASURE_NANOS;
+		while (System.nanoTime() < end)
+			operation.run();
+		long count = 0;
+		final long allocated = allocatedBytes();
+		final long start = System.nanoTime();
+		end = start + MEASURE_NANOS;
+		long now;
+		do {
+			operation.run();
+			count++;
+		} while ((now = System.nanoTime()) < end);
+		final long allocation = allocated < 0 ? -1 : (allocatedBytes() - allocated) / count;
+		return new long[] { count * 1_000_000_000L / (now - start), allocation };
+	}
+
+	private static void assumeBenchmark() {
+		Assume.assumeTrue("The measures run with -Dbenchmark.millis", MEASURE_NANOS > 0);
+	}
+
+	/**
+	 * @param catalogSize the number of items of the collection graph
+	 */
+	private static Map<String, Serializable> graphs(final int catalogSize) {
+		final Map<String, Serializable> graphs = new LinkedHashMap<>();
+		graphs.put("small", new SmallDto(42));
+		graphs.put("collection", new Catalog(catalogSize));
+		graphs.put("nested", new Nested(50));
+		return graphs;
+	}
+
+	/**
+	 * @return the encoded graph, or null if the format does not support it
+	 */
+	private static byte[] encode(final String graph, final Format format, final Serializable object)
+			throws Exception {
+		try {
+			return format.encode(object);
+		} catch (ExternalizorException e) {
+			LOGGER.info(String.format("%-10s %-20s not supported: %s", graph, format.name, e.getMessage()));
+			return null;
+		}
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		for (final Map.Entry<String, Serializable> graph : graphs(100).entrySet()) {
+			final Serializable object = graph.getValue();
+			for (final Format format : formats()) {
+				final byte[] bytes = encode(graph.getKey(), format, object);
+				if (bytes == null)
+					continue;
+				final Object decoded = format.decode(bytes, object.getClass());
+				// The untyped values of the maps are read back as strings from XML
+				if (object instanceof Nested && !object.equals(decoded))
+					LOGGER.info(String.format("%-10s %-20s lossy: the decoded graph differs", graph.getKey(),
+							format.name));
+				else
+					Assert.assertEquals(format.name, object, decoded);
+			}
+		}
+	}
+
+	@Test
+	public void benchmark() throws Exception {
+		assumeBenchmark();
+		LOGGER.info(String.format("%-10s %-20s %10s %12s %14s %12s %14s", "graph", "format", "size", "write op/s",
+				"write B/op", "read op/s", "read B/op"));
+		for (final Map.Entry<String, Serializable> graph : graphs(10000).entrySet()) {
+			final Serializable object = graph.getValue();
+			for (final Format format : formats()) {
+				final byte[] bytes = encode(graph.getKey(), format, object);
+				if (bytes == null)
+					continue;
+				final long[] write = measure(() -> format.encode(object));
+				final long[] read = measure(() -> format.decode(bytes, object.getClass()));
+				LOGGER.info(String.format("%-10s %-20s %10d %12d %14d %12d %14d", graph.getKey(), format.name,
+						bytes.length, write[0], write[1], read[0], read[1]));
+			}
+		}
+	}
+
+	/**
+	 * Read one field of a cached DTO: the Externalizor formats build the whole object, the flat record is read in
+	 * place.
+	 */
+	@Test
+	public void flatRecord() throws Exception {
+		final SmallDto dto = new SmallDto(42);
+		final RecordSchema<SmallDto> schema = RecordSchema.of(SmallDto.class);
+		final RecordSchema.Field price = schema.field("price");
+		final Format externalizorGzip = new Format("externalizor+GZIP", SerializationUtils::toExternalizorBytes,
+				SerializationUtils::fromExternalizorBytes);
+		final Format externalizor =
+				new Format("externalizor", Externalizor::serializeRaw, Externalizor::deserializeRaw);
+		final byte[] gzip = externalizorGzip.encode(dto);
+		final byte[] raw = externalizor.encode(dto);
+		final byte[] record = schema.toBytes(dto);
+		final ByteBuffer direct = ByteBuffer.allocateDirect(record.length);
+		direct.put(record).flip();
+		final RecordView<SmallDto> view = schema.view();
+		Assert.assertEquals(dto, view.wrap(direct, 0).toObject());
+
+		final Map<String, Operation> operations = new LinkedHashMap<>();
+		operations.put(externalizorGzip.name,
+				() -> Assert.assertEquals(dto.price, ((SmallDto) externalizorGzip.decode(gzip, SmallDto.class)).price,
+						0));
+		operations.put(externalizor.name,
+				() -> Assert.assertEquals(dto.price, ((SmallDto) externalizor.decode(raw, SmallDto.class)).price, 0));
+		operations.put("record (object)", () -> Assert.assertEquals(dto.price, schema.view(record).toObject().price, 0));
+		operations.put("record (heap)", () -> Assert.assertEquals(dto.price, schema.view(record).getDouble(price), 0));
+		operations.put("record (direct)",
+				() -> Assert.assertEquals(dto.price, view.wrap(direct, 0).getDouble(price), 0));
+
+		// The default run only checks the values read by each operation
+		for (final Operation operation : operations.values())
+			operation.run();
+		assumeBenchmark();
+
+		LOGGER.info(String.format("%-20s %10s %12s %14s", "format", "size", "field op/s", "field B/op"));
+		for (final Map.Entry<String, Operation> entry : operations.entrySet()) {
+			final long[] read = measure(entry.getValue());
+			final int size = entry.getKey().startsWith("record") ?
+					record.length :
+					entry.getKey().contains("GZIP") ? gzip.length : raw.length;
+			LOGGER.info(String.format("%-20s %10d %12d %14d", entry.getKey(), size, read[0], read[1]));
+		}
+		final long[] write = measure(() -> schema.toBytes(dto));
+		LOGGER.info(String.format("record write: %d op/s, %d B/op", write[0], write[1]));
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils;
+
+import com.qwazr.externalizor.Externalizor;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class SerializationUtilsTest {
+
+	public static class Item implements Serializable {
+
+		private String name;
+		private ArrayList<Integer> values;
+
+		public Item() {
+		}
+
+		Item(final int size) {
+			name = "item" + size;
+			values = new ArrayList<>(size);
+			for (int i = 0; i < size; i++)
+				values.add(i % 100);
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Item))
+				return false;
+			final Item item = (Item) o;
+			return Objects.equals(name, item.name) && Objects.equals(values, item.values);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(name);
+		}
+	}
+
+	@Test
+	public void byteArrays() throws IOException, ReflectiveOperationException {
+		// From small to larger than the retained buffer size
+		for (final int size : new int[] { 0, 10, 1000, 300000 }) {
+			final Item item = new Item(size);
+			Assert.assertEquals(item, SerializationUtils.fromExternalizorBytes(
+					SerializationUtils.toExternalizorBytes(item), Item.class));
+			Assert.assertEquals(item, SerializationUtils.fromDefaultBytes(SerializationUtils.toDefaultBytes(item)));
+			Assert.assertEquals(item, SerializationUtils.fromDefaultCompressedBytes(
+					SerializationUtils.toDefaultCompressedBytes(item, 64)));
+		}
+	}
+
+	@Test
+	public void compatibleFormats() throws IOException, ReflectiveOperationException {
+		final Item item = new Item(1000);
+
+		// The JDK GZIP streams can read our GZIP streams, and vice versa
+		try (final ObjectInputStream input = new ObjectInputStream(
+				new GZIPInputStream(new ByteArrayInputStream(SerializationUtils.toDefaultCompressedBytes(item))))) {
+			Assert.assertEquals(item, input.readObject());
+		}
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (final ObjectOutputStream objected = new ObjectOutputStream(new GZIPOutputStream(output))) {
+			objected.writeObject(item);
+		}
+		Assert.assertEquals(item, SerializationUtils.fromDefaultCompressedBytes(output.toByteArray()));
+
+		// Same bytes as Externalizor (the OS byte of the GZIP header follows the running JDK)
+		output.reset();
+		Externalizor.serialize(item, output);
+		Assert.assertArrayEquals(output.toByteArray(), SerializationUtils.toExternalizorBytes(item));
+		Assert.assertEquals(item, Externalizor.deserialize(
+				new ByteArrayInputStream(SerializationUtils.toExternalizorBytes(item)), Item.class));
+	}
+
+	@Test
+	public void byteBuffers() throws IOException, ReflectiveOperationException {
+		final Item item = new Item(1000);
+		for (final ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate(65536),
+				ByteBuffer.allocateDirect(65536) }) {
+			buffer.position(10);
+			final int length1 = SerializationUtils.toExternalizorBytes(item, buffer);
+			final int length2 = SerializationUtils.toDefaultBytes(item, buffer);
+			final int length3 = SerializationUtils.toDefaultCompressedBytes(item, buffer);
+			Assert.assertEquals(10 + length1 + length2 + length3, buffer.position());
+
+			buffer.flip();
+			buffer.position(10).limit(10 + length1);
+			Assert.assertEquals(item, SerializationUtils.fromExternalizorBytes(buffer.slice(), Item.class));
+			buffer.position(10 + length1).limit(10 + length1 + length2);
+			Assert.assertEquals(item, SerializationUtils.fromDefaultBytes(buffer));
+			Assert.assertEquals(10 + length1, buffer.position());
+			buffer.position(10 + length1 + length2).limit(10 + length1 + length2 + length3);
+			Assert.assertEquals(item, SerializationUtils.fromDefaultCompressedBytes(buffer.slice()));
+		}
+	}
+
+	@Test(expected = BufferOverflowException.class)
+	public void bufferOverflow() throws IOException {
+		SerializationUtils.toDefaultBytes(new Item(1000), ByteBuffer.allocate(100));
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncReadWriteLockTest {
+
+	@Test
+	public void readersShareTheLock() throws ExecutionException, InterruptedException {
+		final AsyncReadWriteLock lock = new AsyncReadWriteLock(Runnable::run);
+		final CompletableFuture<Integer> hold1 = new CompletableFuture<>();
+		final CompletableFuture<Integer> hold2 = new CompletableFuture<>();
+		final CompletableFuture<Integer> read1 = lock.readAsync(() -> hold1);
+		final CompletableFuture<Integer> read2 = lock.readAsync(() -> hold2);
+		Assert.assertEquals(2, lock.getReadLockCount());
+		Assert.assertEquals(0, lock.getQueueLength());
+		hold1.complete(1);
+		hold2.complete(2);
+		Assert.assertEquals(Integer.valueOf(1), read1.get());
+		Assert.assertEquals(Integer.valueOf(2), read2.get());
+		Assert.assertEquals(0, lock.getReadLockCount());
+	}
+
+	@Test
+	public void writerIsExclusiveAndFair() throws ExecutionException, InterruptedException {
+		final AsyncReadWriteLock lock = new AsyncReadWriteLock(Runnable::run);
+		final List<String> events = new ArrayList<>();
+
+		final CompletableFuture<String> readHold = new CompletableFuture<>();
+		final CompletableFuture<String> writeHold = new CompletableFuture<>();
+
+		final CompletableFuture<String> read1 = lock.readAsync(() -> {
+			events.add("read1");
+			return readHold;
+		});
+		final CompletableFuture<String> write = lock.writeAsync(() -> {
+			events.add("write");
+			return writeHold;
+		});
+		// This reader must wait for the queued writer
+		final CompletableFuture<String> read2 = lock.readAsync(() -> {
+			events.add("read2");
+			return CompletableFuture.completedFuture("read2");
+		});
+
+		Assert.assertEquals(2, lock.getQueueLength());
+		Assert.assertFalse(lock.isWriteLocked());
+
+		readHold.complete("read1");
+		Assert.assertEquals("read1", read1.get());
+		Assert.assertTrue(lock.isWriteLocked());
+		Assert.assertFalse(read2.isDone());
+
+		writeHold.complete("write");
+		Assert.assertEquals("write", write.get());
+		Assert.assertEquals("read2", read2.get());
+
+		Assert.assertEquals(3, events.size());
+		Assert.assertEquals("read1", events.get(0));
+		Assert.assertEquals("write", events.get(1));
+		Assert.assertEquals("read2", events.get(2));
+		Assert.assertFalse(lock.isWriteLocked());
+		Assert.assertEquals(0, lock.getQueueLength());
+	}
+
+	@Test
+	public void failureReleasesTheLock() throws InterruptedException {
+		final AsyncReadWriteLock lock = new AsyncReadWriteLock(Runnable::run);
+		final CompletableFuture<Object> failed = lock.writeAsync(() -> {
+			throw new IllegalStateException("failure");
+		});
+		try {
+			failed.get();
+			Assert.fail("ExecutionException not thrown");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		Assert.assertFalse(lock.isWriteLocked());
+		final CompletableFuture<Object> failedStage = new CompletableFuture<>();
+		failedStage.completeExceptionally(new IllegalArgumentException("failure"));
+		Assert.assertTrue(lock.writeAsync(() -> failedStage).isCompletedExceptionally());
+		Assert.assertFalse(lock.isWriteLocked());
+	}
+
+	@Test
+	public void concurrentWriters() throws InterruptedException, ExecutionException, TimeoutException {
+		final AsyncReadWriteLock lock = new AsyncReadWriteLock();
+		final AtomicInteger inside = new AtomicInteger();
+		final AtomicInteger counter = new AtomicInteger();
+		final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			futures.add(lock.writeAsync(() -> CompletableFuture.supplyAsync(() -> {
+				Assert.assertEquals(1, inside.incrementAndGet());
+				final int count = counter.incrementAndGet();
+				inside.decrementAndGet();
+				return count;
+			})));
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(1, TimeUnit.MINUTES);
+		Assert.assertEquals(1000, counter.get());
+		Assert.assertFalse(lock.isWriteLocked());
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent.readwritelock;
+
+import com.qwazr.utils.ObjectMappers;
+import com.qwazr.utils.concurrent.ReadWriteLock;
+import com.qwazr.utils.concurrent.ThreadUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class LockProfilerTest {
+
+	@Test
+	public void sampleEveryAcquisition() {
+		final LockProfiler profiler = LockProfiler.of().sampleRate(1).build();
+		final ReadWriteLock rwl = profiler.wrap("test", ReadWriteLock.stamped());
+		for (int i = 0; i < 10; i++) {
+			final int value = i;
+			Assert.assertEquals(Integer.valueOf(i), rwl.read(() -> value));
+		}
+		rwl.write(() -> ThreadUtils.sleep(10, TimeUnit.MILLISECONDS));
+		Assert.assertEquals("done", rwl.readOrWrite(() -> null, () -> "done"));
+
+		final LockProfiler.Snapshot snapshot = profiler.getSnapshot("test");
+		Assert.assertNotNull(snapshot);
+		Assert.assertEquals("test", snapshot.name);
+		Assert.assertEquals(11, snapshot.read.acquisitions);
+		Assert.assertEquals(11, snapshot.read.sampled);
+		Assert.assertEquals(2, snapshot.write.acquisitions);
+		Assert.assertEquals(2, snapshot.write.sampled);
+		Assert.assertTrue(snapshot.write.holdTime.maxNanos >= TimeUnit.MILLISECONDS.toNanos(10));
+		Assert.assertNull(snapshot.longestWaiters);
+
+		profiler.reset();
+		Assert.assertEquals(0, profiler.getSnapshot("test").read.acquisitions);
+		Assert.assertNull(profiler.getSnapshot("unknown"));
+	}
+
+	@Test
+	public void sampling() {
+		final LockProfiler profiler = LockProfiler.of().sampleRate(100).build();
+		final ReadWriteLock rwl = profiler.wrap("sampled", ReadWriteLock.reentrant(false));
+		for (int i = 0; i < 10000; i++)
+			rwl.read(() -> {
+			});
+		final LockProfiler.ModeSnapshot read = profiler.getSnapshot("sampled").read;
+		Assert.assertEquals(10000, read.acquisitions);
+		Assert.assertTrue(read.sampled > 0);
+		Assert.assertTrue(read.sampled < 1000);
+	}
+
+	@Test
+	public void contentionAndLongestWaiters() throws InterruptedException, IOException {
+		final LockProfiler profiler = LockProfiler.of()
+				.sampleRate(1)
+				.contentionThreshold(1, TimeUnit.MILLISECONDS)
+				.longestWaiters(2)
+				.build();
+		final ReadWriteLock rwl = profiler.wrap("contended", ReadWriteLock.reentrant(true));
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int i = 0; i < 8; i++)
+				executor.submit(() -> rwl.write(() -> ThreadUtils.sleep(5, TimeUnit.MILLISECONDS)));
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		final LockProfiler.Snapshot snapshot = profiler.getSnapshots().get("contended");
+		Assert.assertEquals(8, snapshot.write.acquisitions);
+		Assert.assertTrue(snapshot.write.contended > 0);
+		Assert.assertTrue(snapshot.write.getContentionRatio() > 0);
+		Assert.assertNotNull(snapshot.longestWaiters);
+		Assert.assertEquals(2, snapshot.longestWaiters.size());
+		Assert.assertTrue(snapshot.longestWaiters.get(0).waitNanos >= snapshot.longestWaiters.get(1).waitNanos);
+		Assert.assertFalse(snapshot.longestWaiters.get(0).stackTrace.isEmpty());
+		Assert.assertNotNull(ObjectMappers.JSON.writeValueAsString(profiler.getSnapshots()));
+	}
+
+	@Test
+	public void recordedAfterRelease() {
+		final LockProfiler profiler = LockProfiler.of().sampleRate(1).contentionThreshold(0, TimeUnit.NANOSECONDS)
+				.longestWaiters(1).build();
+		final ReadWriteLock rwl = profiler.wrap("released", ReadWriteLock.stamped());
+		// Nothing is recorded while the lock is held
+		Assert.assertEquals(0L, (long) rwl.write(() -> profiler.getSnapshot("released").write.sampled));
+		final LockProfiler.Snapshot snapshot = profiler.getSnapshot("released");
+		Assert.assertEquals(1, snapshot.write.sampled);
+		Assert.assertEquals(1, snapshot.write.contended);
+		// The stack trace is captured before the lock is requested, from the caller
+		Assert.assertTrue(snapshot.longestWaiters.get(0).stackTrace.get(0).contains("recordedAfterRelease"));
+		try {
+			rwl.read(() -> {
+				throw new IllegalStateException();
+			});
+			Assert.fail("The exception should be thrown");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals(1, profiler.getSnapshot("released").read.sampled);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.qwazr.utils.jdbc.connection.ConnectionPool;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncTransactionsTest {
+
+	private static ConnectionPool pool;
+	private static AsyncTransactions async;
+
+	@BeforeClass
+	public static void setup() throws ExecutionException, InterruptedException {
+		pool = ConnectionPool.of("jdbc:h2:mem:asynctransactionstest;DB_CLOSE_DELAY=-1", null, null)
+				.maxSize(3)
+				.build();
+		async = AsyncTransactions.of(pool).build();
+		async.update("CREATE TABLE accounts (id INT PRIMARY KEY, balance INT)").get();
+		async.update("INSERT INTO accounts VALUES (?, ?)", 1, 100).get();
+		async.update("INSERT INTO accounts VALUES (?, ?)", 2, 100).get();
+	}
+
+	@AfterClass
+	public static void cleanup() {
+		async.close();
+		pool.close();
+	}
+
+	@Test
+	public void queryAndUpdate() throws ExecutionException, InterruptedException {
+		Assert.assertEquals(3, async.getMaxConcurrency());
+		final List<Row> rows = async.query("SELECT balance FROM accounts WHERE id = ?", 1).get();
+		Assert.assertEquals(1, rows.size());
+		Assert.assertEquals(1, (int) async.update("UPDATE accounts SET balance = balance WHERE id = ?", 2).get());
+	}
+
+	@Test
+	public void rollbackOnFailure() throws ExecutionException, InterruptedException {
+		final CompletableFuture<Object> future = async.inTransaction(transaction -> {
+			transaction.update("UPDATE accounts SET balance = 0 WHERE id = 1");
+			return transaction.update("UPDATE missing SET balance = 0");
+		});
+		try {
+			future.get();
+			Assert.fail("The update should have failed");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof SQLException);
+		}
+		final List<Row> rows = async.query("SELECT balance FROM accounts WHERE id = ?", 1).get();
+		Assert.assertEquals(100, ((Number) rows.get(0).get(0)).intValue());
+	}
+
+	@Test
+	public void concurrencyIsBounded() throws ExecutionException, InterruptedException {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger peak = new AtomicInteger();
+		final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+		for (int i = 0; i < 20; i++)
+			futures.add(async.inTransaction(transaction -> {
+				peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(20);
+					return transaction.prepare("SELECT COUNT(*) FROM accounts").getResultCount();
+				} finally {
+					running.decrementAndGet();
+				}
+			}));
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+		Assert.assertTrue("Peak: " + peak.get(), peak.get() <= async.getMaxConcurrency());
+		Assert.assertEquals(0, async.getActiveCount());
+		Assert.assertEquals(0, pool.getMetrics().timeouts);
+	}
+}
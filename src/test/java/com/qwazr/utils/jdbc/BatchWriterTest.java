@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.qwazr.utils.jdbc.connection.JDBCConnection;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BatchWriterTest {
+
+	private static JDBCConnection connectionManager;
+
+	@BeforeClass
+	public static void setup() throws ReflectiveOperationException, SQLException {
+		connectionManager = new JDBCConnection(BatchWriterTest.class.getClassLoader(), "org.h2.Driver",
+				"jdbc:h2:mem:batchwritertest;DB_CLOSE_DELAY=-1");
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			transaction.update("CREATE TABLE items (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(50))");
+		}
+	}
+
+	@Before
+	public void clear() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			transaction.update("DELETE FROM items");
+		}
+	}
+
+	private static long count() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			return (Long) transaction.prepare("SELECT COUNT(*) FROM items").getFirstResult().get(0);
+		}
+	}
+
+	private void checkBatches(final boolean rewrite) throws SQLException {
+		final List<BatchWriter.Result> results = new ArrayList<>();
+		try (final Transaction transaction = connectionManager.getNewTransaction(false)) {
+			try (final BatchWriter writer = transaction.batch("INSERT INTO items (name) VALUES (?)")
+					.batchSize(100)
+					.commitEvery(5)
+					.rewrite(rewrite)
+					.generatedKeys(!rewrite)
+					.listener(results::add)
+					.build()) {
+				for (int i = 0; i < 1050; i++)
+					writer.setParameter(1, "item" + i).addBatch();
+				Assert.assertEquals(10, writer.getBatchCount());
+				Assert.assertEquals(1000, count());
+			}
+		}
+		Assert.assertEquals(11, results.size());
+		Assert.assertEquals(50, results.get(10).rows);
+		if (!rewrite) {
+			Assert.assertEquals(100, results.get(0).updateCounts.length);
+			Assert.assertEquals(100, results.get(0).generatedKeys.size());
+		} else
+			Assert.assertArrayEquals(new int[] { 100 }, results.get(0).updateCounts);
+		// The last batch is committed when the writer is closed
+		Assert.assertEquals(1050, count());
+	}
+
+	@Test
+	public void batch() throws SQLException {
+		checkBatches(false);
+	}
+
+	@Test
+	public void rewrite() throws SQLException {
+		checkBatches(true);
+	}
+
+	@Test
+	public void wrongParameterIndex() throws SQLException {
+		for (final boolean rewrite : new boolean[] { false, true }) {
+			try (final Transaction transaction = connectionManager.getNewTransaction()) {
+				try (final BatchWriter writer = transaction.batch("INSERT INTO items (name) VALUES (?)")
+						.rewrite(rewrite)
+						.build()) {
+					for (final int index : new int[] { 0, 2 }) {
+						try {
+							writer.setParameter(index, "item");
+							Assert.fail("The index should be rejected: " + index);
+						} catch (SQLException e) {
+							// Expected in both modes
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void batchBytes() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			try (final BatchWriter writer = transaction.batch("INSERT INTO items (id, name) VALUES (?, ?)")
+					.batchBytes(100)
+					.build()) {
+				// Each row is estimated to 8 + 20 bytes
+				for (int i = 0; i < 10; i++)
+					writer.add(i, "0123456789");
+				Assert.assertEquals(2, writer.getBatchCount());
+				Assert.assertEquals(8, writer.getUpdateCount());
+			}
+		}
+		Assert.assertEquals(10, count());
+	}
+
+	@Test
+	public void rewriteSql() {
+		final BatchWriter.Rewrite rewrite =
+				new BatchWriter.Rewrite("INSERT INTO t (a, b, c) VALUES (?, 'x?', COALESCE(?, 0));");
+		Assert.assertEquals(2, rewrite.parameterCount);
+		Assert.assertEquals("INSERT INTO t (a, b, c) VALUES (?, 'x?', COALESCE(?, 0)), (?, 'x?', COALESCE(?, 0))",
+				rewrite.getSql(2));
+		try {
+			new BatchWriter.Rewrite("INSERT INTO t VALUES (?) ON DUPLICATE KEY UPDATE a = 1");
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+}
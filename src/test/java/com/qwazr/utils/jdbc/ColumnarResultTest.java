@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.qwazr.utils.jdbc.connection.JDBCConnection;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+
+public class ColumnarResultTest {
+
+	private final static int ROWS = ColumnarResult.CHUNK_SIZE * 2 + 100;
+
+	private static JDBCConnection connectionManager;
+
+	@BeforeClass
+	public static void setup() throws ReflectiveOperationException, SQLException {
+		connectionManager = new JDBCConnection(ColumnarResultTest.class.getClassLoader(), "org.h2.Driver",
+				"jdbc:h2:mem:columnarresulttest;DB_CLOSE_DELAY=-1");
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			transaction.update(
+					"CREATE TABLE facts (id INT PRIMARY KEY, amount BIGINT, ratio DOUBLE, category VARCHAR(10), price DECIMAL(10,2))");
+			try (final BatchWriter writer = transaction.batch("INSERT INTO facts VALUES (?, ?, ?, ?, ?)").build()) {
+				for (int i = 0; i < ROWS; i++)
+					writer.add(i, i % 10 == 0 ? null : (long) i, i / 2.0, "cat" + (i % 3), new BigDecimal(i));
+			}
+		}
+	}
+
+	@Test
+	public void columns() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final ColumnarResult result =
+					transaction.prepare("SELECT id, amount, ratio, category, price FROM facts ORDER BY id")
+							.getColumnarResult();
+			Assert.assertEquals(ROWS, result.getRowCount());
+
+			final ColumnarResult.IntColumn ids = result.getColumn("ID", ColumnarResult.IntColumn.class);
+			Assert.assertEquals(3, ids.getChunkCount());
+			Assert.assertEquals(100, ids.getChunkLength(2));
+			Assert.assertEquals((long) ROWS * (ROWS - 1) / 2, ids.sum());
+
+			long expectedAmount = 0;
+			for (int i = 0; i < ROWS; i++)
+				if (i % 10 != 0)
+					expectedAmount += i;
+			final ColumnarResult.LongColumn amounts = result.getColumn("AMOUNT", ColumnarResult.LongColumn.class);
+			Assert.assertEquals(expectedAmount, amounts.sum());
+			Assert.assertEquals((ROWS + 9) / 10, amounts.getNullCount());
+			Assert.assertTrue(amounts.isNull(0));
+			Assert.assertNull(amounts.getObject(10));
+			Assert.assertEquals(11L, amounts.getObject(11));
+
+			final ColumnarResult.DoubleColumn ratios = result.getColumn("RATIO", ColumnarResult.DoubleColumn.class);
+			Assert.assertEquals(ids.sum() / 2.0, ratios.sum(), 0.001);
+
+			final ColumnarResult.StringColumn categories =
+					result.getColumn("CATEGORY", ColumnarResult.StringColumn.class);
+			Assert.assertEquals(3, categories.getDictionary().size());
+			Assert.assertEquals("cat2", categories.getString(5));
+			Assert.assertEquals(2, categories.getCode(5));
+
+			Assert.assertEquals(new BigDecimal("5.00"), result.getColumn(4).getObject(5));
+		}
+	}
+
+	@Test
+	public void cursor() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final Query query = transaction.prepare("SELECT id, amount, category FROM facts ORDER BY id");
+			query.setFirstResult(10);
+			query.setMaxResults(5);
+			final ColumnarResult result = query.getColumnarResult();
+			Assert.assertEquals(5, result.getRowCount());
+			final ColumnarResult.Cursor cursor = result.cursor();
+			int expected = 10;
+			while (cursor.next()) {
+				Assert.assertEquals(expected, cursor.getInt(0));
+				Assert.assertEquals(expected % 10 == 0, cursor.isNull(1));
+				Assert.assertEquals(expected % 10 == 0 ? 0 : expected, cursor.getLong(1));
+				Assert.assertEquals("cat" + (expected % 3), cursor.getString(2));
+				expected++;
+			}
+			Assert.assertEquals(15, expected);
+
+			// A typed getter checks the type of the column
+			cursor.setRow(0);
+			for (final int column : new int[] { 1, 2 }) {
+				try {
+					cursor.getInt(column);
+					Assert.fail("The column type should be checked");
+				} catch (IllegalArgumentException e) {
+					Assert.assertTrue(e.getMessage(), e.getMessage().contains(result.getColumn(column).getName()));
+				}
+			}
+			try {
+				cursor.getLong(2);
+				Assert.fail("The column type should be checked");
+			} catch (IllegalArgumentException e) {
+				Assert.assertEquals("The column CATEGORY is a StringColumn, expected: IntColumn or LongColumn",
+						e.getMessage());
+			}
+			try {
+				cursor.getDouble(2);
+				Assert.fail("The column type should be checked");
+			} catch (IllegalArgumentException e) {
+				Assert.assertTrue(e.getMessage(), e.getMessage().contains("CATEGORY"));
+			}
+		}
+	}
+}
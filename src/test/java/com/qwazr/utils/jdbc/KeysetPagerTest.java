@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.qwazr.utils.jdbc.connection.JDBCConnection;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class KeysetPagerTest {
+
+	private static JDBCConnection connectionManager;
+
+	@BeforeClass
+	public static void setup() throws ReflectiveOperationException, SQLException {
+		connectionManager = new JDBCConnection(KeysetPagerTest.class.getClassLoader(), "org.h2.Driver",
+				"jdbc:h2:mem:keysetpagertest;DB_CLOSE_DELAY=-1");
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			transaction.update("CREATE TABLE items (id INT PRIMARY KEY, category INT, status VARCHAR(10))");
+			try (final BatchWriter writer = transaction.batch("INSERT INTO items VALUES (?, ?, ?)").build()) {
+				for (int i = 0; i < 300; i++)
+					writer.add(i, i % 7, i < 250 ? "open" : "closed");
+			}
+		}
+	}
+
+	@Test
+	public void pages() throws SQLException {
+		final KeysetPager pager = KeysetPager.of("SELECT id, category FROM items WHERE status = ?")
+				.asc("category")
+				.desc("id")
+				.pageSize(100)
+				.build();
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			KeysetPager.Page page = pager.getPage(transaction, null, "open");
+			int previousCategory = -1;
+			int previousId = Integer.MAX_VALUE;
+			int count = 0;
+			int pages = 0;
+			for (; ; ) {
+				pages++;
+				for (final Row row : page.rows) {
+					final int category = (Integer) row.get("CATEGORY");
+					final int id = (Integer) row.get("ID");
+					Assert.assertTrue(category > previousCategory || (category == previousCategory && id < previousId));
+					previousCategory = category;
+					previousId = id;
+					count++;
+				}
+				if (!page.hasMore())
+					break;
+				page = pager.getPage(transaction, page.lastKey, "open");
+			}
+			Assert.assertEquals(3, pages);
+			Assert.assertEquals(250, count);
+			Assert.assertEquals(250, pager.getTotalCount(transaction, "open"));
+		}
+	}
+
+	@Test
+	public void stream() throws SQLException {
+		final KeysetPager pager = KeysetPager.of("SELECT id FROM items").asc("id").pageSize(30).build();
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final List<Integer> ids =
+					pager.stream(transaction).map(row -> (Integer) row.get(0)).collect(Collectors.toList());
+			Assert.assertEquals(300, ids.size());
+			for (int i = 0; i < ids.size(); i++)
+				Assert.assertEquals(i, ids.get(i).intValue());
+		}
+	}
+
+	@Test
+	public void forwardOnlyResultCount() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final Query query = transaction.prepare("SELECT id FROM items WHERE status = 'closed'");
+			Assert.assertEquals(50, query.getResultCount());
+			Assert.assertEquals(50, query.getResultList().size());
+			Assert.assertEquals(50, KeysetPager.count(transaction, "SELECT id FROM items WHERE status = ?", "closed"));
+		}
+	}
+}
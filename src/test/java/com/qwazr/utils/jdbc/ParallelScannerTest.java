@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.jdbc.connection.ConnectionPool;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ParallelScannerTest {
+
+	final static Logger LOGGER = LoggerUtils.getLogger(ParallelScannerTest.class);
+
+	private final static int ROWS = 20000;
+
+	private static ConnectionPool pool;
+
+	@BeforeClass
+	public static void setup() throws SQLException {
+		pool = ConnectionPool.of("jdbc:h2:mem:parallelscannertest;DB_CLOSE_DELAY=-1", null, null).maxSize(8).build();
+		try (final Transaction transaction = pool.getNewTransaction(false)) {
+			transaction.update("CREATE TABLE items (id BIGINT PRIMARY KEY, name VARCHAR(50), category INT)");
+			try (final BatchWriter writer = transaction.batch("INSERT INTO items VALUES (?, ?, ?)")
+					.commitEvery(1)
+					.build()) {
+				for (int i = 1; i <= ROWS; i++)
+					writer.add(i, "item" + i, i % 5);
+			}
+		}
+	}
+
+	@AfterClass
+	public static void cleanup() {
+		pool.close();
+	}
+
+	@Test
+	public void orderedRanges() throws SQLException {
+		final ParallelScanner scanner = ParallelScanner.of(pool, "SELECT id, name FROM items WHERE category <> ?", 0)
+				.ranges("id", 7)
+				.parallelism(3)
+				.bufferSize(100)
+				.ordered(true)
+				.build();
+		final List<Long> ids = new ArrayList<>();
+		scanner.forEach(row -> ids.add((Long) row.get("ID")));
+		Assert.assertEquals(ROWS * 4 / 5, ids.size());
+		for (int i = 1; i < ids.size(); i++)
+			Assert.assertTrue(ids.get(i - 1) < ids.get(i));
+	}
+
+	@Test
+	public void unorderedHash() throws SQLException {
+		final ParallelScanner scanner =
+				ParallelScanner.of(pool, "SELECT id FROM items").hash("id", 4).parallelism(4).build();
+		final Set<Long> ids;
+		try (final Stream<Row> stream = scanner.stream()) {
+			ids = stream.map(row -> (Long) row.get(0)).collect(Collectors.toSet());
+		}
+		Assert.assertEquals(ROWS, ids.size());
+	}
+
+	/**
+	 * The negative and the NULL keys must be read by one partition
+	 */
+	@Test
+	public void negativeAndNullKeys() throws SQLException {
+		try (final Transaction transaction = pool.getNewTransaction()) {
+			transaction.update("CREATE TABLE signed (id INT PRIMARY KEY, code BIGINT)");
+			try (final BatchWriter writer = transaction.batch("INSERT INTO signed VALUES (?, ?)").build()) {
+				for (int i = 0; i < 100; i++)
+					writer.add(i, i % 10 == 0 ? null : (long) (i - 50));
+			}
+		}
+		try {
+			final List<ParallelScanner> scanners = new ArrayList<>();
+			scanners.add(ParallelScanner.of(pool, "SELECT id, code FROM signed").hash("code", 3).build());
+			scanners.add(ParallelScanner.of(pool, "SELECT id, code FROM signed").ranges("code", 4).build());
+			scanners.add(ParallelScanner.of(pool, "SELECT id, code FROM signed").ranges("code", 4).ordered(true).build());
+			scanners.add(ParallelScanner.of(pool, "SELECT id, code FROM signed").ranges("code", 4, -50, 49).build());
+			for (final ParallelScanner scanner : scanners) {
+				final List<Integer> ids = new ArrayList<>();
+				scanner.forEach(row -> ids.add((Integer) row.get(0)));
+				Assert.assertEquals(100, ids.size());
+				Assert.assertEquals(100, new HashSet<>(ids).size());
+			}
+
+			// Only NULL values
+			final ParallelScanner nulls =
+					ParallelScanner.of(pool, "SELECT id, code FROM signed WHERE code IS NULL").ranges("code", 4).build();
+			final LongAdder count = new LongAdder();
+			nulls.forEach(row -> count.increment());
+			Assert.assertEquals(10, count.sum());
+		} finally {
+			try (final Transaction transaction = pool.getNewTransaction()) {
+				transaction.update("DROP TABLE signed");
+			}
+		}
+	}
+
+	/**
+	 * The range of the keys is wider than Long.MAX_VALUE
+	 */
+	@Test
+	public void wideKeyRange() throws SQLException {
+		final long[] codes = { Long.MIN_VALUE, Long.MIN_VALUE + 1, -1, 0, 1, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+		try (final Transaction transaction = pool.getNewTransaction()) {
+			transaction.update("CREATE TABLE wide (id INT PRIMARY KEY, code BIGINT)");
+			try (final BatchWriter writer = transaction.batch("INSERT INTO wide VALUES (?, ?)").build()) {
+				for (int i = 0; i < codes.length; i++)
+					writer.add(i, codes[i]);
+			}
+		}
+		try {
+			for (final int partitions : new int[] { 1, 2, 3, 4, 7 }) {
+				final List<ParallelScanner> scanners = new ArrayList<>();
+				scanners.add(ParallelScanner.of(pool, "SELECT id, code FROM wide").ranges("code", partitions).build());
+				scanners.add(ParallelScanner.of(pool, "SELECT id, code FROM wide")
+						.ranges("code", partitions, Long.MIN_VALUE, Long.MAX_VALUE)
+						.build());
+				for (final ParallelScanner scanner : scanners) {
+					Assert.assertEquals(partitions, scanner.getPartitions().size());
+					final List<Integer> ids = new ArrayList<>();
+					scanner.forEach(row -> ids.add((Integer) row.get(0)));
+					Assert.assertEquals(codes.length, new HashSet<>(ids).size());
+					Assert.assertEquals(codes.length, ids.size());
+				}
+			}
+		} finally {
+			try (final Transaction transaction = pool.getNewTransaction()) {
+				transaction.update("DROP TABLE wide");
+			}
+		}
+	}
+
+	@Test
+	public void earlyClose() throws SQLException {
+		final ParallelScanner scanner = ParallelScanner.of(pool, "SELECT id FROM items")
+				.ranges("id", 4, 1, ROWS)
+				.bufferSize(10)
+				.build();
+		try (final Stream<Row> stream = scanner.stream()) {
+			Assert.assertEquals(10, stream.limit(10).count());
+		}
+		Assert.assertEquals(4, scanner.getPartitions().size());
+	}
+
+	@Test
+	public void errorIsPropagated() throws SQLException {
+		final ParallelScanner scanner =
+				ParallelScanner.of(pool, "SELECT id FROM items").hash("unknown_column", 2).build();
+		try (final Stream<Row> stream = scanner.stream()) {
+			stream.count();
+			Assert.fail("Exception expected");
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getCause() instanceof SQLException);
+		}
+	}
+
+	@Test
+	public void benchmark() throws SQLException {
+		final List<String> results = new ArrayList<>();
+		for (final int partitions : new int[] { 1, 2, 4, 8 }) {
+			final ParallelScanner scanner = ParallelScanner.of(pool, "SELECT id, name FROM items")
+					.ranges("id", partitions)
+					.parallelism(partitions)
+					.build();
+			final LongAdder count = new LongAdder();
+			final long start = System.nanoTime();
+			for (int i = 0; i < 5; i++)
+				scanner.forEach(row -> count.increment());
+			final long elapsed = System.nanoTime() - start;
+			Assert.assertEquals(ROWS * 5, count.sum());
+			results.add(partitions + " partition(s) => " + (count.sum() * 1_000_000_000L / elapsed) + " rows/s");
+		}
+		LOGGER.info(() -> "PARALLEL SCAN: " + String.join(" | ", results));
+	}
+}
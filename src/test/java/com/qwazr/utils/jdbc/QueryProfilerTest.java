@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.qwazr.utils.TimeTracker;
+import com.qwazr.utils.jdbc.connection.JDBCConnection;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class QueryProfilerTest {
+
+	private static JDBCConnection connectionManager;
+
+	@BeforeClass
+	public static void setup() throws ReflectiveOperationException, SQLException {
+		connectionManager = new JDBCConnection(QueryProfilerTest.class.getClassLoader(), "org.h2.Driver",
+				"jdbc:h2:mem:queryprofilertest;DB_CLOSE_DELAY=-1");
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			transaction.update("CREATE TABLE items (id INT PRIMARY KEY, name VARCHAR(64))");
+		}
+	}
+
+	@Test
+	public void normalize() {
+		Assert.assertEquals("SELECT * FROM items WHERE id = ? AND name = ?",
+				QueryProfiler.normalize("SELECT *\n  FROM items WHERE id = 12 AND name = 'it''s'"));
+		Assert.assertEquals("SELECT col_1, t2.a3 FROM t2 LIMIT ?",
+				QueryProfiler.normalize("  SELECT col_1,  t2.a3 FROM t2 LIMIT 10.5 "));
+	}
+
+	@Test
+	public void snapshotAndSlowQueries() throws SQLException {
+		final QueryProfiler profiler = QueryProfiler.of().slowQueryThreshold(1, TimeUnit.NANOSECONDS).build();
+		connectionManager.setProfiler(profiler);
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			for (int i = 0; i < 10; i++)
+				transaction.update("INSERT INTO items VALUES (" + i + ", 'item" + i + "')");
+			for (int i = 0; i < 3; i++) {
+				try (final Query query = transaction.prepare("SELECT * FROM items WHERE id < 5")) {
+					Assert.assertEquals(5, query.getResultList().size());
+				}
+			}
+			try (final Query query = transaction.prepare("SELECT id FROM items")) {
+				try (final Stream<Row> ids = query.stream(false)) {
+					Assert.assertEquals(10, ids.collect(Collectors.toList()).size());
+				}
+			}
+			try (final Query query = transaction.prepare("SELECT * FROM missing")) {
+				Assert.fail("The table should not exist " + query);
+			} catch (SQLException e) {
+				// Expected
+			}
+		} finally {
+			connectionManager.setProfiler(null);
+		}
+
+		final QueryProfiler.Snapshot insert = profiler.getSnapshot("INSERT INTO items VALUES (?, ?)");
+		Assert.assertNotNull(insert);
+		Assert.assertEquals(10, insert.executions);
+		Assert.assertEquals(10, insert.rowsUpdated);
+
+		final QueryProfiler.Snapshot select = profiler.getSnapshot("SELECT * FROM items WHERE id < ?");
+		Assert.assertNotNull(select);
+		Assert.assertEquals(3, select.executions);
+		Assert.assertEquals(15, select.rowsFetched);
+		Assert.assertEquals(3, select.fetchTime.count);
+
+		final QueryProfiler.Snapshot stream = profiler.getSnapshot("SELECT id FROM items");
+		Assert.assertNotNull(stream);
+		Assert.assertEquals(10, stream.rowsFetched);
+
+		final QueryProfiler.Snapshot missing = profiler.getSnapshot("SELECT * FROM missing");
+		Assert.assertNotNull(missing);
+		Assert.assertEquals(1, missing.errors);
+
+		// With a threshold of one nanosecond, every statement is a slow query
+		Assert.assertEquals(14, profiler.getSlowQueryCount());
+		final List<QueryProfiler.SlowQuery> slowQueries = profiler.getSlowQueries();
+		Assert.assertEquals(14, slowQueries.size());
+		Assert.assertEquals("SELECT id FROM items", slowQueries.get(0).sql);
+		Assert.assertEquals(10, slowQueries.get(0).rows);
+		Assert.assertNotNull(slowQueries.get(0).parameters);
+
+		profiler.reset();
+		Assert.assertTrue(profiler.getSnapshots().isEmpty());
+		Assert.assertTrue(profiler.getSlowQueries().isEmpty());
+	}
+
+	@Test
+	public void slowRawResultSet() throws SQLException {
+		final QueryProfiler profiler = QueryProfiler.of().slowQueryThreshold(1, TimeUnit.NANOSECONDS).build();
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			transaction.setProfiler(profiler);
+			try (final Query query = transaction.prepare("SELECT name FROM items WHERE id = 1")) {
+				final ResultSet resultSet = query.getResultSet();
+				while (resultSet.next())
+					Assert.assertNotNull(resultSet.getString(1));
+			}
+			try (final Query query = transaction.prepare("SELECT name FROM items WHERE id = 2")) {
+				final Iterator<Row> rows = query.getRowIterator();
+				while (rows.hasNext())
+					Assert.assertNotNull(rows.next());
+			}
+		}
+		// The ResultSets were read directly: the execute time alone is checked
+		Assert.assertEquals(2, profiler.getSlowQueryCount());
+		final QueryProfiler.Snapshot select = profiler.getSnapshot("SELECT name FROM items WHERE id = ?");
+		Assert.assertEquals(2, select.executions);
+		Assert.assertEquals(0, select.fetchTime.count);
+	}
+
+	@Test
+	public void maxStatements() throws SQLException {
+		final QueryProfiler profiler = QueryProfiler.of()
+				.maxStatements(2)
+				.slowQueryThreshold(0, TimeUnit.SECONDS)
+				.build();
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			transaction.setProfiler(profiler);
+			transaction.prepare("SELECT 1").getFirstResult();
+			transaction.prepare("SELECT 1 + 1").getFirstResult();
+			transaction.prepare("SELECT 1 + 1 + 1").getFirstResult();
+			transaction.prepare("SELECT 1 + 1 + 1 + 1").getFirstResult();
+		}
+		Assert.assertEquals(3, profiler.getSnapshots().size());
+		Assert.assertEquals(2, profiler.getSnapshot(QueryProfiler.OTHER).executions);
+		Assert.assertEquals(0, profiler.getSlowQueryCount());
+	}
+
+	@Test
+	public void timeTracker() throws SQLException {
+		final TimeTracker timeTracker = new TimeTracker();
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			transaction.setTimeTracker(timeTracker);
+			try (final Query query = transaction.prepare("SELECT COUNT(*) FROM items WHERE id > 100")) {
+				query.getFirstResult();
+			}
+		}
+		Assert.assertTrue(
+				timeTracker.getStatus().durations.containsKey("SELECT COUNT(*) FROM items WHERE id > ?"));
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.qwazr.utils.jdbc.connection.JDBCConnection;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QueryResultCacheTest {
+
+	private final static String SELECT = "SELECT label FROM public.countries WHERE code = ?";
+
+	private static CountingConnection connectionManager;
+
+	/**
+	 * Count the transactions, to check that the hits do not use any connection
+	 */
+	private static class CountingConnection extends JDBCConnection {
+
+		private final AtomicInteger transactions = new AtomicInteger();
+
+		private CountingConnection() throws ReflectiveOperationException {
+			super(QueryResultCacheTest.class.getClassLoader(), "org.h2.Driver",
+					"jdbc:h2:mem:queryresultcachetest;DB_CLOSE_DELAY=-1");
+		}
+
+		@Override
+		public Transaction getNewTransaction(final boolean autoCommit, final Integer transactionIsolation)
+				throws SQLException {
+			transactions.incrementAndGet();
+			return super.getNewTransaction(autoCommit, transactionIsolation);
+		}
+	}
+
+	@BeforeClass
+	public static void setup() throws ReflectiveOperationException, SQLException {
+		connectionManager = new CountingConnection();
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			transaction.update("CREATE TABLE countries (code VARCHAR(2) PRIMARY KEY, label VARCHAR(32))");
+			transaction.update("INSERT INTO countries VALUES ('FR', 'France'), ('DE', 'Germany')");
+			transaction.update("CREATE TABLE visits (id INT)");
+		}
+	}
+
+	private static String label(final QueryResultCache cache, final String code) throws SQLException {
+		final List<Row> rows = cache.getResultList(connectionManager, SELECT, code);
+		return rows.isEmpty() ? null : (String) rows.get(0).get(0);
+	}
+
+	private static QueryResultCache.Builder cache() {
+		return QueryResultCache.of().tables("COUNTRIES");
+	}
+
+	@Test
+	public void hitsDoNotUseConnections() throws SQLException {
+		final QueryResultCache cache = cache().build();
+		Assert.assertEquals("France", label(cache, "FR"));
+		final int transactions = connectionManager.transactions.get();
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals("France", label(cache, "FR"));
+			Assert.assertEquals("Germany", cache.getResultList(connectionManager, SELECT, "DE").get(0).get(0));
+		}
+		// Only the first read of 'DE' is a miss
+		Assert.assertEquals(transactions + 1, connectionManager.transactions.get());
+		final QueryResultCache.Statistics statistics = cache.getStatistics();
+		Assert.assertEquals(2, statistics.size);
+		Assert.assertEquals(2, statistics.misses);
+		Assert.assertEquals(19, statistics.hits);
+	}
+
+	@Test
+	public void updateInvalidates() throws SQLException {
+		final QueryResultCache cache = cache().build();
+		connectionManager.setResultCache(cache);
+		try {
+			Assert.assertEquals("France", label(cache, "FR"));
+
+			// An update of another table does not invalidate
+			try (final Transaction transaction = connectionManager.getNewTransaction()) {
+				transaction.update("INSERT INTO visits VALUES (1)");
+			}
+			Assert.assertEquals(0, cache.getStatistics().invalidations);
+
+			try (final Transaction transaction = connectionManager.getNewTransaction()) {
+				transaction.update("UPDATE countries SET label = 'République française' WHERE code = 'FR'");
+			}
+			Assert.assertEquals("République française", label(cache, "FR"));
+
+			// A result read before the commit is discarded by the commit
+			try (final Transaction transaction = connectionManager.getNewTransaction(false)) {
+				final Query query = transaction.prepare("UPDATE countries SET label = ? WHERE code = ?");
+				query.getStatement().setString(1, "France");
+				query.getStatement().setString(2, "FR");
+				Assert.assertEquals(1, query.update());
+				Assert.assertEquals("République française", label(cache, "FR"));
+				transaction.commit();
+			}
+			Assert.assertEquals("France", label(cache, "FR"));
+
+			// The batch writer invalidates too
+			Assert.assertNull(label(cache, "IT"));
+			try (final Transaction transaction = connectionManager.getNewTransaction()) {
+				try (final BatchWriter writer = transaction.batch("INSERT INTO countries VALUES (?, ?)").build()) {
+					writer.add("IT", "Italy");
+				}
+			}
+			Assert.assertEquals("Italy", label(cache, "IT"));
+		} finally {
+			connectionManager.setResultCache(null);
+		}
+	}
+
+	@Test
+	public void ttlAndEviction() throws SQLException, InterruptedException {
+		final QueryResultCache cache = cache().ttl(50, TimeUnit.MILLISECONDS).maxEntries(2).build();
+		label(cache, "FR");
+		label(cache, "DE");
+		label(cache, "XX");
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(1, cache.getStatistics().evictions);
+		Thread.sleep(100);
+		label(cache, "XX");
+		Assert.assertEquals(4, cache.getStatistics().misses);
+		Assert.assertEquals(0, cache.getStatistics().hits);
+	}
+}
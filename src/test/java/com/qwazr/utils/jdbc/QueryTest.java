@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.qwazr.utils.jdbc.connection.JDBCConnection;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class QueryTest {
+
+	private static JDBCConnection connectionManager;
+
+	@BeforeClass
+	public static void setup() throws ReflectiveOperationException, SQLException {
+		connectionManager = new JDBCConnection(QueryTest.class.getClassLoader(), "org.h2.Driver",
+				"jdbc:h2:mem:querytest;DB_CLOSE_DELAY=-1");
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			transaction.update("CREATE TABLE items (id INT PRIMARY KEY, name VARCHAR(50))");
+			final Query insert = transaction.prepare("INSERT INTO items (id, name) VALUES (?, ?)");
+			for (int i = 0; i < 100; i++) {
+				insert.getStatement().setInt(1, i);
+				insert.getStatement().setString(2, "item" + i);
+				insert.update();
+			}
+		}
+	}
+
+	@AfterClass
+	public static void cleanup() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			transaction.update("DROP TABLE items");
+		}
+	}
+
+	public static class Item {
+
+		private Integer id;
+		private String name;
+
+		public void setId(Integer id) {
+			this.id = id;
+		}
+
+		public Integer getId() {
+			return id;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	public static class PrimitiveItem {
+
+		private long id;
+		private double value;
+		private String name;
+
+		public void setId(long id) {
+			this.id = id;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public void setValue(double value) {
+			this.value = value;
+		}
+
+		public double getValue() {
+			return value;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	@Test
+	public void resultListPrimitiveBeans() throws Exception {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final Query query =
+					transaction.prepare("SELECT id, id * 1.5 AS value, name, 'unknown' AS other FROM items ORDER BY id");
+			query.setMaxResults(10);
+			final List<PrimitiveItem> items = query.getResultList(PrimitiveItem.class);
+			Assert.assertEquals(10, items.size());
+			Assert.assertEquals(9L, items.get(9).getId());
+			Assert.assertEquals(13.5, items.get(9).getValue(), 0);
+			Assert.assertEquals("item9", items.get(9).getName());
+			// The result list is cached
+			Assert.assertSame(items, query.getResultList(PrimitiveItem.class));
+			// The mapper is cached per class and column layout
+			Assert.assertSame(BeanMapper.of(PrimitiveItem.class, query.getResultSet().getMetaData()),
+					BeanMapper.of(PrimitiveItem.class, query.getResultSet().getMetaData()));
+		}
+	}
+
+	@Test
+	public void streamRows() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final Query query = transaction.prepare("SELECT id, name FROM items ORDER BY id");
+			query.setFetchSize(10);
+			try (final Stream<Row> rows = query.stream()) {
+				final List<Row> list = rows.collect(Collectors.toList());
+				Assert.assertEquals(100, list.size());
+				Assert.assertEquals(0, list.get(0).get("ID"));
+				Assert.assertEquals("item99", list.get(99).get("NAME"));
+			}
+		}
+	}
+
+	@Test
+	public void streamRowsWithPaging() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final Query query = transaction.prepare("SELECT id, name FROM items ORDER BY id");
+			query.setFirstResult(10);
+			query.setMaxResults(20);
+			try (final Stream<Row> rows = query.stream()) {
+				final List<Object> ids = rows.map(row -> row.get(0)).collect(Collectors.toList());
+				Assert.assertEquals(20, ids.size());
+				Assert.assertEquals(10, ids.get(0));
+				Assert.assertEquals(29, ids.get(19));
+			}
+		}
+	}
+
+	@Test
+	public void streamReusedRow() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final Query query = transaction.prepare("SELECT id FROM items");
+			final Set<Row> instances = Collections.newSetFromMap(new IdentityHashMap<>());
+			final Set<Object> ids = new HashSet<>();
+			try (final Stream<Row> rows = query.stream(true)) {
+				rows.forEach(row -> {
+					instances.add(row);
+					ids.add(row.get("ID"));
+				});
+			}
+			Assert.assertEquals(1, instances.size());
+			Assert.assertEquals(100, ids.size());
+		}
+	}
+
+	@Test
+	public void streamBeans() throws Exception {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final Query query = transaction.prepare("SELECT id, name FROM items WHERE id < ?");
+			query.getStatement().setInt(1, 50);
+			try (final Stream<Item> items = query.stream(Item.class)) {
+				Assert.assertEquals(1225, items.mapToInt(Item::getId).sum());
+			}
+			// The stream is closed, the query can be executed again
+			try (final Stream<Item> items = query.stream(Item.class)) {
+				Assert.assertEquals("item0", items.findFirst().get().getName());
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qwazr.utils.ObjectMappers;
+import com.qwazr.utils.jdbc.connection.JDBCConnection;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ResultSetJsonWriterTest {
+
+	private final static String SELECT = "SELECT * FROM items ORDER BY id";
+
+	private static JDBCConnection connectionManager;
+
+	@BeforeClass
+	public static void setup() throws ReflectiveOperationException, SQLException {
+		connectionManager = new JDBCConnection(ResultSetJsonWriterTest.class.getClassLoader(), "org.h2.Driver",
+				"jdbc:h2:mem:resultsetjsonwritertest;DB_CLOSE_DELAY=-1");
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			transaction.update("CREATE TABLE items (id INT PRIMARY KEY, amount BIGINT, ratio DOUBLE, "
+					+ "name VARCHAR(32), price DECIMAL(10,2), active BOOLEAN, created TIMESTAMP, data VARBINARY(8))");
+			try (final BatchWriter writer = transaction.batch("INSERT INTO items VALUES (?, ?, ?, ?, ?, ?, ?, ?)")
+					.build()) {
+				for (int i = 0; i < 1000; i++) {
+					final boolean nulls = i % 7 == 0;
+					writer.add(i, nulls ? null : i * 1000L, nulls ? null : i / 3.0, nulls ? null : "item \"" + i + '"',
+							nulls ? null : new BigDecimal(i).movePointLeft(2), nulls ? null : i % 2 == 0,
+							nulls ? null : new Timestamp(1500000000000L + i), nulls ? null : new byte[] { (byte) i });
+				}
+			}
+		}
+	}
+
+	private static void checkSameAsRows(final ObjectMapper mapper) throws SQLException, IOException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final List<Map<String, Object>> rows = new ArrayList<>();
+			for (final Row row : transaction.prepare(SELECT).getResultList()) {
+				final Map<String, Object> map = new LinkedHashMap<>();
+				row.getColumns().forEach(label -> map.put(label, row.get(label)));
+				rows.add(map);
+			}
+			final JsonNode expected = mapper.readTree(mapper.writeValueAsBytes(rows));
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			Assert.assertEquals(1000, transaction.prepare(SELECT).writeJson(mapper, output));
+			Assert.assertEquals(expected, mapper.readTree(output.toByteArray()));
+		}
+	}
+
+	@Test
+	public void json() throws SQLException, IOException {
+		checkSameAsRows(ObjectMappers.JSON);
+	}
+
+	@Test
+	public void smile() throws SQLException, IOException {
+		checkSameAsRows(ObjectMappers.SMILE);
+	}
+
+	@Test
+	public void firstAndMaxResults() throws SQLException, IOException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final Query query = transaction.prepare(SELECT);
+			query.setFirstResult(10);
+			query.setMaxResults(5);
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			Assert.assertEquals(5, query.writeJson(ObjectMappers.JSON, output));
+			final JsonNode array = ObjectMappers.JSON.readTree(output.toByteArray());
+			Assert.assertEquals(5, array.size());
+			Assert.assertEquals(10, array.get(0).get("ID").asInt());
+			Assert.assertEquals("item \"11\"", array.get(1).get("NAME").asText());
+		}
+	}
+}
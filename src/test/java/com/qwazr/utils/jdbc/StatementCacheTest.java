@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc;
+
+import com.qwazr.utils.jdbc.connection.JDBCConnection;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+public class StatementCacheTest {
+
+	private static JDBCConnection connectionManager;
+
+	@BeforeClass
+	public static void setup() throws ReflectiveOperationException, SQLException {
+		connectionManager = new JDBCConnection(StatementCacheTest.class.getClassLoader(), "org.h2.Driver",
+				"jdbc:h2:mem:statementcachetest;DB_CLOSE_DELAY=-1");
+		connectionManager.setStatementCacheSize(2);
+	}
+
+	@Test
+	public void reuseStatement() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final StatementCache cache = transaction.getStatementCache();
+			Assert.assertNotNull(cache);
+			// The counters are shared by all the transactions of the connection manager
+			final StatementCache.Statistics before = connectionManager.getStatementCacheStatistics();
+			final PreparedStatement statement;
+			try (final Query query = transaction.prepare("SELECT ? + 1")) {
+				query.getStatement().setInt(1, 1);
+				Assert.assertEquals(2, query.getFirstResult().get(0));
+				statement = query.getStatement();
+			}
+			Assert.assertEquals(1, cache.size());
+			for (int i = 0; i < 10; i++) {
+				try (final Query query = transaction.prepare("SELECT ? + 1")) {
+					Assert.assertSame(statement, query.getStatement());
+					query.getStatement().setInt(1, i);
+					Assert.assertEquals(i + 1, query.getFirstResult().get(0));
+				}
+			}
+			final StatementCache.Statistics after = connectionManager.getStatementCacheStatistics();
+			Assert.assertEquals(10, after.hits - before.hits);
+			Assert.assertEquals(1, after.misses - before.misses);
+		}
+	}
+
+	@Test
+	public void openQueriesDoNotShareStatements() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final Query query1 = transaction.prepare("SELECT 1");
+			final Query query2 = transaction.prepare("SELECT 1");
+			Assert.assertNotSame(query1.getStatement(), query2.getStatement());
+			// A statement prepared with generated keys is another entry
+			final Query query3 = transaction.prepareWithKeys("SELECT 1");
+			Assert.assertNotSame(query1.getStatement(), query3.getStatement());
+		}
+	}
+
+	@Test
+	public void evictionClosesStatements() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			final StatementCache cache = transaction.getStatementCache();
+			final long evictions = cache.getCounters().getStatistics().evictions;
+			final Query query1 = transaction.prepare("SELECT 1");
+			final PreparedStatement statement1 = query1.getStatement();
+			query1.close();
+			transaction.prepare("SELECT 2").close();
+			transaction.prepare("SELECT 3").close();
+			Assert.assertEquals(2, cache.size());
+			Assert.assertTrue(statement1.isClosed());
+			Assert.assertEquals(evictions + 1, cache.getCounters().getStatistics().evictions);
+		}
+	}
+
+	@Test
+	public void releasedStatementsAreReset() throws SQLException {
+		try (final Transaction transaction = connectionManager.getNewTransaction()) {
+			transaction.update("CREATE TABLE reset_test (id INT)");
+			final PreparedStatement statement;
+			final int fetchSize;
+			try (final Query query = transaction.prepare("INSERT INTO reset_test VALUES (?)")) {
+				statement = query.getStatement();
+				fetchSize = statement.getFetchSize();
+				// A batch left pending (like after a failed flush) and modified settings
+				statement.setInt(1, 1);
+				statement.addBatch();
+				statement.setFetchSize(fetchSize + 5);
+				statement.setMaxRows(1);
+				statement.setQueryTimeout(30);
+			}
+			try (final Query query = transaction.prepare("INSERT INTO reset_test VALUES (?)")) {
+				Assert.assertSame(statement, query.getStatement());
+				Assert.assertEquals(0, statement.executeBatch().length);
+				Assert.assertEquals(0, statement.getMaxRows());
+				Assert.assertEquals(fetchSize, statement.getFetchSize());
+				Assert.assertEquals(0, statement.getQueryTimeout());
+			}
+			transaction.update("DROP TABLE reset_test");
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc.connection;
+
+import com.qwazr.utils.WaitFor;
+import com.qwazr.utils.concurrent.RunnableEx;
+import com.qwazr.utils.jdbc.StatementCache;
+import com.qwazr.utils.jdbc.Transaction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ConnectionPoolTest {
+
+	private static ConnectionPool.Builder pool(final String name) {
+		return ConnectionPool.of("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", null, null);
+	}
+
+	private static Object sessionId(final Transaction transaction) throws SQLException {
+		return transaction.prepare("SELECT SESSION_ID()").getFirstResult().get(0);
+	}
+
+	@Test
+	public void recycleConnection() throws SQLException {
+		try (final ConnectionPool pool = pool("recycle").build()) {
+			final Object sessionId;
+			try (final Transaction transaction = pool.getNewTransaction()) {
+				sessionId = sessionId(transaction);
+			}
+			for (int i = 0; i < 5; i++) {
+				try (final Transaction transaction = pool.getNewTransaction()) {
+					Assert.assertEquals(sessionId, sessionId(transaction));
+				}
+			}
+			final ConnectionPool.Metrics metrics = pool.getMetrics();
+			Assert.assertEquals(1, metrics.created);
+			Assert.assertEquals(6, metrics.borrowed);
+			Assert.assertEquals(0, metrics.active);
+			Assert.assertEquals(1, metrics.idle);
+			Assert.assertEquals(6, metrics.waitTime.count);
+		}
+	}
+
+	@Test
+	public void rollbackOnRelease() throws SQLException {
+		try (final ConnectionPool pool = pool("rollback").maxSize(1).build()) {
+			try (final Transaction transaction = pool.getNewTransaction()) {
+				transaction.update("CREATE TABLE t (id INT)");
+			}
+			try (final Transaction transaction = pool.getNewTransaction(false)) {
+				transaction.update("INSERT INTO t VALUES (1)");
+			}
+			try (final Transaction transaction = pool.getNewTransaction()) {
+				Assert.assertEquals(0L, transaction.prepare("SELECT COUNT(*) FROM t").getFirstResult().get(0));
+			}
+		}
+	}
+
+	@Test
+	public void borrowTimeout() throws SQLException {
+		try (final ConnectionPool pool = pool("timeout").maxSize(2)
+				.borrowTimeout(100, TimeUnit.MILLISECONDS)
+				.build()) {
+			try (final Transaction t1 = pool.getNewTransaction();
+					final Transaction t2 = pool.getNewTransaction()) {
+				Assert.assertEquals(2, pool.getMetrics().active);
+				try {
+					pool.getNewTransaction();
+					Assert.fail("SQLTimeoutException expected");
+				} catch (SQLTimeoutException e) {
+					Assert.assertEquals(1, pool.getMetrics().timeouts);
+				}
+			}
+			// Closing a transaction twice must not release the connection twice
+			final Transaction transaction = pool.getNewTransaction();
+			transaction.close();
+			transaction.close();
+			Assert.assertEquals(2, pool.getMetrics().idle);
+		}
+	}
+
+	@Test
+	public void idleEvictionAndLeakDetection() throws Exception {
+		try (final ConnectionPool pool = pool("eviction").minSize(1)
+				.idleTimeout(50, TimeUnit.MILLISECONDS)
+				.leakDetectionThreshold(50, TimeUnit.MILLISECONDS)
+				.housekeepingPeriod(20, TimeUnit.MILLISECONDS)
+				.build()) {
+			final Transaction leaked = pool.getNewTransaction();
+			try (final Transaction t1 = pool.getNewTransaction();
+					final Transaction t2 = pool.getNewTransaction()) {
+				Assert.assertEquals(3, pool.getMetrics().active);
+			}
+			// The minimum size counts the active connections
+			WaitFor.of().timeOut(TimeUnit.SECONDS, 10).until(() -> pool.getMetrics().total == 1);
+			WaitFor.of().timeOut(TimeUnit.SECONDS, 10).until(() -> pool.getMetrics().leaks == 1);
+			leaked.close();
+			final ConnectionPool.Metrics metrics = pool.getMetrics();
+			Assert.assertEquals(1, metrics.idle);
+			Assert.assertEquals(0, metrics.active);
+			Assert.assertEquals(1, metrics.leaks);
+		}
+	}
+
+	@Test
+	public void validationOnBorrow() throws SQLException {
+		final List<Connection> connections = new ArrayList<>();
+		try (final ConnectionPool pool = ConnectionPool.of(() -> {
+			final Connection cnx = DriverManager.getConnection("jdbc:h2:mem:validation;DB_CLOSE_DELAY=-1");
+			connections.add(cnx);
+			return cnx;
+		}).build()) {
+			try (final Transaction transaction = pool.getNewTransaction()) {
+				Assert.assertNotNull(sessionId(transaction));
+			}
+			// Break the idle connection behind the pool
+			connections.get(0).close();
+			try (final Transaction transaction = pool.getNewTransaction()) {
+				Assert.assertNotNull(sessionId(transaction));
+			}
+			final ConnectionPool.Metrics metrics = pool.getMetrics();
+			Assert.assertEquals(2, metrics.created);
+			Assert.assertEquals(1, metrics.destroyed);
+			Assert.assertEquals(1, metrics.validationFailures);
+		}
+	}
+
+	@Test
+	public void statementCache() throws SQLException {
+		try (final ConnectionPool pool = pool("statements").maxSize(1).statementCacheSize(10).build()) {
+			for (int i = 0; i < 5; i++) {
+				try (final Transaction transaction = pool.getNewTransaction()) {
+					Assert.assertNotNull(sessionId(transaction));
+				}
+			}
+			final StatementCache.Statistics statistics = pool.getMetrics().statementCache;
+			Assert.assertEquals(4, statistics.hits);
+			Assert.assertEquals(1, statistics.misses);
+			Assert.assertEquals(0.8F, statistics.hitRatio, 0.001F);
+		}
+	}
+
+	@Test
+	public void closedTransactionIsRejected() throws SQLException {
+		try (final ConnectionPool pool = pool("closed").maxSize(1).build()) {
+			final Transaction transaction = pool.getNewTransaction(false);
+			transaction.close();
+			Assert.assertTrue(transaction.isClosed());
+			// The connection now belongs to another transaction
+			try (final Transaction other = pool.getNewTransaction(false)) {
+				final List<RunnableEx<SQLException>> operations = new ArrayList<>();
+				operations.add(() -> transaction.prepare("SELECT 1"));
+				operations.add(() -> transaction.update("SELECT 1"));
+				operations.add(transaction::commit);
+				operations.add(transaction::rollback);
+				for (final RunnableEx<SQLException> operation : operations) {
+					try {
+						operation.run();
+						Assert.fail("The closed transaction should be rejected");
+					} catch (SQLException e) {
+						Assert.assertEquals("The transaction is closed", e.getMessage());
+					}
+				}
+				Assert.assertNotNull(sessionId(other));
+			}
+		}
+	}
+
+	@Test
+	public void failedCreationClosesConnection() throws SQLException {
+		final AtomicBoolean closed = new AtomicBoolean();
+		try (final ConnectionPool pool = ConnectionPool.of(() -> {
+			final Connection cnx = DriverManager.getConnection("jdbc:h2:mem:failedcreation;DB_CLOSE_DELAY=-1");
+			return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+					(proxy, method, args) -> {
+						if (method.getName().equals("getTransactionIsolation"))
+							throw new SQLException("Broken connection");
+						if (method.getName().equals("close"))
+							closed.set(true);
+						try {
+							return method.invoke(cnx, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					});
+		}).build()) {
+			try {
+				pool.getNewTransaction();
+				Assert.fail("The creation should have failed");
+			} catch (SQLException e) {
+				Assert.assertEquals("Broken connection", e.getMessage());
+			}
+			Assert.assertTrue(closed.get());
+			Assert.assertEquals(0, pool.getMetrics().total);
+		}
+	}
+
+	@Test
+	public void brokenConnectionFreesSlot() throws SQLException {
+		final List<Connection> connections = new ArrayList<>();
+		try (final ConnectionPool pool = ConnectionPool.of(() -> {
+			final Connection cnx = DriverManager.getConnection("jdbc:h2:mem:broken;DB_CLOSE_DELAY=-1");
+			connections.add(cnx);
+			return cnx;
+		}).maxSize(1).borrowTimeout(100, TimeUnit.MILLISECONDS).build()) {
+			try (final Transaction transaction = pool.getNewTransaction()) {
+				Assert.assertNotNull(sessionId(transaction));
+				// Break the connection while it is borrowed
+				connections.get(0).close();
+			}
+			final ConnectionPool.Metrics metrics = pool.getMetrics();
+			Assert.assertEquals(0, metrics.active);
+			Assert.assertEquals(0, metrics.total);
+			Assert.assertEquals(1, metrics.destroyed);
+			try (final Transaction transaction = pool.getNewTransaction()) {
+				Assert.assertNotNull(sessionId(transaction));
+			}
+			Assert.assertEquals(2, pool.getMetrics().created);
+		}
+	}
+}
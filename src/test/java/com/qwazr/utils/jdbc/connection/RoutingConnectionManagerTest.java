@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.jdbc.connection;
+
+import com.qwazr.utils.jdbc.Transaction;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class RoutingConnectionManagerTest {
+
+	private static ConnectionPool primary;
+	private static ConnectionPool replica1;
+	private static ConnectionPool replica2;
+
+	private static ConnectionPool database(final String name) throws SQLException {
+		final ConnectionPool pool = ConnectionPool.of("jdbc:h2:mem:routing" + name + ";DB_CLOSE_DELAY=-1", null, null)
+				.build();
+		try (final Transaction transaction = pool.getNewTransaction()) {
+			transaction.update("CREATE TABLE server (name VARCHAR(16))");
+			transaction.update("INSERT INTO server VALUES ('" + name + "')");
+		}
+		return pool;
+	}
+
+	@BeforeClass
+	public static void setup() throws SQLException {
+		primary = database("primary");
+		replica1 = database("replica1");
+		replica2 = database("replica2");
+	}
+
+	@AfterClass
+	public static void cleanup() {
+		primary.close();
+		replica1.close();
+		replica2.close();
+	}
+
+	private static String server(final Transaction transaction) throws SQLException {
+		return (String) transaction.prepare("SELECT name FROM server").getFirstResult().get(0);
+	}
+
+	/**
+	 * A replica which can be switched off
+	 */
+	private static class FailingReplica extends ConnectionManager {
+
+		private final ConnectionManager connectionManager;
+		private final AtomicBoolean down;
+
+		private FailingReplica(final ConnectionManager connectionManager) {
+			this.connectionManager = connectionManager;
+			this.down = new AtomicBoolean();
+		}
+
+		@Override
+		public Transaction getNewTransaction(final boolean autoCommit, final Integer transactionIsolation)
+				throws SQLException {
+			if (down.get())
+				throw new SQLException("Connection refused");
+			return connectionManager.getNewTransaction(autoCommit, transactionIsolation);
+		}
+	}
+
+	@Test
+	public void readOnlyGoesToReplicas() throws SQLException {
+		final RoutingConnectionManager router = RoutingConnectionManager.of(primary)
+				.replica("replica1", replica1)
+				.replica("replica2", replica2)
+				.build();
+		try (final Transaction transaction = router.getNewTransaction()) {
+			Assert.assertEquals("primary", server(transaction));
+		}
+		try (final Transaction transaction = router.getNewTransaction(false)) {
+			Assert.assertEquals("primary", server(transaction));
+		}
+		// The open transactions are spread over the replicas
+		final List<Transaction> transactions = new ArrayList<>();
+		final Set<String> servers = new HashSet<>();
+		for (int i = 0; i < 4; i++) {
+			final Transaction transaction = router.getReadOnlyTransaction();
+			transactions.add(transaction);
+			servers.add(server(transaction));
+		}
+		Assert.assertEquals(2, servers.size());
+		Assert.assertFalse(servers.contains("primary"));
+		for (final RoutingConnectionManager.ReplicaStatus status : router.getReplicaStatus())
+			Assert.assertEquals(2, status.inFlight);
+		transactions.forEach(Transaction::close);
+		for (final RoutingConnectionManager.ReplicaStatus status : router.getReplicaStatus()) {
+			Assert.assertEquals(0, status.inFlight);
+			Assert.assertEquals(2, status.transactions);
+		}
+	}
+
+	@Test
+	public void latencyWeighted() throws SQLException {
+		final RoutingConnectionManager router = RoutingConnectionManager.of(primary)
+				.replica("replica1", replica1)
+				.replica("replica2", replica2)
+				.strategy(RoutingConnectionManager.Strategy.LATENCY_WEIGHTED)
+				.build();
+		final Set<String> servers = new HashSet<>();
+		for (int i = 0; i < 50; i++)
+			try (final Transaction transaction = router.getReadOnlyTransaction()) {
+				servers.add(server(transaction));
+			}
+		Assert.assertFalse(servers.contains("primary"));
+		long total = 0;
+		for (final RoutingConnectionManager.ReplicaStatus status : router.getReplicaStatus()) {
+			total += status.transactions;
+			Assert.assertTrue(status.meanNanos > 0 || status.transactions == 0);
+		}
+		Assert.assertEquals(50, total);
+	}
+
+	@Test
+	public void ejectionAndFallback() throws SQLException, InterruptedException {
+		final FailingReplica failing = new FailingReplica(replica1);
+		final RoutingConnectionManager router = RoutingConnectionManager.of(primary)
+				.replica("failing", failing)
+				.replica("replica2", replica2)
+				.failureThreshold(2)
+				.ejectionTime(200, TimeUnit.MILLISECONDS)
+				.build();
+		failing.down.set(true);
+		// The failures are retried on the other replica
+		for (int i = 0; i < 50; i++)
+			try (final Transaction transaction = router.getReadOnlyTransaction()) {
+				Assert.assertEquals("replica2", server(transaction));
+			}
+		RoutingConnectionManager.ReplicaStatus status = router.getReplicaStatus().get(0);
+		Assert.assertTrue(status.ejected);
+		Assert.assertEquals(1, status.ejections);
+		Assert.assertEquals(2, status.failures);
+
+		// Back after the ejection time
+		failing.down.set(false);
+		Thread.sleep(250);
+		Assert.assertFalse(router.getReplicaStatus().get(0).ejected);
+		final Set<String> servers = new HashSet<>();
+		for (int i = 0; i < 50; i++)
+			try (final Transaction transaction = router.getReadOnlyTransaction()) {
+				servers.add(server(transaction));
+			}
+		Assert.assertTrue(servers.contains("replica1"));
+
+		// Without any replica, the primary is used
+		final RoutingConnectionManager noReplica = RoutingConnectionManager.of(primary)
+				.replica("failing", failing)
+				.build();
+		failing.down.set(true);
+		try (final Transaction transaction = noReplica.getReadOnlyTransaction()) {
+			Assert.assertEquals("primary", server(transaction));
+		}
+		Assert.assertEquals(1, noReplica.getPrimaryFallbackCount());
+
+		final RoutingConnectionManager noFallback = RoutingConnectionManager.of(primary)
+				.replica("failing", failing)
+				.fallbackToPrimary(false)
+				.build();
+		try {
+			noFallback.getReadOnlyTransaction();
+			Assert.fail("The transaction should have failed");
+		} catch (SQLException e) {
+			Assert.assertEquals("Connection refused", e.getMessage());
+		}
+	}
+}
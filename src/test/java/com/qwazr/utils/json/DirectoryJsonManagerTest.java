@@ -0,0 +1,184 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.json;
+
+import com.qwazr.utils.ObjectMappers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class DirectoryJsonManagerTest {
+
+	public static class Item {
+
+		public String name;
+		public int version;
+
+		public Item() {
+		}
+
+		Item(final String name, final int version) {
+			this.name = name;
+			this.version = version;
+		}
+	}
+
+	private static class Manager extends DirectoryJsonManager<Item> {
+
+		private Manager(final File directory, final Durability durability) throws IOException {
+			super(directory, Item.class, durability);
+		}
+	}
+
+	private static Path directory() throws IOException {
+		final Path directory = Files.createTempDirectory("directoryjsonmanager");
+		directory.toFile().deleteOnExit();
+		return directory;
+	}
+
+	private static List<String> files(final Path directory) throws IOException {
+		try (final Stream<Path> files = Files.list(directory)) {
+			return files.map(path -> path.getFileName().toString()).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private static Item read(final Path directory, final String name) throws IOException {
+		return ObjectMappers.JSON.readValue(directory.resolve(name + ".json").toFile(), Item.class);
+	}
+
+	private static void concurrentSets(final Manager manager) throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				final int thread = t;
+				futures.add(executor.submit(() -> {
+					for (int version = 0; version < 20; version++)
+						for (int i = 0; i < 5; i++)
+							manager.set("item" + (thread * 5 + i), new Item("item" + thread, version));
+					return null;
+				}));
+			}
+			for (final Future<?> future : futures)
+				future.get();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void syncWrites() throws Exception {
+		final Path directory = directory();
+		final Manager manager = new Manager(directory.toFile(), DirectoryJsonManager.Durability.SYNC);
+		concurrentSets(manager);
+		// The files are written when set returns, without any temporary file left
+		final List<String> files = files(directory);
+		Assert.assertEquals(40, files.size());
+		for (final String file : files)
+			Assert.assertTrue(file, file.matches("item[0-9]+\\.json"));
+		for (int i = 0; i < 40; i++) {
+			Assert.assertEquals(19, read(directory, "item" + i).version);
+			Assert.assertEquals(19, manager.get("item" + i).version);
+		}
+
+		Assert.assertEquals(19, manager.delete("item0").version);
+		Assert.assertFalse(Files.exists(directory.resolve("item0.json")));
+		Assert.assertNull(manager.get("item0"));
+		Assert.assertNull(manager.delete("item0"));
+
+		// The files are loaded by a new manager
+		final Manager manager2 = new Manager(directory.toFile(), DirectoryJsonManager.Durability.SYNC);
+		Assert.assertEquals(39, manager2.nameSet().size());
+		Assert.assertEquals(19, manager2.get("item1").version);
+	}
+
+	@Test
+	public void asyncWrites() throws Exception {
+		final Path directory = directory();
+		final Manager manager = new Manager(directory.toFile(), DirectoryJsonManager.Durability.ASYNC);
+		concurrentSets(manager);
+		// The memory is up to date before the files are written
+		for (int i = 0; i < 40; i++)
+			Assert.assertEquals(19, manager.get("item" + i).version);
+		manager.delete("item0");
+		Assert.assertNull(manager.get("item0"));
+		manager.flush();
+		Assert.assertEquals(39, files(directory).size());
+		for (int i = 1; i < 40; i++)
+			Assert.assertEquals(19, read(directory, "item" + i).version);
+
+		// A synchronous write on an asynchronous manager
+		manager.set("item1", new Item("sync", 20), DirectoryJsonManager.Durability.SYNC);
+		Assert.assertEquals(20, read(directory, "item1").version);
+	}
+
+	@Test
+	public void concurrentSyncAndAsyncWrites() throws Exception {
+		final Path directory = directory();
+		final Manager manager = new Manager(directory.toFile(), DirectoryJsonManager.Durability.ASYNC);
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			for (int round = 0; round < 10; round++) {
+				final List<Future<?>> futures = new ArrayList<>();
+				for (int t = 0; t < 8; t++) {
+					final int thread = t;
+					futures.add(executor.submit(() -> {
+						for (int version = 0; version < 50; version++)
+							manager.set("shared", new Item("item" + thread, version),
+									(thread + version) % 2 == 0 ?
+											DirectoryJsonManager.Durability.SYNC :
+											DirectoryJsonManager.Durability.ASYNC);
+						return null;
+					}));
+				}
+				for (final Future<?> future : futures)
+					future.get();
+				manager.flush();
+				// The file holds the last version in memory: no stale batch was renamed over it
+				final Item item = manager.get("shared");
+				final Item file = read(directory, "shared");
+				Assert.assertEquals(item.name, file.name);
+				Assert.assertEquals(item.version, file.version);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void externalChange() throws Exception {
+		final Path directory = directory();
+		final Manager manager = new Manager(directory.toFile(), DirectoryJsonManager.Durability.SYNC);
+		manager.set("external", new Item("external", 1));
+		Assert.assertEquals(1, manager.get("external").version);
+		final Path file = directory.resolve("external.json");
+		ObjectMappers.JSON.writeValue(file.toFile(), new Item("external", 2));
+		Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 5000));
+		Assert.assertEquals(2, manager.get("external").version);
+	}
+}
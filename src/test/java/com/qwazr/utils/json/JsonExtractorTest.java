@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.json;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qwazr.utils.ObjectMappers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class JsonExtractorTest {
+
+	private static Map<String, Object> document() {
+		final Map<String, Object> user = new LinkedHashMap<>();
+		user.put("name", "John");
+		user.put("tags", Arrays.asList("a", "b", "c"));
+		final List<Object> items = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			final Map<String, Object> item = new LinkedHashMap<>();
+			item.put("id", i);
+			item.put("unit.price", i * 1.5);
+			items.add(item);
+		}
+		final Map<String, Object> document = new LinkedHashMap<>();
+		document.put("unrelated", items);
+		document.put("user", user);
+		document.put("items", items);
+		document.put("a/b", "escaped");
+		return document;
+	}
+
+	private static final JsonExtractor EXTRACTOR = JsonExtractor.of()
+			.pointer("/user/name")
+			.pointer("/items/2/id")
+			.path("$.items[3]['unit.price']")
+			.path("user.tags")
+			.path("user.tags[1]")
+			.pointer("/a~1b")
+			.pointer("/missing/field")
+			.build();
+
+	private static void check(final ObjectMapper mapper) throws IOException {
+		final byte[] bytes = mapper.writeValueAsBytes(document());
+		final Map<String, JsonNode> values = EXTRACTOR.extract(mapper, bytes);
+		Assert.assertEquals(Arrays.asList("/user/name", "/items/2/id", "$.items[3]['unit.price']", "user.tags",
+				"user.tags[1]", "/a~1b"), new ArrayList<>(values.keySet()));
+		Assert.assertEquals("John", values.get("/user/name").asText());
+		Assert.assertEquals(2, values.get("/items/2/id").asInt());
+		Assert.assertEquals(4.5, values.get("$.items[3]['unit.price']").asDouble(), 0);
+		Assert.assertEquals(3, values.get("user.tags").size());
+		Assert.assertEquals("b", values.get("user.tags[1]").asText());
+		Assert.assertEquals("escaped", values.get("/a~1b").asText());
+		Assert.assertEquals(values, EXTRACTOR.extract(mapper, new ByteArrayInputStream(bytes)));
+	}
+
+	@Test
+	public void json() throws IOException {
+		check(ObjectMappers.JSON);
+	}
+
+	@Test
+	public void smile() throws IOException {
+		check(ObjectMappers.SMILE);
+	}
+
+	@Test
+	public void stopsEarly() throws IOException {
+		final JsonExtractor extractor = JsonExtractor.of().pointer("/user/name").pointer("/user/id").build();
+		// The document is truncated after the values: the scan must not reach the end
+		final byte[] bytes = "{\"big\":[1,2,{\"x\":3}],\"user\":{\"id\":7,\"name\":\"John\"},\"rest\":[[[".getBytes(
+				StandardCharsets.UTF_8);
+		final List<String> found = new ArrayList<>();
+		Assert.assertEquals(2, extractor.extract(ObjectMappers.JSON, bytes, (expression, value) -> found.add(
+				expression + '=' + value.asText())));
+		Assert.assertEquals(Arrays.asList("/user/id=7", "/user/name=John"), found);
+	}
+
+	@Test
+	public void numericPointerOnObject() throws IOException {
+		final JsonExtractor extractor = JsonExtractor.of().pointer("/0").build();
+		Assert.assertEquals("first", extractor.extract(ObjectMappers.JSON, "[\"first\"]".getBytes()).get("/0").asText());
+		Assert.assertEquals("zero",
+				extractor.extract(ObjectMappers.JSON, "{\"0\":\"zero\"}".getBytes()).get("/0").asText());
+	}
+
+	private static void checkOverlap(final JsonExtractor extractor, final int expressions) throws IOException {
+		Assert.assertEquals(2, extractor.getTargetCount());
+		// The document is truncated after the values: the scan must stop early
+		final byte[] bytes = "{\"items\":[{\"id\":1},{\"id\":2}],\"rest\":[[[".getBytes(StandardCharsets.UTF_8);
+		final Map<String, JsonNode> values = extractor.extract(ObjectMappers.JSON, bytes);
+		Assert.assertEquals(expressions, values.size());
+		Assert.assertEquals(1, values.get("$.items[0]").get("id").asInt());
+		Assert.assertEquals(1, values.get("/items/0").get("id").asInt());
+		Assert.assertEquals(2, values.get("/items/1/id").asInt());
+	}
+
+	@Test
+	public void overlappingPathAndPointer() throws IOException {
+		checkOverlap(JsonExtractor.of().path("$.items[0]").pointer("/items/0").pointer("/items/1/id").build(), 3);
+		checkOverlap(JsonExtractor.of().pointer("/items/0").path("$.items[0]").pointer("/items/1/id").build(), 3);
+		checkOverlap(JsonExtractor.of().path("$.items['0']").path("$.items[0]").pointer("/items/0")
+				.pointer("/items/1/id").build(), 4);
+	}
+
+	@Test
+	public void nestedOverlaps() throws IOException {
+		final List<String> expressions = Arrays.asList("$.a[0][1]", "$.a['0']['1']", "/a/0/1", "/a/0/1/0", "$.a[0]");
+		// The document is truncated after the values: the scan must stop early
+		final byte[] bytes = "{\"a\":[[5,[7]]],\"rest\":[[[".getBytes(StandardCharsets.UTF_8);
+		for (int shift = 0; shift < expressions.size(); shift++) {
+			final JsonExtractor.Builder builder = JsonExtractor.of();
+			for (int i = 0; i < expressions.size(); i++) {
+				final String expression = expressions.get((i + shift) % expressions.size());
+				if (expression.startsWith("/"))
+					builder.pointer(expression);
+				else
+					builder.path(expression);
+			}
+			final JsonExtractor extractor = builder.build();
+			Assert.assertEquals(3, extractor.getTargetCount());
+			final Map<String, JsonNode> values = extractor.extract(ObjectMappers.JSON, bytes);
+			Assert.assertEquals(5, values.size());
+			Assert.assertEquals("[7]", values.get("$.a[0][1]").toString());
+			Assert.assertEquals("[7]", values.get("$.a['0']['1']").toString());
+			Assert.assertEquals("[7]", values.get("/a/0/1").toString());
+			Assert.assertEquals(7, values.get("/a/0/1/0").asInt());
+			Assert.assertEquals("[5,[7]]", values.get("$.a[0]").toString());
+		}
+	}
+
+	@Test
+	public void wrongPaths() {
+		for (final String path : new String[] { "a[", "a[x]", "a..b", "a[-1]" })
+			try {
+				JsonExtractor.of().path(path);
+				Assert.fail("The path should be rejected: " + path);
+			} catch (IllegalArgumentException e) {
+				Assert.assertTrue(e.getMessage(), e.getMessage().contains(path));
+			}
+		Assert.assertEquals(Arrays.asList("a", 0, "b.c"), JsonExtractor.parsePath("$.a[0]['b.c']"));
+	}
+}
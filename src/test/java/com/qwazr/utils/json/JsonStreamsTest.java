@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qwazr.utils.ObjectMappers;
+import com.qwazr.utils.inputstream.MappedFileInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class JsonStreamsTest {
+
+	private final static int COUNT = 10000;
+
+	public static class Item {
+
+		public int id;
+		public String name;
+	}
+
+	private static Item item(final int id) {
+		final Item item = new Item();
+		item.id = id;
+		item.name = "item\n" + id;
+		return item;
+	}
+
+	private static Path writeArray(final ObjectMapper mapper) throws IOException {
+		final Path file = Files.createTempFile("jsonstreams", ".array");
+		file.toFile().deleteOnExit();
+		try (final OutputStream output = Files.newOutputStream(file);
+				final JsonGenerator generator = mapper.getFactory().createGenerator(output)) {
+			generator.writeStartArray();
+			for (int i = 0; i < COUNT; i++)
+				mapper.writeValue(generator, item(i));
+			generator.writeEndArray();
+		}
+		return file;
+	}
+
+	private static Path writeLines() throws IOException {
+		final Path file = Files.createTempFile("jsonstreams", ".ndjson");
+		file.toFile().deleteOnExit();
+		final ObjectMappers.Codec<Item> codec = ObjectMappers.codec(ObjectMappers.JSON, Item.class);
+		try (final OutputStream output = Files.newOutputStream(file)) {
+			for (int i = 0; i < COUNT; i++) {
+				output.write(codec.writeCompactAsBytes(item(i)));
+				output.write('\n');
+			}
+		}
+		return file;
+	}
+
+	private static void checkItems(final Stream<Item> stream) {
+		try (final Stream<Item> items = stream) {
+			final List<Item> list = items.collect(Collectors.toList());
+			Assert.assertEquals(COUNT, list.size());
+			for (int i = 0; i < COUNT; i++) {
+				Assert.assertEquals(i, list.get(i).id);
+				Assert.assertEquals("item\n" + i, list.get(i).name);
+			}
+		}
+	}
+
+	@Test
+	public void readArray() throws IOException {
+		for (final ObjectMapper mapper : new ObjectMapper[] { ObjectMappers.JSON, ObjectMappers.SMILE }) {
+			final Path file = writeArray(mapper);
+			checkItems(JsonStreams.readArray(mapper, Item.class, file));
+			checkItems(JsonStreams.readArray(mapper, Item.class, Files.newInputStream(file)));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void notAnArray() throws IOException {
+		JsonStreams.readArray(ObjectMappers.JSON, Item.class, writeLines());
+	}
+
+	@Test(expected = UncheckedIOException.class)
+	public void truncatedArray() throws IOException {
+		final Path file = Files.createTempFile("jsonstreams", ".json");
+		file.toFile().deleteOnExit();
+		Files.write(file, "[{\"id\":1},{\"id\":2}".getBytes(StandardCharsets.UTF_8));
+		try (final Stream<Item> items = JsonStreams.readArray(ObjectMappers.JSON, Item.class, file)) {
+			items.count();
+		}
+	}
+
+	@Test
+	public void readLines() throws IOException {
+		final Path file = writeLines();
+		checkItems(JsonStreams.readLines(ObjectMappers.JSON, Item.class, file));
+	}
+
+	@Test
+	public void readLinesParallel() throws IOException {
+		final Path file = writeLines();
+		// A small split size to get many ranges
+		final Stream<Item> stream = JsonStreams.readLinesParallel(ObjectMappers.JSON, Item.class, file, 4096);
+		Assert.assertTrue(stream.isParallel());
+		checkItems(stream);
+		try (final Stream<Item> items = JsonStreams.readLinesParallel(ObjectMappers.JSON, Item.class, file)) {
+			Assert.assertEquals((long) COUNT * (COUNT - 1) / 2, items.mapToLong(item -> item.id).sum());
+		}
+	}
+
+	@Test
+	public void mappedRegions() throws IOException {
+		final Path file = writeLines();
+		final byte[] expected = Files.readAllBytes(file);
+		try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			try (final MappedFileInputStream input = new MappedFileInputStream(channel, 0, -1, 1000)) {
+				Assert.assertArrayEquals(expected, IOUtils.toByteArray(input));
+			}
+			try (final MappedFileInputStream input = new MappedFileInputStream(channel, 10, 5000, 1000)) {
+				Assert.assertEquals(4990, input.available());
+				Assert.assertEquals(expected[10], input.read());
+				Assert.assertEquals(2500, input.skip(2500));
+				Assert.assertEquals(expected[2511], input.read());
+				Assert.assertEquals(2488, IOUtils.toByteArray(input).length);
+			}
+		}
+	}
+}
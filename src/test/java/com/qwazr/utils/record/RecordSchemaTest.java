@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015-2018 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.record;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Objects;
+
+public class RecordSchemaTest {
+
+	public enum Status {
+		DRAFT, PUBLISHED
+	}
+
+	public static class Base {
+
+		long id;
+	}
+
+	public static class Item extends Base {
+
+		String name;
+		double price;
+		boolean active;
+		Integer stock;
+		byte[] data;
+		Status status;
+		char grade;
+		transient String ignored;
+
+		public Item() {
+		}
+
+		Item(final long id) {
+			this.id = id;
+			this.name = "item-" + id + "-é";
+			this.price = id * 1.5;
+			this.active = id % 2 == 0;
+			this.stock = id % 3 == 0 ? null : (int) id * 10;
+			this.data = id % 5 == 0 ? null : new byte[] { (byte) id, 1, 2 };
+			this.status = id % 2 == 0 ? Status.PUBLISHED : Status.DRAFT;
+			this.grade = 'A';
+			this.ignored = "ignored";
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Item))
+				return false;
+			final Item item = (Item) o;
+			return id == item.id && Objects.equals(name, item.name) && price == item.price &&
+					active == item.active && Objects.equals(stock, item.stock) && Arrays.equals(data, item.data) &&
+					status == item.status && grade == item.grade;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(id);
+		}
+	}
+
+	public static class Unsupported {
+
+		Object value;
+	}
+
+	private final static RecordSchema<Item> SCHEMA = RecordSchema.of(Item.class);
+
+	private static void check(final RecordView<Item> view, final Item item) {
+		Assert.assertEquals(item.id, view.getLong(SCHEMA.field("id")));
+		Assert.assertEquals(item.name, view.getString(SCHEMA.field("name")));
+		Assert.assertEquals(item.price, view.getDouble(SCHEMA.field("price")), 0);
+		Assert.assertEquals(item.active, view.getBoolean(SCHEMA.field("active")));
+		Assert.assertEquals(item.stock, view.get(SCHEMA.field("stock")));
+		Assert.assertEquals(item.stock == null, view.isNull(SCHEMA.field("stock")));
+		Assert.assertArrayEquals(item.data, view.getBytes(SCHEMA.field("data")));
+		Assert.assertEquals(item.status, view.getEnum(SCHEMA.field("status")));
+		Assert.assertEquals(item.grade, view.getChar(SCHEMA.field("grade")));
+		Assert.assertEquals(item, view.toObject());
+	}
+
+	@Test
+	public void schema() {
+		Assert.assertSame(SCHEMA, RecordSchema.of(Item.class));
+		Assert.assertEquals(8, SCHEMA.getFields().size());
+		Assert.assertEquals("active", SCHEMA.getFields().get(0).getName());
+		Assert.assertFalse(SCHEMA.field("price").isNullable());
+		Assert.assertTrue(SCHEMA.field("stock").isNullable());
+		Assert.assertEquals(RecordSchema.Type.INT, SCHEMA.field("stock").getType());
+		try {
+			SCHEMA.field("ignored");
+			Assert.fail("The transient field should be ignored");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage().contains("ignored"));
+		}
+		try {
+			RecordSchema.of(Unsupported.class);
+			Assert.fail("The Object field should be rejected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage().contains("value"));
+		}
+	}
+
+	@Test
+	public void heapBuffer() {
+		for (int i = 0; i < 10; i++) {
+			final Item item = new Item(i);
+			final byte[] bytes = SCHEMA.toBytes(item);
+			Assert.assertEquals(SCHEMA.sizeOf(item), bytes.length);
+			check(SCHEMA.view(bytes), item);
+		}
+		// A type mismatch is detected
+		try {
+			SCHEMA.view(SCHEMA.toBytes(new Item(1))).getInt(SCHEMA.field("price"));
+			Assert.fail("The type mismatch should be detected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage().contains("DOUBLE"));
+		}
+	}
+
+	@Test
+	public void directBufferSequence() {
+		// The byte order of the buffer does not change the layout
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(4096).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < 20; i++)
+			SCHEMA.write(new Item(i), buffer);
+		final int end = buffer.position();
+		final RecordView<Item> view = SCHEMA.view();
+		int position = 0;
+		int count = 0;
+		while (position < end) {
+			check(view.wrap(buffer, position), new Item(count++));
+			position += view.getLength();
+		}
+		Assert.assertEquals(20, count);
+		Assert.assertEquals(end, position);
+	}
+
+	@Test
+	public void mappedFile() throws IOException {
+		final Path file = Files.createTempFile("record", ".bin");
+		try {
+			final Item item = new Item(42);
+			Files.write(file, SCHEMA.toBytes(item));
+			try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				final RecordView<Item> view = SCHEMA.view(buffer);
+				check(view, item);
+				final ByteBuffer content = view.getContent(SCHEMA.field("data"));
+				Assert.assertEquals(3, content.remaining());
+				Assert.assertEquals(42, content.get(0));
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void wrongRecords() {
+		final byte[] bytes = RecordSchema.of(Base.class).toBytes(new Base());
+		try {
+			SCHEMA.view(bytes);
+			Assert.fail("The schema mismatch should be detected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage().contains(Item.class.getName()));
+		}
+		final byte[] itemBytes = SCHEMA.toBytes(new Item(1));
+		try {
+			SCHEMA.view(Arrays.copyOf(itemBytes, itemBytes.length - 1));
+			Assert.fail("The truncated record should be detected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage().startsWith("Truncated record"));
+		}
+	}
+}
@@ -19,7 +19,11 @@ import com.qwazr.utils.WaitFor;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class WaitForTest {
@@ -83,4 +87,73 @@ public class WaitForTest {
 	public void testTimeOutHalfParams() {
 		checkTimeOut(WaitFor.of(), 1000);
 	}
+
+	@Test
+	public void testAsyncWait() throws InterruptedException, ExecutionException {
+		WaitFor.of().untilAsync(new Counter(true)).get().checkWait();
+	}
+
+	@Test
+	public void testAsyncTimeOut() throws InterruptedException {
+		final Counter counter = new Counter(false);
+		final CompletableFuture<Counter> future = WaitFor.of()
+				.timeOut(TimeUnit.MILLISECONDS, 500)
+				.pauseTime(TimeUnit.MILLISECONDS, 10)
+				.maxPauseTime(TimeUnit.MILLISECONDS, 100)
+				.untilAsync(counter);
+		try {
+			future.get();
+			Assert.fail("The TimeoutException has not be thrown");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+			counter.checkTimeOut(500);
+		}
+	}
+
+	@Test
+	public void testAsyncSignal() throws InterruptedException, ExecutionException {
+		final AtomicBoolean ready = new AtomicBoolean(false);
+		final WaitFor waitFor = WaitFor.of()
+				.timeOut(TimeUnit.MINUTES, 1)
+				.pauseTime(TimeUnit.MINUTES, 1)
+				.build();
+		final long startTime = System.currentTimeMillis();
+		final CompletableFuture<WaitFor.UntilCondition> future = waitFor.untilAsync(ready::get);
+		Assert.assertFalse(future.isDone());
+		ready.set(true);
+		waitFor.signal();
+		future.get();
+		Assert.assertTrue(System.currentTimeMillis() - startTime < 30000);
+		Assert.assertEquals(0, waitFor.getPendingCount());
+	}
+
+	@Test
+	public void testAsyncCancel() {
+		final WaitFor waitFor = WaitFor.of().timeOut(TimeUnit.MINUTES, 1).build();
+		final CompletableFuture<WaitFor.UntilCondition> cancelled = waitFor.untilAsync(() -> false);
+		final CompletableFuture<WaitFor.UntilCondition> completed = waitFor.untilAsync(() -> false);
+		Assert.assertEquals(2, waitFor.getPendingCount());
+		// The waits completed by the caller are released
+		cancelled.cancel(false);
+		completed.complete(null);
+		Assert.assertEquals(0, waitFor.getPendingCount());
+	}
+
+	@Test
+	public void testAsyncZeroPause() throws InterruptedException {
+		final AtomicInteger evaluations = new AtomicInteger();
+		final CompletableFuture<WaitFor.UntilCondition> future = WaitFor.of()
+				.timeOut(TimeUnit.MILLISECONDS, 200)
+				.pauseTime(TimeUnit.MILLISECONDS, 0)
+				.maxPauseTime(TimeUnit.MILLISECONDS, 0)
+				.untilAsync(() -> evaluations.incrementAndGet() < 0);
+		try {
+			future.get();
+			Assert.fail("The TimeoutException has not be thrown");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		// The minimum pause (1 ms) prevents a busy loop
+		Assert.assertTrue(Integer.toString(evaluations.get()), evaluations.get() <= 250);
+	}
 }